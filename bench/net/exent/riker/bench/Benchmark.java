@@ -0,0 +1,72 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.bench;
+
+/**
+ * A single benchmark, one call to run() is one operation.
+ * Benchmarks should prepare all their data in setUp() so only the code under test is measured.
+ */
+public abstract class Benchmark {
+
+	/**
+	 * Name of the benchmark, used as key in result files.
+	 */
+	private String name;
+
+	/**
+	 * Default constructor.
+	 * @param name name of the benchmark, should not contain whitespace
+	 */
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name of the benchmark.
+	 * @return the name of the benchmark
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Prepare data for the benchmark, called once before warmup.
+	 * @throws Exception if the benchmark can't be prepared
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Run one operation.
+	 * The result is consumed by the runner, so returning it prevents the JIT from removing the work.
+	 * @return the result of the operation
+	 * @throws Exception if the operation fails
+	 */
+	public abstract Object run() throws Exception;
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
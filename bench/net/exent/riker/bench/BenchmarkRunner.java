@@ -0,0 +1,242 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import net.exent.riker.util.MatchingBenchmarks;
+import net.exent.riker.util.MusicBrainzBenchmarks;
+
+/**
+ * Runs benchmarks and compares the results with a baseline.
+ * Each benchmark is warmed up before it's measured, and the measurement is split in several timed iterations so we get an error estimate.
+ * Usage: BenchmarkRunner [-filter text] [-output file] [-baseline file]
+ * Warmup and measurement can be tuned with the system properties riker.bench.warmup (iterations), riker.bench.iterations and riker.bench.time (milliseconds per iteration).
+ * When a baseline is given the runner exits with status 1 if a benchmark got slower than riker.bench.tolerance (default 0.25, 25%) allows.
+ */
+public final class BenchmarkRunner {
+
+	/**
+	 * Amount of warmup iterations.
+	 */
+	private static final int WARMUP_ITERATIONS = Integer.getInteger("riker.bench.warmup", 5);
+	/**
+	 * Amount of measured iterations.
+	 */
+	private static final int ITERATIONS = Integer.getInteger("riker.bench.iterations", 10);
+	/**
+	 * Duration of each iteration in nanoseconds.
+	 */
+	private static final long ITERATION_TIME = Integer.getInteger("riker.bench.time", 200) * 1000000L;
+	/**
+	 * Minimum duration of a batch of operations in nanoseconds, keeps the overhead of reading the clock low.
+	 */
+	private static final long BATCH_TIME = 100000L;
+	/**
+	 * How much slower than the baseline a benchmark may get before it's reported as a regression.
+	 */
+	private static final double TOLERANCE = Double.parseDouble(System.getProperty("riker.bench.tolerance", "0.25"));
+	/**
+	 * Object results are compared with, makes sure the results are used without costing much.
+	 */
+	private static final Object MARKER = new Object();
+	/**
+	 * Amount of results that were the marker, never expected to be anything else than 0.
+	 */
+	private static volatile long markerHits;
+
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private BenchmarkRunner() {
+	}
+
+	/**
+	 * Run the benchmarks.
+	 * @param args command line arguments
+	 * @throws Exception if a benchmark fails or result files can't be read or written
+	 */
+	public static void main(String... args) throws Exception {
+		/* logging from the code under test would be measured too, only log warnings unless told otherwise */
+		if (System.getProperty("riker.log.level") == null)
+			System.setProperty("riker.log.level", "WARNING");
+		String filter = null;
+		File output = null;
+		File baseline = null;
+		for (int a = 0; a + 1 < args.length; a += 2) {
+			if ("-filter".equals(args[a]))
+				filter = args[a + 1];
+			else if ("-output".equals(args[a]))
+				output = new File(args[a + 1]);
+			else if ("-baseline".equals(args[a]))
+				baseline = new File(args[a + 1]);
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[a]);
+		}
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(MatchingBenchmarks.benchmarks());
+		benchmarks.addAll(MetafileBenchmarks.benchmarks());
+		benchmarks.addAll(MusicBrainzBenchmarks.benchmarks());
+		Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+		for (Benchmark benchmark : benchmarks) {
+			if (filter != null && !benchmark.name().contains(filter))
+				continue;
+			double[] result = measure(benchmark);
+			results.put(benchmark.name(), result);
+			System.out.println(String.format(Locale.US, "%-40s %14.1f ns/op  +/- %.1f", benchmark.name(), result[0], result[1]));
+		}
+		if (output != null)
+			write(output, results);
+		if (baseline != null && !compare(read(baseline), results))
+			System.exit(1);
+	}
+
+	/**
+	 * Warm up and measure a benchmark.
+	 * @param benchmark the benchmark to measure
+	 * @return mean time per operation and standard deviation between iterations, in nanoseconds
+	 * @throws Exception if the benchmark fails
+	 */
+	private static double[] measure(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		long batch = 1;
+		for (int a = 0; a < WARMUP_ITERATIONS; ++a) {
+			double nanosPerOp = iteration(benchmark, batch);
+			batch = Math.max(1, (long) (BATCH_TIME / Math.max(nanosPerOp, 1.0)));
+		}
+		double[] samples = new double[ITERATIONS];
+		double sum = 0.0;
+		for (int a = 0; a < samples.length; ++a) {
+			samples[a] = iteration(benchmark, batch);
+			sum += samples[a];
+		}
+		double mean = sum / samples.length;
+		double variance = 0.0;
+		for (double sample : samples)
+			variance += (sample - mean) * (sample - mean);
+		double deviation = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0.0;
+		return new double[] {mean, deviation};
+	}
+
+	/**
+	 * Run one timed iteration of a benchmark.
+	 * @param benchmark the benchmark to run
+	 * @param batch amount of operations between each time the clock is read
+	 * @return time per operation in nanoseconds
+	 * @throws Exception if the benchmark fails
+	 */
+	private static double iteration(Benchmark benchmark, long batch) throws Exception {
+		long hits = 0;
+		long operations = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (long a = 0; a < batch; ++a) {
+				if (benchmark.run() == MARKER)
+					++hits;
+			}
+			operations += batch;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < ITERATION_TIME);
+		markerHits += hits;
+		return (double) elapsed / operations;
+	}
+
+	/**
+	 * Write results to a file.
+	 * @param file the file to write to
+	 * @param results the results, keyed by benchmark name
+	 * @throws IOException if the file can't be written
+	 */
+	private static void write(File file, Map<String, double[]> results) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.println("# Riker benchmark results, mean and standard deviation in nanoseconds per operation");
+			writer.println("# java " + System.getProperty("java.version") + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors() + " processors");
+			writer.println("# warmup " + WARMUP_ITERATIONS + " iterations, " + ITERATIONS + " iterations of " + ITERATION_TIME / 1000000L + " ms");
+			for (Map.Entry<String, double[]> entry : results.entrySet())
+				writer.println(String.format(Locale.US, "%s\t%.1f\t%.1f", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Read results from a file.
+	 * @param file the file to read from
+	 * @return the results, keyed by benchmark name
+	 * @throws IOException if the file can't be read
+	 */
+	private static Map<String, double[]> read(File file) throws IOException {
+		Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#") || line.trim().length() == 0)
+					continue;
+				String[] columns = line.split("\t");
+				results.put(columns[0], new double[] {Double.parseDouble(columns[1]), Double.parseDouble(columns[2])});
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Compare results with a baseline and print the difference.
+	 * A benchmark only counts as a regression if it's slower than the tolerance allows even when the error is taken into account.
+	 * @param baseline the baseline results
+	 * @param results the new results
+	 * @return true if no benchmark regressed, false if any did
+	 */
+	private static boolean compare(Map<String, double[]> baseline, Map<String, double[]> results) {
+		boolean passed = true;
+		System.out.println();
+		System.out.println(String.format(Locale.US, "%-40s %14s %14s %8s", "benchmark", "baseline", "current", "change"));
+		for (Map.Entry<String, double[]> entry : results.entrySet()) {
+			double[] base = baseline.get(entry.getKey());
+			if (base == null) {
+				System.out.println(String.format(Locale.US, "%-40s %14s %14.1f %8s", entry.getKey(), "-", entry.getValue()[0], "new"));
+				continue;
+			}
+			double change = entry.getValue()[0] / base[0] - 1.0;
+			boolean regressed = entry.getValue()[0] - entry.getValue()[1] > (base[0] + base[1]) * (1.0 + TOLERANCE);
+			System.out.println(String.format(Locale.US, "%-40s %14.1f %14.1f %+7.1f%%%s", entry.getKey(), base[0], entry.getValue()[0], change * 100.0, regressed ? "  REGRESSION" : ""));
+			if (regressed)
+				passed = false;
+		}
+		return passed;
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.exent.riker.RikerEngine;
+import net.exent.riker.RikerUi;
+import net.exent.riker.metadata.Group;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metrics.Metrics;
+
+/**
+ * Runs Riker headlessly on synthetic libraries and reports how it performs.
+ * Files are loaded by FileHandler, grouped by Riker and matched by Matcher, with MusicBrainz replaced by MusicBrainzStandIn.
+ * For each library size it reports files loaded per second, time to the first and the last matched group, and peak heap usage.
+ * Every library size is run on its own RikerEngine in its own JVM, so peak heap usage and the metrics only cover that run.
+ * Usage: EndToEndBenchmark [-files 1000,10000,100000] [-dir directory] [-seed seed] [-output file]
+ * Libraries are generated in the directory (default riker-e2e in the temporary directory) and reused on later runs.
+ * The time limit for each run is set with the system property riker.bench.e2e.timeout (minutes, default 60).
+ */
+public class EndToEndBenchmark implements RikerUi {
+
+	/**
+	 * Time limit for a run in minutes.
+	 */
+	private static final int TIMEOUT = Integer.getInteger("riker.bench.e2e.timeout", 60);
+	/**
+	 * The engine running the benchmark.
+	 */
+	private RikerEngine engine;
+	/**
+	 * Groups that are matched.
+	 */
+	private Set<Group> matched = new HashSet<Group>();
+	/**
+	 * Amount of files loaded.
+	 */
+	private AtomicInteger filesLoaded = new AtomicInteger();
+	/**
+	 * Counted down when all groups are matched.
+	 */
+	private CountDownLatch done = new CountDownLatch(1);
+	/**
+	 * When the run started, from System.nanoTime().
+	 */
+	private long start;
+	/**
+	 * When all files were loaded, 0 if they're not loaded yet.
+	 */
+	private long loaded;
+	/**
+	 * When the first group was matched, 0 if no group is matched yet.
+	 */
+	private long firstMatch;
+	/**
+	 * When the last group was matched.
+	 */
+	private long lastMatch;
+
+	/**
+	 * Run the benchmark.
+	 * @param args command line arguments
+	 * @throws Exception if a library can't be generated or a run fails
+	 */
+	public static void main(String... args) throws Exception {
+		/* logging from the code under test would be measured too, only log warnings unless told otherwise */
+		if (System.getProperty("riker.log.level") == null)
+			System.setProperty("riker.log.level", "WARNING");
+		String sizes = "1000,10000,100000";
+		File directory = new File(System.getProperty("java.io.tmpdir"), "riker-e2e");
+		long seed = 1L;
+		File output = null;
+		int run = 0;
+		for (int a = 0; a + 1 < args.length; a += 2) {
+			if ("-files".equals(args[a]))
+				sizes = args[a + 1];
+			else if ("-dir".equals(args[a]))
+				directory = new File(args[a + 1]);
+			else if ("-seed".equals(args[a]))
+				seed = Long.parseLong(args[a + 1]);
+			else if ("-output".equals(args[a]))
+				output = new File(args[a + 1]);
+			else if ("-run".equals(args[a]))
+				run = Integer.parseInt(args[a + 1]);
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[a]);
+		}
+		if (run > 0) {
+			boolean completed = new EndToEndBenchmark().run(run, new File(directory, Integer.toString(run)), seed, output);
+			System.exit(completed ? 0 : 2);
+		}
+		boolean failed = false;
+		for (String size : sizes.split(",")) {
+			if (fork(Integer.parseInt(size.trim()), directory, seed, output) != 0)
+				failed = true;
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	@Override
+	public void fileLoaded(Metafile metafile) {
+		filesLoaded.incrementAndGet();
+	}
+
+	@Override
+	public synchronized void groupMatched(Group group) {
+		lastMatch = System.nanoTime();
+		if (firstMatch == 0)
+			firstMatch = lastMatch;
+		matched.add(group);
+	}
+
+	@Override
+	public synchronized void allFilesLoaded() {
+		loaded = System.nanoTime();
+	}
+
+	@Override
+	public void allFilesMatched() {
+		done.countDown();
+	}
+
+	/**
+	 * Run Riker on a library in a new JVM.
+	 * @param files amount of files in the library
+	 * @param directory the directory libraries are kept in
+	 * @param seed seed for generating the library
+	 * @param output file to append the result to, may be null
+	 * @return exit status of the JVM
+	 * @throws IOException if the JVM can't be started
+	 * @throws InterruptedException if interrupted while waiting for the JVM
+	 */
+	private static int fork(int files, File directory, long seed, File output) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(EndToEndBenchmark.class.getName());
+		command.add("-run");
+		command.add(Integer.toString(files));
+		command.add("-dir");
+		command.add(directory.getPath());
+		command.add("-seed");
+		command.add(Long.toString(seed));
+		if (output != null) {
+			command.add("-output");
+			command.add(output.getPath());
+		}
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				System.out.println(line);
+		} finally {
+			reader.close();
+		}
+		return process.waitFor();
+	}
+
+	/**
+	 * Generate the library if needed and run Riker on it.
+	 * @param files amount of files in the library
+	 * @param directory directory of the library
+	 * @param seed seed for generating the library
+	 * @param output file to append the result to, may be null
+	 * @return true if all groups were matched within the time limit, false if not
+	 * @throws Exception if the library can't be generated or the run fails
+	 */
+	private boolean run(int files, File directory, long seed, File output) throws Exception {
+		generate(files, directory, seed);
+		MusicBrainzStandIn standIn = new MusicBrainzStandIn(LibraryGenerator.fixtureDirectory(directory));
+		System.setProperty("riker.musicbrainz.url", standIn.start());
+		System.setProperty("riker.musicbrainz.interval", "0");
+		/* keep data Riker saves between sessions with the library, except the session log as every run should match everything */
+		System.setProperty("user.home", new File(directory, "home").getAbsolutePath());
+		File sessionLog = new File(new File(new File(directory, "home"), ".riker"), "session");
+		if (sessionLog.exists() && !sessionLog.delete())
+			throw new IOException("Unable to delete session log: " + sessionLog);
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			pool.resetPeakUsage();
+		start = System.nanoTime();
+		engine = new RikerEngine(System.getProperties());
+		engine.rikerUi(this);
+		engine.load(Collections.singletonList(LibraryGenerator.libraryDirectory(directory).getAbsolutePath()));
+		boolean completed = done.await(TIMEOUT, TimeUnit.MINUTES);
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peakHeap += pool.getPeakUsage().getUsed();
+		}
+		int matchedFiles = 0;
+		for (Group group : engine.groups().values())
+			matchedFiles += group.matchedCount();
+		String result;
+		synchronized (this) {
+			/* groups merged into other groups are no longer there */
+			matched.retainAll(new HashSet<Group>(engine.groups().values()));
+			double loadSeconds = (loaded - start) / 1e9;
+			double lastSeconds = (lastMatch - start) / 1e9;
+			result = String.format(Locale.US, "files=%d groups=%d/%d matched=%.1f%% load=%.1fs (%.0f files/s) first=%.2fs last=%.1fs (%.0f files/s) heap=%dMB requests=%d%s",
+					filesLoaded.get(), matched.size(), engine.groups().size(), 100.0 * matchedFiles / Math.max(1, filesLoaded.get()),
+					loadSeconds, filesLoaded.get() / loadSeconds, (firstMatch - start) / 1e9, lastSeconds, filesLoaded.get() / lastSeconds,
+					peakHeap / (1024 * 1024), standIn.requests(), completed ? "" : " TIMEOUT");
+		}
+		standIn.stop();
+		System.out.println(result);
+		System.out.println(Metrics.summary());
+		if (output != null) {
+			PrintWriter writer = new PrintWriter(new FileWriter(output, true));
+			try {
+				writer.println(result);
+			} finally {
+				writer.close();
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * Generate a library unless it already is generated.
+	 * @param files amount of files in the library
+	 * @param directory directory of the library
+	 * @param seed seed for generating the library
+	 * @throws IOException if the library can't be generated
+	 */
+	private static void generate(int files, File directory, long seed) throws IOException {
+		File marker = new File(directory, "generated");
+		String description = files + " files, seed " + seed;
+		if (marker.isFile()) {
+			BufferedReader reader = new BufferedReader(new FileReader(marker));
+			try {
+				if (description.equals(reader.readLine()))
+					return;
+			} finally {
+				reader.close();
+			}
+		}
+		if (LibraryGenerator.libraryDirectory(directory).exists())
+			throw new IOException("Library in " + directory + " was generated with other settings, remove it first");
+		long generateStart = System.nanoTime();
+		LibraryGenerator generator = new LibraryGenerator(directory, seed);
+		generator.generate(files);
+		PrintWriter writer = new PrintWriter(new FileWriter(marker));
+		try {
+			writer.println(description);
+		} finally {
+			writer.close();
+		}
+		System.out.println(String.format(Locale.US, "Generated %d files (%d copies) in %d albums in %.1f s", generator.files(), generator.duplicates(), generator.albums(), (System.nanoTime() - generateStart) / 1e9));
+	}
+}
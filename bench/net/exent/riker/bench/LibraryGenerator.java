@@ -0,0 +1,571 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metadata.Artist;
+import net.exent.riker.metadata.Track;
+
+/**
+ * Writes a synthetic music library, along with the MusicBrainz responses describing it.
+ * The library consists of small but valid MP3 and FLAC files with tags, read the same way as real files.
+ * Album sizes follow a Zipf distribution, lots of singles and small albums and a few large ones.
+ * File names and tags are noisy: fields are missing, casing differs and there are typos.
+ * Some albums are stored twice with identical audio, like copies made when reorganizing a collection.
+ * The files are written to directory/library, and the responses to directory/fixtures:
+ * release/[mbid].xml for each album and tracks.tsv with all tracks, used by MusicBrainzStandIn to answer searches.
+ * Usage: LibraryGenerator directory files [seed]
+ */
+public class LibraryGenerator {
+
+	/**
+	 * Largest album size.
+	 */
+	private static final int MAX_ALBUM_SIZE = 30;
+	/**
+	 * Exponent of the Zipf distribution of album sizes.
+	 */
+	private static final double ZIPF_EXPONENT = 1.0;
+	/**
+	 * Percentage of albums that are stored twice.
+	 */
+	private static final int DUPLICATE_PERCENT = 5;
+	/**
+	 * Percentage of albums stored as FLAC, the rest are MP3.
+	 */
+	private static final int FLAC_PERCENT = 30;
+	/**
+	 * Percentage of albums already tagged with a MusicBrainz album id.
+	 */
+	private static final int TAGGED_PERCENT = 10;
+	/**
+	 * Amount of words in the vocabulary titles and names are made of.
+	 */
+	private static final int VOCABULARY_SIZE = 5000;
+	/**
+	 * Size of an MPEG-1 Layer 3 frame at 128 kbps and 44.1 kHz.
+	 */
+	private static final int MPEG_FRAME_SIZE = 417;
+	/**
+	 * Amount of MPEG frames with audio after the Xing frame.
+	 */
+	private static final int MPEG_FRAMES = 3;
+	/**
+	 * Amount of bytes of FLAC frame data.
+	 */
+	private static final int FLAC_DATA_SIZE = 2048;
+	/**
+	 * Consonants words are made of.
+	 */
+	private static final String CONSONANTS = "bcdfghklmnprstvz";
+	/**
+	 * Vowels words are made of.
+	 */
+	private static final String VOWELS = "aeiou";
+	/**
+	 * Release types.
+	 */
+	private static final String[] RELEASE_TYPES = {"Album Official", "Album Official", "Album Official", "EP Official", "Compilation Official", "Live Official", "Single Official"};
+	/**
+	 * The directory the library and responses are written to.
+	 */
+	private File directory;
+	/**
+	 * Random generator, everything generated comes from this.
+	 */
+	private Random random;
+	/**
+	 * Words titles and names are made of.
+	 */
+	private String[] vocabulary = new String[VOCABULARY_SIZE];
+	/**
+	 * Cumulative probabilities of album sizes.
+	 */
+	private double[] albumSizes = new double[MAX_ALBUM_SIZE];
+	/**
+	 * Writer for the track list.
+	 */
+	private PrintWriter tracks;
+	/**
+	 * Amount of albums written.
+	 */
+	private int albums;
+	/**
+	 * Amount of files written.
+	 */
+	private int files;
+	/**
+	 * Amount of files written as copies of another file.
+	 */
+	private int duplicates;
+
+	/**
+	 * Default constructor.
+	 * @param directory the directory to write the library and responses to
+	 * @param seed seed for the random generator, the same seed always gives the same library
+	 */
+	public LibraryGenerator(File directory, long seed) {
+		this.directory = directory;
+		random = new Random(seed);
+		for (int a = 0; a < vocabulary.length; ++a) {
+			StringBuilder word = new StringBuilder();
+			int syllables = 1 + random.nextInt(3);
+			for (int b = 0; b < syllables; ++b)
+				word.append(CONSONANTS.charAt(random.nextInt(CONSONANTS.length()))).append(VOWELS.charAt(random.nextInt(VOWELS.length())));
+			if (random.nextBoolean())
+				word.append(CONSONANTS.charAt(random.nextInt(CONSONANTS.length())));
+			word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+			vocabulary[a] = word.toString();
+		}
+		double sum = 0.0;
+		for (int size = 1; size <= MAX_ALBUM_SIZE; ++size) {
+			sum += 1.0 / Math.pow(size, ZIPF_EXPONENT);
+			albumSizes[size - 1] = sum;
+		}
+		for (int a = 0; a < albumSizes.length; ++a)
+			albumSizes[a] /= sum;
+	}
+
+	/**
+	 * Generate a library.
+	 * @param args directory, amount of files and optionally the seed
+	 * @throws IOException if the library can't be written
+	 */
+	public static void main(String... args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: LibraryGenerator directory files [seed]");
+			System.exit(1);
+		}
+		LibraryGenerator generator = new LibraryGenerator(new File(args[0]), args.length > 2 ? Long.parseLong(args[2]) : 1L);
+		long start = System.nanoTime();
+		generator.generate(Integer.parseInt(args[1]));
+		System.out.println(String.format(Locale.US, "Wrote %d files (%d copies) in %d albums in %.1f s", generator.files(), generator.duplicates(), generator.albums(), (System.nanoTime() - start) / 1e9));
+	}
+
+	/**
+	 * Get the directory the library is written to.
+	 * @param directory the directory given to the generator
+	 * @return the library directory
+	 */
+	public static File libraryDirectory(File directory) {
+		return new File(directory, "library");
+	}
+
+	/**
+	 * Get the directory the MusicBrainz responses are written to.
+	 * @param directory the directory given to the generator
+	 * @return the fixture directory
+	 */
+	public static File fixtureDirectory(File directory) {
+		return new File(directory, "fixtures");
+	}
+
+	/**
+	 * Write the library and the responses.
+	 * @param count amount of files to write
+	 * @throws IOException if the library can't be written
+	 */
+	public void generate(int count) throws IOException {
+		File releases = new File(fixtureDirectory(directory), "release");
+		if (!releases.isDirectory() && !releases.mkdirs())
+			throw new IOException("Unable to create directory: " + releases);
+		tracks = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(fixtureDirectory(directory), "tracks.tsv")), "UTF-8"));
+		try {
+			while (files < count) {
+				int size = Math.min(albumSize(), count - files);
+				Album album = album(size);
+				long[] audioSeeds = new long[size];
+				for (int a = 0; a < size; ++a)
+					audioSeeds[a] = random.nextLong();
+				boolean flac = random.nextInt(100) < FLAC_PERCENT;
+				writeRelease(releases, album);
+				writeAlbum(album, audioSeeds, flac, false);
+				++albums;
+				if (random.nextInt(100) < DUPLICATE_PERCENT && files + size <= count) {
+					writeAlbum(album, audioSeeds, flac, true);
+					duplicates += size;
+				}
+			}
+		} finally {
+			tracks.close();
+		}
+	}
+
+	/**
+	 * Get the amount of albums written.
+	 * @return the amount of albums written
+	 */
+	public int albums() {
+		return albums;
+	}
+
+	/**
+	 * Get the amount of files written.
+	 * @return the amount of files written
+	 */
+	public int files() {
+		return files;
+	}
+
+	/**
+	 * Get the amount of files written as copies of another file.
+	 * @return the amount of copies written
+	 */
+	public int duplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Pick an album size from the Zipf distribution.
+	 * @return the album size
+	 */
+	private int albumSize() {
+		double value = random.nextDouble();
+		for (int a = 0; a < albumSizes.length; ++a) {
+			if (value <= albumSizes[a])
+				return a + 1;
+		}
+		return albumSizes.length;
+	}
+
+	/**
+	 * Create an album.
+	 * @param size amount of tracks on the album
+	 * @return the album
+	 */
+	private Album album(int size) {
+		Artist artist = new Artist(words(1 + random.nextInt(2)), mbid());
+		List<Track> trackList = new ArrayList<Track>();
+		for (int a = 1; a <= size; ++a)
+			trackList.add(new Track(artist, words(1 + random.nextInt(4)), mbid(), a, 90000 + random.nextInt(390000)));
+		String type = size == 1 ? "Single Official" : RELEASE_TYPES[random.nextInt(RELEASE_TYPES.length)];
+		String released = String.format("%d-%02d-%02d", 1960 + random.nextInt(50), 1 + random.nextInt(12), 1 + random.nextInt(28));
+		return new Album(artist, words(1 + random.nextInt(3)), released, type, mbid(), trackList);
+	}
+
+	/**
+	 * Write the files of an album.
+	 * @param album the album
+	 * @param audioSeeds seed for the audio data of each track, copies of an album use the same seeds
+	 * @param flac whether to write FLAC files, MP3 if not
+	 * @param copy whether this is a copy of an album already written
+	 * @throws IOException if the files can't be written
+	 */
+	private void writeAlbum(Album album, long[] audioSeeds, boolean flac, boolean copy) throws IOException {
+		String artistName = album.artist().name();
+		File albumDirectory;
+		switch (random.nextInt(4)) {
+			case 0:
+				albumDirectory = new File(new File(libraryDirectory(directory), artistName), album.title());
+				break;
+
+			case 1:
+				albumDirectory = new File(libraryDirectory(directory), (artistName + "_-_" + album.title()).replace(' ', '_'));
+				break;
+
+			case 2:
+				albumDirectory = new File(libraryDirectory(directory), album.title());
+				break;
+
+			default:
+				albumDirectory = new File(libraryDirectory(directory), artistName + " - " + album.title());
+				break;
+		}
+		if (copy)
+			albumDirectory = new File(libraryDirectory(directory), "copies" + File.separator + albumDirectory.getName());
+		/* different albums may have the same title, don't let them overwrite each other */
+		File parent = albumDirectory.getParentFile();
+		String name = albumDirectory.getName();
+		for (int a = 2; albumDirectory.exists(); ++a)
+			albumDirectory = new File(parent, name + " (" + a + ")");
+		if (!albumDirectory.isDirectory() && !albumDirectory.mkdirs())
+			throw new IOException("Unable to create directory: " + albumDirectory);
+		boolean tagged = random.nextInt(100) < TAGGED_PERCENT;
+		for (Track track : album.tracks()) {
+			String[] tags = {
+				noise(album.title(), 5),
+				noise(track.artist().name(), 5),
+				random.nextInt(3) == 0 ? artistName : null,
+				noise(track.title(), 10),
+				random.nextInt(10) == 0 ? null : random.nextBoolean() ? "" + track.tracknumber() : random.nextBoolean() ? String.format("%02d", track.tracknumber()) : track.tracknumber() + "/" + album.tracks().size(),
+				tagged ? album.mbid() : null
+			};
+			String basename = basename(track);
+			long audioSeed = audioSeeds[track.tracknumber() - 1];
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(new File(albumDirectory, basename + (flac ? ".flac" : random.nextInt(20) == 0 ? ".MP3" : ".mp3"))));
+			try {
+				if (flac)
+					writeFlac(output, tags, track.duration(), audioSeed);
+				else
+					writeMp3(output, tags, track.duration(), audioSeed);
+			} finally {
+				output.close();
+			}
+			++files;
+		}
+	}
+
+	/**
+	 * Write an MP3 file: an ID3v2.3 tag, a Xing frame with the frame count of the whole track and a few frames of audio.
+	 * @param output stream to write to
+	 * @param tags album, artist, album artist, title, track number and MusicBrainz album id, null for missing fields
+	 * @param duration duration in milliseconds
+	 * @param audioSeed seed for the audio data
+	 * @throws IOException if the file can't be written
+	 */
+	private void writeMp3(OutputStream output, String[] tags, int duration, long audioSeed) throws IOException {
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		String[] ids = {"TALB", "TPE1", "TPE2", "TIT2", "TRCK"};
+		for (int a = 0; a < ids.length; ++a) {
+			if (tags[a] != null)
+				id3Frame(frames, ids[a], latin1(tags[a]));
+		}
+		if (tags[5] != null)
+			id3Frame(frames, "TXXX", latin1("MusicBrainz Album Id\0" + tags[5]));
+		/* some padding, like most taggers leave */
+		int size = frames.size() + 64;
+		output.write(new byte[] {'I', 'D', '3', 3, 0, 0, (byte) ((size >> 21) & 0x7F), (byte) ((size >> 14) & 0x7F), (byte) ((size >> 7) & 0x7F), (byte) (size & 0x7F)});
+		frames.writeTo(output);
+		output.write(new byte[64]);
+		/* MPEG-1 Layer 3, 128 kbps, 44.1 kHz, joint stereo */
+		byte[] header = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, (byte) 0x44};
+		byte[] frame = new byte[MPEG_FRAME_SIZE];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		/* Xing header after 32 bytes of side information, flag 1 means the frame count is present */
+		long frameCount = (long) duration * 44100 / 1152 / 1000;
+		System.arraycopy(new byte[] {'X', 'i', 'n', 'g', 0, 0, 0, 1, (byte) (frameCount >> 24), (byte) (frameCount >> 16), (byte) (frameCount >> 8), (byte) frameCount}, 0, frame, 36, 12);
+		output.write(frame);
+		Random audio = new Random(audioSeed);
+		for (int a = 0; a < MPEG_FRAMES; ++a) {
+			audio.nextBytes(frame);
+			System.arraycopy(header, 0, frame, 0, header.length);
+			output.write(frame);
+		}
+	}
+
+	/**
+	 * Write a FLAC file: stream info, Vorbis comments and some frame data.
+	 * @param output stream to write to
+	 * @param tags album, artist, album artist, title, track number and MusicBrainz album id, null for missing fields
+	 * @param duration duration in milliseconds
+	 * @param audioSeed seed for the audio data
+	 * @throws IOException if the file can't be written
+	 */
+	private void writeFlac(OutputStream output, String[] tags, int duration, long audioSeed) throws IOException {
+		Random audio = new Random(audioSeed);
+		output.write(new byte[] {'f', 'L', 'a', 'C', 0, 0, 0, 34});
+		/* block sizes and frame sizes */
+		output.write(new byte[] {0x10, 0x00, 0x10, 0x00, 0, 0, 0, 0, 0, 0});
+		/* 20 bits sample rate, 3 bits channels - 1, 5 bits bits per sample - 1, 36 bits total samples */
+		long samples = (long) duration * 44100 / 1000;
+		long packed = (44100L << 44) | (1L << 41) | (15L << 36) | samples;
+		for (int a = 56; a >= 0; a -= 8)
+			output.write((int) (packed >> a));
+		byte[] md5 = new byte[16];
+		audio.nextBytes(md5);
+		output.write(md5);
+		ByteArrayOutputStream comments = new ByteArrayOutputStream();
+		String[] names = {"ALBUM", "ARTIST", "ALBUMARTIST", "TITLE", "TRACKNUMBER", "MUSICBRAINZ_ALBUMID"};
+		List<byte[]> values = new ArrayList<byte[]>();
+		for (int a = 0; a < names.length; ++a) {
+			if (tags[a] != null)
+				values.add((names[a] + "=" + tags[a]).getBytes("UTF-8"));
+		}
+		byte[] vendor = "reference libFLAC 1.2.1 20070917".getBytes("UTF-8");
+		littleEndian(comments, vendor.length);
+		comments.write(vendor);
+		littleEndian(comments, values.size());
+		for (byte[] value : values) {
+			littleEndian(comments, value.length);
+			comments.write(value);
+		}
+		/* last metadata block */
+		output.write(new byte[] {(byte) 0x84, (byte) (comments.size() >> 16), (byte) (comments.size() >> 8), (byte) comments.size()});
+		comments.writeTo(output);
+		byte[] data = new byte[FLAC_DATA_SIZE];
+		audio.nextBytes(data);
+		/* frame sync code */
+		data[0] = (byte) 0xFF;
+		data[1] = (byte) 0xF8;
+		output.write(data);
+	}
+
+	/**
+	 * Write a release document, the same document MusicBrainz responds with when an album is loaded.
+	 * The tracks of the album are also added to the track list.
+	 * @param releases directory to write to
+	 * @param album the album
+	 * @throws IOException if the document can't be written
+	 */
+	private void writeRelease(File releases, Album album) throws IOException {
+		PrintWriter xml = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(releases, album.mbid() + ".xml")), "UTF-8"));
+		try {
+			xml.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			xml.println("<metadata xmlns=\"http://musicbrainz.org/ns/mmd-1.0#\">");
+			xml.println("<release id=\"" + album.mbid() + "\" type=\"" + album.type() + "\">");
+			xml.println("<title>" + escape(album.title()) + "</title>");
+			xml.println("<text-representation language=\"ENG\" script=\"Latn\"/>");
+			xml.println("<artist id=\"" + album.artist().mbid() + "\" type=\"Group\"><name>" + escape(album.artist().name()) + "</name><sort-name>" + escape(album.artist().name()) + "</sort-name></artist>");
+			xml.println("<release-event-list><event date=\"" + album.released() + "\" country=\"GB\" format=\"CD\"/></release-event-list>");
+			xml.println("<track-list>");
+			for (Track track : album.tracks()) {
+				xml.println("<track id=\"" + track.mbid() + "\"><title>" + escape(track.title()) + "</title><duration>" + track.duration() + "</duration></track>");
+				tracks.println(track.mbid() + "\t" + album.mbid() + "\t" + track.tracknumber() + "\t" + track.duration() + "\t" + track.title() + "\t" + album.artist().mbid() + "\t" + album.artist().name() + "\t" + album.title() + "\t" + album.type());
+			}
+			xml.println("</track-list>");
+			xml.println("</release>");
+			xml.println("</metadata>");
+		} finally {
+			xml.close();
+		}
+	}
+
+	/**
+	 * Create a file name for a track, in one of the ways files typically are named.
+	 * @param track the track
+	 * @return the file name without extension
+	 */
+	private String basename(Track track) {
+		String number = String.format("%02d", track.tracknumber());
+		switch (random.nextInt(6)) {
+			case 0:
+				return track.title();
+
+			case 1:
+				return number + ". " + track.artist().name() + " - " + track.title();
+
+			case 2:
+				return (number + "_" + track.title()).replace(' ', '_').toLowerCase();
+
+			case 3:
+				return track.tracknumber() + " " + noise(track.title(), 20);
+
+			default:
+				return number + " - " + track.title();
+		}
+	}
+
+	/**
+	 * Add noise to a value, the way tags often differ from the correct value.
+	 * @param value the correct value
+	 * @param percent chance in percent that the value is missing, and the chance that it's misspelled
+	 * @return the value with noise, or null if the value is missing
+	 */
+	private String noise(String value, int percent) {
+		if (random.nextInt(100) < percent)
+			return null;
+		if (random.nextInt(100) < percent && value.length() > 3) {
+			/* swap two letters */
+			int position = 1 + random.nextInt(value.length() - 2);
+			value = value.substring(0, position) + value.charAt(position + 1) + value.charAt(position) + value.substring(position + 2);
+		}
+		switch (random.nextInt(10)) {
+			case 0:
+				return value.toLowerCase();
+
+			case 1:
+				return value.toUpperCase();
+
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 * Create a text from random words.
+	 * @param count amount of words
+	 * @return the text
+	 */
+	private String words(int count) {
+		StringBuilder text = new StringBuilder(vocabulary[random.nextInt(vocabulary.length)]);
+		for (int a = 1; a < count; ++a)
+			text.append(' ').append(vocabulary[random.nextInt(vocabulary.length)]);
+		return text.toString();
+	}
+
+	/**
+	 * Create a random MBID.
+	 * @return the MBID
+	 */
+	private String mbid() {
+		return new UUID(random.nextLong(), random.nextLong()).toString();
+	}
+
+	/**
+	 * Write an ID3v2.3 frame.
+	 * @param output stream to write to
+	 * @param id the frame id
+	 * @param text the text, ISO-8859-1 encoded
+	 * @throws IOException if the frame can't be written
+	 */
+	private static void id3Frame(ByteArrayOutputStream output, String id, byte[] text) throws IOException {
+		int size = text.length + 1;
+		output.write(id.getBytes("ISO-8859-1"));
+		output.write(new byte[] {(byte) (size >> 24), (byte) (size >> 16), (byte) (size >> 8), (byte) size, 0, 0, 0});
+		output.write(text);
+	}
+
+	/**
+	 * Encode text as ISO-8859-1.
+	 * @param text the text
+	 * @return the encoded text
+	 * @throws UnsupportedEncodingException never, all platforms support ISO-8859-1
+	 */
+	private static byte[] latin1(String text) throws UnsupportedEncodingException {
+		return text.getBytes("ISO-8859-1");
+	}
+
+	/**
+	 * Write a 32 bit little endian integer.
+	 * @param output stream to write to
+	 * @param value the integer
+	 */
+	private static void littleEndian(ByteArrayOutputStream output, int value) {
+		for (int a = 0; a < 4; ++a)
+			output.write(value >> (a * 8));
+	}
+
+	/**
+	 * Escape text for XML.
+	 * @param text the text
+	 * @return the escaped text
+	 */
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.exent.riker.metadata.Metafile;
+
+/**
+ * Benchmarks for Metafile.
+ */
+public final class MetafileBenchmarks {
+
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private MetafileBenchmarks() {
+	}
+
+	/**
+	 * Get the benchmarks.
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final int values : new int[] {4, 12, 16}) {
+			benchmarks.add(new Benchmark("metafile.updateStringValues." + values) {
+				/**
+				 * The file to update string values for.
+				 */
+				private Metafile file;
+
+				@Override
+				public void setUp() {
+					file = Synthetic.metafile(values, values);
+				}
+
+				@Override
+				public Object run() {
+					file.updateStringValues();
+					return file;
+				}
+			});
+		}
+		return benchmarks;
+	}
+}
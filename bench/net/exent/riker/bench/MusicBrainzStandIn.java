@@ -0,0 +1,546 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the MusicBrainz web service, answering requests with the responses written by LibraryGenerator.
+ * Albums are served from the recorded release documents.
+ * Track searches are answered from the track list: tracks with words from the track clause in their title are ranked by
+ * how many words they share with the query, like the Lucene search behind MusicBrainz all clauses only affect the ranking.
+ * Release searches are answered the same way, with releases that got words from the release clause in their title.
+ * Responses are compressed with gzip when the client accepts it. With the system property "riker.bench.standin.busy" set to N,
+ * every Nth request is answered with 503 Service Unavailable, for exercising the retries of the client.
+ */
+public class MusicBrainzStandIn {
+
+	/**
+	 * Maximum amount of tracks returned from a search.
+	 */
+	private static final int SEARCH_LIMIT = 25;
+	/**
+	 * Path of the web service.
+	 */
+	private static final String SERVICE_PATH = "/ws/1";
+	/**
+	 * Every this many requests are answered with 503 Service Unavailable, 0 to answer all requests.
+	 */
+	private static final int BUSY_INTERVAL = Integer.getInteger("riker.bench.standin.busy", 0);
+	/**
+	 * Directory with the responses.
+	 */
+	private File fixtures;
+	/**
+	 * All tracks.
+	 */
+	private List<Entry> entries = new ArrayList<Entry>();
+	/**
+	 * Tracks keyed by the lowercase words in their title.
+	 */
+	private Map<String, List<Entry>> titleIndex = new HashMap<String, List<Entry>>();
+	/**
+	 * First track of each release keyed by the lowercase words in the release title.
+	 */
+	private Map<String, List<Entry>> releaseIndex = new HashMap<String, List<Entry>>();
+	/**
+	 * Amount of tracks on each release, keyed by release MBID.
+	 */
+	private Map<String, Integer> trackCounts = new HashMap<String, Integer>();
+	/**
+	 * Amount of requests answered.
+	 */
+	private AtomicInteger requests = new AtomicInteger();
+	/**
+	 * The HTTP server, null if not started.
+	 */
+	private HttpServer server;
+
+	/**
+	 * Default constructor, reads the track list.
+	 * @param fixtures directory with the responses written by LibraryGenerator
+	 * @throws IOException if the track list can't be read
+	 */
+	public MusicBrainzStandIn(File fixtures) throws IOException {
+		this.fixtures = fixtures;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(fixtures, "tracks.tsv")), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Entry entry = new Entry(entries.size(), line.split("\t"));
+				entries.add(entry);
+				index(titleIndex, entry.titleWords, entry);
+				Integer trackCount = trackCounts.get(entry.albumMbid);
+				if (trackCount == null)
+					index(releaseIndex, entry.albumWords, entry);
+				trackCounts.put(entry.albumMbid, trackCount == null ? 1 : trackCount + 1);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Start answering requests on a free port on the loopback interface.
+	 * @return base URL of the web service, to be used as "riker.musicbrainz.url"
+	 * @throws IOException if the server can't be started
+	 */
+	public synchronized String start() throws IOException {
+		/* headers and body are written separately, without TCP_NODELAY every response on a kept alive connection waits for a delayed ACK */
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext(SERVICE_PATH + "/release/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String mbid = exchange.getRequestURI().getPath().substring(SERVICE_PATH.length() + "/release/".length());
+				if ("".equals(mbid)) {
+					respond(exchange, 200, searchReleases(query(exchange)).getBytes("UTF-8"));
+					return;
+				}
+				File release = new File(new File(fixtures, "release"), mbid + ".xml");
+				if (mbid.indexOf('/') >= 0 || !release.isFile())
+					respond(exchange, 404, new byte[0]);
+				else
+					respond(exchange, 200, read(release));
+			}
+		});
+		server.createContext(SERVICE_PATH + "/track/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, search(query(exchange)).getBytes("UTF-8"));
+			}
+		});
+		server.start();
+		return "http://127.0.0.1:" + server.getAddress().getPort() + SERVICE_PATH;
+	}
+
+	/**
+	 * Stop answering requests.
+	 */
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	/**
+	 * Get the amount of requests answered.
+	 * @return the amount of requests answered
+	 */
+	public int requests() {
+		return requests.get();
+	}
+
+	/**
+	 * Get the amount of tracks in the track list.
+	 * @return the amount of tracks
+	 */
+	public int tracks() {
+		return entries.size();
+	}
+
+	/**
+	 * Answer a track search.
+	 * @param query the Lucene query Riker sent
+	 * @return the track search document
+	 */
+	String search(String query) {
+		Set<String> trackWords = words(clause(query, "track"));
+		Set<String> artistWords = words(clause(query, "artist"));
+		Set<String> releaseWords = words(clause(query, "release"));
+		int tracknumber = number(clause(query, "tnum"), -1);
+		String[] range = clause(query, "qdur").replace("[", "").replace("]", "").split(" TO ");
+		int lower = range.length == 2 ? number(range[0], -1) : -1;
+		int upper = range.length == 2 ? number(range[1], -1) : -1;
+		/* score all tracks sharing a word with the track clause */
+		Map<Entry, Integer> scores = new HashMap<Entry, Integer>();
+		for (String word : trackWords) {
+			List<Entry> list = titleIndex.get(word);
+			if (list == null)
+				continue;
+			for (Entry entry : list) {
+				Integer score = scores.get(entry);
+				scores.put(entry, (score == null ? 0 : score) + 2);
+			}
+		}
+		for (Map.Entry<Entry, Integer> score : scores.entrySet()) {
+			Entry entry = score.getKey();
+			int bonus = shared(artistWords, entry.artistWords) + shared(releaseWords, entry.albumWords);
+			if (entry.tracknumber == tracknumber)
+				++bonus;
+			if (lower >= 0 && upper >= 0 && entry.duration / 2000 >= lower && entry.duration / 2000 <= upper)
+				++bonus;
+			score.setValue(score.getValue() + bonus);
+		}
+		List<Entry> hits = ranked(scores);
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<metadata xmlns=\"http://musicbrainz.org/ns/mmd-1.0#\" xmlns:ext=\"http://musicbrainz.org/ns/ext-1.0#\">\n");
+		xml.append("<track-list count=\"").append(hits.size()).append("\" offset=\"0\">\n");
+		int best = hits.isEmpty() ? 0 : scores.get(hits.get(0));
+		for (Entry entry : hits.subList(0, Math.min(SEARCH_LIMIT, hits.size()))) {
+			xml.append("<track id=\"").append(entry.mbid).append("\" ext:score=\"").append(100 * scores.get(entry) / best).append("\">");
+			xml.append("<title>").append(escape(entry.title)).append("</title>");
+			xml.append("<duration>").append(entry.duration).append("</duration>");
+			xml.append("<artist id=\"").append(entry.artistMbid).append("\"><name>").append(escape(entry.artistName)).append("</name></artist>");
+			xml.append("<release-list><release type=\"").append(entry.albumType).append("\" id=\"").append(entry.albumMbid).append("\">");
+			xml.append("<title>").append(escape(entry.albumTitle)).append("</title>");
+			xml.append("<track-list offset=\"").append(entry.tracknumber - 1).append("\"/>");
+			xml.append("</release></release-list></track>\n");
+		}
+		xml.append("</track-list>\n</metadata>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * Answer a release search.
+	 * @param query the Lucene query Riker sent
+	 * @return the release search document
+	 */
+	String searchReleases(String query) {
+		Set<String> artistWords = words(clause(query, "artist"));
+		Set<String> releaseWords = words(clause(query, "release"));
+		int tracks = number(clause(query, "tracks"), -1);
+		/* score all releases sharing a word with the release clause */
+		Map<Entry, Integer> scores = new HashMap<Entry, Integer>();
+		for (String word : releaseWords) {
+			List<Entry> list = releaseIndex.get(word);
+			if (list == null)
+				continue;
+			for (Entry entry : list) {
+				Integer score = scores.get(entry);
+				scores.put(entry, (score == null ? 0 : score) + 2);
+			}
+		}
+		for (Map.Entry<Entry, Integer> score : scores.entrySet()) {
+			Entry entry = score.getKey();
+			int bonus = shared(artistWords, entry.artistWords);
+			if (trackCounts.get(entry.albumMbid) == tracks)
+				++bonus;
+			score.setValue(score.getValue() + bonus);
+		}
+		List<Entry> hits = ranked(scores);
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<metadata xmlns=\"http://musicbrainz.org/ns/mmd-1.0#\" xmlns:ext=\"http://musicbrainz.org/ns/ext-1.0#\">\n");
+		xml.append("<release-list count=\"").append(hits.size()).append("\" offset=\"0\">\n");
+		int best = hits.isEmpty() ? 0 : scores.get(hits.get(0));
+		for (Entry entry : hits.subList(0, Math.min(SEARCH_LIMIT, hits.size()))) {
+			xml.append("<release type=\"").append(entry.albumType).append("\" id=\"").append(entry.albumMbid).append("\" ext:score=\"").append(100 * scores.get(entry) / best).append("\">");
+			xml.append("<title>").append(escape(entry.albumTitle)).append("</title>");
+			xml.append("<artist id=\"").append(entry.artistMbid).append("\"><name>").append(escape(entry.artistName)).append("</name></artist>");
+			xml.append("<track-list count=\"").append(trackCounts.get(entry.albumMbid)).append("\"/>");
+			xml.append("</release>\n");
+		}
+		xml.append("</release-list>\n</metadata>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * Send a response.
+	 * @param exchange the exchange to respond to
+	 * @param status HTTP status code
+	 * @param body response body
+	 * @throws IOException if the response can't be sent
+	 */
+	private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		int request = requests.incrementAndGet();
+		if (BUSY_INTERVAL > 0 && request % BUSY_INTERVAL == 0) {
+			exchange.getResponseHeaders().set("Retry-After", "0");
+			status = 503;
+			body = new byte[0];
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (body.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(body);
+			gzip.close();
+			body = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+		OutputStream output = exchange.getResponseBody();
+		try {
+			output.write(body);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Get the query parameter of a search request.
+	 * @param exchange the exchange with the request
+	 * @return the decoded query, or an empty string if the request got no query
+	 * @throws IOException if the query can't be decoded
+	 */
+	private static String query(HttpExchange exchange) throws IOException {
+		String query = "";
+		String rawQuery = exchange.getRequestURI().getRawQuery();
+		if (rawQuery != null) {
+			for (String parameter : rawQuery.split("&")) {
+				if (parameter.startsWith("query="))
+					query = URLDecoder.decode(parameter.substring(6), "UTF-8");
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * Add an entry to an index.
+	 * @param index the index
+	 * @param words the words to find the entry by
+	 * @param entry the entry
+	 */
+	private static void index(Map<String, List<Entry>> index, Set<String> words, Entry entry) {
+		for (String word : words) {
+			List<Entry> list = index.get(word);
+			if (list == null) {
+				list = new ArrayList<Entry>();
+				index.put(word, list);
+			}
+			list.add(entry);
+		}
+	}
+
+	/**
+	 * Order scored entries with the best score first, entries with the same score keep the order of the track list.
+	 * @param scores the score of each entry
+	 * @return the entries, best first
+	 */
+	private static List<Entry> ranked(final Map<Entry, Integer> scores) {
+		List<Entry> hits = new ArrayList<Entry>(scores.keySet());
+		Collections.sort(hits, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry entry1, Entry entry2) {
+				int order = scores.get(entry2) - scores.get(entry1);
+				return order != 0 ? order : entry1.index - entry2.index;
+			}
+		});
+		return hits;
+	}
+
+	/**
+	 * Get the content of a clause in a Lucene query, like "Some Title" from "track:(Some Title)".
+	 * @param query the query
+	 * @param field the field of the clause
+	 * @return the content of the clause, or an empty string if the query got no such clause
+	 */
+	private static String clause(String query, String field) {
+		int start = query.indexOf(field + ":");
+		if (start < 0)
+			return "";
+		start += field.length() + 1;
+		if (start >= query.length())
+			return "";
+		if (query.charAt(start) == '(') {
+			/* find the closing parenthesis, skipping escaped ones */
+			for (int a = start + 1; a < query.length(); ++a) {
+				if (query.charAt(a) == '\\')
+					++a;
+				else if (query.charAt(a) == ')')
+					return query.substring(start + 1, a);
+			}
+			return query.substring(start + 1);
+		}
+		int end = query.charAt(start) == '[' ? query.indexOf(']', start) + 1 : query.indexOf(' ', start);
+		return query.substring(start, end > start ? end : query.length());
+	}
+
+	/**
+	 * Parse a number.
+	 * @param text the text to parse
+	 * @param defaultValue value returned if the text isn't a number
+	 * @return the number, or the default value if the text isn't a number
+	 */
+	private static int number(String text, int defaultValue) {
+		try {
+			return Integer.parseInt(text.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Split text in lowercase words.
+	 * @param text the text
+	 * @return the words in the text
+	 */
+	private static Set<String> words(String text) {
+		Set<String> words = new HashSet<String>();
+		for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (word.length() > 0)
+				words.add(word);
+		}
+		return words;
+	}
+
+	/**
+	 * Count the words two sets have in common.
+	 * @param words1 the first set
+	 * @param words2 the second set
+	 * @return amount of words in both sets
+	 */
+	private static int shared(Set<String> words1, Set<String> words2) {
+		int count = 0;
+		for (String word : words1) {
+			if (words2.contains(word))
+				++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Read a file.
+	 * @param file the file
+	 * @return the content of the file
+	 * @throws IOException if the file can't be read
+	 */
+	private static byte[] read(File file) throws IOException {
+		InputStream input = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0)
+				output.write(buffer, 0, read);
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Escape text for XML.
+	 * @param text the text
+	 * @return the escaped text
+	 */
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * A track in the track list.
+	 */
+	private static final class Entry {
+
+		/**
+		 * Index of the entry in the track list, used to order tracks with the same score.
+		 */
+		private int index;
+		/**
+		 * Track MBID.
+		 */
+		private String mbid;
+		/**
+		 * Album MBID.
+		 */
+		private String albumMbid;
+		/**
+		 * Track number.
+		 */
+		private int tracknumber;
+		/**
+		 * Duration in milliseconds.
+		 */
+		private int duration;
+		/**
+		 * Track title.
+		 */
+		private String title;
+		/**
+		 * Artist MBID.
+		 */
+		private String artistMbid;
+		/**
+		 * Artist name.
+		 */
+		private String artistName;
+		/**
+		 * Album title.
+		 */
+		private String albumTitle;
+		/**
+		 * Album type.
+		 */
+		private String albumType;
+		/**
+		 * Lowercase words in the track title.
+		 */
+		private Set<String> titleWords;
+		/**
+		 * Lowercase words in the artist name.
+		 */
+		private Set<String> artistWords;
+		/**
+		 * Lowercase words in the album title.
+		 */
+		private Set<String> albumWords;
+
+		/**
+		 * Default constructor.
+		 * @param index index of the entry in the track list
+		 * @param columns the columns of a line in the track list
+		 */
+		private Entry(int index, String[] columns) {
+			this.index = index;
+			mbid = columns[0];
+			albumMbid = columns[1];
+			tracknumber = Integer.parseInt(columns[2]);
+			duration = Integer.parseInt(columns[3]);
+			title = columns[4];
+			artistMbid = columns[5];
+			artistName = columns[6];
+			albumTitle = columns[7];
+			albumType = columns[8];
+			titleWords = words(title);
+			artistWords = words(artistName);
+			albumWords = words(albumTitle);
+		}
+	}
+}
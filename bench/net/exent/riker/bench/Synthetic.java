@@ -0,0 +1,236 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metadata.Artist;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.Track;
+import org.jaudiotagger.audio.AudioHeader;
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * Synthetic albums and files for benchmarks.
+ * Files are created with the constructor FastTagReader uses, so nothing is read from disk and the files don't have to exist.
+ * All data is generated from a seed, the same seed always gives the same data.
+ */
+public final class Synthetic {
+
+	/**
+	 * Words titles are made of.
+	 */
+	private static final String[] WORDS = {
+		"Midnight", "River", "Echoes", "Glass", "Northern", "Summer", "Electric", "Shadow", "Paper", "Golden",
+		"Silent", "Broken", "Velvet", "Distant", "Harbour", "Lights", "Machine", "Garden", "Fever", "Horizon",
+		"Winter", "Satellite", "Ocean", "Static", "Highway", "Mirror", "Ghost", "Thunder", "Crystal", "Desert",
+		"Little", "Heart", "Signal", "Orchard", "Lantern", "Falling", "Wild", "Radio", "Stone", "Wonder"
+	};
+	/**
+	 * Extra strings appended to file names, none of them are similar to each other or to generated titles.
+	 */
+	private static final String[] EXTRAS = {
+		"Remastered 2009", "Live at Wembley", "Bonus", "Radio Edit", "Demo", "Mono Mix", "Acoustic", "Extended Version",
+		"Instrumental", "Single Version", "Original Mix", "Bootleg", "Take 2", "Alternate", "Rehearsal", "Outtake",
+		"Unplugged", "Session", "Reprise", "Karaoke"
+	};
+
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private Synthetic() {
+	}
+
+	/**
+	 * Create an album.
+	 * @param tracks amount of tracks on the album
+	 * @param seed seed for the generated titles and durations
+	 * @return the album
+	 */
+	public static Album album(int tracks, long seed) {
+		Random random = new Random(seed);
+		Artist artist = new Artist(title(random, 2), "artist-" + seed);
+		List<Track> trackList = new ArrayList<Track>();
+		for (int a = 1; a <= tracks; ++a)
+			trackList.add(new Track(artist, title(random, 1 + random.nextInt(4)), "track-" + seed + "-" + a, a, 150000 + random.nextInt(240000)));
+		return new Album(artist, title(random, 1 + random.nextInt(3)), "2010-01-01", "Album Official", "album-" + seed, trackList);
+	}
+
+	/**
+	 * Create files for the tracks on an album, the way they typically look in a collection.
+	 * Some files miss tags, use other casing or got the track number zero padded.
+	 * @param album the album to create files for
+	 * @param seed seed for the variations
+	 * @return a file for each track on the album
+	 */
+	public static List<Metafile> files(Album album, long seed) {
+		Random random = new Random(seed);
+		List<Metafile> files = new ArrayList<Metafile>();
+		String directory = "/music/" + album.artist().name() + " - " + album.title();
+		for (Track track : album.tracks()) {
+			Map<FieldKey, String> fields = new EnumMap<FieldKey, String>(FieldKey.class);
+			fields.put(FieldKey.ALBUM, album.title());
+			fields.put(FieldKey.ARTIST, album.artist().name());
+			if (random.nextInt(3) > 0)
+				fields.put(FieldKey.TITLE, random.nextBoolean() ? track.title() : track.title().toLowerCase());
+			fields.put(FieldKey.TRACK, random.nextBoolean() ? "" + track.tracknumber() : String.format("%02d", track.tracknumber()));
+			String basename = String.format("%02d", track.tracknumber()) + " - " + track.title().replace(' ', '_');
+			/* jaudiotagger gives the track length in seconds */
+			files.add(metafile(directory, basename, fields, track.duration() / 1000 + random.nextInt(3) - 1));
+		}
+		return files;
+	}
+
+	/**
+	 * Create a file that gives the given amount of string values.
+	 * The tags give 4 values, the rest comes from extra strings in the file name.
+	 * @param values amount of string values, from 4 to 16, the most values Tokenizer gives a file
+	 * @param seed seed for the generated titles and the duration
+	 * @return the file
+	 */
+	public static Metafile metafile(int values, long seed) {
+		return metafile(values, seed, 150 + new Random(seed).nextInt(240));
+	}
+
+	/**
+	 * Create a file that gives the given amount of string values and got the given duration.
+	 * @param values amount of string values, from 4 to 16, the most values Tokenizer gives a file
+	 * @param seed seed for the generated titles
+	 * @param seconds track length in seconds
+	 * @return the file
+	 */
+	public static Metafile metafile(int values, long seed, int seconds) {
+		Random random = new Random(seed);
+		String artist = title(random, 2);
+		String album = title(random, 2);
+		String title = title(random, 3);
+		Map<FieldKey, String> fields = new EnumMap<FieldKey, String>(FieldKey.class);
+		fields.put(FieldKey.ALBUM, album);
+		fields.put(FieldKey.ARTIST, artist);
+		fields.put(FieldKey.TITLE, title);
+		/* the track number as Metafile.getFirst() gives it, so the number in the file name is left out as the same value */
+		fields.put(FieldKey.TRACK, "7");
+		StringBuilder basename = new StringBuilder("7 - ").append(title);
+		for (int a = 0; a < values - 4; ++a)
+			basename.append(" - ").append(EXTRAS[a]);
+		Metafile file = metafile("/music/" + artist + " - " + album, basename.toString(), fields, seconds);
+		if (file.stringValues().size() != values)
+			throw new IllegalStateException("Expected " + values + " string values, got " + file.stringValues());
+		return file;
+	}
+
+	/**
+	 * Create a file.
+	 * @param directory directory of the file
+	 * @param basename file name without extension
+	 * @param fields tag fields
+	 * @param seconds track length in seconds
+	 * @return the file
+	 */
+	public static Metafile metafile(String directory, String basename, Map<FieldKey, String> fields, int seconds) {
+		return new Metafile(new File(directory, basename + ".mp3"), new SyntheticAudioHeader(seconds), fields);
+	}
+
+	/**
+	 * Create a title from random words.
+	 * @param random the random generator
+	 * @param words amount of words
+	 * @return the title
+	 */
+	private static String title(Random random, int words) {
+		StringBuilder title = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+		for (int a = 1; a < words; ++a)
+			title.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+		return title.toString();
+	}
+
+	/**
+	 * Audio header for a 192 kbps MP3 file.
+	 */
+	private static final class SyntheticAudioHeader implements AudioHeader {
+
+		/**
+		 * Track length in seconds.
+		 */
+		private int trackLength;
+
+		/**
+		 * Default constructor.
+		 * @param trackLength track length in seconds
+		 */
+		private SyntheticAudioHeader(int trackLength) {
+			this.trackLength = trackLength;
+		}
+
+		@Override
+		public String getEncodingType() {
+			return "mp3";
+		}
+
+		@Override
+		public String getBitRate() {
+			return "192";
+		}
+
+		@Override
+		public long getBitRateAsNumber() {
+			return 192;
+		}
+
+		@Override
+		public String getSampleRate() {
+			return "44100";
+		}
+
+		@Override
+		public int getSampleRateAsNumber() {
+			return 44100;
+		}
+
+		@Override
+		public String getFormat() {
+			return "MPEG-1 Layer 3";
+		}
+
+		@Override
+		public String getChannels() {
+			return "Joint Stereo";
+		}
+
+		@Override
+		public boolean isVariableBitRate() {
+			return false;
+		}
+
+		@Override
+		public int getTrackLength() {
+			return trackLength;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.exent.riker.Riker;
+import net.exent.riker.bench.Benchmark;
+import net.exent.riker.bench.Synthetic;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metadata.Group;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.Track;
+
+/**
+ * Benchmarks for the matching hot path: string similarity, comparing files with tracks and assigning tracks to files.
+ * This class is in the same package as Matcher so it can reach the package private methods.
+ */
+public final class MatchingBenchmarks {
+
+	/**
+	 * Title pairs as they're typically compared, values from tags and file names against titles from MusicBrainz.
+	 */
+	private static final String[][] TITLE_PAIRS = {
+		{"Paranoid Android", "Paranoid Android"},
+		{"paranoid_android", "Paranoid Android"},
+		{"02 Paranoid Android", "Paranoid Android"},
+		{"OK Computer", "OK Computer (Collector's Edition)"},
+		{"Radiohead", "Radiohead"},
+		{"Let Down", "Karma Police"},
+		{"The Dark Side of the Moon", "Dark Side Of The Moon [Remastered]"},
+		{"Pink Floyd", "The Dark Side of the Moon"},
+		{"Shine On You Crazy Diamond (Parts I-V)", "Shine On You Crazy Diamond, Parts 1-5"},
+		{"07", "7"},
+		{"Sgt. Pepper's Lonely Hearts Club Band", "Sgt Peppers Lonely Hearts Club Band"},
+		{"Beatles, The", "The Beatles"},
+		{"A Day in the Life", "Lucy in the Sky With Diamonds"},
+		{"Bj\u00f6rk", "Bjork"},
+		{"J\u00f3ga", "Joga"},
+		{"Homogenic", "Post"}
+	};
+
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private MatchingBenchmarks() {
+	}
+
+	/**
+	 * Get the benchmarks.
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Benchmark("levenshtein.similarity.titles") {
+			@Override
+			public Object run() {
+				double sum = 0.0;
+				for (String[] pair : TITLE_PAIRS)
+					sum += Levenshtein.similarity(pair[0], pair[1]);
+				return sum;
+			}
+		});
+		for (final int values : new int[] {4, 8, 12, 16}) {
+			benchmarks.add(new Benchmark("matcher.compareMetafileWithTrack." + values) {
+				/**
+				 * The file to compare.
+				 */
+				private Metafile file;
+				/**
+				 * The track to compare with.
+				 */
+				private Track track;
+				/**
+				 * Batch to score in.
+				 */
+				private ScoreBatch batch = new ScoreBatch();
+
+				@Override
+				public void setUp() {
+					/* same duration as the track, so the file is within the duration window and all features are scored */
+					track = Synthetic.album(12, values).tracks().get(6);
+					file = Synthetic.metafile(values, values, track.duration() / 1000);
+				}
+
+				@Override
+				public Object run() {
+					return Riker.engine().scoringModel().score(file, track, batch);
+				}
+			});
+		}
+		benchmarks.add(new Benchmark("matcher.compareMetafileWithTrack.skip") {
+			/**
+			 * The file to compare.
+			 */
+			private Metafile file;
+			/**
+			 * The track to compare with, too far from the duration of the file to be scored.
+			 */
+			private Track track;
+			/**
+			 * Batch to score in.
+			 */
+			private ScoreBatch batch = new ScoreBatch();
+
+			@Override
+			public void setUp() {
+				track = Synthetic.album(12, 16).tracks().get(6);
+				file = Synthetic.metafile(16, 16, track.duration() / 1000 + 2 * Riker.engine().scoringModel().durationWindow() / 1000);
+			}
+
+			@Override
+			public Object run() {
+				return Riker.engine().scoringModel().score(file, track, batch);
+			}
+		});
+		benchmarks.add(new Benchmark("scoringModel.score.12x12") {
+			/**
+			 * The files to compare.
+			 */
+			private List<Metafile> files;
+			/**
+			 * The tracks to compare with.
+			 */
+			private List<Track> tracks;
+			/**
+			 * Batch to score in.
+			 */
+			private ScoreBatch batch = new ScoreBatch();
+
+			@Override
+			public void setUp() {
+				Album album = Synthetic.album(12, 12);
+				files = Synthetic.files(album, 12);
+				tracks = album.tracks();
+			}
+
+			@Override
+			public Object run() {
+				Riker.engine().scoringModel().score(files, tracks, batch);
+				return batch;
+			}
+		});
+		benchmarks.add(new Benchmark("scoringModel.score.100x100") {
+			/**
+			 * The files to compare.
+			 */
+			private List<Metafile> files;
+			/**
+			 * The tracks to compare with.
+			 */
+			private List<Track> tracks;
+			/**
+			 * Batch to score in, large enough to be scored in tiles.
+			 */
+			private ScoreBatch batch = new ScoreBatch();
+
+			@Override
+			public void setUp() {
+				Album album = Synthetic.album(100, 100);
+				files = Synthetic.files(album, 100);
+				tracks = album.tracks();
+			}
+
+			@Override
+			public Object run() {
+				Riker.engine().scoringModel().score(files, tracks, batch);
+				return batch;
+			}
+		});
+		benchmarks.add(new Benchmark("scoringModel.bruteForce.12x24") {
+			/**
+			 * The files to compare.
+			 */
+			private List<Metafile> files;
+			/**
+			 * The tracks to compare with, those of the album of the files and those of another album.
+			 */
+			private List<Track> tracks;
+
+			@Override
+			public void setUp() {
+				Album album = Synthetic.album(12, 12);
+				files = Synthetic.files(album, 12);
+				tracks = new ArrayList<Track>(album.tracks());
+				tracks.addAll(Synthetic.album(12, 13).tracks());
+				/* the model only tries the best values for each feature, it must still find the best combination of values */
+				ScoringModel engineModel = Riker.engine().scoringModel();
+				double[] weights = new double[ScoringModel.FEATURES];
+				for (int feature = 0; feature < ScoringModel.FEATURES; ++feature)
+					weights[feature] = engineModel.weight(feature);
+				/* without a duration window every file is compared with every track */
+				ScoringModel model = new ScoringModel(weights, engineModel.durationTolerance(), 0, engineModel.keepThreshold(), engineModel.queueThreshold());
+				ScoreBatch batch = new ScoreBatch();
+				model.score(files, tracks, batch);
+				for (int file = 0; file < files.size(); ++file) {
+					for (int track = 0; track < tracks.size(); ++track) {
+						double metadata = batch.score(file, track) - batch.contribution(file, track, ScoringModel.DURATION);
+						double expected = bruteForce(model, files.get(file), tracks.get(track));
+						if (Math.abs(metadata - expected) > 0.000001)
+							throw new IllegalStateException("Model scored metadata of " + files.get(file) + " and " + tracks.get(track).title() + " as " + metadata + ", brute force found " + expected);
+					}
+				}
+			}
+
+			@Override
+			public Object run() {
+				ScoringModel model = Riker.engine().scoringModel();
+				double sum = 0.0;
+				for (Metafile file : files) {
+					for (Track track : tracks)
+						sum += bruteForce(model, file, track);
+				}
+				return sum;
+			}
+		});
+		for (final int tracks : new int[] {10, 30, 100}) {
+			benchmarks.add(new Benchmark("matcher.assignBestAlbum." + tracks) {
+				/**
+				 * Matcher with comparisons of the files with the albums.
+				 */
+				private Matcher matcher;
+
+				@Override
+				public void setUp() {
+					/* the right album, an edition of it with bonus tracks and another album by the same artist */
+					Album album = Synthetic.album(tracks, tracks);
+					List<Track> bonus = new ArrayList<Track>();
+					for (Track track : album.tracks())
+						bonus.add(new Track(track.artist(), track.title(), track.mbid() + "-deluxe", track.tracknumber(), track.duration()));
+					for (Track track : Synthetic.album(3, tracks + 1).tracks())
+						bonus.add(new Track(album.artist(), track.title(), track.mbid(), bonus.size() + 1, track.duration()));
+					Album deluxe = new Album(album.artist(), album.title() + " (Deluxe Edition)", album.released(), album.type(), album.mbid() + "-deluxe", bonus);
+					Album other = Synthetic.album(tracks, tracks + 2);
+					Group group = new Group("benchmark");
+					for (Metafile file : Synthetic.files(album, tracks)) {
+						group.addFile(file);
+						file.group(group);
+					}
+					matcher = new Matcher(Riker.engine(), group);
+					matcher.compareAllMetafilesWithAlbum(album);
+					matcher.compareAllMetafilesWithAlbum(deluxe);
+					matcher.compareAllMetafilesWithAlbum(other);
+				}
+
+				@Override
+				public Object run() {
+					return matcher.assignBestAlbum();
+				}
+			});
+		}
+		return benchmarks;
+	}
+
+	/**
+	 * Score the metadata of a file and a track by trying every combination of values, the way files were compared before ScoringModel.
+	 * @param model the model with the weights of the features
+	 * @param file the file
+	 * @param track the track
+	 * @return the weighted metadata features of the best combination, without the duration
+	 */
+	private static double bruteForce(ScoringModel model, Metafile file, Track track) {
+		List<String> values = file.stringValues();
+		int valueCount = values.size();
+		if (valueCount < 4)
+			return 0.0;
+		double[][] similarities = new double[4][valueCount];
+		for (int value = 0; value < valueCount; ++value) {
+			String text = values.get(value);
+			similarities[ScoringModel.ALBUM][value] = model.normalizedWeight(ScoringModel.ALBUM) * Levenshtein.similarity(text, track.album() == null ? null : track.album().title());
+			similarities[ScoringModel.ARTIST][value] = model.normalizedWeight(ScoringModel.ARTIST) * Levenshtein.similarity(text, track.artist() == null ? null : track.artist().name());
+			similarities[ScoringModel.TITLE][value] = model.normalizedWeight(ScoringModel.TITLE) * Levenshtein.similarity(text, track.title());
+			similarities[ScoringModel.TRACKNUMBER][value] = ScoringModel.number(text) == track.tracknumber() ? model.normalizedWeight(ScoringModel.TRACKNUMBER) : 0.0;
+		}
+		double best = 0.0;
+		for (int album = 0; album < valueCount; ++album) {
+			for (int artist = 0; artist < valueCount; ++artist) {
+				if (artist == album)
+					continue;
+				for (int title = 0; title < valueCount; ++title) {
+					if (title == artist || title == album)
+						continue;
+					for (int number = 0; number < valueCount; ++number) {
+						if (number == title || number == artist || number == album)
+							continue;
+						best = Math.max(best, similarities[ScoringModel.ALBUM][album] + similarities[ScoringModel.ARTIST][artist] + similarities[ScoringModel.TITLE][title] + similarities[ScoringModel.TRACKNUMBER][number]);
+					}
+				}
+			}
+		}
+		return best;
+	}
+}
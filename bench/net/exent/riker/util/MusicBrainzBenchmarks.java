@@ -0,0 +1,136 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import net.exent.riker.bench.Benchmark;
+
+/**
+ * Benchmarks for parsing responses from MusicBrainz.
+ * The responses are recorded in the fixtures directory, set with the system property riker.bench.fixtures (default "bench/fixtures").
+ * This class is in the same package as MusicBrainz so it can reach the package private parsers.
+ */
+public final class MusicBrainzBenchmarks {
+
+	/**
+	 * Directory with recorded responses.
+	 */
+	private static final File FIXTURES = new File(System.getProperty("riker.bench.fixtures", "bench/fixtures"));
+
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private MusicBrainzBenchmarks() {
+	}
+
+	/**
+	 * Get the benchmarks.
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Benchmark("musicbrainz.readAlbum") {
+			/**
+			 * The recorded response.
+			 */
+			private byte[] response;
+
+			@Override
+			public void setUp() throws Exception {
+				response = fixture("release.xml");
+				if (MusicBrainz.readAlbum(new ByteArrayInputStream(response)) == null)
+					throw new IllegalStateException("No album in release.xml");
+			}
+
+			@Override
+			public Object run() throws Exception {
+				return MusicBrainz.readAlbum(new ByteArrayInputStream(response));
+			}
+		});
+		benchmarks.add(new Benchmark("musicbrainz.readTrackSearch") {
+			/**
+			 * The recorded response.
+			 */
+			private byte[] response;
+
+			@Override
+			public void setUp() throws Exception {
+				response = fixture("track-search.xml");
+				if (MusicBrainz.readTrackSearch(new ByteArrayInputStream(response)).isEmpty())
+					throw new IllegalStateException("No tracks in track-search.xml");
+			}
+
+			@Override
+			public Object run() throws Exception {
+				return MusicBrainz.readTrackSearch(new ByteArrayInputStream(response));
+			}
+		});
+		benchmarks.add(new Benchmark("musicbrainz.readReleaseSearch") {
+			/**
+			 * The recorded response.
+			 */
+			private byte[] response;
+
+			@Override
+			public void setUp() throws Exception {
+				response = fixture("release-search.xml");
+				if (MusicBrainz.readReleaseSearch(new ByteArrayInputStream(response)).isEmpty())
+					throw new IllegalStateException("No releases in release-search.xml");
+			}
+
+			@Override
+			public Object run() throws Exception {
+				return MusicBrainz.readReleaseSearch(new ByteArrayInputStream(response));
+			}
+		});
+		return benchmarks;
+	}
+
+	/**
+	 * Read a recorded response.
+	 * @param name file name of the response
+	 * @return the response
+	 * @throws IOException if the response can't be read
+	 */
+	private static byte[] fixture(String name) throws IOException {
+		InputStream input = new FileInputStream(new File(FIXTURES, name));
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0)
+				output.write(buffer, 0, read);
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -23,40 +23,23 @@
  */
 package net.exent.riker;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import net.exent.riker.gui.RikerGui;
 import net.exent.riker.metadata.Group;
-import net.exent.riker.metadata.Metafile;
-import net.exent.riker.util.FileHandler;
-import net.exent.riker.util.Logger;
-import net.exent.riker.util.Matcher;
+import net.exent.riker.metadata.ReleaseRegistry;
 
 /**
- * Main class, organizes threads & logic.
- * A user interface must be supplied to this class.
+ * Main class, starts the graphical user interface.
+ * The static methods use a default {@link RikerEngine} configured with the system properties, created when first needed.
+ * Create RikerEngine instances to run several independent sessions in one JVM or to embed Riker in another program.
  */
 public final class Riker {
 
 	/**
-	 * Logger for this class.
+	 * The default engine, null until first needed.
 	 */
-	private static final Logger LOG = new Logger(Riker.class);
-	/**
-	 * Reference to the user interface.
-	 */
-	private static RikerUi rikerUi;
-	/**
-	 * Map of all groups.
-	 */
-	private static Map<String, Group> groups = Collections.synchronizedMap(new HashMap<String, Group>());
-	/**
-	 * Set of active matchers.
-	 */
-	private static List<Matcher> matcherQueue = Collections.synchronizedList(new ArrayList<Matcher>());
+	private static RikerEngine engine;
 
 	/**
 	 * Private constructor to prevent instantiation.
@@ -65,72 +48,48 @@ public final class Riker {
 	}
 
 	/**
-	 * Get all groups.
-	 * @return all groups
+	 * Get the default engine, creating it if it's not created.
+	 * @return the default engine
 	 */
-	public static Map<String, Group> groups() {
-		return Collections.unmodifiableMap(groups);
+	public static synchronized RikerEngine engine() {
+		if (engine == null)
+			engine = new RikerEngine(System.getProperties());
+		return engine;
 	}
 
 	/**
-	 * Main method.
-	 * @param args arguments to Riker
+	 * Get all groups of the default engine.
+	 * @return all groups
 	 */
-	public static void main(String... args) {
-		RikerGui rg = new RikerGui();
-		rg.setVisible(true);
-		Riker.rikerUi = rg;
-		FileHandler.start();
-		FileHandler.load("/home/canidae/Music/tmp_un");
+	public static Map<String, Group> groups() {
+		return engine().groups();
 	}
 
 	/**
-	 * Called by Matchers when they're done matching files.
-	 * @param matcher the Matcher that called this method
+	 * Get the registry of the releases groups of the default engine resolved to.
+	 * @return the release registry
 	 */
-	public static synchronized void matcherFinished(Matcher matcher) {
-		LOG.info("Matcher finished: " + matcher);
-		if (matcherQueue.isEmpty())
-			rikerUi.allFilesMatched();
-		else
-			matcherQueue.remove(0).start();
-		rikerUi.groupMatched(matcher.group());
+	public static ReleaseRegistry releases() {
+		return engine().releases();
 	}
 
 	/**
-	 * Called by FileHandler when it reads a new file.
-	 * @param metafile the file just read
+	 * Set the user interface of the default engine.
+	 * Must be set before any files are loaded, main() sets it to the graphical user interface.
+	 * @param rikerUi the user interface
 	 */
-	public static void fileLoaded(Metafile metafile) {
-		LOG.info("Adding Metafile to Riker: ", metafile);
-		String groupName = metafile.createGroupName();
-		Group group = groups.get(groupName);
-		if (group == null) {
-			group = new Group(groupName);
-			groups.put(groupName, group);
-		}
-		group.addFile(metafile);
-		metafile.group(group);
-		/* tell the UI that a file was loaded */
-		rikerUi.fileLoaded(metafile);
+	public static void rikerUi(RikerUi rikerUi) {
+		engine().rikerUi(rikerUi);
 	}
 
 	/**
-	 * Called by FileHandler when all files in queue are loaded.
+	 * Main method.
+	 * @param args arguments to Riker
 	 */
-	public static void allFilesLoaded() {
-		LOG.info("Done loading files");
-		int matcherCount = 0;
-		for (Map.Entry<String, Group> groupEntry : groups.entrySet()) {
-			Matcher matcher = new Matcher(groupEntry.getValue());
-			if (matcherCount < 8) {
-				matcher.start();
-				++matcherCount;
-			} else {
-				matcherQueue.add(matcher);
-			}
-		}
-		/* tell the UI that we're done loading files */
-		rikerUi.allFilesLoaded();
+	public static void main(String... args) {
+		RikerGui rg = new RikerGui();
+		rg.setVisible(true);
+		rikerUi(rg);
+		engine().load(Collections.singletonList("/home/canidae/Music/tmp_un"));
 	}
 }
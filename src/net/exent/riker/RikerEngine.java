@@ -0,0 +1,678 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 canidae.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.exent.riker.fingerprint.DuplicateIndex;
+import net.exent.riker.fingerprint.FingerprintIndex;
+import net.exent.riker.fingerprint.LocalFingerprintLookup;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metadata.Group;
+import net.exent.riker.metadata.GroupRegistry;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.ReleaseRegistry;
+import net.exent.riker.metadata.SessionLog;
+import net.exent.riker.metrics.Gauge;
+import net.exent.riker.metrics.Metrics;
+import net.exent.riker.util.AlbumCache;
+import net.exent.riker.util.Completion;
+import net.exent.riker.util.FileHandler;
+import net.exent.riker.util.GroupClusterer;
+import net.exent.riker.util.GroupSealer;
+import net.exent.riker.util.Logger;
+import net.exent.riker.util.Matcher;
+import net.exent.riker.util.MusicBrainz;
+import net.exent.riker.util.ScoringModel;
+import net.exent.riker.util.Tokenizer;
+
+/**
+ * A matching session: loads files, groups them, matches the groups with MusicBrainz and saves them.
+ * Every engine got its own groups, matchers and session log, engines may share a MusicBrainz client to stay within its rate limits together.
+ */
+public class RikerEngine {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(RikerEngine.class);
+	/**
+	 * Maximum amount of matchers running at the same time.
+	 */
+	private static final int MAX_MATCHERS = 8;
+	/**
+	 * Amount of engines created.
+	 */
+	private static final AtomicInteger ENGINES = new AtomicInteger();
+	/**
+	 * Number of this engine, counting from 1.
+	 */
+	private int number = ENGINES.incrementAndGet();
+	/**
+	 * Directory where data is kept between sessions.
+	 */
+	private File dataDirectory;
+	/**
+	 * Whether groups are matched as soon as the directories with their files are loaded, and released when all their files are saved.
+	 */
+	private boolean streaming;
+	/**
+	 * Reference to the user interface, told about progress.
+	 */
+	private RikerUi rikerUi = new RikerUi() {
+		@Override
+		public void fileLoaded(Metafile metafile) {
+		}
+
+		@Override
+		public void groupMatched(Group group) {
+		}
+
+		@Override
+		public void allFilesLoaded() {
+		}
+
+		@Override
+		public void allFilesMatched() {
+		}
+	};
+	/**
+	 * Registry of all groups.
+	 */
+	private GroupRegistry groups = new GroupRegistry();
+	/**
+	 * Registry of the releases groups resolved to.
+	 */
+	private ReleaseRegistry releases = new ReleaseRegistry();
+	/**
+	 * Merges groups holding parts of the same album before they're matched.
+	 */
+	private GroupClusterer clusterer;
+	/**
+	 * Seals groups while files are loaded, only used when streaming.
+	 */
+	private GroupSealer sealer;
+	/**
+	 * Splits the metadata and filename of loaded files in string values.
+	 */
+	private Tokenizer tokenizer;
+	/**
+	 * Cache of the albums loaded from MusicBrainz.
+	 */
+	private AlbumCache albums;
+	/**
+	 * Index of fingerprinted files, used when searching MusicBrainz doesn't find anything.
+	 */
+	private FingerprintIndex fingerprints;
+	/**
+	 * Model used for scoring how well files match tracks.
+	 */
+	private volatile ScoringModel scoringModel;
+	/**
+	 * Loads and saves files.
+	 */
+	private FileHandler fileHandler;
+	/**
+	 * Matchers waiting to be started.
+	 */
+	private List<Matcher> matcherQueue = Collections.synchronizedList(new ArrayList<Matcher>());
+	/**
+	 * Index of files with identical audio data.
+	 */
+	private DuplicateIndex duplicates = new DuplicateIndex();
+	/**
+	 * Groups that are copies of another group, keyed by the group they're a copy of.
+	 */
+	private Map<Group, List<Group>> copyGroups = new HashMap<Group, List<Group>>();
+	/**
+	 * Milliseconds between checkpoints of the session log, 0 if the session log is disabled.
+	 * Groups that finished matching in an earlier session are resumed from the session log instead of matched again.
+	 */
+	private long checkpointInterval;
+	/**
+	 * Log of the session, null if disabled or the engine is stopped.
+	 */
+	private volatile SessionLog session;
+	/**
+	 * Groups being matched or waiting to be matched.
+	 */
+	private Set<Group> matching = new HashSet<Group>();
+	/**
+	 * Groups that got more files while being matched, they're matched again when the matcher finishes.
+	 */
+	private Set<Group> regrown = new HashSet<Group>();
+	/**
+	 * Completions waiting for groups given to match() to be matched.
+	 */
+	private Map<Group, List<Completion<Group>>> matchCompletions = new HashMap<Group, List<Completion<Group>>>();
+	/**
+	 * Amount of matchers running.
+	 */
+	private int runningMatchers;
+	/**
+	 * Whether files are being loaded.
+	 */
+	private volatile boolean loading;
+	/**
+	 * Saved files of groups with files not saved yet, only used when streaming.
+	 */
+	private Map<Group, Set<Metafile>> savedFiles = new HashMap<Group, Set<Metafile>>();
+
+	/**
+	 * Constructor for an engine with its own MusicBrainz client.
+	 * @param properties the properties, typically System.getProperties()
+	 */
+	public RikerEngine(Properties properties) {
+		this(properties, MusicBrainz.fromProperties(properties, dataDirectory(properties)));
+	}
+
+	/**
+	 * Constructor for an engine using a MusicBrainz client that may be shared with other engines.
+	 * Besides the properties of the scoring model, album cache and tokenizer, the engine reads "riker.data" (data directory),
+	 * "riker.session.interval" (milliseconds between session log checkpoints, default 5000, 0 disables it),
+	 * "riker.stream" (match groups while files are loaded, default false) and "riker.cluster" (cluster groups, default true).
+	 * Engines running at the same time should each have their own data directory.
+	 * @param properties the properties, typically System.getProperties()
+	 * @param client the MusicBrainz client
+	 */
+	public RikerEngine(Properties properties, MusicBrainz client) {
+		dataDirectory = dataDirectory(properties);
+		streaming = Boolean.parseBoolean(properties.getProperty("riker.stream"));
+		clusterer = new GroupClusterer(groups, Boolean.parseBoolean(properties.getProperty("riker.cluster", "true")));
+		sealer = new GroupSealer(groups, clusterer);
+		tokenizer = Tokenizer.fromProperties(properties);
+		albums = AlbumCache.fromProperties(properties, client);
+		fingerprints = new FingerprintIndex(new LocalFingerprintLookup(dataFile("fingerprint-lookup")), dataFile("fingerprints"));
+		scoringModel = ScoringModel.fromProperties(properties);
+		checkpointInterval = Long.parseLong(properties.getProperty("riker.session.interval", "5000"));
+		openSession();
+		fileHandler = new FileHandler(this);
+		Metrics.gauge(metricName("matcherQueue"), new Gauge() {
+			@Override
+			public long getValue() {
+				return matcherQueue.size();
+			}
+		});
+	}
+
+	/**
+	 * Get all groups.
+	 * @return all groups
+	 */
+	public Map<String, Group> groups() {
+		return groups.asMap();
+	}
+
+	/**
+	 * Get the registry of the releases groups resolved to.
+	 * @return the release registry
+	 */
+	public ReleaseRegistry releases() {
+		return releases;
+	}
+
+	/**
+	 * Get the cache of the albums loaded from MusicBrainz, holding the MusicBrainz client.
+	 * @return the album cache
+	 */
+	public AlbumCache albums() {
+		return albums;
+	}
+
+	/**
+	 * Get the index of fingerprinted files.
+	 * @return the fingerprint index
+	 */
+	public FingerprintIndex fingerprints() {
+		return fingerprints;
+	}
+
+	/**
+	 * Get the model used for scoring how well files match tracks.
+	 * @return the scoring model
+	 */
+	public ScoringModel scoringModel() {
+		return scoringModel;
+	}
+
+	/**
+	 * Set the model used for scoring how well files match tracks.
+	 * Matchers that are already created keep using the model they were created with.
+	 * @param scoringModel the scoring model
+	 */
+	public void scoringModel(ScoringModel scoringModel) {
+		this.scoringModel = scoringModel;
+	}
+
+	/**
+	 * Set the user interface.
+	 * Must be set before any files are loaded, by default nobody is told about progress.
+	 * @param rikerUi the user interface
+	 */
+	public void rikerUi(RikerUi rikerUi) {
+		this.rikerUi = rikerUi;
+	}
+
+	/**
+	 * Get the directory where an engine keeps data between sessions, given by the property "riker.data".
+	 * @param properties the properties of the engine
+	 * @return the data directory
+	 */
+	private static File dataDirectory(Properties properties) {
+		return new File(properties.getProperty("riker.data", new File(properties.getProperty("user.home"), ".riker").getPath()));
+	}
+
+	/**
+	 * Get a file in the directory where the engine keeps data between sessions.
+	 * The directory is created if it doesn't exist.
+	 * @param name name of the file
+	 * @return the file, or null if the directory doesn't exist and couldn't be created
+	 */
+	public File dataFile(String name) {
+		if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs()) {
+			LOG.warning("Unable to create data directory: ", dataDirectory);
+			return null;
+		}
+		return new File(dataDirectory, name);
+	}
+
+	/**
+	 * Get the name of a gauge or thread of this engine.
+	 * The first engine uses the name as it is, later engines append their number.
+	 * @param name the name
+	 * @return the name for this engine
+	 */
+	public String metricName(String name) {
+		return number == 1 ? name : name + "-" + number;
+	}
+
+	/**
+	 * Start the thread loading and saving files, opening the session log again if the engine was stopped.
+	 */
+	public void start() {
+		openSession();
+		fileHandler.start();
+	}
+
+	/**
+	 * Stop loading and saving files and prefetching albums, and close the session log.
+	 * Matchers already running finish matching their groups, but groups they finish after this aren't written to the session log.
+	 */
+	public void stop() {
+		fileHandler.stop();
+		albums.stop();
+		SessionLog closing;
+		synchronized (this) {
+			closing = session;
+			session = null;
+		}
+		if (closing != null)
+			closing.close();
+	}
+
+	/**
+	 * Open the session log, unless it's disabled or already open.
+	 */
+	private synchronized void openSession() {
+		if (session != null || checkpointInterval <= 0)
+			return;
+		File file = dataFile("session");
+		if (file != null)
+			session = new SessionLog(file, checkpointInterval);
+	}
+
+	/**
+	 * Load files, starting the engine if it's not started.
+	 * The groups of the files are matched as usual, the user interface is told when they're matched.
+	 * @param paths the directories/files to load
+	 * @return future with the files read, done when the directories/files are loaded and the files are added to groups
+	 */
+	public Future<List<Metafile>> load(List<String> paths) {
+		start();
+		return fileHandler.load(paths);
+	}
+
+	/**
+	 * Match a group, even if it was matched before.
+	 * A group being matched is matched again when the running matcher finishes.
+	 * @param group the group
+	 * @return future with the group, or the group it was merged into when it resolved to the same release as another group
+	 */
+	public Future<Group> match(Group group) {
+		Completion<Group> completion = new Completion<Group>();
+		synchronized (this) {
+			List<Completion<Group>> completions = matchCompletions.get(group);
+			if (completions == null) {
+				completions = new ArrayList<Completion<Group>>();
+				matchCompletions.put(group, completions);
+			}
+			completions.add(completion);
+			startMatcher(group);
+		}
+		return completion;
+	}
+
+	/**
+	 * Save files, starting the engine if it's not started.
+	 * @param files the files
+	 * @return future with the files that were saved, done when all the files are saved or failed to save
+	 */
+	public Future<List<Metafile>> save(List<Metafile> files) {
+		start();
+		return fileHandler.save(files);
+	}
+
+	/**
+	 * Called by Matchers when they're done matching files.
+	 * @param matcher the Matcher that called this method
+	 */
+	public synchronized void matcherFinished(Matcher matcher) {
+		LOG.info("Matcher finished: " + matcher);
+		Metrics.GROUPS_MATCHED.increment();
+		Group group = matcher.group();
+		/* copies of the group get the same tracks as the files they're copies of */
+		List<Group> copies;
+		synchronized (copyGroups) {
+			copies = copyGroups.remove(group);
+		}
+		if (copies != null) {
+			for (Group copy : copies)
+				copyTracks(copy);
+		}
+		if (session != null)
+			session.groupMatched(group);
+		--runningMatchers;
+		matching.remove(group);
+		if (regrown.remove(group)) {
+			startMatcher(group);
+		} else {
+			List<Completion<Group>> completions = matchCompletions.remove(group);
+			if (matcher.album() != null)
+				group = merge(group, matcher.album());
+			if (completions != null) {
+				for (Completion<Group> completion : completions)
+					completion.complete(group);
+			}
+		}
+		while (runningMatchers < MAX_MATCHERS && !matcherQueue.isEmpty()) {
+			++runningMatchers;
+			matcherQueue.remove(0).start();
+		}
+		rikerUi.groupMatched(group);
+		if (runningMatchers <= 0 && !loading)
+			rikerUi.allFilesMatched();
+	}
+
+	/**
+	 * Called by FileHandler when it reads a new file.
+	 * @param metafile the file just read
+	 */
+	public void fileLoaded(Metafile metafile) {
+		LOG.info("Adding Metafile to Riker: ", metafile);
+		loading = true;
+		metafile.tokenizer(tokenizer);
+		Group group = groups.addFile(metafile);
+		SessionLog log = session;
+		if (log != null)
+			log.fileAdded(group, metafile);
+		if (streaming)
+			sealer.fileAdded(group, metafile);
+		/* tell the UI that a file was loaded */
+		rikerUi.fileLoaded(metafile);
+	}
+
+	/**
+	 * Called by FileHandler when a directory and everything beneath it is loaded.
+	 * When streaming, groups without files in other directories that are being loaded are sealed and matched.
+	 * @param directory path of the directory
+	 */
+	public void directoryLoaded(String directory) {
+		if (!streaming)
+			return;
+		List<Group> sealed = sealer.directoryLoaded(directory);
+		if (sealed.isEmpty())
+			return;
+		LOG.info("Directory loaded, sealed ", sealed.size(), " groups: ", directory);
+		matchGroups(sealed);
+	}
+
+	/**
+	 * Called by FileHandler when all files in queue are loaded.
+	 */
+	public void allFilesLoaded() {
+		LOG.info("Done loading files");
+		List<Group> unmatched;
+		if (streaming) {
+			unmatched = sealer.allFilesLoaded();
+		} else {
+			unmatched = new ArrayList<Group>(groups.groups());
+		}
+		matchGroups(unmatched);
+		/* tell the UI that we're done loading files */
+		rikerUi.allFilesLoaded();
+		loadingFinished();
+	}
+
+	/**
+	 * Called by FileHandler when a file is saved.
+	 * When streaming the tag of the file is dropped from memory again, and the group is released when all its files are saved.
+	 * @param metafile the file that was saved
+	 */
+	public void fileSaved(Metafile metafile) {
+		LOG.info("File saved: ", metafile);
+		if (!streaming)
+			return;
+		metafile.evict();
+		Group group = metafile.group();
+		if (group == null)
+			return;
+		synchronized (savedFiles) {
+			Set<Metafile> saved = savedFiles.get(group);
+			if (saved == null) {
+				saved = new HashSet<Metafile>();
+				savedFiles.put(group, saved);
+			}
+			saved.add(metafile);
+			if (!saved.containsAll(group.files()))
+				return;
+			savedFiles.remove(group);
+		}
+		release(group);
+	}
+
+	/**
+	 * Match groups, unless they were matched in an earlier session or are copies of other groups.
+	 * @param unmatched the groups to match
+	 */
+	private void matchGroups(List<Group> unmatched) {
+		if (unmatched.isEmpty())
+			return;
+		/* find files with identical audio, no need to match the same audio more than once */
+		List<Metafile> files = new ArrayList<Metafile>();
+		for (Group group : unmatched)
+			files.addAll(group.files());
+		duplicates.index(files);
+		List<Group> unresumed = new ArrayList<Group>();
+		SessionLog log = session;
+		for (Group group : unmatched) {
+			/* groups that finished matching in an earlier session don't need to be matched again */
+			if (log != null && log.resume(group)) {
+				Metrics.GROUPS_RESUMED.increment();
+				rikerUi.groupMatched(group);
+			} else if (matching(group)) {
+				/* a group that got more files while being matched is matched again as it is */
+				startMatcher(group);
+			} else {
+				unresumed.add(group);
+			}
+		}
+		/* merge groups holding parts of the same album, so the album is only searched for once */
+		List<Group> copies = new ArrayList<Group>();
+		for (Group group : clusterer.cluster(unresumed)) {
+			if (duplicates.primaryGroup(group) != null)
+				copies.add(group);
+			else
+				startMatcher(group);
+		}
+		for (Group copy : copies) {
+			Group primaryGroup = duplicates.primaryGroup(copy);
+			if (waitForPrimary(copy, primaryGroup)) {
+				LOG.info("Group \"", copy, "\" is a copy of \"", primaryGroup, "\", not matching it");
+			} else {
+				LOG.info("Group \"", copy, "\" is a copy of already matched group \"", primaryGroup, "\"");
+				copyTracks(copy);
+			}
+		}
+	}
+
+	/**
+	 * Start a matcher for a group, or queue it if too many matchers are running.
+	 * A group already being matched is matched again when the running matcher finishes.
+	 * @param group the group
+	 */
+	private synchronized void startMatcher(Group group) {
+		if (!matching.add(group)) {
+			regrown.add(group);
+			return;
+		}
+		Matcher matcher = new Matcher(this, group);
+		if (runningMatchers < MAX_MATCHERS) {
+			++runningMatchers;
+			matcher.start();
+		} else {
+			matcherQueue.add(matcher);
+		}
+	}
+
+	/**
+	 * Check whether a group is being matched or waiting to be matched.
+	 * @param group the group
+	 * @return true if the group is being matched, false if not
+	 */
+	private synchronized boolean matching(Group group) {
+		return matching.contains(group);
+	}
+
+	/**
+	 * Let a copy of a group wait for the group it's a copy of to be matched.
+	 * @param copy the copy
+	 * @param primaryGroup the group it's a copy of
+	 * @return true if the copy is waiting, false if the group it's a copy of isn't being matched
+	 */
+	private synchronized boolean waitForPrimary(Group copy, Group primaryGroup) {
+		if (!matching.contains(primaryGroup))
+			return false;
+		synchronized (copyGroups) {
+			List<Group> copies = copyGroups.get(primaryGroup);
+			if (copies == null) {
+				copies = new ArrayList<Group>();
+				copyGroups.put(primaryGroup, copies);
+			}
+			copies.add(copy);
+		}
+		return true;
+	}
+
+	/**
+	 * Tell the UI that all files are matched if no matchers are running now that loading is done.
+	 */
+	private synchronized void loadingFinished() {
+		loading = false;
+		if (runningMatchers <= 0)
+			rikerUi.allFilesMatched();
+	}
+
+	/**
+	 * Register the release a matched group resolved to, and merge it into an earlier group resolved to the same release with other tracks.
+	 * Those groups hold different parts of the same album, like files that only differ in format or in whether they're tagged with the release MBID.
+	 * Groups that are merged are still resumed separately from the session log.
+	 * @param group the matched group
+	 * @param album the release the group resolved to
+	 * @return the group the files of the matched group are in now
+	 */
+	private Group merge(Group group, Album album) {
+		Group other = releases.resolved(group, album);
+		if (other == null || matching.contains(other))
+			return group;
+		LOG.info("Group \"", group, "\" resolved to the same release as \"", other, "\", merging them");
+		groups.merge(other, group);
+		releases.forget(group);
+		Metrics.GROUPS_MERGED.increment();
+		return other;
+	}
+
+	/**
+	 * Drop a group whose files are all saved from the registries and indexes, so the engine doesn't keep the group or its files in memory.
+	 * A group being matched again isn't dropped.
+	 * @param group the group
+	 */
+	private void release(Group group) {
+		synchronized (this) {
+			if (matching.contains(group))
+				return;
+		}
+		LOG.info("All files in group \"", group, "\" are saved, releasing it");
+		List<Metafile> files = group.files();
+		groups.release(group);
+		releases.forget(group);
+		duplicates.release(files);
+		fingerprints.release(files);
+		SessionLog log = session;
+		if (log != null)
+			log.release(group);
+	}
+
+	/**
+	 * Give the files in a copy of a group the same tracks as the files they're copies of.
+	 * The copy is matched itself if any of the files it's a copy of isn't matched.
+	 * @param copy the copy
+	 */
+	private void copyTracks(Group copy) {
+		for (Metafile file : copy.files()) {
+			Metafile primary = duplicates.primary(file);
+			if (primary == null || primary.track() == null) {
+				LOG.info("File \"", file, "\" is a copy of a file that isn't matched, matching group \"", copy, "\"");
+				startMatcher(copy);
+				return;
+			}
+		}
+		for (Metafile file : copy.files()) {
+			Metafile primary = duplicates.primary(file);
+			file.track(primary.track(), primary.matchScore());
+		}
+		SessionLog log = session;
+		if (log != null)
+			log.groupMatched(copy);
+		rikerUi.groupMatched(copy);
+	}
+}
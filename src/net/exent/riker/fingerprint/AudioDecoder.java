@@ -0,0 +1,59 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.IOException;
+
+/**
+ * A streaming audio decoder, decoding the audio in blocks mixed down to mono.
+ * Decoders only keep a block of samples in memory, so memory usage doesn't depend on the length of the audio.
+ */
+public interface AudioDecoder {
+
+	/**
+	 * Get the sample rate.
+	 * @return the sample rate in Hz
+	 */
+	int sampleRate();
+
+	/**
+	 * Get the amount of channels.
+	 * @return the amount of channels
+	 */
+	int channels();
+
+	/**
+	 * Get the duration of the audio.
+	 * @return the duration in milliseconds, 0 if it's unknown
+	 */
+	int duration();
+
+	/**
+	 * Decode the next block of samples, mixed down to mono.
+	 * @param samples array to store samples in, values range from -1.0 to 1.0
+	 * @return amount of samples decoded, or -1 when there are no more samples
+	 * @throws IOException if the stream can't be read or decoded
+	 */
+	int read(float[] samples) throws IOException;
+}
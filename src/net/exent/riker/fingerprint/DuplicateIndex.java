@@ -0,0 +1,486 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.exent.riker.metadata.Group;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.util.Logger;
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * Index of files with identical audio data.
+ * The audio data of each file is hashed with tag blocks (ID3v2, ID3v1, APEv2 and FLAC metadata) excluded,
+ * so copies of the same file with different tags get the same hash.
+ * Files without an earlier copy of their audio data are copies of an earlier file with the same artist, album, track number and title
+ * and about the same duration, which finds the same album ripped in another format or encoded again.
+ * Files are hashed in parallel, but added to the index in the order of their paths, so the same files always get the same primary copy
+ * whatever order they're loaded and hashed in.
+ */
+public class DuplicateIndex {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(DuplicateIndex.class);
+	/**
+	 * Amount of bytes mapped and hashed at a time.
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+	/**
+	 * Size of ID3v1 tag.
+	 */
+	private static final int ID3V1_SIZE = 128;
+	/**
+	 * Size of ID3v2 header and footer.
+	 */
+	private static final int ID3V2_HEADER_SIZE = 10;
+	/**
+	 * Size of APEv2 header and footer.
+	 */
+	private static final int APE_HEADER_SIZE = 32;
+	/**
+	 * How many seconds the duration of copies found by their tags may differ, encodings of the same audio differ slightly in length.
+	 */
+	private static final int DURATION_TOLERANCE = 2;
+	/**
+	 * Seconds an idle hashing thread waits for more files before it stops.
+	 */
+	private static final int IDLE_SECONDS = 60;
+	/**
+	 * Files with the same hash, in the order they were indexed.
+	 */
+	private Map<String, List<Metafile>> files = new HashMap<String, List<Metafile>>();
+	/**
+	 * Hash of each indexed file.
+	 */
+	private Map<Metafile, String> hashes = new HashMap<Metafile, String>();
+	/**
+	 * Files without an earlier copy of their audio data, keyed by artist, album, track number and title, in the order they were indexed.
+	 */
+	private Map<String, List<Metafile>> taggedFiles = new HashMap<String, List<Metafile>>();
+	/**
+	 * The earlier file each file with the same tags and duration is a copy of.
+	 */
+	private Map<Metafile, Metafile> taggedCopies = new HashMap<Metafile, Metafile>();
+	/**
+	 * Files indexed.
+	 */
+	private Set<Metafile> indexed = new HashSet<Metafile>();
+	/**
+	 * Threads hashing files, one for each processor, stopped while idle.
+	 */
+	private ThreadPoolExecutor pool;
+
+	/**
+	 * Default constructor.
+	 */
+	public DuplicateIndex() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		pool = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			/**
+			 * Amount of threads created.
+			 */
+			private int created;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Hasher-" + ++created);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Hash the given files and add them to the index, files already in the index are skipped.
+	 * The files are hashed in parallel and this method returns when all files are hashed and added in the order of their paths.
+	 * @param newFiles the files to index
+	 */
+	public void index(Collection<Metafile> newFiles) {
+		final List<Metafile> queue = new ArrayList<Metafile>();
+		synchronized (this) {
+			for (Metafile file : newFiles) {
+				if (indexed.add(file))
+					queue.add(file);
+			}
+		}
+		if (queue.isEmpty())
+			return;
+		Collections.sort(queue, new Comparator<Metafile>() {
+			@Override
+			public int compare(Metafile file1, Metafile file2) {
+				return file1.filename().compareTo(file2.filename());
+			}
+		});
+		final String[] queueHashes = new String[queue.size()];
+		final CountDownLatch hashed = new CountDownLatch(queue.size());
+		for (int index = 0; index < queue.size(); ++index) {
+			final int position = index;
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						queueHashes[position] = hash(queue.get(position).getFile());
+					} finally {
+						hashed.countDown();
+					}
+				}
+			});
+		}
+		try {
+			while (!hashed.await(1, TimeUnit.MINUTES))
+				LOG.info("Still hashing files");
+		} catch (InterruptedException e) {
+			LOG.warning(e, "Interrupted while hashing files");
+			Thread.currentThread().interrupt();
+			/* the files can be indexed again later */
+			synchronized (this) {
+				indexed.removeAll(queue);
+			}
+			return;
+		}
+		/* the first file by path is the primary copy, whichever thread hashed it first */
+		synchronized (this) {
+			for (int index = 0; index < queue.size(); ++index)
+				add(queue.get(index), queueHashes[index]);
+		}
+		LOG.info("Hashed ", queue.size(), " files, ", files.size(), " unique, ", taggedCopies.size(), " copies found by their tags");
+	}
+
+	/**
+	 * Get the first indexed file with the same audio as the given file.
+	 * @param file the file
+	 * @return the first indexed file with the same audio, which is the given file itself if it has no earlier copies
+	 */
+	public synchronized Metafile primary(Metafile file) {
+		Metafile primary = file;
+		String hash = hashes.get(file);
+		if (hash != null)
+			primary = files.get(hash).get(0);
+		Metafile tagged = taggedCopies.get(primary);
+		return tagged == null ? primary : tagged;
+	}
+
+	/**
+	 * Get the other files with the same audio data as the given file.
+	 * @param file the file
+	 * @return the other files with the same audio
+	 */
+	public synchronized List<Metafile> copies(Metafile file) {
+		String hash = hashes.get(file);
+		if (hash == null)
+			return Collections.emptyList();
+		List<Metafile> copies = new ArrayList<Metafile>(files.get(hash));
+		copies.remove(file);
+		return copies;
+	}
+
+	/**
+	 * Find the group the given group is a copy of.
+	 * A group is a copy when every file in it is a copy of a file in one other group, in that case there's no need to match the group.
+	 * @param group the group
+	 * @return the group this group is a copy of, or null if it isn't a copy
+	 */
+	public synchronized Group primaryGroup(Group group) {
+		Group primaryGroup = null;
+		for (Metafile file : group.files()) {
+			Metafile primary = primary(file);
+			if (primary == file || primary.group() == null || primary.group() == group)
+				return null;
+			if (primaryGroup == null)
+				primaryGroup = primary.group();
+			else if (primaryGroup != primary.group())
+				return null;
+		}
+		return primaryGroup;
+	}
+
+	/**
+	 * Remove files from the index, dropping the references to them.
+	 * Later copies of their audio aren't found as copies of the removed files, they're matched themselves.
+	 * @param removed the files to remove
+	 */
+	public synchronized void release(Collection<Metafile> removed) {
+		Set<Metafile> released = new HashSet<Metafile>();
+		for (Metafile file : removed) {
+			if (!indexed.remove(file))
+				continue;
+			released.add(file);
+			String hash = hashes.remove(file);
+			if (hash != null) {
+				List<Metafile> copies = files.get(hash);
+				copies.remove(file);
+				if (copies.isEmpty())
+					files.remove(hash);
+			}
+			taggedCopies.remove(file);
+		}
+		if (released.isEmpty())
+			return;
+		/* the tags may have changed since the files were indexed, so the files are looked for under every key */
+		for (Iterator<List<Metafile>> iterator = taggedFiles.values().iterator(); iterator.hasNext();) {
+			List<Metafile> tagged = iterator.next();
+			tagged.removeAll(released);
+			if (tagged.isEmpty())
+				iterator.remove();
+		}
+		/* files found by their tags as copies of the removed files are no longer copies */
+		taggedCopies.values().removeAll(released);
+	}
+
+	/**
+	 * Add a hashed file to the index.
+	 * A file without an earlier copy of its audio data is compared with earlier files with the same tags.
+	 * @param file the file
+	 * @param hash the hash of the audio data in the file, null if the file couldn't be hashed
+	 */
+	private synchronized void add(Metafile file, String hash) {
+		if (hash != null) {
+			List<Metafile> copies = files.get(hash);
+			if (copies == null) {
+				copies = new ArrayList<Metafile>(1);
+				files.put(hash, copies);
+			}
+			copies.add(file);
+			hashes.put(file, hash);
+			if (copies.size() > 1) {
+				LOG.info("File \"", file, "\" got the same audio as \"", copies.get(0), "\"");
+				return;
+			}
+		}
+		String key = tagKey(file);
+		if (key == null)
+			return;
+		List<Metafile> tagged = taggedFiles.get(key);
+		if (tagged == null) {
+			tagged = new ArrayList<Metafile>(1);
+			taggedFiles.put(key, tagged);
+		}
+		int seconds = file.getAudioHeader().getTrackLength();
+		for (Metafile other : tagged) {
+			if (Math.abs(other.getAudioHeader().getTrackLength() - seconds) <= DURATION_TOLERANCE) {
+				Metafile primary = primary(other);
+				LOG.info("File \"", file, "\" got the same tags and duration as \"", primary, "\"");
+				taggedCopies.put(file, primary);
+				break;
+			}
+		}
+		tagged.add(file);
+	}
+
+	/**
+	 * Get the key identifying the recording in a file by its tags.
+	 * @param file the file
+	 * @return artist, album, track number and title in lowercase, or null if any of them is missing
+	 */
+	private static String tagKey(Metafile file) {
+		String artist = file.getFirst(FieldKey.ARTIST);
+		String album = file.getFirst(FieldKey.ALBUM);
+		String track = file.getFirst(FieldKey.TRACK);
+		String title = file.getFirst(FieldKey.TITLE);
+		if (artist == null || album == null || track == null || title == null || file.getAudioHeader() == null)
+			return null;
+		int tracknumber = 0;
+		int digits = 0;
+		for (; digits < track.length() && digits < 6 && Character.isDigit(track.charAt(digits)); ++digits)
+			tracknumber = tracknumber * 10 + Character.digit(track.charAt(digits), 10);
+		if (digits == 0)
+			return null;
+		return (artist + "\t" + album + "\t" + tracknumber + "\t" + title).toLowerCase();
+	}
+
+	/**
+	 * Hash the audio data in a file, excluding tags.
+	 * @param file the file to hash
+	 * @return the hash as a hex string, or null if the file couldn't be read
+	 */
+	static String hash(File file) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			long start = 0;
+			long end = channel.size();
+			ByteBuffer header = read(channel, 0, ID3V2_HEADER_SIZE);
+			if (header != null && header.get(0) == 'f' && header.get(1) == 'L' && header.get(2) == 'a' && header.get(3) == 'C') {
+				start = flacAudioOffset(channel);
+			} else {
+				start = id3v2Size(header);
+				end = apeTagStart(channel, id3v1Start(channel, end));
+			}
+			if (start >= end)
+				return null;
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (long position = start; position < end; position += CHUNK_SIZE)
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, end - position)));
+			StringBuilder sb = new StringBuilder(40);
+			for (byte b : digest.digest())
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return sb.toString();
+		} catch (IOException e) {
+			LOG.notice(e, "Unable to hash file: ", file);
+		} catch (NoSuchAlgorithmException e) {
+			LOG.error(e, "SHA-1 is not available");
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", file);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the size of an ID3v2 tag at the start of a file.
+	 * @param header the first 10 bytes of the file
+	 * @return size of the tag including header and footer, 0 if there is no tag
+	 */
+	private static long id3v2Size(ByteBuffer header) {
+		if (header == null || header.get(0) != 'I' || header.get(1) != 'D' || header.get(2) != '3')
+			return 0;
+		/* size is stored as a synchsafe integer, 7 bits in each byte */
+		long size = 0;
+		for (int a = 6; a < 10; ++a)
+			size = (size << 7) | (header.get(a) & 0x7F);
+		/* footer flag */
+		if ((header.get(5) & 0x10) != 0)
+			size += ID3V2_HEADER_SIZE;
+		return size + ID3V2_HEADER_SIZE;
+	}
+
+	/**
+	 * Find where an ID3v1 tag at the end of a file starts.
+	 * @param channel the file
+	 * @param end the end of the file
+	 * @return offset of the tag, or end if there is no tag
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static long id3v1Start(FileChannel channel, long end) throws IOException {
+		ByteBuffer tag = read(channel, end - ID3V1_SIZE, 3);
+		if (tag != null && tag.get(0) == 'T' && tag.get(1) == 'A' && tag.get(2) == 'G')
+			return end - ID3V1_SIZE;
+		return end;
+	}
+
+	/**
+	 * Find where an APEv2 tag ending at the given offset starts.
+	 * @param channel the file
+	 * @param end where the tag would end
+	 * @return offset of the tag, or end if there is no tag
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static long apeTagStart(FileChannel channel, long end) throws IOException {
+		ByteBuffer footer = read(channel, end - APE_HEADER_SIZE, APE_HEADER_SIZE);
+		if (footer == null)
+			return end;
+		byte[] preamble = new byte[8];
+		footer.get(preamble);
+		if (!"APETAGEX".equals(new String(preamble, "US-ASCII")))
+			return end;
+		/* tag size (little endian) includes footer and items, but not header */
+		long size = littleEndian(footer, 12);
+		boolean hasHeader = (littleEndian(footer, 20) & 0x80000000L) != 0;
+		long start = end - size - (hasHeader ? APE_HEADER_SIZE : 0);
+		return start < 0 ? end : start;
+	}
+
+	/**
+	 * Find where the audio frames in a FLAC file start.
+	 * @param channel the file
+	 * @return offset of the first audio frame
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static long flacAudioOffset(FileChannel channel) throws IOException {
+		long position = 4;
+		while (true) {
+			ByteBuffer block = read(channel, position, 4);
+			if (block == null)
+				throw new IOException("Truncated FLAC metadata");
+			long length = ((block.get(1) & 0xFFL) << 16) | ((block.get(2) & 0xFFL) << 8) | (block.get(3) & 0xFFL);
+			position += 4 + length;
+			/* highest bit is set on the last metadata block */
+			if ((block.get(0) & 0x80) != 0)
+				return position;
+		}
+	}
+
+	/**
+	 * Read bytes from a file.
+	 * @param channel the file
+	 * @param position where to start reading
+	 * @param length amount of bytes to read
+	 * @return the bytes read, or null if the file doesn't contain that many bytes at that position
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		if (position < 0 || position + length > channel.size())
+			return null;
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				return null;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Read an unsigned 32 bit little endian value.
+	 * @param buffer the buffer to read from
+	 * @param offset offset of the value
+	 * @return the value
+	 */
+	private static long littleEndian(ByteBuffer buffer, int offset) {
+		long value = 0;
+		for (int a = 3; a >= 0; --a)
+			value = (value << 8) | (buffer.get(offset + a) & 0xFFL);
+		return value;
+	}
+}
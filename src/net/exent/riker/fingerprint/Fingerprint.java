@@ -0,0 +1,138 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compact fingerprint of some audio.
+ * The fingerprint is a sequence of 32 bit codes, one for each analysis frame, describing the chroma (energy per pitch class) of the frame.
+ * Two fingerprints of the same audio have mostly the same bits set even if the audio was encoded differently.
+ */
+public class Fingerprint {
+
+	/**
+	 * Amount of meaningful bits in each code.
+	 */
+	private static final int BITS = 28;
+	/**
+	 * Maximum amount of frames the fingerprints may be shifted when comparing them, to handle a bit of leading silence.
+	 */
+	private static final int MAX_OFFSET = 8;
+	/**
+	 * Codes for each analysis frame.
+	 */
+	private int[] codes;
+	/**
+	 * Duration of the audio in milliseconds.
+	 */
+	private int duration;
+
+	/**
+	 * Default constructor.
+	 * @param codes codes for each analysis frame
+	 * @param duration duration of the audio in milliseconds
+	 */
+	public Fingerprint(int[] codes, int duration) {
+		this.codes = codes;
+		this.duration = duration;
+	}
+
+	/**
+	 * Get the codes for each analysis frame.
+	 * @return the codes for each analysis frame
+	 */
+	public int[] codes() {
+		return codes;
+	}
+
+	/**
+	 * Get the duration of the audio.
+	 * @return the duration of the audio in milliseconds
+	 */
+	public int duration() {
+		return duration;
+	}
+
+	/**
+	 * Calculate the similarity between this and another fingerprint, value returned goes from 0.0 to 1.0.
+	 * This is the share of equal bits in the best alignment of the two fingerprints.
+	 * Unrelated audio usually score around 0.5 while the same audio usually score above 0.85.
+	 * @param other the fingerprint to compare with
+	 * @return the similarity of the fingerprints, value from 0.0 to 1.0
+	 */
+	public double similarity(Fingerprint other) {
+		int minOverlap = Math.max(1, Math.min(codes.length, other.codes.length) / 2);
+		double best = 0.0;
+		for (int offset = -MAX_OFFSET; offset <= MAX_OFFSET; ++offset) {
+			int start = Math.max(0, -offset);
+			int end = Math.min(codes.length, other.codes.length - offset);
+			if (end - start < minOverlap)
+				continue;
+			int differentBits = 0;
+			for (int a = start; a < end; ++a)
+				differentBits += Integer.bitCount(codes[a] ^ other.codes[a + offset]);
+			double score = 1.0 - (double) differentBits / (double) ((end - start) * BITS);
+			if (score > best)
+				best = score;
+		}
+		return best;
+	}
+
+	/**
+	 * Write the fingerprint to the given output.
+	 * @param out the output to write to
+	 * @throws IOException if writing failed
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(duration);
+		out.writeInt(codes.length);
+		for (int code : codes)
+			out.writeInt(code);
+	}
+
+	/**
+	 * Read a fingerprint written with write().
+	 * @param in the input to read from
+	 * @return the fingerprint read
+	 * @throws IOException if reading failed
+	 */
+	public static Fingerprint read(DataInput in) throws IOException {
+		int duration = in.readInt();
+		int length = in.readInt();
+		if (length < 0 || length > 1 << 20)
+			throw new IOException("Invalid fingerprint length: " + length);
+		int[] codes = new int[length];
+		for (int a = 0; a < length; ++a)
+			codes[a] = in.readInt();
+		return new Fingerprint(codes, duration);
+	}
+
+	@Override
+	public String toString() {
+		return codes.length + " frames, " + duration + "ms";
+	}
+}
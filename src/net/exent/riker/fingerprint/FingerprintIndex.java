@@ -0,0 +1,541 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.Track;
+import net.exent.riker.util.Logger;
+
+/**
+ * Index of fingerprinted files.
+ * Files with the same audio are put in the same cluster, and the fingerprint lookup is only done once for each cluster.
+ * Every matched file that can be decoded is added to the index, so files with the same audio are matched with the same track,
+ * matched files that aren't fingerprinted yet are decoded by a background thread so matching isn't held up.
+ * Fingerprints are cached in a file keyed by path, size and modification time so files aren't decoded again in later sessions,
+ * the file is rewritten when it's read with only the latest fingerprint of each file that still exists unchanged.
+ */
+public class FingerprintIndex {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(FingerprintIndex.class);
+	/**
+	 * Fingerprints must be at least this similar to be considered the same audio.
+	 */
+	private static final double SAME_AUDIO = 0.8;
+	/**
+	 * How many seconds the duration of the same audio may differ.
+	 */
+	private static final int DURATION_TOLERANCE = 2;
+	/**
+	 * Seconds the background thread waits for more files before it stops.
+	 */
+	private static final int IDLE_SECONDS = 10;
+	/**
+	 * The service used for looking up which release the audio comes from.
+	 */
+	private FingerprintLookup lookup;
+	/**
+	 * File fingerprints are cached in, null if they're only kept in memory.
+	 */
+	private File cacheFile;
+	/**
+	 * Cached fingerprints, keyed by file path.
+	 */
+	private Map<String, CachedFingerprint> cache = new HashMap<String, CachedFingerprint>();
+	/**
+	 * Clusters of files with the same audio, keyed by duration in seconds.
+	 */
+	private Map<Integer, List<Cluster>> clusters = new HashMap<Integer, List<Cluster>>();
+	/**
+	 * The cluster of each indexed file.
+	 */
+	private Map<Metafile, Cluster> fileClusters = new HashMap<Metafile, Cluster>();
+	/**
+	 * Thread fingerprinting matched files that aren't in the index, only running while there are files to fingerprint.
+	 */
+	private ExecutorService background;
+
+	/**
+	 * Default constructor, reads cached fingerprints from file.
+	 * @param lookup the service used for looking up which release the audio comes from
+	 * @param cacheFile the file to cache fingerprints in, or null to only keep them in memory
+	 */
+	public FingerprintIndex(FingerprintLookup lookup, File cacheFile) {
+		this.lookup = lookup;
+		this.cacheFile = cacheFile;
+		if (cacheFile != null && cacheFile.isFile()) {
+			load();
+			compact();
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Fingerprinter");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		background = executor;
+	}
+
+	/**
+	 * Add a file to the index.
+	 * @param file the file to add
+	 * @return the cluster the file was added to, or null if the file couldn't be fingerprinted
+	 */
+	public Cluster add(Metafile file) {
+		synchronized (this) {
+			Cluster cluster = fileClusters.get(file);
+			if (cluster != null)
+				return cluster;
+		}
+		/* decode the file without holding the lock, it's slow */
+		Fingerprint fingerprint = fingerprint(file.getFile());
+		if (fingerprint == null)
+			return null;
+		synchronized (this) {
+			Cluster cluster = fileClusters.get(file);
+			if (cluster == null) {
+				cluster = findCluster(fingerprint);
+				if (cluster == null) {
+					cluster = new Cluster(fingerprint);
+					int seconds = fingerprint.duration() / 1000;
+					List<Cluster> bucket = clusters.get(seconds);
+					if (bucket == null) {
+						bucket = new ArrayList<Cluster>();
+						clusters.put(seconds, bucket);
+					}
+					bucket.add(cluster);
+				}
+				synchronized (cluster) {
+					cluster.files.add(file);
+				}
+				fileClusters.put(file, cluster);
+			}
+			return cluster;
+		}
+	}
+
+	/**
+	 * Get the MBID of the release the audio in the given file comes from.
+	 * The file is fingerprinted if needed, but the lookup service is only asked once for all files with the same audio.
+	 * @param file the file to find the release for
+	 * @return the MBID of the release, or null if it's unknown
+	 */
+	public String releaseMbid(Metafile file) {
+		Cluster cluster = add(file);
+		if (cluster == null)
+			return null;
+		synchronized (cluster) {
+			if (!cluster.lookedUp) {
+				cluster.releaseMbid = lookup.lookup(cluster.fingerprint);
+				cluster.lookedUp = true;
+				LOG.info("Looked up fingerprint cluster of file \"", file, "\", release: ", cluster.releaseMbid);
+			}
+			return cluster.releaseMbid;
+		}
+	}
+
+	/**
+	 * Tell the index that the given file was matched with a track, so other files with the same audio can be matched with the same track,
+	 * and the lookup service learns which release the audio comes from. Only the best match of the audio is kept.
+	 * Files already in the index or the cache are recorded right away, other files are fingerprinted and recorded by the background thread.
+	 * @param file the file that was matched
+	 * @param track the track the file was matched with
+	 * @param matchScore how well the file matched the track
+	 */
+	public void matched(final Metafile file, final Track track, final double matchScore) {
+		if (track == null || track.album() == null || !Fingerprinter.supported(file.getFile()))
+			return;
+		if (fingerprinted(file)) {
+			record(file, track, matchScore);
+			return;
+		}
+		background.execute(new Runnable() {
+			@Override
+			public void run() {
+				record(file, track, matchScore);
+			}
+		});
+	}
+
+	/**
+	 * Remove files from the index and drop their cached fingerprints from memory, the fingerprints are still in the cache file.
+	 * Clusters left without files are removed. It's done by the background thread, after the files it's still fingerprinting.
+	 * @param removed the files to remove
+	 */
+	public void release(final Collection<Metafile> removed) {
+		background.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (FingerprintIndex.this) {
+					for (Metafile file : removed) {
+						cache.remove(file.getFile().getAbsolutePath());
+						Cluster cluster = fileClusters.remove(file);
+						if (cluster == null)
+							continue;
+						synchronized (cluster) {
+							cluster.files.remove(file);
+							if (!cluster.files.isEmpty())
+								continue;
+						}
+						int seconds = cluster.fingerprint.duration() / 1000;
+						List<Cluster> bucket = clusters.get(seconds);
+						bucket.remove(cluster);
+						if (bucket.isEmpty())
+							clusters.remove(seconds);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the cluster of the given file.
+	 * @param file the file
+	 * @return the cluster of the file, or null if the file isn't in the index
+	 */
+	public synchronized Cluster cluster(Metafile file) {
+		return fileClusters.get(file);
+	}
+
+	/**
+	 * Check whether a file can be added to the index without decoding it.
+	 * @param file the file
+	 * @return true if the file is in the index or its fingerprint is cached
+	 */
+	private synchronized boolean fingerprinted(Metafile file) {
+		if (fileClusters.containsKey(file))
+			return true;
+		File audioFile = file.getFile();
+		CachedFingerprint cached = cache.get(audioFile.getAbsolutePath());
+		return cached != null && cached.length == audioFile.length() && cached.lastModified == audioFile.lastModified();
+	}
+
+	/**
+	 * Record that a file was matched with a track, fingerprinting the file if needed.
+	 * @param file the file that was matched
+	 * @param track the track the file was matched with
+	 * @param matchScore how well the file matched the track
+	 */
+	private void record(Metafile file, Track track, double matchScore) {
+		Cluster cluster = add(file);
+		if (cluster == null)
+			return;
+		String releaseMbid = track.album().mbid();
+		synchronized (cluster) {
+			/* keep the best match of the audio */
+			if (cluster.trackMbid != null && matchScore <= cluster.matchScore)
+				return;
+			cluster.trackMbid = track.mbid();
+			cluster.matchScore = matchScore;
+			cluster.lookedUp = true;
+			if (releaseMbid.equals(cluster.releaseMbid))
+				return;
+			cluster.releaseMbid = releaseMbid;
+		}
+		lookup.submit(cluster.fingerprint, releaseMbid);
+	}
+
+	/**
+	 * Find a cluster with the same audio as the given fingerprint.
+	 * @param fingerprint the fingerprint
+	 * @return the most similar cluster, or null if no cluster got the same audio
+	 */
+	private Cluster findCluster(Fingerprint fingerprint) {
+		Cluster best = null;
+		double bestScore = SAME_AUDIO;
+		int seconds = fingerprint.duration() / 1000;
+		for (int second = seconds - DURATION_TOLERANCE; second <= seconds + DURATION_TOLERANCE; ++second) {
+			List<Cluster> bucket = clusters.get(second);
+			if (bucket == null)
+				continue;
+			for (Cluster cluster : bucket) {
+				double score = cluster.fingerprint.similarity(fingerprint);
+				if (score >= bestScore) {
+					best = cluster;
+					bestScore = score;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the fingerprint of a file, from cache if the file is unchanged since it was fingerprinted.
+	 * @param file the file
+	 * @return the fingerprint of the file, or null if the file couldn't be fingerprinted
+	 */
+	private Fingerprint fingerprint(File file) {
+		if (!Fingerprinter.supported(file))
+			return null;
+		String path = file.getAbsolutePath();
+		synchronized (this) {
+			CachedFingerprint cached = cache.get(path);
+			if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified())
+				return cached.fingerprint;
+		}
+		Fingerprint fingerprint = Fingerprinter.fingerprint(file);
+		if (fingerprint != null)
+			store(new CachedFingerprint(path, file.length(), file.lastModified(), fingerprint));
+		return fingerprint;
+	}
+
+	/**
+	 * Add a fingerprint to the cache and append it to the cache file.
+	 * @param cached the fingerprint to cache
+	 */
+	private synchronized void store(CachedFingerprint cached) {
+		cache.put(cached.path, cached);
+		if (cacheFile == null)
+			return;
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile, true)));
+			write(out, cached);
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to store fingerprint in file: ", cacheFile);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", cacheFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a cached fingerprint.
+	 * @param out the stream
+	 * @param cached the fingerprint
+	 * @throws IOException if the fingerprint can't be written
+	 */
+	private static void write(DataOutputStream out, CachedFingerprint cached) throws IOException {
+		out.writeUTF(cached.path);
+		out.writeLong(cached.length);
+		out.writeLong(cached.lastModified);
+		cached.fingerprint.write(out);
+	}
+
+	/**
+	 * Rewrite the cache file with only the latest fingerprint of each file, dropping files that are gone or changed since they were fingerprinted.
+	 */
+	private void compact() {
+		for (Iterator<CachedFingerprint> iterator = cache.values().iterator(); iterator.hasNext();) {
+			CachedFingerprint cached = iterator.next();
+			File file = new File(cached.path);
+			if (!file.isFile() || cached.length != file.length() || cached.lastModified != file.lastModified())
+				iterator.remove();
+		}
+		File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			for (CachedFingerprint cached : cache.values())
+				write(out, cached);
+			out.close();
+			out = null;
+			if (!tmpFile.renameTo(cacheFile) && (!cacheFile.delete() || !tmpFile.renameTo(cacheFile)))
+				throw new IOException("Unable to replace fingerprint cache with compacted cache: " + tmpFile);
+		} catch (IOException e) {
+			/* the old file is still complete, it's just bigger than it needs to be */
+			LOG.warning(e, "Unable to compact fingerprint cache: ", cacheFile);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", tmpFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read cached fingerprints from file, later entries replace earlier entries for the same path.
+	 */
+	private void load() {
+		DataInputStream in = null;
+		int count = 0;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			while (true) {
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				cache.put(path, new CachedFingerprint(path, length, lastModified, Fingerprint.read(in)));
+				++count;
+			}
+		} catch (EOFException e) {
+			LOG.info("Read ", count, " cached fingerprints from file: ", cacheFile);
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to read cached fingerprints from file, only read ", count, " fingerprints: ", cacheFile);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", cacheFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A cluster of files with the same audio.
+	 */
+	public static final class Cluster {
+
+		/**
+		 * Fingerprint of the first file in the cluster.
+		 */
+		private Fingerprint fingerprint;
+		/**
+		 * Files in the cluster.
+		 */
+		private List<Metafile> files = new ArrayList<Metafile>();
+		/**
+		 * MBID of the release the audio comes from.
+		 */
+		private String releaseMbid;
+		/**
+		 * Whether the lookup service has been asked about this cluster.
+		 */
+		private boolean lookedUp;
+		/**
+		 * MBID of the track the audio was matched best with, null if no file in the cluster is matched.
+		 */
+		private String trackMbid;
+		/**
+		 * How well the audio matched the track.
+		 */
+		private double matchScore;
+
+		/**
+		 * Default constructor.
+		 * @param fingerprint fingerprint of the first file in the cluster
+		 */
+		private Cluster(Fingerprint fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * Get the fingerprint of the cluster.
+		 * @return the fingerprint of the cluster
+		 */
+		public Fingerprint fingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * Get the MBID of the track the audio was matched best with.
+		 * @return the MBID of the track, or null if no file in the cluster is matched
+		 */
+		public synchronized String trackMbid() {
+			return trackMbid;
+		}
+
+		/**
+		 * Get how well the audio matched the track it was matched best with.
+		 * @return the match score
+		 */
+		public synchronized double matchScore() {
+			return matchScore;
+		}
+
+		/**
+		 * Get the files in the cluster.
+		 * @return the files in the cluster
+		 */
+		public List<Metafile> files() {
+			synchronized (this) {
+				return Collections.unmodifiableList(new ArrayList<Metafile>(files));
+			}
+		}
+	}
+
+	/**
+	 * A fingerprint and the state of the file it was created from.
+	 */
+	private static final class CachedFingerprint {
+
+		/**
+		 * Path of the file.
+		 */
+		private String path;
+		/**
+		 * Size of the file.
+		 */
+		private long length;
+		/**
+		 * Modification time of the file.
+		 */
+		private long lastModified;
+		/**
+		 * Fingerprint of the file.
+		 */
+		private Fingerprint fingerprint;
+
+		/**
+		 * Default constructor.
+		 * @param path path of the file
+		 * @param length size of the file
+		 * @param lastModified modification time of the file
+		 * @param fingerprint fingerprint of the file
+		 */
+		private CachedFingerprint(String path, long length, long lastModified, Fingerprint fingerprint) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.fingerprint = fingerprint;
+		}
+	}
+}
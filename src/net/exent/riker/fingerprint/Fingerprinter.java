@@ -0,0 +1,300 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import net.exent.riker.util.Logger;
+
+/**
+ * Creates chroma fingerprints from audio.
+ * The audio is decimated to roughly 11kHz, split into overlapping frames and transformed with an FFT.
+ * The energy of each frequency bin is added to its pitch class (C, C#, D, ...) and the resulting chroma vector is reduced to a 28 bit code.
+ * Only the first couple of minutes are analysed and all buffers are of fixed size, so memory usage is bounded.
+ * WAV and FLAC files are decoded, other formats can't be fingerprinted.
+ */
+public final class Fingerprinter {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(Fingerprinter.class);
+	/**
+	 * Sample rate we decimate audio to before analysing it.
+	 */
+	private static final int TARGET_RATE = 11025;
+	/**
+	 * Samples in each analysis frame, must be a power of 2.
+	 */
+	private static final int FRAME_SIZE = 4096;
+	/**
+	 * Samples between the start of two analysis frames.
+	 */
+	private static final int HOP_SIZE = 2048;
+	/**
+	 * Maximum amount of seconds of audio to analyse.
+	 */
+	private static final int MAX_SECONDS = 120;
+	/**
+	 * Lowest frequency added to the chroma.
+	 */
+	private static final double MIN_FREQUENCY = 55.0;
+	/**
+	 * Highest frequency added to the chroma.
+	 */
+	private static final double MAX_FREQUENCY = 3520.0;
+	/**
+	 * Amount of pitch classes.
+	 */
+	private static final int PITCH_CLASSES = 12;
+	/**
+	 * Hann window.
+	 */
+	private static final double[] WINDOW = new double[FRAME_SIZE];
+	/**
+	 * Cosine table for the FFT.
+	 */
+	private static final double[] COS = new double[FRAME_SIZE / 2];
+	/**
+	 * Sine table for the FFT.
+	 */
+	private static final double[] SIN = new double[FRAME_SIZE / 2];
+
+	static {
+		for (int a = 0; a < FRAME_SIZE; ++a)
+			WINDOW[a] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * a / (FRAME_SIZE - 1));
+		for (int a = 0; a < FRAME_SIZE / 2; ++a) {
+			COS[a] = Math.cos(-2.0 * Math.PI * a / FRAME_SIZE);
+			SIN[a] = Math.sin(-2.0 * Math.PI * a / FRAME_SIZE);
+		}
+	}
+
+	/**
+	 * Pitch class of each frequency bin, -1 if the bin is outside the analysed range.
+	 */
+	private int[] binPitchClass = new int[FRAME_SIZE / 2];
+	/**
+	 * Real part of the FFT.
+	 */
+	private double[] real = new double[FRAME_SIZE];
+	/**
+	 * Imaginary part of the FFT.
+	 */
+	private double[] imaginary = new double[FRAME_SIZE];
+	/**
+	 * Decimated samples of the current frame.
+	 */
+	private double[] frame = new double[FRAME_SIZE];
+	/**
+	 * Chroma of the current frame.
+	 */
+	private double[] chroma = new double[PITCH_CLASSES];
+	/**
+	 * Chroma of the previous frame.
+	 */
+	private double[] previousChroma = new double[PITCH_CLASSES];
+
+	/**
+	 * Private constructor, use the static methods.
+	 * @param rate sample rate of the decimated audio
+	 */
+	private Fingerprinter(int rate) {
+		for (int bin = 0; bin < binPitchClass.length; ++bin) {
+			double frequency = (double) bin * rate / FRAME_SIZE;
+			if (frequency < MIN_FREQUENCY || frequency > MAX_FREQUENCY) {
+				binPitchClass[bin] = -1;
+			} else {
+				long semitone = Math.round(PITCH_CLASSES * Math.log(frequency / 440.0) / Math.log(2.0));
+				binPitchClass[bin] = (int) ((semitone % PITCH_CLASSES + PITCH_CLASSES) % PITCH_CLASSES);
+			}
+		}
+	}
+
+	/**
+	 * Check whether we're able to fingerprint the given file.
+	 * @param file the file to check
+	 * @return true if we can decode the file, false if not
+	 */
+	public static boolean supported(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".wav") || name.endsWith(".wave") || name.endsWith(".flac");
+	}
+
+	/**
+	 * Fingerprint the given file.
+	 * @param file the file to fingerprint
+	 * @return the fingerprint, or null if the file couldn't be decoded
+	 */
+	public static Fingerprint fingerprint(File file) {
+		if (!supported(file))
+			return null;
+		InputStream input = null;
+		try {
+			input = new BufferedInputStream(new FileInputStream(file), 65536);
+			AudioDecoder decoder = file.getName().toLowerCase().endsWith(".flac") ? new FlacDecoder(input) : new WavDecoder(input);
+			Fingerprint fingerprint = fingerprint(decoder);
+			LOG.info("Fingerprinted file \"", file, "\": ", fingerprint);
+			return fingerprint;
+		} catch (IOException e) {
+			LOG.notice(e, "Unable to fingerprint file: ", file);
+			return null;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fingerprint the audio from the given decoder.
+	 * @param decoder decoder for the audio to fingerprint
+	 * @return the fingerprint
+	 * @throws IOException if the audio couldn't be decoded
+	 */
+	public static Fingerprint fingerprint(AudioDecoder decoder) throws IOException {
+		int decimation = Math.max(1, Math.round((float) decoder.sampleRate() / TARGET_RATE));
+		int rate = decoder.sampleRate() / decimation;
+		Fingerprinter fingerprinter = new Fingerprinter(rate);
+		int maxFrames = (MAX_SECONDS * rate - FRAME_SIZE) / HOP_SIZE + 1;
+		int[] codes = new int[maxFrames];
+		int frames = 0;
+		float[] samples = new float[4096];
+		int position = 0;
+		double sum = 0.0;
+		int summed = 0;
+		int read;
+		while (frames < maxFrames && (read = decoder.read(samples)) > 0) {
+			for (int a = 0; a < read && frames < maxFrames; ++a) {
+				/* decimate by averaging, which also works as a crude low pass filter */
+				sum += samples[a];
+				if (++summed < decimation)
+					continue;
+				fingerprinter.frame[position++] = sum / decimation;
+				sum = 0.0;
+				summed = 0;
+				if (position < FRAME_SIZE)
+					continue;
+				codes[frames++] = fingerprinter.analyse();
+				/* keep the overlapping part of the frame */
+				System.arraycopy(fingerprinter.frame, HOP_SIZE, fingerprinter.frame, 0, FRAME_SIZE - HOP_SIZE);
+				position = FRAME_SIZE - HOP_SIZE;
+			}
+		}
+		int[] result = new int[frames];
+		System.arraycopy(codes, 0, result, 0, frames);
+		return new Fingerprint(result, decoder.duration());
+	}
+
+	/**
+	 * Analyse the current frame.
+	 * Bit 0-11 tells whether a pitch class got more energy than the next pitch class.
+	 * Bit 12-23 tells whether a pitch class got more energy than in the previous frame.
+	 * Bit 24-27 is the pitch class with most energy.
+	 * @return the code for the current frame
+	 */
+	private int analyse() {
+		for (int a = 0; a < FRAME_SIZE; ++a) {
+			real[a] = frame[a] * WINDOW[a];
+			imaginary[a] = 0.0;
+		}
+		fft();
+		double[] tmp = previousChroma;
+		previousChroma = chroma;
+		chroma = tmp;
+		for (int a = 0; a < PITCH_CLASSES; ++a)
+			chroma[a] = 0.0;
+		double total = 0.0;
+		for (int bin = 0; bin < binPitchClass.length; ++bin) {
+			if (binPitchClass[bin] < 0)
+				continue;
+			double energy = real[bin] * real[bin] + imaginary[bin] * imaginary[bin];
+			chroma[binPitchClass[bin]] += energy;
+			total += energy;
+		}
+		if (total <= 0.0)
+			return 0;
+		int code = 0;
+		int strongest = 0;
+		for (int a = 0; a < PITCH_CLASSES; ++a) {
+			chroma[a] /= total;
+			if (chroma[a] > chroma[strongest])
+				strongest = a;
+		}
+		for (int a = 0; a < PITCH_CLASSES; ++a) {
+			if (chroma[a] > chroma[(a + 1) % PITCH_CLASSES])
+				code |= 1 << a;
+			if (chroma[a] > previousChroma[a])
+				code |= 1 << (PITCH_CLASSES + a);
+		}
+		return code | strongest << (2 * PITCH_CLASSES);
+	}
+
+	/**
+	 * In place iterative radix-2 FFT of real and imaginary.
+	 */
+	private void fft() {
+		/* bit reversal permutation */
+		int b = 0;
+		for (int a = 1; a < FRAME_SIZE; ++a) {
+			int bit = FRAME_SIZE >> 1;
+			for (; (b & bit) != 0; bit >>= 1)
+				b ^= bit;
+			b ^= bit;
+			if (a < b) {
+				double tmp = real[a];
+				real[a] = real[b];
+				real[b] = tmp;
+				tmp = imaginary[a];
+				imaginary[a] = imaginary[b];
+				imaginary[b] = tmp;
+			}
+		}
+		/* butterflies */
+		for (int length = 2; length <= FRAME_SIZE; length <<= 1) {
+			int half = length >> 1;
+			int step = FRAME_SIZE / length;
+			for (int start = 0; start < FRAME_SIZE; start += length) {
+				for (int a = 0; a < half; ++a) {
+					double cos = COS[a * step];
+					double sin = SIN[a * step];
+					int even = start + a;
+					int odd = even + half;
+					double oddReal = real[odd] * cos - imaginary[odd] * sin;
+					double oddImaginary = real[odd] * sin + imaginary[odd] * cos;
+					real[odd] = real[even] - oddReal;
+					imaginary[odd] = imaginary[even] - oddImaginary;
+					real[even] += oddReal;
+					imaginary[even] += oddImaginary;
+				}
+			}
+		}
+	}
+}
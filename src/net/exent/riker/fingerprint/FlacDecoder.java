@@ -0,0 +1,517 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder for FLAC audio.
+ * Frames are decoded one at a time into buffers sized by the maximum block size in the stream info, and mixed down to mono.
+ * Supports all subframe types (constant, verbatim, fixed and LPC), both residual coding methods and all stereo decorrelation modes.
+ * Checksums aren't verified, a corrupt frame either decodes to noise or fails to decode.
+ */
+public class FlacDecoder implements AudioDecoder {
+
+	/**
+	 * Type of the STREAMINFO metadata block.
+	 */
+	private static final int STREAMINFO = 0;
+	/**
+	 * Size of the STREAMINFO metadata block.
+	 */
+	private static final int STREAMINFO_SIZE = 34;
+	/**
+	 * Highest amount of bits per sample we decode.
+	 */
+	private static final int MAX_BITS_PER_SAMPLE = 24;
+	/**
+	 * Channel assignment where the second channel is the difference between left and right.
+	 */
+	private static final int LEFT_SIDE = 8;
+	/**
+	 * Channel assignment where the first channel is the difference between left and right.
+	 */
+	private static final int RIGHT_SIDE = 9;
+	/**
+	 * Channel assignment where the channels are the average of and the difference between left and right.
+	 */
+	private static final int MID_SIDE = 10;
+	/**
+	 * The stream we're decoding.
+	 */
+	private InputStream input;
+	/**
+	 * Bits read from the stream not consumed yet, the next bit is the highest of the lowest bitCount bits.
+	 */
+	private long bits;
+	/**
+	 * Amount of bits in bits.
+	 */
+	private int bitCount;
+	/**
+	 * Amount of channels.
+	 */
+	private int channels;
+	/**
+	 * Sample rate in Hz.
+	 */
+	private int sampleRate;
+	/**
+	 * Bits per sample.
+	 */
+	private int bitsPerSample;
+	/**
+	 * Total amount of samples in each channel, 0 if unknown.
+	 */
+	private long totalSamples;
+	/**
+	 * Samples of the current frame, for each channel.
+	 */
+	private int[][] block;
+	/**
+	 * Amount of samples in each channel of the current frame.
+	 */
+	private int blockSize;
+	/**
+	 * Samples of the current frame already returned by read().
+	 */
+	private int blockPosition;
+	/**
+	 * Scale from the samples of the current frame to -1.0 to 1.0, divided by the amount of channels.
+	 */
+	private float scale;
+
+	/**
+	 * Default constructor, reads the stream info and skips the other metadata blocks.
+	 * @param input the stream to decode, should be buffered
+	 * @throws IOException if the stream can't be read or isn't a FLAC stream we can decode
+	 */
+	public FlacDecoder(InputStream input) throws IOException {
+		this.input = input;
+		readMetadata();
+	}
+
+	@Override
+	public int sampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public int channels() {
+		return channels;
+	}
+
+	@Override
+	public int duration() {
+		return (int) (totalSamples * 1000 / sampleRate);
+	}
+
+	@Override
+	public int read(float[] samples) throws IOException {
+		while (blockPosition >= blockSize) {
+			if (!readFrame())
+				return -1;
+		}
+		int frames = Math.min(samples.length, blockSize - blockPosition);
+		for (int frame = 0; frame < frames; ++frame) {
+			int sum = 0;
+			for (int channel = 0; channel < channels; ++channel)
+				sum += block[channel][blockPosition + frame];
+			samples[frame] = sum * scale;
+		}
+		blockPosition += frames;
+		return frames;
+	}
+
+	/**
+	 * Read the metadata blocks, up to the first frame.
+	 * @throws IOException if the stream can't be read or isn't a FLAC stream we can decode
+	 */
+	private void readMetadata() throws IOException {
+		if (readBits(32) != 0x664C6143L)
+			throw new IOException("Not a FLAC stream");
+		boolean last;
+		boolean streamInfoRead = false;
+		do {
+			last = readBits(1) != 0;
+			int type = (int) readBits(7);
+			long length = readBits(24);
+			if (type == STREAMINFO && length >= STREAMINFO_SIZE) {
+				readBits(16);
+				int maxBlockSize = (int) readBits(16);
+				readBits(48);
+				sampleRate = (int) readBits(20);
+				channels = (int) readBits(3) + 1;
+				bitsPerSample = (int) readBits(5) + 1;
+				totalSamples = readBits(36);
+				skip(length - 18);
+				if (sampleRate <= 0 || bitsPerSample > MAX_BITS_PER_SAMPLE)
+					throw new IOException("Unsupported FLAC stream: " + sampleRate + " Hz, " + bitsPerSample + " bits");
+				/* 0 means the maximum block size is unknown, use the largest block size a frame can have */
+				block = new int[channels][maxBlockSize < 16 ? 65536 : maxBlockSize];
+				streamInfoRead = true;
+			} else {
+				skip(length);
+			}
+		} while (!last);
+		if (!streamInfoRead)
+			throw new IOException("No stream info in FLAC stream");
+	}
+
+	/**
+	 * Read and decode the next frame.
+	 * @return true if a frame was decoded, false at the end of the stream
+	 * @throws IOException if the stream can't be read or the frame can't be decoded
+	 */
+	private boolean readFrame() throws IOException {
+		/* frames start at a byte boundary with the 14 bit sync code 11111111111110 */
+		bitCount -= bitCount % 8;
+		int previous = -1;
+		while (true) {
+			if (bitCount <= 0) {
+				int b = input.read();
+				if (b < 0)
+					return false;
+				bits = b;
+				bitCount = 8;
+			}
+			int b = (int) readBits(8);
+			if (previous == 0xFF && (b & 0xFE) == 0xF8)
+				break;
+			previous = b;
+		}
+		int blockSizeCode = (int) readBits(4);
+		int sampleRateCode = (int) readBits(4);
+		int channelAssignment = (int) readBits(4);
+		int sampleSizeCode = (int) readBits(3);
+		readBits(1);
+		/* frame or sample number, UTF-8 coded */
+		long first = readBits(8);
+		for (int mask = 0x40; (first & 0x80) != 0 && (first & mask) != 0; mask >>= 1)
+			readBits(8);
+		if (blockSizeCode == 0)
+			throw new IOException("Reserved block size in FLAC frame");
+		else if (blockSizeCode == 1)
+			blockSize = 192;
+		else if (blockSizeCode <= 5)
+			blockSize = 576 << (blockSizeCode - 2);
+		else if (blockSizeCode == 6)
+			blockSize = (int) readBits(8) + 1;
+		else if (blockSizeCode == 7)
+			blockSize = (int) readBits(16) + 1;
+		else
+			blockSize = 256 << (blockSizeCode - 8);
+		/* the sample rate of the stream info is used, but the header may be followed by the sample rate */
+		if (sampleRateCode == 12)
+			readBits(8);
+		else if (sampleRateCode == 13 || sampleRateCode == 14)
+			readBits(16);
+		else if (sampleRateCode == 15)
+			throw new IOException("Invalid sample rate in FLAC frame");
+		/* CRC-8 of the header */
+		readBits(8);
+		int frameBits = sampleSize(sampleSizeCode);
+		int frameChannels = channelAssignment < LEFT_SIDE ? channelAssignment + 1 : 2;
+		if (channelAssignment > MID_SIDE || frameChannels != channels || blockSize > block[0].length)
+			throw new IOException("Unsupported FLAC frame: " + frameChannels + " channels, " + blockSize + " samples");
+		for (int channel = 0; channel < channels; ++channel) {
+			boolean side = (channelAssignment == LEFT_SIDE && channel == 1) || (channelAssignment == RIGHT_SIDE && channel == 0) || (channelAssignment == MID_SIDE && channel == 1);
+			readSubframe(block[channel], side ? frameBits + 1 : frameBits);
+		}
+		decorrelate(channelAssignment);
+		/* frames are padded to a byte boundary and end with a CRC-16 */
+		bitCount -= bitCount % 8;
+		readBits(16);
+		blockPosition = 0;
+		scale = 1.0f / ((1 << (frameBits - 1)) * (float) channels);
+		return true;
+	}
+
+	/**
+	 * Get the bits per sample of a frame from its sample size code.
+	 * @param sampleSizeCode the sample size code in the frame header
+	 * @return bits per sample
+	 * @throws IOException if the sample size is reserved or higher than we decode
+	 */
+	private int sampleSize(int sampleSizeCode) throws IOException {
+		switch (sampleSizeCode) {
+			case 0:
+				return bitsPerSample;
+
+			case 1:
+				return 8;
+
+			case 2:
+				return 12;
+
+			case 4:
+				return 16;
+
+			case 5:
+				return 20;
+
+			case 6:
+				return 24;
+
+			default:
+				throw new IOException("Unsupported sample size in FLAC frame: " + sampleSizeCode);
+		}
+	}
+
+	/**
+	 * Read and decode a subframe.
+	 * @param samples array to store the decoded samples in
+	 * @param sampleBits bits per sample in the subframe
+	 * @throws IOException if the stream can't be read or the subframe can't be decoded
+	 */
+	private void readSubframe(int[] samples, int sampleBits) throws IOException {
+		if (readBits(1) != 0)
+			throw new IOException("Invalid FLAC subframe header");
+		int type = (int) readBits(6);
+		int wasted = 0;
+		if (readBits(1) != 0)
+			wasted = readUnary() + 1;
+		sampleBits -= wasted;
+		if (sampleBits <= 0)
+			throw new IOException("Invalid wasted bits in FLAC subframe: " + wasted);
+		if (type == 0) {
+			int value = readSigned(sampleBits);
+			for (int a = 0; a < blockSize; ++a)
+				samples[a] = value;
+		} else if (type == 1) {
+			for (int a = 0; a < blockSize; ++a)
+				samples[a] = readSigned(sampleBits);
+		} else if (type >= 8 && type <= 12) {
+			int order = type - 8;
+			readWarmup(samples, order, sampleBits);
+			readResidual(samples, order);
+			predictFixed(samples, order);
+		} else if (type >= 32) {
+			int order = type - 31;
+			readWarmup(samples, order, sampleBits);
+			int precision = (int) readBits(4) + 1;
+			if (precision > 15)
+				throw new IOException("Invalid coefficient precision in FLAC subframe");
+			int shift = readSigned(5);
+			if (shift < 0)
+				throw new IOException("Negative LPC shift in FLAC subframe");
+			int[] coefficients = new int[order];
+			for (int a = 0; a < order; ++a)
+				coefficients[a] = readSigned(precision);
+			readResidual(samples, order);
+			predictLpc(samples, order, coefficients, shift);
+		} else {
+			throw new IOException("Reserved FLAC subframe type: " + type);
+		}
+		if (wasted > 0) {
+			for (int a = 0; a < blockSize; ++a)
+				samples[a] <<= wasted;
+		}
+	}
+
+	/**
+	 * Read the unencoded samples a predictor starts with.
+	 * @param samples array to store the samples in
+	 * @param order amount of samples
+	 * @param sampleBits bits per sample
+	 * @throws IOException if the stream can't be read or the block is too small for the predictor
+	 */
+	private void readWarmup(int[] samples, int order, int sampleBits) throws IOException {
+		if (order > blockSize)
+			throw new IOException("FLAC predictor order " + order + " larger than block size " + blockSize);
+		for (int a = 0; a < order; ++a)
+			samples[a] = readSigned(sampleBits);
+	}
+
+	/**
+	 * Read the Rice coded residual following the warmup samples.
+	 * @param samples array to store the residual in, after the warmup samples
+	 * @param order amount of warmup samples
+	 * @throws IOException if the stream can't be read or the residual can't be decoded
+	 */
+	private void readResidual(int[] samples, int order) throws IOException {
+		int method = (int) readBits(2);
+		if (method > 1)
+			throw new IOException("Reserved FLAC residual coding method: " + method);
+		int parameterBits = method == 0 ? 4 : 5;
+		int escape = (1 << parameterBits) - 1;
+		int partitionOrder = (int) readBits(4);
+		int partitionSize = blockSize >> partitionOrder;
+		if (partitionSize << partitionOrder != blockSize || partitionSize < order)
+			throw new IOException("Invalid FLAC partition order: " + partitionOrder);
+		int position = order;
+		for (int partition = 0; partition < 1 << partitionOrder; ++partition) {
+			int end = (partition + 1) * partitionSize;
+			int parameter = (int) readBits(parameterBits);
+			if (parameter == escape) {
+				int rawBits = (int) readBits(5);
+				for (; position < end; ++position)
+					samples[position] = rawBits == 0 ? 0 : readSigned(rawBits);
+			} else {
+				for (; position < end; ++position) {
+					long value = ((long) readUnary() << parameter) | readBits(parameter);
+					/* zigzag coded, 0, -1, 1, -2, 2, ... */
+					samples[position] = (int) ((value >>> 1) ^ -(value & 1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restore samples from a residual predicted with a fixed polynomial.
+	 * @param samples the warmup samples followed by the residual, replaced with the decoded samples
+	 * @param order order of the polynomial
+	 */
+	private void predictFixed(int[] samples, int order) {
+		for (int a = order; a < blockSize; ++a) {
+			switch (order) {
+				case 1:
+					samples[a] += samples[a - 1];
+					break;
+
+				case 2:
+					samples[a] += 2 * samples[a - 1] - samples[a - 2];
+					break;
+
+				case 3:
+					samples[a] += 3 * samples[a - 1] - 3 * samples[a - 2] + samples[a - 3];
+					break;
+
+				case 4:
+					samples[a] += 4 * samples[a - 1] - 6 * samples[a - 2] + 4 * samples[a - 3] - samples[a - 4];
+					break;
+
+				default:
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Restore samples from a residual predicted with linear prediction.
+	 * @param samples the warmup samples followed by the residual, replaced with the decoded samples
+	 * @param order order of the predictor
+	 * @param coefficients the predictor coefficients, for the previous sample first
+	 * @param shift amount of bits the prediction is shifted right
+	 */
+	private void predictLpc(int[] samples, int order, int[] coefficients, int shift) {
+		for (int a = order; a < blockSize; ++a) {
+			long prediction = 0;
+			for (int c = 0; c < order; ++c)
+				prediction += (long) coefficients[c] * samples[a - 1 - c];
+			samples[a] += (int) (prediction >> shift);
+		}
+	}
+
+	/**
+	 * Turn the channels of a stereo frame into left and right.
+	 * @param channelAssignment the channel assignment of the frame
+	 */
+	private void decorrelate(int channelAssignment) {
+		int[] left = block[0];
+		int[] right = channels > 1 ? block[1] : null;
+		for (int a = 0; a < blockSize; ++a) {
+			if (channelAssignment == LEFT_SIDE) {
+				right[a] = left[a] - right[a];
+			} else if (channelAssignment == RIGHT_SIDE) {
+				left[a] += right[a];
+			} else if (channelAssignment == MID_SIDE) {
+				int side = right[a];
+				int mid = (left[a] << 1) | (side & 1);
+				left[a] = (mid + side) >> 1;
+				right[a] = (mid - side) >> 1;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read an unsigned value.
+	 * @param count amount of bits, up to 48
+	 * @return the value
+	 * @throws IOException if the stream can't be read
+	 */
+	private long readBits(int count) throws IOException {
+		if (count > 48) {
+			/* split so the bit buffer doesn't overflow */
+			long high = readBits(count - 32);
+			return (high << 32) | readBits(32);
+		}
+		while (bitCount < count) {
+			int b = input.read();
+			if (b < 0)
+				throw new EOFException("Unexpected end of FLAC stream");
+			bits = (bits << 8) | b;
+			bitCount += 8;
+		}
+		bitCount -= count;
+		return (bits >>> bitCount) & ((1L << count) - 1);
+	}
+
+	/**
+	 * Read a two's complement signed value.
+	 * @param count amount of bits, up to 32
+	 * @return the value
+	 * @throws IOException if the stream can't be read
+	 */
+	private int readSigned(int count) throws IOException {
+		long value = readBits(count);
+		return (int) (value << (64 - count) >> (64 - count));
+	}
+
+	/**
+	 * Read a unary coded value: the amount of 0 bits before a 1 bit.
+	 * @return the value
+	 * @throws IOException if the stream can't be read
+	 */
+	private int readUnary() throws IOException {
+		int value = 0;
+		while (readBits(1) == 0)
+			++value;
+		return value;
+	}
+
+	/**
+	 * Skip the given amount of bytes, must be at a byte boundary.
+	 * @param bytes amount of bytes to skip
+	 * @throws IOException if the stream can't be read
+	 */
+	private void skip(long bytes) throws IOException {
+		for (; bytes > 0 && bitCount >= 8; --bytes)
+			bitCount -= 8;
+		while (bytes > 0) {
+			long skipped = input.skip(bytes);
+			if (skipped <= 0) {
+				/* skip() may return 0 without being at the end of the stream, so read a byte to check */
+				if (input.read() < 0)
+					throw new EOFException("Unexpected end of FLAC stream");
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.exent.riker.util.Logger;
+
+/**
+ * A local stand-in for a fingerprint lookup service.
+ * It only knows the audio that has been submitted to it, which makes it useful for recognizing files we've matched before.
+ * Submitted fingerprints are appended to a file and read back when the lookup is created.
+ */
+public class LocalFingerprintLookup implements FingerprintLookup {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(LocalFingerprintLookup.class);
+	/**
+	 * Fingerprints must be at least this similar to be considered the same audio.
+	 */
+	private static final double SAME_AUDIO = 0.8;
+	/**
+	 * How many seconds the duration of the same audio may differ.
+	 */
+	private static final int DURATION_TOLERANCE = 2;
+	/**
+	 * File submitted fingerprints are stored in, null if they're only kept in memory.
+	 */
+	private File file;
+	/**
+	 * Known fingerprints, keyed by duration in seconds.
+	 */
+	private Map<Integer, List<Entry>> entries = new HashMap<Integer, List<Entry>>();
+
+	/**
+	 * Default constructor, reads previously submitted fingerprints from file.
+	 * @param file the file to store fingerprints in, or null to only keep them in memory
+	 */
+	public LocalFingerprintLookup(File file) {
+		this.file = file;
+		if (file != null && file.isFile())
+			load();
+	}
+
+	@Override
+	public synchronized String lookup(Fingerprint fingerprint) {
+		Entry best = null;
+		double bestScore = SAME_AUDIO;
+		int seconds = fingerprint.duration() / 1000;
+		for (int second = seconds - DURATION_TOLERANCE; second <= seconds + DURATION_TOLERANCE; ++second) {
+			List<Entry> bucket = entries.get(second);
+			if (bucket == null)
+				continue;
+			for (Entry entry : bucket) {
+				double score = entry.fingerprint.similarity(fingerprint);
+				if (score >= bestScore) {
+					best = entry;
+					bestScore = score;
+				}
+			}
+		}
+		return best == null ? null : best.releaseMbid;
+	}
+
+	@Override
+	public synchronized void submit(Fingerprint fingerprint, String releaseMbid) {
+		if (releaseMbid.equals(lookup(fingerprint)))
+			return;
+		add(new Entry(fingerprint, releaseMbid));
+		if (file == null)
+			return;
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			out.writeUTF(releaseMbid);
+			fingerprint.write(out);
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to store fingerprint in file: ", file);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add an entry to the map of known fingerprints.
+	 * @param entry the entry to add
+	 */
+	private void add(Entry entry) {
+		int seconds = entry.fingerprint.duration() / 1000;
+		List<Entry> bucket = entries.get(seconds);
+		if (bucket == null) {
+			bucket = new ArrayList<Entry>();
+			entries.put(seconds, bucket);
+		}
+		bucket.add(entry);
+	}
+
+	/**
+	 * Read submitted fingerprints from file.
+	 */
+	private void load() {
+		DataInputStream in = null;
+		int count = 0;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			while (true) {
+				String releaseMbid = in.readUTF();
+				add(new Entry(Fingerprint.read(in), releaseMbid));
+				++count;
+			}
+		} catch (EOFException e) {
+			LOG.info("Read ", count, " fingerprints from file: ", file);
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to read fingerprints from file, only read ", count, " fingerprints: ", file);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A fingerprint and the release it comes from.
+	 */
+	private static final class Entry {
+
+		/**
+		 * Fingerprint of the audio.
+		 */
+		private Fingerprint fingerprint;
+		/**
+		 * MBID of the release.
+		 */
+		private String releaseMbid;
+
+		/**
+		 * Default constructor.
+		 * @param fingerprint fingerprint of the audio
+		 * @param releaseMbid MBID of the release
+		 */
+		private Entry(Fingerprint fingerprint, String releaseMbid) {
+			this.fingerprint = fingerprint;
+			this.releaseMbid = releaseMbid;
+		}
+	}
+}
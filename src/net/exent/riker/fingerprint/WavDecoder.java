@@ -0,0 +1,259 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.fingerprint;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder for uncompressed PCM audio in a RIFF/WAVE container.
+ * Samples are read in blocks and mixed down to mono, so memory usage doesn't depend on the length of the audio.
+ */
+public class WavDecoder implements AudioDecoder {
+
+	/**
+	 * Maximum amount of sample frames decoded per read.
+	 */
+	private static final int BUFFER_FRAMES = 4096;
+	/**
+	 * PCM format tag.
+	 */
+	private static final int FORMAT_PCM = 1;
+	/**
+	 * Extensible format tag, the real format tag is then found in the extension.
+	 */
+	private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+	/**
+	 * The stream we're decoding.
+	 */
+	private InputStream input;
+	/**
+	 * Amount of channels.
+	 */
+	private int channels;
+	/**
+	 * Sample rate in Hz.
+	 */
+	private int sampleRate;
+	/**
+	 * Bits per sample.
+	 */
+	private int bitsPerSample;
+	/**
+	 * Bytes per sample frame (one sample for each channel).
+	 */
+	private int blockAlign;
+	/**
+	 * Size of the audio data in bytes.
+	 */
+	private long dataSize;
+	/**
+	 * Bytes of audio data left to read.
+	 */
+	private long remaining;
+	/**
+	 * Buffer for raw sample data.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Default constructor, reads the header of the stream.
+	 * @param input the stream to decode, should be buffered
+	 * @throws IOException if the stream can't be read or isn't uncompressed PCM audio
+	 */
+	public WavDecoder(InputStream input) throws IOException {
+		this.input = input;
+		readHeader();
+	}
+
+	@Override
+	public int sampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public int channels() {
+		return channels;
+	}
+
+	@Override
+	public int duration() {
+		return (int) (dataSize / blockAlign * 1000 / sampleRate);
+	}
+
+	@Override
+	public int read(float[] samples) throws IOException {
+		int frames = (int) Math.min(Math.min(samples.length, BUFFER_FRAMES), remaining / blockAlign);
+		if (frames <= 0)
+			return -1;
+		int bytes = fill(buffer, frames * blockAlign);
+		remaining -= bytes;
+		frames = bytes / blockAlign;
+		if (frames <= 0) {
+			remaining = 0;
+			return -1;
+		}
+		int bytesPerSample = bitsPerSample / 8;
+		int offset = 0;
+		for (int frame = 0; frame < frames; ++frame) {
+			float sum = 0.0f;
+			for (int channel = 0; channel < channels; ++channel) {
+				sum += sample(offset);
+				offset += bytesPerSample;
+			}
+			samples[frame] = sum / channels;
+		}
+		return frames;
+	}
+
+	/**
+	 * Read the RIFF header and skip to the audio data.
+	 * @throws IOException if the stream can't be read or isn't uncompressed PCM audio
+	 */
+	private void readHeader() throws IOException {
+		byte[] header = new byte[12];
+		if (fill(header, header.length) < header.length || !"RIFF".equals(ascii(header, 0)) || !"WAVE".equals(ascii(header, 8)))
+			throw new IOException("Not a RIFF/WAVE stream");
+		boolean formatRead = false;
+		byte[] chunk = new byte[8];
+		while (true) {
+			if (fill(chunk, chunk.length) < chunk.length)
+				throw new IOException("No audio data in RIFF/WAVE stream");
+			String id = ascii(chunk, 0);
+			long size = littleEndian(chunk, 4, 4) & 0xFFFFFFFFL;
+			if ("fmt ".equals(id)) {
+				if (size < 16 || size > 1024)
+					throw new IOException("Invalid format chunk in RIFF/WAVE stream");
+				byte[] format = new byte[(int) size];
+				if (fill(format, format.length) < format.length)
+					throw new IOException("Truncated format chunk in RIFF/WAVE stream");
+				int formatTag = littleEndian(format, 0, 2);
+				if (formatTag == FORMAT_EXTENSIBLE && size >= 26)
+					formatTag = littleEndian(format, 24, 2);
+				if (formatTag != FORMAT_PCM)
+					throw new IOException("Unsupported RIFF/WAVE format: " + formatTag);
+				channels = littleEndian(format, 2, 2);
+				sampleRate = littleEndian(format, 4, 4);
+				blockAlign = littleEndian(format, 12, 2);
+				bitsPerSample = littleEndian(format, 14, 2);
+				if (channels <= 0 || sampleRate <= 0 || bitsPerSample % 8 != 0 || bitsPerSample < 8 || bitsPerSample > 32 || blockAlign != channels * bitsPerSample / 8)
+					throw new IOException("Unsupported PCM layout: " + channels + " channels, " + bitsPerSample + " bits");
+				skip(size & 1);
+				formatRead = true;
+			} else if ("data".equals(id)) {
+				if (!formatRead)
+					throw new IOException("Audio data before format chunk in RIFF/WAVE stream");
+				dataSize = size;
+				remaining = size;
+				buffer = new byte[BUFFER_FRAMES * blockAlign];
+				return;
+			} else {
+				/* chunks are padded to an even size */
+				skip(size + (size & 1));
+			}
+		}
+	}
+
+	/**
+	 * Convert the sample at the given offset in the buffer to a float.
+	 * @param offset offset of sample in buffer
+	 * @return the sample, from -1.0 to 1.0
+	 */
+	private float sample(int offset) {
+		switch (bitsPerSample) {
+			case 8:
+				/* 8 bit samples are unsigned */
+				return ((buffer[offset] & 0xFF) - 128) / 128.0f;
+
+			case 16:
+				return (short) littleEndian(buffer, offset, 2) / 32768.0f;
+
+			case 24:
+				return (littleEndian(buffer, offset, 3) << 8 >> 8) / 8388608.0f;
+
+			default:
+				return littleEndian(buffer, offset, 4) / 2147483648.0f;
+		}
+	}
+
+	/**
+	 * Read until the given amount of bytes is read or the stream ends.
+	 * @param data array to read into
+	 * @param length amount of bytes to read
+	 * @return amount of bytes read
+	 * @throws IOException if the stream can't be read
+	 */
+	private int fill(byte[] data, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int count = input.read(data, read, length - read);
+			if (count < 0)
+				break;
+			read += count;
+		}
+		return read;
+	}
+
+	/**
+	 * Skip the given amount of bytes in the stream.
+	 * @param bytes amount of bytes to skip
+	 * @throws IOException if the stream can't be read
+	 */
+	private void skip(long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = input.skip(bytes);
+			if (skipped <= 0) {
+				/* skip() may return 0 without being at the end of the stream, so read a byte to check */
+				if (input.read() < 0)
+					throw new IOException("Unexpected end of RIFF/WAVE stream");
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	/**
+	 * Read a little endian value from an array.
+	 * @param data the array
+	 * @param offset offset of the value
+	 * @param length length of the value in bytes, up to 4
+	 * @return the value
+	 */
+	private static int littleEndian(byte[] data, int offset, int length) {
+		int value = 0;
+		for (int a = length - 1; a >= 0; --a)
+			value = (value << 8) | (data[offset + a] & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Read a 4 character ASCII identifier from an array.
+	 * @param data the array
+	 * @param offset offset of the identifier
+	 * @return the identifier
+	 */
+	private static String ascii(byte[] data, int offset) {
+		return new String(new char[] {(char) data[offset], (char) data[offset + 1], (char) data[offset + 2], (char) data[offset + 3]});
+	}
+}
@@ -54,6 +54,10 @@ public class Album {
 	 * List of tracks found on album.
 	 */
 	private List<Track> tracks;
+	/**
+	 * The tracks sorted by duration, created when first needed.
+	 */
+	private DurationIndex durationIndex;
 
 	/**
 	 * Full constructor.
@@ -139,6 +143,17 @@ public class Album {
 		return tracks;
 	}
 
+	/**
+	 * Get the tracks sorted by duration, creating the index if it's not created.
+	 * Cached albums keep their index, so it's only created once for each album.
+	 * @return the tracks sorted by duration
+	 */
+	public synchronized DurationIndex durationIndex() {
+		if (durationIndex == null)
+			durationIndex = new DurationIndex(tracks);
+		return durationIndex;
+	}
+
 	@Override
 	public String toString() {
 		return (artist == null ? "<Unknown>" : artist.name()) + " - " + title + " (" + (tracks == null ? "0" : tracks.size()) + " tracks, released: " + released + ", MBID: " + mbid + ")";
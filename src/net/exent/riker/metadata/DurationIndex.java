@@ -0,0 +1,135 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metadata;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tracks of an album sorted by duration, for finding the tracks close enough in duration to a file to be worth comparing with it.
+ * Tracks with unknown duration are kept aside and are always worth comparing.
+ * The index is immutable and can be used by several threads.
+ */
+public final class DurationIndex {
+
+	/**
+	 * Known durations of the tracks in milliseconds, shortest first.
+	 */
+	private final int[] durations;
+	/**
+	 * Index of the track in the track list for each duration.
+	 */
+	private final int[] order;
+	/**
+	 * Index of the tracks with unknown duration.
+	 */
+	private final int[] unknown;
+	/**
+	 * Amount of tracks.
+	 */
+	private final int size;
+
+	/**
+	 * Default constructor, sorts the tracks by duration.
+	 * @param tracks the tracks
+	 */
+	public DurationIndex(List<Track> tracks) {
+		size = tracks.size();
+		int unknownCount = 0;
+		for (Track track : tracks) {
+			if (track.duration() <= 0)
+				++unknownCount;
+		}
+		/* sort duration and index packed in a long, so sorting needs no objects */
+		long[] packed = new long[size - unknownCount];
+		unknown = new int[unknownCount];
+		int known = 0;
+		unknownCount = 0;
+		for (int track = 0; track < size; ++track) {
+			int duration = tracks.get(track).duration();
+			if (duration <= 0)
+				unknown[unknownCount++] = track;
+			else
+				packed[known++] = ((long) duration << 32) | track;
+		}
+		Arrays.sort(packed);
+		durations = new int[known];
+		order = new int[known];
+		for (int position = 0; position < known; ++position) {
+			durations[position] = (int) (packed[position] >>> 32);
+			order[position] = (int) packed[position];
+		}
+	}
+
+	/**
+	 * Get the amount of tracks in the index.
+	 * @return the amount of tracks
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Mark the tracks worth comparing with a file: tracks within the window of the duration of the file and tracks with unknown duration.
+	 * Every track is worth comparing with a file of unknown duration.
+	 * Other tracks are not marked, the caller must clear the marks first.
+	 * @param duration duration of the file in milliseconds, 0 or less if unknown
+	 * @param window largest difference in milliseconds between the duration of the file and a track worth comparing
+	 * @param marks the marks, indexed by offset + track
+	 * @param offset index of the mark of the first track
+	 * @return the amount of tracks marked
+	 */
+	public int mark(int duration, int window, boolean[] marks, int offset) {
+		if (duration <= 0) {
+			Arrays.fill(marks, offset, offset + size, true);
+			return size;
+		}
+		for (int track : unknown)
+			marks[offset + track] = true;
+		int marked = unknown.length;
+		for (int position = first(duration - window); position < durations.length && durations[position] <= duration + window; ++position) {
+			marks[offset + order[position]] = true;
+			++marked;
+		}
+		return marked;
+	}
+
+	/**
+	 * Find the first track with at least the given duration.
+	 * @param duration the duration
+	 * @return position of the first track with at least the given duration, or the amount of tracks with known duration if there is none
+	 */
+	private int first(int duration) {
+		int low = 0;
+		int high = durations.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (durations[middle] < duration)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+}
@@ -35,9 +35,9 @@ public class Group {
 	 */
 	private String name;
 	/**
-	 * List of files in group.
+	 * Files in group.
 	 */
-	private List<Metafile> files = new ArrayList<Metafile>();
+	private MetafileSet files = new MetafileSet();
 	/**
 	 * TODO: List of albums loaded for this group, but wasn't used (ie. potentially matching albums).
 	 */
@@ -72,8 +72,7 @@ public class Group {
 	 * @param file file to be added to group
 	 */
 	public void addFile(Metafile file) {
-		if (!files.contains(file))
-			files.add(file);
+		files.add(file);
 	}
 
 	/**
@@ -85,11 +84,54 @@ public class Group {
 	}
 
 	/**
-	 * Get the files in the group.
+	 * Check whether a file is in the group.
+	 * @param file the file to look for
+	 * @return true if file is in the group, false if not
+	 */
+	public boolean containsFile(Metafile file) {
+		return files.contains(file);
+	}
+
+	/**
+	 * Get a snapshot of the files in the group.
+	 * The snapshot is safe to iterate while files are added to the group.
 	 * @return the files in the group
 	 */
 	public List<Metafile> files() {
-		return files;
+		return files.snapshot();
+	}
+
+	/**
+	 * Get the amount of files in the group.
+	 * @return the amount of files in the group
+	 */
+	public int fileCount() {
+		return files.size();
+	}
+
+	/**
+	 * Get the amount of files in the group that are matched with a track.
+	 * @return the amount of matched files in the group
+	 */
+	public int matchedCount() {
+		return files.matched();
+	}
+
+	/**
+	 * Get the amount of files in the group that are not matched with a track.
+	 * @return the amount of unmatched files in the group
+	 */
+	public int unmatchedCount() {
+		return files.unmatched();
+	}
+
+	/**
+	 * Called by Metafile when a file in this group is matched or unmatched.
+	 * @param file the file that was matched or unmatched
+	 * @param matched true if the file now is matched with a track, false if not
+	 */
+	void fileMatchChanged(Metafile file, boolean matched) {
+		files.matchChanged(file, matched);
 	}
 
 	@Override
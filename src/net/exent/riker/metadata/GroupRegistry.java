@@ -0,0 +1,170 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metadata;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread safe registry of groups, keyed by group name.
+ * Several threads may add files at the same time without ever creating the same group twice.
+ * Iterating the groups never blocks and never fails, but may or may not see groups added during the iteration.
+ */
+public class GroupRegistry {
+
+	/**
+	 * Map of all groups.
+	 */
+	private ConcurrentMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+	/**
+	 * Groups that other groups were merged into, keyed by the name of the merged group.
+	 */
+	private ConcurrentMap<String, Group> merged = new ConcurrentHashMap<String, Group>();
+	/**
+	 * Names of groups that don't take more files.
+	 */
+	private Set<String> sealed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Get the group with the given name, the group is created if it doesn't exist.
+	 * @param name the name of the group
+	 * @return the group with the given name
+	 */
+	public Group group(String name) {
+		Group group = groups.get(name);
+		if (group != null)
+			return group;
+		/* files of a merged group are added to the group it was merged into */
+		group = merged.get(name);
+		if (group != null)
+			return group;
+		/* group probably doesn't exist, but another thread may be creating it right now */
+		group = new Group(name);
+		Group existing = groups.putIfAbsent(name, group);
+		return existing == null ? group : existing;
+	}
+
+	/**
+	 * Add a file to the group it belongs to, creating the group if it doesn't exist.
+	 * Files belonging to a sealed group are added to a group named after the group and the directory of the file instead.
+	 * @param file the file to add
+	 * @return the group the file was added to
+	 */
+	public Group addFile(Metafile file) {
+		String name = file.createGroupName();
+		/* a sealed group may have been released, don't create an empty group with its name */
+		Group group = sealed.contains(name) ? null : group(name);
+		if (group == null || sealed.contains(group.name()))
+			group = group(name + " - " + file.getFile().getParent());
+		group.addFile(file);
+		file.group(group);
+		return group;
+	}
+
+	/**
+	 * Seal a group, it won't take more files.
+	 * Used when groups are matched while files are loaded, files found later would otherwise join a group that's already matched.
+	 * @param group the group
+	 */
+	public void seal(Group group) {
+		sealed.add(group.name());
+	}
+
+	/**
+	 * Move the files of a group to another group and remove the emptied group.
+	 * Files later added to the removed group are added to the group it was merged into.
+	 * @param group the group to move the files to
+	 * @param mergedGroup the group to remove
+	 */
+	public synchronized void merge(Group group, Group mergedGroup) {
+		for (Metafile file : mergedGroup.files()) {
+			group.addFile(file);
+			file.group(group);
+		}
+		for (Map.Entry<String, Group> entry : merged.entrySet()) {
+			if (entry.getValue() == mergedGroup)
+				entry.setValue(group);
+		}
+		merged.put(mergedGroup.name(), group);
+		groups.remove(mergedGroup.name(), mergedGroup);
+	}
+
+	/**
+	 * Remove a group that's done, along with the names of the groups merged into it.
+	 * The group stays sealed, files later found for it are added to a new group named after the group and the directory of the file.
+	 * @param group the group to remove
+	 */
+	public synchronized void release(Group group) {
+		groups.remove(group.name(), group);
+		merged.values().removeAll(Collections.singleton(group));
+	}
+
+	/**
+	 * Get the group with the given name.
+	 * @param name the name of the group
+	 * @return the group with the given name, or null if there is no such group
+	 */
+	public Group get(String name) {
+		return groups.get(name);
+	}
+
+	/**
+	 * Remove the group with the given name.
+	 * @param name the name of the group
+	 * @return the removed group, or null if there is no such group
+	 */
+	public Group remove(String name) {
+		return groups.remove(name);
+	}
+
+	/**
+	 * Get the amount of groups.
+	 * @return the amount of groups
+	 */
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * Get all groups.
+	 * The returned collection is a weakly consistent view, it's safe to iterate while groups are added.
+	 * @return all groups
+	 */
+	public Collection<Group> groups() {
+		return Collections.unmodifiableCollection(groups.values());
+	}
+
+	/**
+	 * Get all groups keyed by group name.
+	 * The returned map is a weakly consistent view, it's safe to iterate while groups are added.
+	 * @return map of all groups
+	 */
+	public Map<String, Group> asMap() {
+		return Collections.unmodifiableMap(groups);
+	}
+}
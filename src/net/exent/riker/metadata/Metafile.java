@@ -26,15 +26,26 @@ package net.exent.riker.metadata;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import net.exent.riker.util.Levenshtein;
+import java.util.Map;
+import net.exent.riker.util.FastTagReader;
+import net.exent.riker.util.Logger;
+import net.exent.riker.util.Tokenizer;
 import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.audio.AudioHeader;
+import org.jaudiotagger.audio.exceptions.CannotWriteException;
 import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
 
 /**
  * A MetaFile is an AudioFile with some more data.
  */
 public class Metafile extends AudioFile {
 
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(Metafile.class);
 	/**
 	 * The group this metafile belongs to.
 	 */
@@ -51,6 +62,18 @@ public class Metafile extends AudioFile {
 	 * A list of semi-unique strings found in metadata and filename.
 	 */
 	private List<String> stringValues = new ArrayList<String>();
+	/**
+	 * Tag fields read by FastTagReader, null if the file was read by jaudiotagger.
+	 */
+	private Map<FieldKey, String> fields;
+	/**
+	 * Whether the tag was dropped by evict(), it's then read again when needed.
+	 */
+	private boolean evicted;
+	/**
+	 * Splits the metadata and filename in string values.
+	 */
+	private Tokenizer tokenizer = Tokenizer.DEFAULT;
 
 	/**
 	 * Default constructor.
@@ -60,6 +83,18 @@ public class Metafile extends AudioFile {
 		super(audioFile.getFile(), audioFile.getAudioHeader(), audioFile.getTag());
 	}
 
+	/**
+	 * Constructor for files read by FastTagReader.
+	 * The full tag is read by jaudiotagger if a field not in the given map is requested or the file is saved.
+	 * @param file the file
+	 * @param audioHeader the audio header of the file
+	 * @param fields the tag fields FastTagReader read from the file
+	 */
+	public Metafile(File file, AudioHeader audioHeader, Map<FieldKey, String> fields) {
+		super(file, audioHeader, null);
+		this.fields = fields;
+	}
+
 	/**
 	 * Create group name from metadata in file.
 	 * @return group name of file
@@ -81,54 +116,23 @@ public class Metafile extends AudioFile {
 	 * Update the list of string values.
 	 */
 	public void updateStringValues() {
-		stringValues.clear();
-		/* add interesting metadata to list of string values */
-		String tmp = getFirst(FieldKey.ALBUM);
-		if (tmp != null)
-			stringValues.add(tmp);
-		tmp = getFirst(FieldKey.ALBUM_ARTIST);
-		if (tmp != null)
-			stringValues.add(tmp);
-		tmp = getFirst(FieldKey.ARTIST);
-		if (tmp != null)
-			stringValues.add(tmp);
-		tmp = getFirst(FieldKey.TITLE);
-		if (tmp != null)
-			stringValues.add(tmp);
-		tmp = getFirst(FieldKey.TRACK);
-		if (tmp != null)
-			stringValues.add(tmp);
-		/* add interesting strings from last directory name to list of string values unless a similar value already exist in list */
-		int lastSlash = filename().lastIndexOf(File.separatorChar);
-		String directory = filename().substring(filename().lastIndexOf(File.separatorChar, lastSlash - 1) + 1, lastSlash).replace('_', ' ');
-		for (String value : directory.split("-")) {
-			value = value.trim();
-			boolean valueExists = false;
-			for (String listValue : stringValues) {
-				if (Levenshtein.similarity(value, listValue) >= 0.8) {
-					valueExists = true;
-					break;
-				}
-			}
-			if (!valueExists)
-				stringValues.add(value);
-		}
-		/* add interesting strings from base filename to list of string values unless a similar value already exist in list */
-		String basename = filename().substring(lastSlash + 1, filename().lastIndexOf(".")).replace('_', ' ');
-		for (String valueTmp : basename.split("-")) {
-			for (String value : valueTmp.split("\\.")) {
-				value = value.trim();
-				boolean valueExists = false;
-				for (String listValue : stringValues) {
-					if (Levenshtein.similarity(value, listValue) >= 0.8) {
-						valueExists = true;
-						break;
-					}
-				}
-				if (!valueExists)
-					stringValues.add(value);
-			}
+		/* add interesting metadata to list of string values, the directory name and filename are added by the tokenizer */
+		List<String> tags = new ArrayList<String>();
+		for (FieldKey key : new FieldKey[] {FieldKey.ALBUM, FieldKey.ALBUM_ARTIST, FieldKey.ARTIST, FieldKey.TITLE, FieldKey.TRACK}) {
+			String tmp = getFirst(key);
+			if (tmp != null)
+				tags.add(tmp);
 		}
+		stringValues = tokenizer.stringValues(tags, filename());
+	}
+
+	/**
+	 * Set the tokenizer splitting the metadata and filename in string values, the string values are created again when needed.
+	 * @param tokenizer the tokenizer
+	 */
+	public synchronized void tokenizer(Tokenizer tokenizer) {
+		this.tokenizer = tokenizer;
+		stringValues = new ArrayList<String>();
 	}
 
 	/**
@@ -179,8 +183,12 @@ public class Metafile extends AudioFile {
 	 * @param matchScore how well the metafile matched the track
 	 */
 	public void track(Track track, double matchScore) {
+		boolean wasMatched = this.track != null;
 		this.track = track;
 		this.matchScore = matchScore;
+		/* keep the matched/unmatched counters in group up to date */
+		if (group != null && wasMatched != (track != null))
+			group.fileMatchChanged(this, track != null);
 	}
 
 	/**
@@ -191,6 +199,49 @@ public class Metafile extends AudioFile {
 		return getFile().getAbsolutePath();
 	}
 
+	/**
+	 * Get the tag of the file.
+	 * If the file was read by FastTagReader then the full tag is read by jaudiotagger the first time this method is called.
+	 * @return the tag of the file
+	 */
+	@Override
+	public synchronized Tag getTag() {
+		if (tag == null && (fields != null || evicted)) {
+			try {
+				LOG.info("Reading full tag of file: ", filename());
+				tag = AudioFileIO.read(getFile()).getTag();
+			} catch (Exception e) {
+				LOG.warning(e, "Unable to read tag of file: ", filename());
+			}
+			/* don't try again */
+			fields = null;
+			evicted = false;
+		}
+		return tag;
+	}
+
+	/**
+	 * Drop the tag and the string values to free memory, they're read again if they're needed later.
+	 * Used for files that are done matching, the group, track and match score of the file are kept.
+	 */
+	public synchronized void evict() {
+		if (tag != null) {
+			tag = null;
+			evicted = true;
+		}
+		stringValues = new ArrayList<String>();
+	}
+
+	/**
+	 * Write the tag to the file, reading the full tag first if the file was read by FastTagReader.
+	 * @throws CannotWriteException if the file couldn't be written
+	 */
+	@Override
+	public void commit() throws CannotWriteException {
+		getTag();
+		super.commit();
+	}
+
 	@Override
 	public String toString() {
 		return (track != null ? "(" + (int) (matchScore * 100.0) +"%) " : "") + filename();
@@ -200,16 +251,41 @@ public class Metafile extends AudioFile {
 	 * Get first value for given field.
 	 * This is a wrapper for getFirst() in Tag as that seems to return "" when field is not set, instead of null.
 	 * Method will also trim() the string to remove leading and trailing whitespaces.
+	 * Track numbers like "03" and "3/12" are reduced to "3", so the value is the same whether the file was read by FastTagReader or jaudiotagger.
 	 * @param key the field to get value from
 	 * @return the value of the given field
 	 */
 	public String getFirst(FieldKey key) {
-		String value = getTag().getFirst(key);
+		String value;
+		Map<FieldKey, String> fastFields = fields;
+		if (fastFields != null && FastTagReader.FIELDS.contains(key)) {
+			value = fastFields.get(key);
+		} else {
+			Tag fullTag = getTag();
+			value = fullTag == null ? null : fullTag.getFirst(key);
+		}
 		if (value == null)
 			return value;
 		value = value.trim();
 		if ("".equals(value))
 			return null;
+		if (key == FieldKey.TRACK)
+			return tracknumber(value);
 		return value;
 	}
+
+	/**
+	 * Reduce a track number to the number itself, without leading zeros or the total amount of tracks.
+	 * @param value the track number as it is in the tag
+	 * @return the track number, or the value as it is if it isn't a number
+	 */
+	private static String tracknumber(String value) {
+		int slash = value.indexOf('/');
+		String number = slash >= 0 ? value.substring(0, slash).trim() : value;
+		try {
+			return Integer.toString(Integer.parseInt(number));
+		} catch (NumberFormatException e) {
+			return value;
+		}
+	}
 }
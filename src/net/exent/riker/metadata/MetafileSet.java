@@ -0,0 +1,170 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An insertion ordered set of metafiles with constant time lookup and removal.
+ * The set also keeps count of how many of its files are matched with a track.
+ * Iterate the set through snapshot(), that way the files can be iterated while other threads still add files to the set.
+ */
+public class MetafileSet {
+
+	/**
+	 * The files in the set, in the order they were added.
+	 */
+	private Set<Metafile> files = new LinkedHashSet<Metafile>();
+	/**
+	 * Snapshot of the files in the set, null if the set was modified since the last snapshot was taken.
+	 */
+	private List<Metafile> snapshot;
+	/**
+	 * Amount of files in the set that are matched with a track.
+	 */
+	private int matched;
+
+	/**
+	 * Add a file to the set, if file already is in the set then nothing happens.
+	 * @param file file to be added to the set
+	 * @return true if the file was added, false if it already was in the set
+	 */
+	public synchronized boolean add(Metafile file) {
+		if (!files.add(file))
+			return false;
+		if (file.track() != null)
+			++matched;
+		snapshot = null;
+		return true;
+	}
+
+	/**
+	 * Add several files to the set, files already in the set are ignored.
+	 * @param files files to be added to the set
+	 */
+	public synchronized void addAll(Collection<Metafile> files) {
+		for (Metafile file : files)
+			add(file);
+	}
+
+	/**
+	 * Remove a file from the set, if file isn't in the set then nothing happens.
+	 * @param file file to be removed from the set
+	 * @return true if the file was removed, false if it wasn't in the set
+	 */
+	public synchronized boolean remove(Metafile file) {
+		if (!files.remove(file))
+			return false;
+		if (file.track() != null)
+			--matched;
+		snapshot = null;
+		return true;
+	}
+
+	/**
+	 * Remove and return the file that was added to the set first.
+	 * @return the first file in the set, or null if the set is empty
+	 */
+	public synchronized Metafile poll() {
+		Iterator<Metafile> iterator = files.iterator();
+		if (!iterator.hasNext())
+			return null;
+		Metafile file = iterator.next();
+		remove(file);
+		return file;
+	}
+
+	/**
+	 * Check whether the given file is in the set.
+	 * @param file the file to look for
+	 * @return true if the file is in the set, false if not
+	 */
+	public synchronized boolean contains(Metafile file) {
+		return files.contains(file);
+	}
+
+	/**
+	 * Get the amount of files in the set.
+	 * @return the amount of files in the set
+	 */
+	public synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * Get whether the set is empty.
+	 * @return true if the set contains no files, false if not
+	 */
+	public synchronized boolean isEmpty() {
+		return files.isEmpty();
+	}
+
+	/**
+	 * Get the amount of files in the set that are matched with a track.
+	 * @return the amount of matched files
+	 */
+	public synchronized int matched() {
+		return matched;
+	}
+
+	/**
+	 * Get the amount of files in the set that are not matched with a track.
+	 * @return the amount of unmatched files
+	 */
+	public synchronized int unmatched() {
+		return files.size() - matched;
+	}
+
+	/**
+	 * Get a snapshot of the files in the set, in the order they were added.
+	 * The snapshot is not affected by later changes to the set, and it's reused until the set is modified.
+	 * @return an unmodifiable snapshot of the files in the set
+	 */
+	public synchronized List<Metafile> snapshot() {
+		if (snapshot == null)
+			snapshot = Collections.unmodifiableList(new ArrayList<Metafile>(files));
+		return snapshot;
+	}
+
+	/**
+	 * Update the matched counter when a file in the set is matched or unmatched.
+	 * This method got default access modifier (package modifier) as only Metafile should call this method (through Group).
+	 * @param file the file that was matched or unmatched
+	 * @param fileMatched true if the file now is matched with a track, false if not
+	 */
+	synchronized void matchChanged(Metafile file, boolean fileMatched) {
+		if (!files.contains(file))
+			return;
+		if (fileMatched)
+			++matched;
+		else
+			--matched;
+	}
+}
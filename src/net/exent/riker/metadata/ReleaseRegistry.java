@@ -0,0 +1,167 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metadata;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * A thread safe registry of the releases groups resolved to.
+ * Files from one album end up in several groups when they differ in format, sample rate or channels,
+ * or when only some of them are tagged with a release MBID, and each of those groups would search for the same release.
+ * Groups with files sharing a release key (release MBID, artist and album, or directory) with files in a group that's already matched
+ * can try the release that group resolved to before searching, and groups resolving to the same release with other tracks can be merged.
+ */
+public class ReleaseRegistry {
+
+	/**
+	 * Maximum amount of releases suggested for a group.
+	 */
+	private static final int MAX_RELEASES = 3;
+	/**
+	 * MBIDs of the releases groups resolved to keyed by release key, most recently resolved first.
+	 */
+	private Map<String, LinkedList<String>> releases = new HashMap<String, LinkedList<String>>();
+	/**
+	 * Groups resolved to each release, keyed by MBID of the release.
+	 */
+	private Map<String, List<Group>> resolvedGroups = new HashMap<String, List<Group>>();
+
+	/**
+	 * Get the releases that groups with files from the same album as the files in the given group resolved to.
+	 * @param group the group
+	 * @return MBIDs of the releases, most likely first
+	 */
+	public synchronized List<String> releases(Group group) {
+		List<String> mbids = new ArrayList<String>();
+		for (String key : releaseKeys(group)) {
+			List<String> keyReleases = releases.get(key);
+			if (keyReleases == null)
+				continue;
+			for (String mbid : keyReleases) {
+				if (mbids.size() >= MAX_RELEASES)
+					return mbids;
+				if (!mbids.contains(mbid))
+					mbids.add(mbid);
+			}
+		}
+		return mbids;
+	}
+
+	/**
+	 * Register the release a group resolved to.
+	 * @param group the group
+	 * @param album the release the files in the group were matched with
+	 * @return an earlier group resolved to the same release with none of the same tracks, or null if there is no such group
+	 */
+	public synchronized Group resolved(Group group, Album album) {
+		for (String key : releaseKeys(group)) {
+			LinkedList<String> keyReleases = releases.get(key);
+			if (keyReleases == null) {
+				keyReleases = new LinkedList<String>();
+				releases.put(key, keyReleases);
+			}
+			keyReleases.remove(album.mbid());
+			keyReleases.addFirst(album.mbid());
+		}
+		List<Group> groups = resolvedGroups.get(album.mbid());
+		if (groups == null) {
+			groups = new ArrayList<Group>();
+			resolvedGroups.put(album.mbid(), groups);
+		}
+		Group other = null;
+		Set<String> tracks = tracks(group);
+		for (Group earlier : groups) {
+			if (earlier == group)
+				continue;
+			Set<String> earlierTracks = tracks(earlier);
+			earlierTracks.retainAll(tracks);
+			if (earlierTracks.isEmpty()) {
+				other = earlier;
+				break;
+			}
+		}
+		if (!groups.contains(group))
+			groups.add(group);
+		return other;
+	}
+
+	/**
+	 * Forget a group that was merged into another group or released, the releases it resolved to are still suggested to other groups.
+	 * @param group the group to forget
+	 */
+	public synchronized void forget(Group group) {
+		for (Iterator<List<Group>> iterator = resolvedGroups.values().iterator(); iterator.hasNext();) {
+			List<Group> groups = iterator.next();
+			groups.remove(group);
+			if (groups.isEmpty())
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * Get the MBIDs of the tracks the files in a group are matched with.
+	 * @param group the group
+	 * @return MBIDs of the matched tracks
+	 */
+	private static Set<String> tracks(Group group) {
+		Set<String> tracks = new HashSet<String>();
+		for (Metafile file : group.files()) {
+			if (file.track() != null)
+				tracks.add(file.track().mbid());
+		}
+		return tracks;
+	}
+
+	/**
+	 * Get the keys identifying the albums the files in a group come from.
+	 * @param group the group
+	 * @return the release MBIDs, artists and albums, and directories of the files
+	 */
+	private static Set<String> releaseKeys(Group group) {
+		Set<String> keys = new HashSet<String>();
+		for (Metafile file : group.files()) {
+			String mbid = file.getFirst(FieldKey.MUSICBRAINZ_RELEASEID);
+			if (mbid != null)
+				keys.add("mbid\t" + mbid);
+			String album = file.getFirst(FieldKey.ALBUM);
+			if (album != null) {
+				String artist = file.getFirst(FieldKey.ALBUM_ARTIST);
+				keys.add("album\t" + (artist != null ? artist : file.getFirst(FieldKey.ARTIST)) + "\t" + album);
+			}
+			File directory = file.getFile().getParentFile();
+			if (directory != null)
+				keys.add("directory\t" + directory.getAbsolutePath());
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,726 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+import net.exent.riker.metrics.Metrics;
+import net.exent.riker.util.Logger;
+
+/**
+ * Append-only log of group membership, loaded albums and match assignments, so a session can be resumed after the process dies.
+ * Records are buffered in memory and appended to the log file at every checkpoint, each record is framed with its length and a checksum
+ * so a record torn by a crash is detected and everything after it is ignored.
+ * When the log is opened the records are read and the log is rewritten with only the records that still matter.
+ * A group is resumed when it finished matching in an earlier session and none of its files have been added, removed or modified since.
+ */
+public class SessionLog {
+
+	/**
+	 * Record telling which group a file belongs to.
+	 */
+	private static final int FILE = 1;
+	/**
+	 * Album record written without the track numbers, ignored so the groups are matched again.
+	 */
+	private static final int OLD_ALBUM = 2;
+	/**
+	 * Match record written with the track number instead of the track MBID, ignored so the groups are matched again.
+	 */
+	private static final int OLD_MATCH = 3;
+	/**
+	 * Record telling that a group finished matching.
+	 */
+	private static final int FINISHED = 4;
+	/**
+	 * Record with an album and its tracks.
+	 */
+	private static final int ALBUM = 5;
+	/**
+	 * Record telling which track a file matched, or that it didn't match anything.
+	 */
+	private static final int MATCH = 6;
+	/**
+	 * Largest record we'll read, anything larger is a corrupt length.
+	 */
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(SessionLog.class);
+	/**
+	 * The log file.
+	 */
+	private File file;
+	/**
+	 * Stream appending to the log file, null if the log file can't be written.
+	 */
+	private FileOutputStream output;
+	/**
+	 * Records not yet written to the log file.
+	 */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	/**
+	 * Buffer a record is built in.
+	 */
+	private ByteArrayOutputStream record = new ByteArrayOutputStream();
+	/**
+	 * Files in the log, keyed by path.
+	 */
+	private Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+	/**
+	 * Paths of the files in each group, keyed by group name.
+	 */
+	private Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+	/**
+	 * Albums in the log, keyed by MBID.
+	 */
+	private Map<String, Album> albums = new HashMap<String, Album>();
+	/**
+	 * Names of groups that finished matching.
+	 */
+	private Set<String> finished = new HashSet<String>();
+	/**
+	 * Whether the log is closed, records aren't kept after that.
+	 */
+	private boolean closed;
+	/**
+	 * Timer writing checkpoints, null if checkpoints are only written when checkpoint() is called.
+	 */
+	private Timer timer;
+	/**
+	 * Shutdown hook writing a checkpoint when the JVM exits, null when the log is closed.
+	 */
+	private Thread shutdownHook;
+
+	/**
+	 * Default constructor, reads and compacts the log file.
+	 * @param file the log file
+	 * @param checkpointInterval milliseconds between checkpoints, 0 to only write the log when checkpoint() is called
+	 */
+	public SessionLog(File file, long checkpointInterval) {
+		this.file = file;
+		if (file.isFile())
+			load();
+		compact();
+		try {
+			output = new FileOutputStream(file, true);
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to open session log, session won't be resumable: ", file);
+		}
+		if (checkpointInterval > 0) {
+			timer = new Timer("SessionLog", true);
+			timer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					checkpoint();
+				}
+			}, checkpointInterval, checkpointInterval);
+		}
+		shutdownHook = new Thread() {
+			@Override
+			public void run() {
+				checkpoint();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Record that a file was added to a group.
+	 * Files are recorded with their size and modification time, a group isn't resumed if any of its files changed.
+	 * @param group the group
+	 * @param metafile the file
+	 */
+	public synchronized void fileAdded(Group group, Metafile metafile) {
+		File audioFile = metafile.getFile();
+		FileEntry entry = new FileEntry(group.name(), audioFile.length(), audioFile.lastModified());
+		String path = audioFile.getAbsolutePath();
+		FileEntry previous = files.get(path);
+		if (previous != null && previous.group.equals(entry.group) && previous.length == entry.length && previous.lastModified == entry.lastModified)
+			return;
+		addFile(path, entry);
+		writeFile(path, entry);
+	}
+
+	/**
+	 * Record that a group finished matching, with the tracks its files matched.
+	 * @param group the group
+	 */
+	public synchronized void groupMatched(Group group) {
+		for (Metafile metafile : group.files()) {
+			Track track = metafile.track();
+			FileEntry entry = files.get(metafile.getFile().getAbsolutePath());
+			if (entry == null)
+				continue;
+			if (track != null && track.album() != null && track.album().mbid() != null && !albums.containsKey(track.album().mbid())) {
+				albums.put(track.album().mbid(), track.album());
+				writeAlbum(track.album());
+			}
+			entry.match(track, metafile.matchScore());
+			writeMatch(metafile.getFile().getAbsolutePath(), entry);
+		}
+		finished.add(group.name());
+		writeFinished(group.name());
+	}
+
+	/**
+	 * Resume a group that finished matching in an earlier session, the files get the tracks they matched then.
+	 * @param group the group
+	 * @return true if the group was resumed, false if it must be matched
+	 */
+	public synchronized boolean resume(Group group) {
+		if (!finished.contains(group.name()))
+			return false;
+		List<Metafile> groupFiles = group.files();
+		Set<String> paths = members.get(group.name());
+		if (paths == null || paths.size() != groupFiles.size())
+			return false;
+		List<Track> tracks = new ArrayList<Track>();
+		for (Metafile metafile : groupFiles) {
+			File audioFile = metafile.getFile();
+			FileEntry entry = files.get(audioFile.getAbsolutePath());
+			if (entry == null || !entry.matched || !entry.group.equals(group.name()) || entry.length != audioFile.length() || entry.lastModified != audioFile.lastModified())
+				return false;
+			Track track = null;
+			if (entry.albumMbid != null) {
+				track = entry.track(albums.get(entry.albumMbid));
+				if (track == null)
+					return false;
+			}
+			tracks.add(track);
+		}
+		for (int index = 0; index < groupFiles.size(); ++index) {
+			FileEntry entry = files.get(groupFiles.get(index).getFile().getAbsolutePath());
+			groupFiles.get(index).track(tracks.get(index), entry.score);
+		}
+		LOG.info("Resumed group: ", group);
+		return true;
+	}
+
+	/**
+	 * Drop what's kept in memory about the files in a group that's done, their records are still in the log file and read when the log is opened again.
+	 * The files may have been added to groups that were merged into this group, those groups are dropped when they got no files left.
+	 * The albums are kept, other groups may have matched them too.
+	 * @param group the group
+	 */
+	public synchronized void release(Group group) {
+		for (Metafile metafile : group.files()) {
+			String path = metafile.getFile().getAbsolutePath();
+			FileEntry entry = files.remove(path);
+			if (entry == null)
+				continue;
+			Set<String> paths = members.get(entry.group);
+			if (paths == null)
+				continue;
+			paths.remove(path);
+			if (paths.isEmpty()) {
+				members.remove(entry.group);
+				finished.remove(entry.group);
+			}
+		}
+	}
+
+	/**
+	 * Append the records written since the last checkpoint to the log file.
+	 */
+	public synchronized void checkpoint() {
+		if (output == null || pending.size() <= 0)
+			return;
+		long start = System.nanoTime();
+		try {
+			pending.writeTo(output);
+			output.getChannel().force(false);
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to write session log: ", file);
+		} finally {
+			pending.reset();
+			Metrics.CHECKPOINT.recordSince(start);
+		}
+	}
+
+	/**
+	 * Write a last checkpoint and close the log file, stopping the checkpoint timer and removing the shutdown hook.
+	 * Records written after the log is closed are never written to the log file.
+	 */
+	public synchronized void close() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				/* the JVM is shutting down, the hook writes the same checkpoint */
+			}
+			shutdownHook = null;
+		}
+		checkpoint();
+		if (output != null) {
+			try {
+				output.close();
+			} catch (IOException e) {
+				LOG.warning(e, "Unable to close session log: ", file);
+			}
+			output = null;
+		}
+		closed = true;
+	}
+
+	/**
+	 * Update the state with a file record.
+	 * @param path path of the file
+	 * @param entry the file
+	 */
+	private void addFile(String path, FileEntry entry) {
+		FileEntry previous = files.put(path, entry);
+		if (previous != null) {
+			Set<String> paths = members.get(previous.group);
+			if (paths != null)
+				paths.remove(path);
+		}
+		Set<String> paths = members.get(entry.group);
+		if (paths == null) {
+			paths = new HashSet<String>();
+			members.put(entry.group, paths);
+		}
+		paths.add(path);
+		/* the group got a new file, it must be matched again */
+		finished.remove(entry.group);
+	}
+
+	/**
+	 * Read the records in the log file, stopping at the first record that is incomplete or corrupt.
+	 */
+	private void load() {
+		DataInputStream in = null;
+		int count = 0;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			CRC32 crc = new CRC32();
+			while (true) {
+				int size = in.readInt();
+				if (size <= 0 || size > MAX_RECORD_SIZE)
+					throw new IOException("Invalid record size: " + size);
+				byte[] data = new byte[size];
+				in.readFully(data);
+				crc.reset();
+				crc.update(data, 0, size);
+				if (in.readLong() != crc.getValue())
+					throw new IOException("Checksum mismatch");
+				read(new DataInputStream(new ByteArrayInputStream(data)));
+				++count;
+			}
+		} catch (EOFException e) {
+			LOG.info("Read ", count, " records from session log: ", file);
+		} catch (IOException e) {
+			LOG.warning(e, "Session log is corrupt, only read ", count, " records: ", file);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a record and update the state with it.
+	 * @param in the record
+	 * @throws IOException if the record can't be read
+	 */
+	private void read(DataInputStream in) throws IOException {
+		int type = in.readByte();
+		if (type == FILE) {
+			String group = in.readUTF();
+			String path = in.readUTF();
+			addFile(path, new FileEntry(group, in.readLong(), in.readLong()));
+		} else if (type == OLD_ALBUM || type == OLD_MATCH) {
+			/* the files of these records got no match record, so their groups aren't resumed */
+			return;
+		} else if (type == ALBUM) {
+			String mbid = in.readUTF();
+			String title = readString(in);
+			String released = readString(in);
+			String albumType = readString(in);
+			Artist artist = readArtist(in);
+			int trackCount = in.readInt();
+			List<Track> tracks = new ArrayList<Track>();
+			for (int track = 0; track < trackCount; ++track) {
+				String trackMbid = readString(in);
+				String trackTitle = readString(in);
+				int tracknumber = in.readInt();
+				int duration = in.readInt();
+				tracks.add(new Track(readArtist(in), trackTitle, trackMbid, tracknumber, duration));
+			}
+			albums.put(mbid, new Album(artist, title, released, albumType, mbid, tracks));
+		} else if (type == MATCH) {
+			FileEntry entry = files.get(in.readUTF());
+			String albumMbid = readString(in);
+			String trackMbid = readString(in);
+			int trackIndex = in.readInt();
+			double score = in.readDouble();
+			if (entry != null) {
+				entry.matched = true;
+				entry.albumMbid = albumMbid;
+				entry.trackMbid = trackMbid;
+				entry.trackIndex = trackIndex;
+				entry.score = score;
+			}
+		} else if (type == FINISHED) {
+			finished.add(in.readUTF());
+		} else {
+			throw new IOException("Unknown record type: " + type);
+		}
+	}
+
+	/**
+	 * Rewrite the log file with only the records needed to restore the current state.
+	 * Files that no longer exist and albums no file matched are dropped, and each file only got its latest group and match.
+	 */
+	private void compact() {
+		/* drop files that are gone, their groups must be matched again if they're loaded */
+		for (Iterator<Map.Entry<String, FileEntry>> iterator = files.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, FileEntry> entry = iterator.next();
+			if (!new File(entry.getKey()).isFile()) {
+				members.get(entry.getValue().group).remove(entry.getKey());
+				finished.remove(entry.getValue().group);
+				iterator.remove();
+			}
+		}
+		/* write one group at a time, so a log torn at the end only loses the last groups */
+		Set<String> usedAlbums = new HashSet<String>();
+		for (Map.Entry<String, Set<String>> group : members.entrySet()) {
+			for (String path : group.getValue()) {
+				FileEntry entry = files.get(path);
+				writeFile(path, entry);
+				if (!entry.matched)
+					continue;
+				if (entry.albumMbid != null && albums.containsKey(entry.albumMbid) && usedAlbums.add(entry.albumMbid))
+					writeAlbum(albums.get(entry.albumMbid));
+				writeMatch(path, entry);
+			}
+			if (finished.contains(group.getKey()))
+				writeFinished(group.getKey());
+		}
+		albums.keySet().retainAll(usedAlbums);
+		finished.retainAll(members.keySet());
+		File tmpFile = new File(file.getPath() + ".tmp");
+		BufferedOutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+			pending.writeTo(out);
+			out.close();
+			out = null;
+			if (!tmpFile.renameTo(file) && (!file.delete() || !tmpFile.renameTo(file)))
+				throw new IOException("Unable to replace session log with compacted log: " + tmpFile);
+			pending.reset();
+		} catch (IOException e) {
+			/* keep the records pending, they're appended to the old log at the next checkpoint */
+			LOG.warning(e, "Unable to compact session log: ", file);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", tmpFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a file record.
+	 * @param path path of the file
+	 * @param entry the file
+	 */
+	private void writeFile(String path, FileEntry entry) {
+		try {
+			DataOutputStream out = startRecord(FILE);
+			out.writeUTF(entry.group);
+			out.writeUTF(path);
+			out.writeLong(entry.length);
+			out.writeLong(entry.lastModified);
+			endRecord();
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to write file record for: ", path);
+		}
+	}
+
+	/**
+	 * Write an album record.
+	 * @param album the album
+	 */
+	private void writeAlbum(Album album) {
+		try {
+			DataOutputStream out = startRecord(ALBUM);
+			out.writeUTF(album.mbid());
+			writeString(out, album.title());
+			writeString(out, album.released());
+			writeString(out, album.type());
+			writeArtist(out, album.artist());
+			out.writeInt(album.tracks().size());
+			for (Track track : album.tracks()) {
+				writeString(out, track.mbid());
+				writeString(out, track.title());
+				out.writeInt(track.tracknumber());
+				out.writeInt(track.duration());
+				writeArtist(out, track.artist());
+			}
+			endRecord();
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to write album record for: ", album);
+		}
+	}
+
+	/**
+	 * Write a match record.
+	 * @param path path of the file
+	 * @param entry the file
+	 */
+	private void writeMatch(String path, FileEntry entry) {
+		try {
+			DataOutputStream out = startRecord(MATCH);
+			out.writeUTF(path);
+			writeString(out, entry.albumMbid);
+			writeString(out, entry.trackMbid);
+			out.writeInt(entry.trackIndex);
+			out.writeDouble(entry.score);
+			endRecord();
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to write match record for: ", path);
+		}
+	}
+
+	/**
+	 * Write a record telling that a group finished matching.
+	 * @param group name of the group
+	 */
+	private void writeFinished(String group) {
+		try {
+			DataOutputStream out = startRecord(FINISHED);
+			out.writeUTF(group);
+			endRecord();
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to write finished record for group: ", group);
+		}
+	}
+
+	/**
+	 * Start building a record.
+	 * @param type type of the record
+	 * @return stream to write the record to
+	 * @throws IOException never, writing to memory doesn't fail
+	 */
+	private DataOutputStream startRecord(int type) throws IOException {
+		record.reset();
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeByte(type);
+		return out;
+	}
+
+	/**
+	 * Add the record we built to the pending records, framed with its size and checksum.
+	 * @throws IOException never, writing to memory doesn't fail
+	 */
+	private void endRecord() throws IOException {
+		if (closed)
+			return;
+		byte[] data = record.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		DataOutputStream out = new DataOutputStream(pending);
+		out.writeInt(data.length);
+		out.write(data);
+		out.writeLong(crc.getValue());
+	}
+
+	/**
+	 * Write a string that may be null.
+	 * @param out the stream
+	 * @param string the string
+	 * @throws IOException if the string can't be written
+	 */
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		out.writeBoolean(string != null);
+		if (string != null)
+			out.writeUTF(string);
+	}
+
+	/**
+	 * Read a string that may be null.
+	 * @param in the stream
+	 * @return the string
+	 * @throws IOException if the string can't be read
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Write an artist that may be null.
+	 * @param out the stream
+	 * @param artist the artist
+	 * @throws IOException if the artist can't be written
+	 */
+	private static void writeArtist(DataOutputStream out, Artist artist) throws IOException {
+		out.writeBoolean(artist != null);
+		if (artist != null) {
+			writeString(out, artist.name());
+			writeString(out, artist.sortname());
+			writeString(out, artist.mbid());
+		}
+	}
+
+	/**
+	 * Read an artist that may be null.
+	 * @param in the stream
+	 * @return the artist
+	 * @throws IOException if the artist can't be read
+	 */
+	private static Artist readArtist(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		return new Artist(readString(in), readString(in), readString(in));
+	}
+
+	/**
+	 * A file in the log.
+	 */
+	private static final class FileEntry {
+
+		/**
+		 * Name of the group the file belongs to.
+		 */
+		private String group;
+		/**
+		 * Size of the file.
+		 */
+		private long length;
+		/**
+		 * Modification time of the file.
+		 */
+		private long lastModified;
+		/**
+		 * Whether the track the file matched is known, false until a match record is read or written for the file.
+		 */
+		private boolean matched;
+		/**
+		 * MBID of the album the file matched, null if it didn't match anything.
+		 */
+		private String albumMbid;
+		/**
+		 * MBID of the track the file matched, null if the track got no MBID.
+		 */
+		private String trackMbid;
+		/**
+		 * Index of the track the file matched in the tracks of the album, used for tracks without MBID.
+		 */
+		private int trackIndex;
+		/**
+		 * How well the file matched the track.
+		 */
+		private double score;
+
+		/**
+		 * Default constructor.
+		 * @param group name of the group the file belongs to
+		 * @param length size of the file
+		 * @param lastModified modification time of the file
+		 */
+		private FileEntry(String group, long length, long lastModified) {
+			this.group = group;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Set the track the file matched.
+		 * @param track the track, or null if the file didn't match anything
+		 * @param score how well the file matched the track
+		 */
+		private void match(Track track, double score) {
+			matched = true;
+			albumMbid = track == null || track.album() == null ? null : track.album().mbid();
+			trackMbid = albumMbid == null ? null : track.mbid();
+			trackIndex = albumMbid == null ? -1 : indexOf(track.album().tracks(), track);
+			this.score = albumMbid == null ? 0.0 : score;
+		}
+
+		/**
+		 * Find the track the file matched.
+		 * Tracks are found by MBID, as track numbers repeat on releases with several discs and don't have to start at 1.
+		 * @param album the album the file matched
+		 * @return the track, or null if the album is unknown or doesn't have the track
+		 */
+		private Track track(Album album) {
+			if (album == null)
+				return null;
+			List<Track> tracks = album.tracks();
+			if (trackMbid == null)
+				return trackIndex >= 0 && trackIndex < tracks.size() ? tracks.get(trackIndex) : null;
+			for (Track track : tracks) {
+				if (trackMbid.equals(track.mbid()))
+					return track;
+			}
+			return null;
+		}
+
+		/**
+		 * Find the index of a track in a list of tracks.
+		 * @param tracks the tracks
+		 * @param track the track
+		 * @return the index of the track, or -1 if the track isn't in the list
+		 */
+		private static int indexOf(List<Track> tracks, Track track) {
+			for (int index = 0; index < tracks.size(); ++index) {
+				if (tracks.get(index) == track)
+					return index;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe counter.
+ */
+public class Counter implements CounterMBean {
+
+	/**
+	 * Name of the counter.
+	 */
+	private String name;
+	/**
+	 * Value of the counter.
+	 */
+	private AtomicLong value = new AtomicLong();
+	/**
+	 * When the counter was created, from System.nanoTime().
+	 */
+	private long created = System.nanoTime();
+
+	/**
+	 * Default constructor.
+	 * @param name name of the counter
+	 */
+	public Counter(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name of the counter.
+	 * @return the name of the counter
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Increase the counter by 1.
+	 */
+	public void increment() {
+		value.incrementAndGet();
+	}
+
+	/**
+	 * Increase the counter.
+	 * @param amount how much to increase the counter
+	 */
+	public void add(long amount) {
+		value.addAndGet(amount);
+	}
+
+	@Override
+	public long getValue() {
+		return value.get();
+	}
+
+	@Override
+	public double getRate() {
+		double seconds = (System.nanoTime() - created) / 1000000000.0;
+		return seconds <= 0.0 ? 0.0 : value.get() / seconds;
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, in the spirit of HdrHistogram.
+ * Durations are recorded in nanoseconds into log-linear buckets: each power of 2 is split into 16 buckets,
+ * so a reported percentile is at most about 6% off while the histogram uses a fixed, small amount of memory.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	/**
+	 * Bits used for the linear part of the bucket index.
+	 */
+	private static final int SUB_BUCKET_BITS = 4;
+	/**
+	 * Amount of linear buckets for each power of 2.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * Amount of buckets, enough for any positive long.
+	 */
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	/**
+	 * Nanoseconds in a millisecond.
+	 */
+	private static final double NANOS_PER_MILLI = 1000000.0;
+	/**
+	 * Name of the histogram.
+	 */
+	private String name;
+	/**
+	 * Amount of durations recorded in each bucket.
+	 */
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	/**
+	 * Amount of recorded durations.
+	 */
+	private AtomicLong count = new AtomicLong();
+	/**
+	 * Sum of recorded durations.
+	 */
+	private AtomicLong sum = new AtomicLong();
+	/**
+	 * Longest recorded duration.
+	 */
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Default constructor.
+	 * @param name name of the histogram
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name of the histogram.
+	 * @return the name of the histogram
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Record a duration.
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos))
+			current = max.get();
+	}
+
+	/**
+	 * Record the time passed since the given start time.
+	 * @param startNanos start time, from System.nanoTime()
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Get the duration at the given percentile.
+	 * @param percentile the percentile, from 0.0 to 100.0
+	 * @return the duration in nanoseconds, the upper bound of the bucket the percentile is in
+	 */
+	public long percentile(double percentile) {
+		long total = count.get();
+		if (total <= 0)
+			return 0;
+		long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+			seen += buckets.get(bucket);
+			if (seen >= wanted)
+				return Math.min(upperBound(bucket), max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMean() {
+		long total = count.get();
+		return total <= 0 ? 0.0 : sum.get() / NANOS_PER_MILLI / total;
+	}
+
+	@Override
+	public double getP50() {
+		return percentile(50.0) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP90() {
+		return percentile(90.0) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP99() {
+		return percentile(99.0) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMax() {
+		return max.get() / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Get the bucket for a duration.
+	 * @param nanos the duration
+	 * @return index of the bucket
+	 */
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Get the largest duration that goes into a bucket.
+	 * @param bucket index of the bucket
+	 * @return the largest duration in the bucket
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long lowerBound = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+}
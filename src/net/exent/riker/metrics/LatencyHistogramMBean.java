@@ -0,0 +1,66 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metrics;
+
+/**
+ * JMX interface of LatencyHistogram, all durations are in milliseconds.
+ */
+public interface LatencyHistogramMBean {
+
+	/**
+	 * Get the amount of recorded durations.
+	 * @return the amount of recorded durations
+	 */
+	long getCount();
+
+	/**
+	 * Get the mean duration.
+	 * @return the mean duration
+	 */
+	double getMean();
+
+	/**
+	 * Get the median duration.
+	 * @return the median duration
+	 */
+	double getP50();
+
+	/**
+	 * Get the 90th percentile duration.
+	 * @return the 90th percentile duration
+	 */
+	double getP90();
+
+	/**
+	 * Get the 99th percentile duration.
+	 * @return the 99th percentile duration
+	 */
+	double getP99();
+
+	/**
+	 * Get the longest duration.
+	 * @return the longest duration
+	 */
+	double getMax();
+}
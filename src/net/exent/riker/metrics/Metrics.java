@@ -0,0 +1,300 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import net.exent.riker.util.Logger;
+
+/**
+ * Latency histograms, counters and gauges for the different stages of loading, matching and saving files.
+ * Everything is published as JMX MBeans in the "net.exent.riker" domain, and a summary is logged periodically.
+ * The summary interval in seconds is set with the system property "riker.metrics.interval" (default 60, 0 disables the summary).
+ */
+public final class Metrics {
+
+	/**
+	 * Reading a file, both through the fast path and jaudiotagger.
+	 */
+	public static final LatencyHistogram FILE_READ = latency("fileRead");
+	/**
+	 * Loading an album from MusicBrainz.
+	 */
+	public static final LatencyHistogram ALBUM_LOAD = latency("albumLoad");
+	/**
+	 * Searching MusicBrainz for a track.
+	 */
+	public static final LatencyHistogram TRACK_SEARCH = latency("trackSearch");
+	/**
+	 * Searching MusicBrainz for the release of a group.
+	 */
+	public static final LatencyHistogram RELEASE_SEARCH = latency("releaseSearch");
+	/**
+	 * Comparing a batch of files with a batch of tracks.
+	 */
+	public static final LatencyHistogram COMPARE = latency("compare");
+	/**
+	 * Finding the best album and assigning tracks to the files in a group.
+	 */
+	public static final LatencyHistogram ASSIGN = latency("assign");
+	/**
+	 * Saving a file.
+	 */
+	public static final LatencyHistogram COMMIT = latency("commit");
+	/**
+	 * Writing a checkpoint of the session log.
+	 */
+	public static final LatencyHistogram CHECKPOINT = latency("checkpoint");
+	/**
+	 * Files loaded.
+	 */
+	public static final Counter FILES_LOADED = counter("filesLoaded");
+	/**
+	 * Groups matched.
+	 */
+	public static final Counter GROUPS_MATCHED = counter("groupsMatched");
+	/**
+	 * Groups resumed from an earlier session instead of being matched.
+	 */
+	public static final Counter GROUPS_RESUMED = counter("groupsResumed");
+	/**
+	 * Groups merged into another group holding parts of the same album before matching.
+	 */
+	public static final Counter GROUPS_CLUSTERED = counter("groupsClustered");
+	/**
+	 * Groups merged into another group resolved to the same release.
+	 */
+	public static final Counter GROUPS_MERGED = counter("groupsMerged");
+	/**
+	 * Groups matched with a release another group resolved to, without searching.
+	 */
+	public static final Counter RELEASES_SHARED = counter("releasesShared");
+	/**
+	 * Albums found in album cache.
+	 */
+	public static final Counter ALBUM_CACHE_HITS = counter("albumCacheHits");
+	/**
+	 * Albums not found in album cache.
+	 */
+	public static final Counter ALBUM_CACHE_MISSES = counter("albumCacheMisses");
+	/**
+	 * Albums loaded before a matcher asked for them.
+	 */
+	public static final Counter ALBUMS_PREFETCHED = counter("albumsPrefetched");
+	/**
+	 * Albums found in album cache because they were prefetched.
+	 */
+	public static final Counter PREFETCH_HITS = counter("prefetchHits");
+	/**
+	 * Candidate albums skipped without loading them, as they couldn't score better than the best album so far.
+	 */
+	public static final Counter ALBUMS_PRUNED = counter("albumsPruned");
+	/**
+	 * Loaded albums not compared with the files, as they couldn't score better than the best album so far.
+	 */
+	public static final Counter COMPARISONS_PRUNED = counter("comparisonsPruned");
+	/**
+	 * Files and tracks not compared, as their durations are too far apart.
+	 */
+	public static final Counter COMPARISONS_SKIPPED = counter("comparisonsSkipped");
+	/**
+	 * Requests to MusicBrainz retried because the service was busy.
+	 */
+	public static final Counter REQUEST_RETRIES = counter("requestRetries");
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(Metrics.class);
+	/**
+	 * JMX domain for our MBeans.
+	 */
+	private static final String DOMAIN = "net.exent.riker";
+	/**
+	 * Interval between summaries in seconds.
+	 */
+	private static final long SUMMARY_INTERVAL = Long.getLong("riker.metrics.interval", 60L);
+	/**
+	 * All latency histograms.
+	 */
+	private static List<LatencyHistogram> latencies;
+	/**
+	 * All counters.
+	 */
+	private static List<Counter> counters;
+	/**
+	 * All gauges, keyed by name.
+	 */
+	private static Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+	/**
+	 * Counter values at the time of the last summary.
+	 */
+	private static Map<Counter, Long> lastValues = new LinkedHashMap<Counter, Long>();
+	/**
+	 * When the last summary was logged, from System.nanoTime().
+	 */
+	private static long lastSummary = System.nanoTime();
+
+	static {
+		if (SUMMARY_INTERVAL > 0) {
+			Timer timer = new Timer("Metrics", true);
+			timer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					logSummary();
+				}
+			}, SUMMARY_INTERVAL * 1000, SUMMARY_INTERVAL * 1000);
+		}
+	}
+
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private Metrics() {
+	}
+
+	/**
+	 * Register a gauge, replacing any gauge with the same name.
+	 * @param name name of the gauge
+	 * @param gauge the gauge
+	 */
+	public static synchronized void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+		register("Gauge", name, new StandardMBean(gauge, Gauge.class, false));
+	}
+
+	/**
+	 * Create a summary of all metrics.
+	 * Counters show the increase per second since the previous summary.
+	 * @return the summary
+	 */
+	public static synchronized String summary() {
+		long now = System.nanoTime();
+		double seconds = Math.max(0.001, (now - lastSummary) / 1000000000.0);
+		lastSummary = now;
+		StringBuilder sb = new StringBuilder(512);
+		for (Counter counter : counters) {
+			Long last = lastValues.get(counter);
+			long value = counter.getValue();
+			lastValues.put(counter, value);
+			sb.append(counter.name()).append(": ").append(value);
+			sb.append(" (").append(round((value - (last == null ? 0 : last)) / seconds)).append("/s), ");
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+			sb.append(entry.getKey()).append(": ").append(entry.getValue().getValue()).append(", ");
+		for (LatencyHistogram latency : latencies) {
+			if (latency.getCount() <= 0)
+				continue;
+			sb.append(latency.name()).append(": ").append(latency.getCount()).append(" x (p50 ").append(round(latency.getP50()));
+			sb.append("ms, p99 ").append(round(latency.getP99())).append("ms, max ").append(round(latency.getMax())).append("ms), ");
+		}
+		if (sb.length() > 0)
+			sb.setLength(sb.length() - 2);
+		return sb.toString();
+	}
+
+	/**
+	 * Log a summary of all metrics, unless nothing happened since the last summary.
+	 */
+	private static void logSummary() {
+		boolean changed = false;
+		synchronized (Metrics.class) {
+			for (Counter counter : counters) {
+				Long last = lastValues.get(counter);
+				if (last == null || last != counter.getValue())
+					changed = true;
+			}
+			for (Gauge gauge : gauges.values()) {
+				if (gauge.getValue() != 0)
+					changed = true;
+			}
+		}
+		if (changed)
+			LOG.notice("Metrics: ", summary());
+	}
+
+	/**
+	 * Create and register a latency histogram.
+	 * @param name name of the histogram
+	 * @return the histogram
+	 */
+	private static LatencyHistogram latency(String name) {
+		LatencyHistogram latency = new LatencyHistogram(name);
+		if (latencies == null)
+			latencies = new ArrayList<LatencyHistogram>();
+		latencies.add(latency);
+		register("Latency", name, latency);
+		return latency;
+	}
+
+	/**
+	 * Create and register a counter.
+	 * @param name name of the counter
+	 * @return the counter
+	 */
+	private static Counter counter(String name) {
+		Counter counter = new Counter(name);
+		if (counters == null)
+			counters = new ArrayList<Counter>();
+		counters.add(counter);
+		register("Counter", name, counter);
+		return counter;
+	}
+
+	/**
+	 * Register an MBean with the platform MBean server, replacing any MBean with the same name.
+	 * @param type type of the MBean
+	 * @param name name of the MBean
+	 * @param mbean the MBean
+	 */
+	private static void register(String type, String name, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(mbean, objectName);
+		} catch (JMException e) {
+			/* LOG may not be initialized yet as the metrics are created first, so write directly to the java.util.logging root logger */
+			java.util.logging.Logger.getLogger(Metrics.class.getName()).log(java.util.logging.Level.WARNING, "Unable to register MBean: " + name, e);
+		}
+	}
+
+	/**
+	 * Round a value to one decimal.
+	 * @param value the value
+	 * @return the rounded value
+	 */
+	private static double round(double value) {
+		return Math.round(value * 10.0) / 10.0;
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metrics.Metrics;
+
+/**
+ * Cache of the most recently used albums, loaded from MusicBrainz when they're not cached.
+ * An album is never loaded by two threads at the same time, a thread wanting an album another thread is loading waits for it instead.
+ * Albums the matchers will probably want next are prefetched in the background when MusicBrainz got requests to spare,
+ * a prefetch a matcher starts waiting for is promoted so it's no longer held back for spare requests.
+ * The cache keeps "riker.albumcache.size" albums (default 1000) and the best "riker.prefetch" albums found by each search
+ * are prefetched (default 3, 0 disables prefetching).
+ */
+public class AlbumCache {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(AlbumCache.class);
+	/**
+	 * Maximum amount of albums waiting to be prefetched, the oldest are dropped when there are more.
+	 */
+	private static final int PREFETCH_QUEUE_SIZE = 100;
+	/**
+	 * Client loading the albums.
+	 */
+	private MusicBrainz client;
+	/**
+	 * Amount of the best albums found by a search to prefetch.
+	 */
+	private int prefetchCount;
+	/**
+	 * The most recently used albums, keyed by MBID.
+	 */
+	private Map<String, Album> albums;
+	/**
+	 * Albums being loaded, keyed by MBID, synchronized on the albums.
+	 */
+	private Map<String, AlbumLoad> pendingAlbums = new HashMap<String, AlbumLoad>();
+	/**
+	 * MBIDs of prefetched albums that haven't been used yet, synchronized on the albums.
+	 */
+	private Set<String> prefetched = new HashSet<String>();
+	/**
+	 * Loads albums in the background before they're needed.
+	 */
+	private Prefetcher prefetcher = new Prefetcher();
+
+	/**
+	 * Full constructor.
+	 * @param client client loading the albums
+	 * @param maxSize maximum amount of albums in the cache
+	 * @param prefetchCount amount of the best albums found by a search to prefetch
+	 */
+	public AlbumCache(MusicBrainz client, final int maxSize, int prefetchCount) {
+		this.client = client;
+		this.prefetchCount = prefetchCount;
+		albums = new LinkedHashMap<String, Album>(16, 0.75f, true) {
+			/**
+			 * Serial version UID.
+			 */
+			private static final long serialVersionUID = 1L;
+
+			/**
+			 * Remove the least recently used album when the cache is full.
+			 * @param eldest the least recently used album
+			 * @return true if the cache is full
+			 */
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Album> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Create a cache from properties, properties not set get their default value.
+	 * @param properties the properties, typically System.getProperties()
+	 * @param client client loading the albums
+	 * @return the cache
+	 */
+	public static AlbumCache fromProperties(Properties properties, MusicBrainz client) {
+		int size = Integer.parseInt(properties.getProperty("riker.albumcache.size", "1000"));
+		int prefetchCount = Integer.parseInt(properties.getProperty("riker.prefetch", "3"));
+		return new AlbumCache(client, size, prefetchCount);
+	}
+
+	/**
+	 * Get the client loading the albums.
+	 * @return the client
+	 */
+	public MusicBrainz client() {
+		return client;
+	}
+
+	/**
+	 * Get the amount of the best albums found by a search to prefetch.
+	 * @return the amount of albums to prefetch
+	 */
+	public int prefetchCount() {
+		return prefetchCount;
+	}
+
+	/**
+	 * Load album from cache if we already loaded it or from MusicBrainz if not.
+	 * If another thread is loading the album we'll wait for it instead of loading it again.
+	 * @param mbid the MBID of the album to load
+	 * @return album for given MBID
+	 */
+	public Album load(String mbid) {
+		AlbumLoad load;
+		boolean loader = false;
+		synchronized (albums) {
+			Album album = albums.get(mbid);
+			if (album != null) {
+				Metrics.ALBUM_CACHE_HITS.increment();
+				if (prefetched.remove(mbid))
+					Metrics.PREFETCH_HITS.increment();
+				LOG.notice("Loaded album: ", album);
+				return album;
+			}
+			Metrics.ALBUM_CACHE_MISSES.increment();
+			load = pendingAlbums.get(mbid);
+			if (load == null) {
+				load = new AlbumLoad(mbid, false);
+				pendingAlbums.put(mbid, load);
+				loader = true;
+			} else if (load.promoted.compareAndSet(false, true)) {
+				/* the prefetch is needed now, it must not wait for requests nobody else wants */
+				LOG.info("Promoted prefetch of album with MBID \"", mbid, "\"");
+			}
+		}
+		if (loader)
+			load.run();
+		Album album = null;
+		try {
+			album = load.get();
+		} catch (InterruptedException e) {
+			LOG.warning(e, "Interrupted while waiting for album with MBID \"", mbid, "\"");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOG.warning(e, "Unable to load album with MBID \"", mbid, "\"");
+		}
+		LOG.notice("Loaded album: ", album);
+		return album;
+	}
+
+	/**
+	 * Queue an album for prefetching, starting the prefetching thread if it's not running.
+	 * @param mbid the MBID of the album
+	 */
+	public void prefetch(String mbid) {
+		prefetcher.add(mbid);
+	}
+
+	/**
+	 * Stop prefetching albums, albums are still loaded when asked for.
+	 */
+	public void stop() {
+		prefetcher.stop();
+	}
+
+	/**
+	 * Prefetch an album unless it's already cached or being loaded.
+	 * @param mbid the MBID of the album to prefetch
+	 */
+	private void prefetchAlbum(String mbid) {
+		AlbumLoad load;
+		synchronized (albums) {
+			if (albums.containsKey(mbid) || pendingAlbums.containsKey(mbid))
+				return;
+			load = new AlbumLoad(mbid, true);
+			pendingAlbums.put(mbid, load);
+		}
+		load.run();
+	}
+
+	/**
+	 * Task loading an album from MusicBrainz and adding it to the cache.
+	 */
+	private final class AlbumLoad extends FutureTask<Album> {
+
+		/**
+		 * Set when a thread is waiting for the album, always set for albums that aren't prefetched.
+		 */
+		private final AtomicBoolean promoted;
+
+		/**
+		 * Default constructor.
+		 * @param mbid the MBID of the album to load
+		 * @param speculative whether the album is prefetched
+		 */
+		private AlbumLoad(final String mbid, final boolean speculative) {
+			this(mbid, speculative, new AtomicBoolean(!speculative));
+		}
+
+		/**
+		 * Full constructor.
+		 * @param mbid the MBID of the album to load
+		 * @param speculative whether the album is prefetched
+		 * @param promoted set when a thread is waiting for the album
+		 */
+		private AlbumLoad(final String mbid, final boolean speculative, final AtomicBoolean promoted) {
+			super(new Callable<Album>() {
+				@Override
+				public Album call() {
+					Album album = null;
+					try {
+						album = speculative ? client.prefetchAlbum(mbid, promoted) : client.loadAlbum(mbid);
+					} finally {
+						synchronized (albums) {
+							pendingAlbums.remove(mbid);
+							/* add album to cache, a promoted prefetch was needed before it was done and isn't counted as prefetched */
+							if (album != null) {
+								albums.put(album.mbid(), album);
+								if (!promoted.get()) {
+									prefetched.add(album.mbid());
+									Metrics.ALBUMS_PREFETCHED.increment();
+								}
+							}
+						}
+					}
+					return album;
+				}
+			});
+			this.promoted = promoted;
+		}
+	}
+
+	/**
+	 * Thread prefetching the albums the matchers will probably want next.
+	 * The most recently found albums are prefetched first, and only when MusicBrainz got requests to spare.
+	 */
+	private final class Prefetcher implements Runnable {
+
+		/**
+		 * MBIDs of albums waiting to be prefetched, most recently found first.
+		 */
+		private LinkedList<String> queue = new LinkedList<String>();
+		/**
+		 * The thread, null if it's not started.
+		 */
+		private Thread thread;
+		/**
+		 * Whether prefetching is stopped.
+		 */
+		private boolean stopped;
+
+		/**
+		 * Queue an album for prefetching, starting the thread if it's not running.
+		 * @param mbid the MBID of the album
+		 */
+		private synchronized void add(String mbid) {
+			if (stopped)
+				return;
+			queue.remove(mbid);
+			queue.addFirst(mbid);
+			if (queue.size() > PREFETCH_QUEUE_SIZE)
+				queue.removeLast();
+			if (thread == null) {
+				thread = new Thread(this, "Prefetcher");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.start();
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Stop the thread, dropping the albums waiting to be prefetched.
+		 */
+		private synchronized void stop() {
+			stopped = true;
+			queue.clear();
+			if (thread != null)
+				thread.interrupt();
+			notifyAll();
+		}
+
+		/**
+		 * Take the next album to prefetch, waiting until there is one.
+		 * @return the MBID of the album
+		 * @throws InterruptedException if interrupted while waiting or stopped
+		 */
+		private synchronized String take() throws InterruptedException {
+			while (queue.isEmpty() && !stopped)
+				wait();
+			if (stopped)
+				throw new InterruptedException("Prefetcher stopped");
+			return queue.removeFirst();
+		}
+
+		/**
+		 * Prefetch albums until stopped.
+		 */
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					/* wait for a request to spare before picking an album, a better album may be found meanwhile */
+					client.awaitSpareRequest();
+					prefetchAlbum(take());
+				}
+			} catch (InterruptedException e) {
+				LOG.info("Prefetcher stopped");
+			}
+		}
+	}
+}
@@ -0,0 +1,1032 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metadata.Artist;
+import net.exent.riker.metadata.Track;
+
+/**
+ * Local catalogue of releases and tracks, used instead of the MusicBrainz web service for matching without network access.
+ * The catalogue is imported from a dump with one track per line and these tab separated columns:
+ * track MBID, release MBID, track number, duration in milliseconds, track title, artist MBID, artist name, release title and release type.
+ * The import is written to a compact index file that is memory mapped when matching, so only the parts that are used are read from disk.
+ * Releases are sorted by MBID for lookups, and the words in track and release titles are indexed for searches.
+ * Searches take the same queries as the web service and rank the results like it: tracks with a word from the track clause in their title
+ * are ranked by how many words they share with the query, the other clauses only affect the ranking.
+ * <p>
+ * Matching uses the catalogue when the property "riker.catalogue" is set to a dump or an index file.
+ * A dump is imported to "catalogue" in the data directory of the engine the first time it's used and whenever the dump is newer than the index,
+ * it can also be imported in advance with "java net.exent.riker.util.Catalogue dump index".
+ * The import keeps the whole catalogue in memory while the index is written.
+ */
+public final class Catalogue {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(Catalogue.class);
+	/**
+	 * First bytes of an index file, "RKCT".
+	 */
+	private static final int MAGIC = 0x524b4354;
+	/**
+	 * Version of the index format.
+	 */
+	private static final int VERSION = 1;
+	/**
+	 * Maximum amount of results from a search, like the web service.
+	 */
+	private static final int SEARCH_LIMIT = 25;
+	/**
+	 * Words found in more titles than this are only searched for when the query got no rarer words.
+	 */
+	private static final int COMMON_WORD = 100000;
+	/**
+	 * Bytes of a release record: MBID, title, type, artist, first entry in the release track list, amount of tracks and line in the dump.
+	 */
+	private static final int RELEASE_SIZE = 40;
+	/**
+	 * Bytes of a track record: MBID, release, track number, duration, title and artist.
+	 */
+	private static final int TRACK_SIZE = 36;
+	/**
+	 * Bytes of an artist record: MBID and name.
+	 */
+	private static final int ARTIST_SIZE = 20;
+	/**
+	 * Bytes of a word record: the word, first entry in the posting list and amount of entries.
+	 */
+	private static final int WORD_SIZE = 16;
+	/**
+	 * Releases, sorted by MBID.
+	 */
+	private Region releases;
+	/**
+	 * Tracks, in the order of the dump.
+	 */
+	private Region tracks;
+	/**
+	 * Artists.
+	 */
+	private Region artists;
+	/**
+	 * Length prefixed UTF-8 strings.
+	 */
+	private Region strings;
+	/**
+	 * Tracks of each release ordered by track number, as track indices.
+	 */
+	private Region releaseTracks;
+	/**
+	 * Words in track titles, sorted.
+	 */
+	private Region trackWords;
+	/**
+	 * Words in release titles, sorted.
+	 */
+	private Region releaseWords;
+	/**
+	 * Posting lists of the words, as track or release indices.
+	 */
+	private Region postings;
+	/**
+	 * Amount of releases.
+	 */
+	private int releaseCount;
+	/**
+	 * Amount of words in track titles.
+	 */
+	private int trackWordCount;
+	/**
+	 * Amount of words in release titles.
+	 */
+	private int releaseWordCount;
+
+	/**
+	 * Open an index file.
+	 * @param index the index file
+	 * @throws IOException if the file can't be read or isn't a catalogue index
+	 */
+	public Catalogue(File index) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(index, "r");
+		try {
+			if (file.readInt() != MAGIC || file.readInt() != VERSION)
+				throw new IOException("Not a catalogue index: " + index);
+			releaseCount = file.readInt();
+			file.readInt();
+			file.readInt();
+			trackWordCount = file.readInt();
+			releaseWordCount = file.readInt();
+			FileChannel channel = file.getChannel();
+			releases = new Region(channel, file.readLong(), file.readLong());
+			tracks = new Region(channel, file.readLong(), file.readLong());
+			artists = new Region(channel, file.readLong(), file.readLong());
+			releaseTracks = new Region(channel, file.readLong(), file.readLong());
+			trackWords = new Region(channel, file.readLong(), file.readLong());
+			releaseWords = new Region(channel, file.readLong(), file.readLong());
+			postings = new Region(channel, file.readLong(), file.readLong());
+			strings = new Region(channel, file.readLong(), file.readLong());
+		} finally {
+			/* the mapped regions stay valid after the file is closed */
+			file.close();
+		}
+		LOG.info("Opened catalogue with ", releaseCount, " releases: ", index);
+	}
+
+	/**
+	 * Open the catalogue given by the property "riker.catalogue", importing it first if it's a dump.
+	 * @param properties the properties, typically System.getProperties()
+	 * @param dataDirectory directory a dump is imported to, created if it doesn't exist
+	 * @return the catalogue, or null if the property isn't set or the catalogue can't be opened
+	 */
+	public static Catalogue fromProperties(Properties properties, File dataDirectory) {
+		String path = properties.getProperty("riker.catalogue");
+		if (path == null)
+			return null;
+		try {
+			File file = new File(path);
+			if (isIndex(file))
+				return new Catalogue(file);
+			if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs())
+				throw new IOException("Unable to create data directory: " + dataDirectory);
+			File index = new File(dataDirectory, "catalogue");
+			if (!index.isFile() || index.lastModified() < file.lastModified())
+				importDump(file, index);
+			return new Catalogue(index);
+		} catch (IOException e) {
+			LOG.warning(e, "Unable to open catalogue: ", path);
+			return null;
+		}
+	}
+
+	/**
+	 * Import a dump to an index file.
+	 * @param args the dump and the index file
+	 * @throws IOException if the dump can't be read or the index can't be written
+	 */
+	public static void main(String... args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java " + Catalogue.class.getName() + " <dump> <index>");
+			System.exit(1);
+		}
+		importDump(new File(args[0]), new File(args[1]));
+	}
+
+	/**
+	 * Look up a release.
+	 * @param mbid MBID of the release
+	 * @return the release with all its tracks, or null if it's not in the catalogue
+	 */
+	public Album loadAlbum(String mbid) {
+		UUID uuid = uuid(mbid);
+		if (uuid == null)
+			return null;
+		int low = 0;
+		int high = releaseCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long position = (long) middle * RELEASE_SIZE;
+			int order = compare(releases.getLong(position), releases.getLong(position + 8), uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+			if (order < 0) {
+				low = middle + 1;
+			} else if (order > 0) {
+				high = middle - 1;
+			} else {
+				Artist artist = artist(releases.getInt(position + 24));
+				List<Track> albumTracks = new ArrayList<Track>();
+				long first = releases.getInt(position + 28) * 4L;
+				int count = releases.getInt(position + 32);
+				for (int a = 0; a < count; ++a)
+					albumTracks.add(track(releaseTracks.getInt(first + a * 4L)));
+				return new Album(artist, string(releases.getInt(position + 16)), null, string(releases.getInt(position + 20)), uuid.toString(), albumTracks);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Search for tracks.
+	 * @param query the query, as sent to the track search of the web service
+	 * @return albums containing one matching track each, with limited data, best match first
+	 */
+	public List<Album> searchTrack(String query) {
+		Set<String> artistQuery = words(clause(query, "artist"));
+		Set<String> releaseQuery = words(clause(query, "release"));
+		int tracknumber = number(clause(query, "tnum"));
+		String[] range = clause(query, "qdur").replace("[", "").replace("]", "").split(" TO ");
+		int lower = range.length == 2 ? number(range[0]) : -1;
+		int upper = range.length == 2 ? number(range[1]) : -1;
+		/* score all tracks sharing a word with the track clause */
+		Map<Integer, Integer> scores = match(trackWords, trackWordCount, words(clause(query, "track")));
+		for (Map.Entry<Integer, Integer> score : scores.entrySet()) {
+			long position = (long) score.getKey() * TRACK_SIZE;
+			long release = (long) tracks.getInt(position + 16) * RELEASE_SIZE;
+			int bonus = shared(artistQuery, words(string(artists.getInt((long) tracks.getInt(position + 32) * ARTIST_SIZE + 16))));
+			bonus += shared(releaseQuery, words(string(releases.getInt(release + 16))));
+			if (tracks.getInt(position + 20) == tracknumber)
+				++bonus;
+			int quantized = tracks.getInt(position + 24) / 2000;
+			if (lower >= 0 && upper >= 0 && quantized >= lower && quantized <= upper)
+				++bonus;
+			score.setValue(score.getValue() + bonus);
+		}
+		List<Album> albums = new ArrayList<Album>();
+		for (int index : ranked(scores, null)) {
+			long release = (long) tracks.getInt((long) index * TRACK_SIZE + 16) * RELEASE_SIZE;
+			List<Track> albumTracks = new ArrayList<Track>();
+			albumTracks.add(track(index));
+			albums.add(new Album(string(releases.getInt(release + 16)), string(releases.getInt(release + 20)), mbid(releases, release), albumTracks));
+		}
+		return albums;
+	}
+
+	/**
+	 * Search for releases.
+	 * @param query the query, as sent to the release search of the web service
+	 * @return releases without tracks, with limited data, best match first
+	 */
+	public List<Album> searchRelease(String query) {
+		Set<String> artistQuery = words(clause(query, "artist"));
+		int trackCount = number(clause(query, "tracks"));
+		/* score all releases sharing a word with the release clause */
+		Map<Integer, Integer> scores = match(releaseWords, releaseWordCount, words(clause(query, "release")));
+		Map<Integer, Integer> order = new HashMap<Integer, Integer>();
+		for (Map.Entry<Integer, Integer> score : scores.entrySet()) {
+			long position = (long) score.getKey() * RELEASE_SIZE;
+			int bonus = shared(artistQuery, words(string(artists.getInt((long) releases.getInt(position + 24) * ARTIST_SIZE + 16))));
+			if (releases.getInt(position + 32) == trackCount)
+				++bonus;
+			score.setValue(score.getValue() + bonus);
+			order.put(score.getKey(), releases.getInt(position + 36));
+		}
+		List<Album> albums = new ArrayList<Album>();
+		for (int index : ranked(scores, order)) {
+			long position = (long) index * RELEASE_SIZE;
+			albums.add(new Album(artist(releases.getInt(position + 24)), string(releases.getInt(position + 16)), null, string(releases.getInt(position + 20)), mbid(releases, position), new ArrayList<Track>()));
+		}
+		return albums;
+	}
+
+	/**
+	 * Find the entries with words from a query, scoring 2 for each word.
+	 * Words found in very many titles are skipped, unless the query got no other words.
+	 * @param dictionary the sorted words
+	 * @param count amount of words
+	 * @param query words in the query
+	 * @return score of each entry with a word from the query
+	 */
+	private Map<Integer, Integer> match(Region dictionary, int count, Set<String> query) {
+		List<long[]> lists = new ArrayList<long[]>();
+		for (String word : query) {
+			int index = find(dictionary, count, word);
+			if (index >= 0)
+				lists.add(new long[] {dictionary.getLong((long) index * WORD_SIZE + 4), dictionary.getInt((long) index * WORD_SIZE + 12)});
+		}
+		Collections.sort(lists, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] list1, long[] list2) {
+				return list1[1] < list2[1] ? -1 : (list1[1] > list2[1] ? 1 : 0);
+			}
+		});
+		Map<Integer, Integer> scores = new HashMap<Integer, Integer>();
+		for (int list = 0; list < lists.size(); ++list) {
+			long first = lists.get(list)[0];
+			long size = lists.get(list)[1];
+			if (size > COMMON_WORD) {
+				if (list > 0)
+					break;
+				size = COMMON_WORD;
+			}
+			for (long a = 0; a < size; ++a) {
+				int entry = postings.getInt((first + a) * 4);
+				Integer score = scores.get(entry);
+				scores.put(entry, (score == null ? 0 : score) + 2);
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Order scored entries with the best score first and keep the best ones.
+	 * @param scores the score of each entry
+	 * @param order the order of entries with the same score, or null to order them by index
+	 * @return the best entries, best first
+	 */
+	private static List<Integer> ranked(final Map<Integer, Integer> scores, final Map<Integer, Integer> order) {
+		List<Integer> hits = new ArrayList<Integer>(scores.keySet());
+		Collections.sort(hits, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer entry1, Integer entry2) {
+				int difference = scores.get(entry2) - scores.get(entry1);
+				if (difference != 0)
+					return difference;
+				return order == null ? entry1 - entry2 : order.get(entry1) - order.get(entry2);
+			}
+		});
+		return hits.subList(0, Math.min(SEARCH_LIMIT, hits.size()));
+	}
+
+	/**
+	 * Find a word in a dictionary.
+	 * @param dictionary the sorted words
+	 * @param count amount of words
+	 * @param word the word
+	 * @return index of the word, or -1 if it's not in the dictionary
+	 */
+	private int find(Region dictionary, int count, String word) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int order = string(dictionary.getInt((long) middle * WORD_SIZE)).compareTo(word);
+			if (order < 0)
+				low = middle + 1;
+			else if (order > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read a track.
+	 * @param index index of the track
+	 * @return the track
+	 */
+	private Track track(int index) {
+		long position = (long) index * TRACK_SIZE;
+		return new Track(artist(tracks.getInt(position + 32)), string(tracks.getInt(position + 28)), mbid(tracks, position), tracks.getInt(position + 20), tracks.getInt(position + 24));
+	}
+
+	/**
+	 * Read an artist.
+	 * @param index index of the artist
+	 * @return the artist
+	 */
+	private Artist artist(int index) {
+		long position = (long) index * ARTIST_SIZE;
+		return new Artist(string(artists.getInt(position + 16)), mbid(artists, position));
+	}
+
+	/**
+	 * Read a string.
+	 * @param offset offset of the string, as an unsigned int
+	 * @return the string
+	 */
+	private String string(int offset) {
+		long position = offset & 0xFFFFFFFFL;
+		return strings.string(position + 4, strings.getInt(position));
+	}
+
+	/**
+	 * Read an MBID from the start of a record.
+	 * @param region the region with the record
+	 * @param position position of the record
+	 * @return the MBID
+	 */
+	private static String mbid(Region region, long position) {
+		return new UUID(region.getLong(position), region.getLong(position + 8)).toString();
+	}
+
+	/**
+	 * Import a dump to an index file.
+	 * The index is written to a temporary file first, so an existing index is only replaced when the import succeeds.
+	 * @param dump the dump
+	 * @param index the index file
+	 * @throws IOException if the dump can't be read or the index can't be written
+	 */
+	public static void importDump(File dump, File index) throws IOException {
+		long start = System.nanoTime();
+		LOG.notice("Importing catalogue: ", dump);
+		Importer importer = new Importer();
+		File stringFile = new File(index.getPath() + ".strings");
+		DataOutputStream stringOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stringFile)));
+		BufferedReader reader = null;
+		try {
+			importer.strings = stringOutput;
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(dump), "UTF-8"));
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				++lineNumber;
+				if (line.length() == 0 || line.charAt(0) == '#')
+					continue;
+				if (!importer.add(line.split("\t")))
+					LOG.notice("Skipping invalid line ", lineNumber, " in catalogue dump: ", line);
+			}
+			importer.finish();
+		} finally {
+			if (reader != null)
+				reader.close();
+			stringOutput.close();
+		}
+		File tmpFile = new File(index.getPath() + ".tmp");
+		try {
+			importer.write(tmpFile, stringFile);
+		} finally {
+			if (!stringFile.delete())
+				LOG.warning("Unable to delete temporary file: ", stringFile);
+		}
+		if (!tmpFile.renameTo(index) && (!index.delete() || !tmpFile.renameTo(index)))
+			throw new IOException("Unable to replace catalogue index: " + index);
+		LOG.notice("Imported ", importer.tracks.size(), " tracks on ", importer.releases.size(), " releases in ", (System.nanoTime() - start) / 1000000, "ms: ", index);
+	}
+
+	/**
+	 * Check whether a file is a catalogue index.
+	 * @param file the file
+	 * @return true if the file starts like an index
+	 * @throws IOException if the file can't be read
+	 */
+	private static boolean isIndex(File file) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return file.length() >= 4 && input.readInt() == MAGIC;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Parse an MBID.
+	 * @param mbid the MBID
+	 * @return the MBID as an UUID, or null if it isn't a valid MBID
+	 */
+	private static UUID uuid(String mbid) {
+		if (mbid == null || mbid.length() != 36)
+			return null;
+		try {
+			UUID uuid = UUID.fromString(mbid);
+			return uuid.toString().equalsIgnoreCase(mbid) ? uuid : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compare two MBIDs by their bits.
+	 * @param msb1 most significant bits of the first MBID
+	 * @param lsb1 least significant bits of the first MBID
+	 * @param msb2 most significant bits of the second MBID
+	 * @param lsb2 least significant bits of the second MBID
+	 * @return negative if the first MBID is less, positive if it's greater and 0 if they're equal
+	 */
+	private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+		if (msb1 != msb2)
+			return msb1 + Long.MIN_VALUE < msb2 + Long.MIN_VALUE ? -1 : 1;
+		if (lsb1 != lsb2)
+			return lsb1 + Long.MIN_VALUE < lsb2 + Long.MIN_VALUE ? -1 : 1;
+		return 0;
+	}
+
+	/**
+	 * Get the lowercase words in a text.
+	 * @param text the text
+	 * @return the words
+	 */
+	private static Set<String> words(String text) {
+		Set<String> words = new HashSet<String>();
+		for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (word.length() > 0)
+				words.add(word);
+		}
+		return words;
+	}
+
+	/**
+	 * Count the words two sets have in common.
+	 * @param words1 the first set
+	 * @param words2 the second set
+	 * @return amount of words in both sets
+	 */
+	private static int shared(Set<String> words1, Set<String> words2) {
+		int count = 0;
+		for (String word : words1) {
+			if (words2.contains(word))
+				++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the content of a clause in a query, like "Some Title" from "track:(Some Title)".
+	 * @param query the query
+	 * @param field the field of the clause
+	 * @return the content of the clause, or an empty string if the query got no such clause
+	 */
+	private static String clause(String query, String field) {
+		int start = query.indexOf(field + ":");
+		if (start < 0)
+			return "";
+		start += field.length() + 1;
+		if (start >= query.length())
+			return "";
+		if (query.charAt(start) == '(') {
+			/* find the closing parenthesis, skipping escaped ones */
+			for (int a = start + 1; a < query.length(); ++a) {
+				if (query.charAt(a) == '\\')
+					++a;
+				else if (query.charAt(a) == ')')
+					return query.substring(start + 1, a);
+			}
+			return query.substring(start + 1);
+		}
+		int end = query.charAt(start) == '[' ? query.indexOf(']', start) + 1 : query.indexOf(' ', start);
+		return query.substring(start, end > start ? end : query.length());
+	}
+
+	/**
+	 * Parse a number.
+	 * @param text the text to parse
+	 * @return the number, or -1 if the text isn't a number
+	 */
+	private static int number(String text) {
+		try {
+			return Integer.parseInt(text.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * A section of the index file, memory mapped in chunks as a single mapping can't be larger than 2 GB.
+	 * Values may cross the boundary between two chunks.
+	 */
+	private static final class Region {
+
+		/**
+		 * Size of each chunk.
+		 */
+		private static final int CHUNK_SIZE = 1 << 30;
+		/**
+		 * The mapped chunks.
+		 */
+		private MappedByteBuffer[] chunks;
+
+		/**
+		 * Default constructor, maps the section.
+		 * @param channel channel of the index file
+		 * @param offset offset of the section in the file
+		 * @param length length of the section
+		 * @throws IOException if the section can't be mapped
+		 */
+		private Region(FileChannel channel, long offset, long length) throws IOException {
+			chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			for (int chunk = 0; chunk < chunks.length; ++chunk) {
+				long chunkOffset = (long) chunk * CHUNK_SIZE;
+				chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, offset + chunkOffset, Math.min(CHUNK_SIZE, length - chunkOffset));
+			}
+		}
+
+		/**
+		 * Read a byte.
+		 * @param position position in the section
+		 * @return the byte
+		 */
+		private byte get(long position) {
+			return chunks[(int) (position / CHUNK_SIZE)].get((int) (position % CHUNK_SIZE));
+		}
+
+		/**
+		 * Read an int.
+		 * @param position position in the section
+		 * @return the int
+		 */
+		private int getInt(long position) {
+			int offset = (int) (position % CHUNK_SIZE);
+			if (offset <= CHUNK_SIZE - 4)
+				return chunks[(int) (position / CHUNK_SIZE)].getInt(offset);
+			int value = 0;
+			for (int a = 0; a < 4; ++a)
+				value = (value << 8) | (get(position + a) & 0xFF);
+			return value;
+		}
+
+		/**
+		 * Read a long.
+		 * @param position position in the section
+		 * @return the long
+		 */
+		private long getLong(long position) {
+			return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+		}
+
+		/**
+		 * Read an UTF-8 string.
+		 * @param position position of the string in the section
+		 * @param length length of the string in bytes
+		 * @return the string
+		 */
+		private String string(long position, int length) {
+			byte[] bytes = new byte[length];
+			for (int a = 0; a < length; ++a)
+				bytes[a] = get(position + a);
+			try {
+				return new String(bytes, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				/* UTF-8 is always supported */
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Growable list of ints, for posting lists while importing.
+	 */
+	private static final class IntList {
+
+		/**
+		 * The values.
+		 */
+		private int[] values = new int[4];
+		/**
+		 * Amount of values.
+		 */
+		private int size;
+
+		/**
+		 * Add a value, unless it's the same as the last value.
+		 * @param value the value
+		 */
+		private void add(int value) {
+			if (size > 0 && values[size - 1] == value)
+				return;
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * A release while importing.
+	 */
+	private static final class ImportedRelease {
+
+		/**
+		 * The MBID.
+		 */
+		private UUID mbid;
+		/**
+		 * Offset of the title.
+		 */
+		private int title;
+		/**
+		 * Offset of the type.
+		 */
+		private int type;
+		/**
+		 * Index of the artist.
+		 */
+		private int artist;
+		/**
+		 * Index of the first track of the release in the dump, used to order releases with the same score.
+		 */
+		private int line;
+		/**
+		 * Words in the title.
+		 */
+		private Set<String> words;
+		/**
+		 * Index of the release in the index file.
+		 */
+		private int index;
+		/**
+		 * Indices of the tracks, keyed by track number.
+		 */
+		private TreeMap<Integer, Integer> tracks = new TreeMap<Integer, Integer>();
+	}
+
+	/**
+	 * Builds the index from the lines of a dump.
+	 */
+	private static final class Importer {
+
+		/**
+		 * Stream the strings are written to.
+		 */
+		private DataOutputStream strings;
+		/**
+		 * Offset of each string written, so each string is only written once.
+		 */
+		private Map<String, Integer> stringOffsets = new HashMap<String, Integer>();
+		/**
+		 * Bytes of strings written.
+		 */
+		private long stringLength;
+		/**
+		 * Releases keyed by MBID.
+		 */
+		private Map<UUID, ImportedRelease> releases = new HashMap<UUID, ImportedRelease>();
+		/**
+		 * Releases, sorted by MBID when all lines are added.
+		 */
+		private List<ImportedRelease> releaseList = new ArrayList<ImportedRelease>();
+		/**
+		 * Index of each artist, keyed by MBID.
+		 */
+		private Map<UUID, Integer> artists = new HashMap<UUID, Integer>();
+		/**
+		 * Artist MBIDs.
+		 */
+		private List<UUID> artistMbids = new ArrayList<UUID>();
+		/**
+		 * Offsets of artist names.
+		 */
+		private List<Integer> artistNames = new ArrayList<Integer>();
+		/**
+		 * Track records: track number, duration, title and artist.
+		 */
+		private List<int[]> tracks = new ArrayList<int[]>();
+		/**
+		 * Track MBIDs.
+		 */
+		private List<UUID> trackMbids = new ArrayList<UUID>();
+		/**
+		 * Release of each track.
+		 */
+		private List<ImportedRelease> trackReleases = new ArrayList<ImportedRelease>();
+		/**
+		 * Tracks keyed by the words in their title.
+		 */
+		private TreeMap<String, IntList> trackWords = new TreeMap<String, IntList>();
+		/**
+		 * Releases keyed by the words in their title.
+		 */
+		private TreeMap<String, IntList> releaseWords = new TreeMap<String, IntList>();
+
+		/**
+		 * Add a line of the dump.
+		 * @param columns the columns of the line
+		 * @return false if the line is invalid
+		 * @throws IOException if a string can't be written
+		 */
+		private boolean add(String[] columns) throws IOException {
+			if (columns.length < 9)
+				return false;
+			UUID trackMbid = uuid(columns[0]);
+			UUID releaseMbid = uuid(columns[1]);
+			UUID artistMbid = uuid(columns[5]);
+			int tracknumber = number(columns[2]);
+			int duration = number(columns[3]);
+			if (trackMbid == null || releaseMbid == null || artistMbid == null || tracknumber < 0)
+				return false;
+			Integer artist = artists.get(artistMbid);
+			if (artist == null) {
+				artist = artistMbids.size();
+				artists.put(artistMbid, artist);
+				artistMbids.add(artistMbid);
+				artistNames.add(string(columns[6]));
+			}
+			ImportedRelease release = releases.get(releaseMbid);
+			if (release == null) {
+				release = new ImportedRelease();
+				release.mbid = releaseMbid;
+				release.title = string(columns[7]);
+				release.type = string(columns[8]);
+				release.artist = artist;
+				release.line = tracks.size();
+				release.words = words(columns[7]);
+				releases.put(releaseMbid, release);
+				releaseList.add(release);
+			}
+			int track = tracks.size();
+			release.tracks.put(tracknumber, track);
+			tracks.add(new int[] {tracknumber, Math.max(duration, 0), string(columns[4]), artist});
+			trackMbids.add(trackMbid);
+			trackReleases.add(release);
+			index(trackWords, words(columns[4]), track);
+			return true;
+		}
+
+		/**
+		 * Sort the releases, index the words in their titles and write the words.
+		 * Must be called after all lines are added and before the string stream is closed.
+		 * @throws IOException if a word can't be written
+		 */
+		private void finish() throws IOException {
+			Collections.sort(releaseList, new Comparator<ImportedRelease>() {
+				@Override
+				public int compare(ImportedRelease release1, ImportedRelease release2) {
+					return Catalogue.compare(release1.mbid.getMostSignificantBits(), release1.mbid.getLeastSignificantBits(), release2.mbid.getMostSignificantBits(), release2.mbid.getLeastSignificantBits());
+				}
+			});
+			for (int index = 0; index < releaseList.size(); ++index) {
+				ImportedRelease release = releaseList.get(index);
+				release.index = index;
+				index(releaseWords, release.words, index);
+				release.words = null;
+			}
+			for (String word : trackWords.keySet())
+				string(word);
+			for (String word : releaseWords.keySet())
+				string(word);
+		}
+
+		/**
+		 * Write the index file.
+		 * @param index the index file
+		 * @param stringFile the file with the strings
+		 * @throws IOException if the index can't be written
+		 */
+		private void write(File index, File stringFile) throws IOException {
+			long releaseTrackCount = 0;
+			for (ImportedRelease release : releaseList)
+				releaseTrackCount += release.tracks.size();
+			long postingCount = 0;
+			for (IntList list : trackWords.values())
+				postingCount += list.size;
+			for (IntList list : releaseWords.values())
+				postingCount += list.size;
+			long[] lengths = {
+				(long) releaseList.size() * RELEASE_SIZE,
+				(long) tracks.size() * TRACK_SIZE,
+				(long) artistMbids.size() * ARTIST_SIZE,
+				releaseTrackCount * 4,
+				(long) trackWords.size() * WORD_SIZE,
+				(long) releaseWords.size() * WORD_SIZE,
+				postingCount * 4,
+				stringLength
+			};
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index)));
+			try {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeInt(releaseList.size());
+				output.writeInt(tracks.size());
+				output.writeInt(artistMbids.size());
+				output.writeInt(trackWords.size());
+				output.writeInt(releaseWords.size());
+				long offset = 7 * 4 + lengths.length * 16;
+				for (long length : lengths) {
+					output.writeLong(offset);
+					output.writeLong(length);
+					offset += length;
+				}
+				int first = 0;
+				for (ImportedRelease release : releaseList) {
+					writeMbid(output, release.mbid);
+					output.writeInt(release.title);
+					output.writeInt(release.type);
+					output.writeInt(release.artist);
+					output.writeInt(first);
+					output.writeInt(release.tracks.size());
+					output.writeInt(release.line);
+					first += release.tracks.size();
+				}
+				for (int track = 0; track < tracks.size(); ++track) {
+					int[] record = tracks.get(track);
+					writeMbid(output, trackMbids.get(track));
+					output.writeInt(trackReleases.get(track).index);
+					for (int value : record)
+						output.writeInt(value);
+				}
+				for (int artist = 0; artist < artistMbids.size(); ++artist) {
+					writeMbid(output, artistMbids.get(artist));
+					output.writeInt(artistNames.get(artist));
+				}
+				for (ImportedRelease release : releaseList) {
+					for (int track : release.tracks.values())
+						output.writeInt(track);
+				}
+				long posting = writeWords(output, trackWords, 0);
+				writeWords(output, releaseWords, posting);
+				for (IntList list : trackWords.values()) {
+					for (int a = 0; a < list.size; ++a)
+						output.writeInt(list.values[a]);
+				}
+				for (IntList list : releaseWords.values()) {
+					for (int a = 0; a < list.size; ++a)
+						output.writeInt(list.values[a]);
+				}
+				InputStream input = new BufferedInputStream(new FileInputStream(stringFile));
+				try {
+					byte[] buffer = new byte[65536];
+					int count;
+					while ((count = input.read(buffer)) > 0)
+						output.write(buffer, 0, count);
+				} finally {
+					input.close();
+				}
+			} finally {
+				output.close();
+			}
+		}
+
+		/**
+		 * Write a word dictionary.
+		 * @param output the stream to write to
+		 * @param words the words and their posting lists
+		 * @param posting first entry of the posting lists
+		 * @return the entry after the last posting list
+		 * @throws IOException if the words can't be written
+		 */
+		private long writeWords(DataOutputStream output, Map<String, IntList> words, long posting) throws IOException {
+			for (Map.Entry<String, IntList> word : words.entrySet()) {
+				output.writeInt(stringOffsets.get(word.getKey()));
+				output.writeLong(posting);
+				output.writeInt(word.getValue().size);
+				posting += word.getValue().size;
+			}
+			return posting;
+		}
+
+		/**
+		 * Write a string, unless it's already written.
+		 * @param string the string
+		 * @return offset of the string, as an unsigned int
+		 * @throws IOException if the string can't be written
+		 */
+		private int string(String string) throws IOException {
+			Integer offset = stringOffsets.get(string);
+			if (offset != null)
+				return offset;
+			if (stringLength > 0xFFFFFFFFL)
+				throw new IOException("Too many strings in catalogue");
+			offset = (int) stringLength;
+			byte[] bytes = string.getBytes("UTF-8");
+			strings.writeInt(bytes.length);
+			strings.write(bytes);
+			stringLength += 4 + bytes.length;
+			stringOffsets.put(string, offset);
+			return offset;
+		}
+
+		/**
+		 * Add an entry to the posting lists of words.
+		 * @param index the posting lists keyed by word
+		 * @param words the words
+		 * @param entry the entry
+		 */
+		private static void index(Map<String, IntList> index, Set<String> words, int entry) {
+			for (String word : words) {
+				IntList list = index.get(word);
+				if (list == null) {
+					list = new IntList();
+					index.put(word, list);
+				}
+				list.add(entry);
+			}
+		}
+
+		/**
+		 * Write an MBID.
+		 * @param output the stream to write to
+		 * @param mbid the MBID
+		 * @throws IOException if the MBID can't be written
+		 */
+		private static void writeMbid(DataOutputStream output, UUID mbid) throws IOException {
+			output.writeLong(mbid.getMostSignificantBits());
+			output.writeLong(mbid.getLeastSignificantBits());
+		}
+	}
+}
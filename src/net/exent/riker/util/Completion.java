@@ -0,0 +1,65 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A future completed by the thread finishing the work it stands for, instead of by running a task.
+ * FutureTask already handles waiting, timeouts and cancellation, this only makes setting the result public.
+ * @param <V> type of the result
+ */
+public final class Completion<V> extends FutureTask<V> {
+
+	/**
+	 * Default constructor.
+	 */
+	public Completion() {
+		super(new Callable<V>() {
+			@Override
+			public V call() {
+				throw new IllegalStateException("A completion is completed, not run");
+			}
+		});
+	}
+
+	/**
+	 * Complete with a result, waking up threads waiting for it.
+	 * Does nothing if already completed or cancelled.
+	 * @param result the result
+	 */
+	public void complete(V result) {
+		set(result);
+	}
+
+	/**
+	 * Complete with a failure, threads waiting for the result get an ExecutionException with the cause.
+	 * Does nothing if already completed or cancelled.
+	 * @param cause the cause of the failure
+	 */
+	public void fail(Throwable cause) {
+		setException(cause);
+	}
+}
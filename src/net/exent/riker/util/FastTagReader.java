@@ -0,0 +1,652 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import net.exent.riker.metadata.Metafile;
+import org.jaudiotagger.audio.AudioHeader;
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * Fast reader for the few tag fields and audio properties we need for matching.
+ * Only the tag blocks and the first audio frame header are read, using positional reads, the audio data is never touched.
+ * Supports ID3v2.3/ID3v2.4 and ID3v1 tags in MP3 files with duration from Xing/Info/VBRI headers, as well as FLAC files with Vorbis comments.
+ * Anything else makes the reader return null, in which case the file should be read by jaudiotagger instead.
+ */
+public final class FastTagReader {
+
+	/**
+	 * The fields read by this reader, other fields must be read from the full tag.
+	 */
+	public static final Set<FieldKey> FIELDS = Collections.unmodifiableSet(EnumSet.of(FieldKey.ALBUM, FieldKey.ALBUM_ARTIST, FieldKey.ARTIST, FieldKey.TITLE, FieldKey.TRACK, FieldKey.MUSICBRAINZ_RELEASEID));
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(FastTagReader.class);
+	/**
+	 * Charset used by ID3 for text encoding 0.
+	 */
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	/**
+	 * Charset used by ID3 for text encoding 1.
+	 */
+	private static final Charset UTF_16 = Charset.forName("UTF-16");
+	/**
+	 * Charset used by ID3 for text encoding 2.
+	 */
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+	/**
+	 * Charset used by ID3 for text encoding 3 and by Vorbis comments.
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/**
+	 * Largest tag frame or Vorbis comment block we'll read, larger frames are skipped.
+	 */
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+	/**
+	 * How far into the audio data we'll look for the first MPEG frame.
+	 */
+	private static final int MAX_SYNC_SEARCH = 64 * 1024;
+	/**
+	 * MPEG bitrates in kbps, indexed by [MPEG-1 ? 0 : 1][layer - 1][bitrate index].
+	 */
+	private static final int[][][] BITRATES = {
+		{
+			{0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+			{0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+		},
+		{
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+		}
+	};
+	/**
+	 * MPEG-1 sample rates, halved for MPEG-2 and quartered for MPEG-2.5.
+	 */
+	private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+	/**
+	 * Names of MPEG channel modes, as jaudiotagger names them.
+	 */
+	private static final String[] CHANNEL_MODES = {"Stereo", "Joint Stereo", "Dual Channel", "Mono"};
+
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private FastTagReader() {
+	}
+
+	/**
+	 * Read the given file.
+	 * @param file the file to read
+	 * @return the file as a Metafile, or null if the file isn't supported by this reader
+	 */
+	public static Metafile read(File file) {
+		String name = file.getName().toLowerCase();
+		if (!name.endsWith(".mp3") && !name.endsWith(".flac"))
+			return null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			Map<FieldKey, String> fields = new EnumMap<FieldKey, String>(FieldKey.class);
+			ByteBuffer header = read(channel, 0, 10);
+			if (header == null)
+				return null;
+			AudioHeader audioHeader;
+			if (header.get(0) == 'f' && header.get(1) == 'L' && header.get(2) == 'a' && header.get(3) == 'C')
+				audioHeader = readFlac(channel, fields);
+			else
+				audioHeader = readMp3(channel, header, fields);
+			if (audioHeader == null)
+				return null;
+			return new Metafile(file, audioHeader, fields);
+		} catch (IOException e) {
+			LOG.info(e, "Unable to read file with fast reader: ", file);
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					LOG.warning(e, "Unable to close file: ", file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read tags and audio header from an MP3 file.
+	 * @param channel the file
+	 * @param header the first 10 bytes of the file
+	 * @param fields map to put tag fields in
+	 * @return the audio header, or null if the file isn't supported
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static AudioHeader readMp3(FileChannel channel, ByteBuffer header, Map<FieldKey, String> fields) throws IOException {
+		long audioStart = 0;
+		boolean id3v2 = header.get(0) == 'I' && header.get(1) == 'D' && header.get(2) == '3';
+		if (id3v2) {
+			int version = header.get(3);
+			int flags = header.get(5) & 0xFF;
+			/* ID3v2.2 and unsynchronised tags are rare, leave them to jaudiotagger */
+			if ((version != 3 && version != 4) || (flags & 0x80) != 0)
+				return null;
+			int tagSize = syncsafe(header, 6);
+			audioStart = 10 + tagSize + ((flags & 0x10) != 0 ? 10 : 0);
+			readId3v2(channel, version, flags, tagSize, fields);
+		}
+		long audioEnd = channel.size();
+		ByteBuffer id3v1 = read(channel, audioEnd - 128, 128);
+		if (id3v1 != null && id3v1.get(0) == 'T' && id3v1.get(1) == 'A' && id3v1.get(2) == 'G') {
+			audioEnd -= 128;
+			/* like jaudiotagger we only use ID3v1 if there's no ID3v2 tag */
+			if (!id3v2)
+				readId3v1(id3v1, fields);
+		}
+		return readMpegHeader(channel, audioStart, audioEnd);
+	}
+
+	/**
+	 * Read the frames we want from an ID3v2 tag.
+	 * @param channel the file
+	 * @param version minor version of the tag, 3 or 4
+	 * @param flags tag flags
+	 * @param tagSize size of the tag, excluding header and footer
+	 * @param fields map to put tag fields in
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static void readId3v2(FileChannel channel, int version, int flags, int tagSize, Map<FieldKey, String> fields) throws IOException {
+		long position = 10;
+		long end = 10 + tagSize;
+		if ((flags & 0x40) != 0) {
+			/* skip extended header, size excludes itself in ID3v2.3 but includes itself in ID3v2.4 */
+			ByteBuffer extended = read(channel, position, 4);
+			if (extended == null)
+				return;
+			position += version == 3 ? 4 + extended.getInt(0) : syncsafe(extended, 0);
+		}
+		while (position + 10 <= end) {
+			ByteBuffer frameHeader = read(channel, position, 10);
+			/* a zero byte means we've reached the padding */
+			if (frameHeader == null || frameHeader.get(0) == 0)
+				break;
+			String id = new String(new char[] {(char) frameHeader.get(0), (char) frameHeader.get(1), (char) frameHeader.get(2), (char) frameHeader.get(3)});
+			int size = version == 3 ? frameHeader.getInt(4) : syncsafe(frameHeader, 4);
+			int formatFlags = frameHeader.get(9) & 0xFF;
+			position += 10;
+			if (size < 0 || position + size > end)
+				break;
+			/* compressed, encrypted and unsynchronised frames are skipped */
+			boolean plain = version == 3 ? (formatFlags & 0xC0) == 0 : (formatFlags & 0x0E) == 0;
+			FieldKey key = id3v2Key(id);
+			if (plain && size > 1 && size <= MAX_BLOCK_SIZE && (key != null || "TXXX".equals(id))) {
+				ByteBuffer frame = read(channel, position, size);
+				if (frame != null) {
+					/* ID3v2.4 frames may have a data length indicator before the data */
+					if (version == 4 && (formatFlags & 0x01) != 0)
+						frame.position(4);
+					if (key != null)
+						putFirst(fields, key, id3Text(frame));
+					else
+						readTxxx(frame, fields);
+				}
+			}
+			position += size;
+		}
+	}
+
+	/**
+	 * Map an ID3v2 frame id to the field it holds.
+	 * @param id the frame id
+	 * @return the field, or null if we don't want the frame
+	 */
+	private static FieldKey id3v2Key(String id) {
+		if ("TALB".equals(id))
+			return FieldKey.ALBUM;
+		else if ("TPE2".equals(id))
+			return FieldKey.ALBUM_ARTIST;
+		else if ("TPE1".equals(id))
+			return FieldKey.ARTIST;
+		else if ("TIT2".equals(id))
+			return FieldKey.TITLE;
+		else if ("TRCK".equals(id))
+			return FieldKey.TRACK;
+		return null;
+	}
+
+	/**
+	 * Read a user defined text frame, we only want the MusicBrainz album id.
+	 * @param frame the frame data
+	 * @param fields map to put tag fields in
+	 */
+	private static void readTxxx(ByteBuffer frame, Map<FieldKey, String> fields) {
+		String text = id3Text(frame, true);
+		int separator = text.indexOf('\0');
+		if (separator > 0 && "MusicBrainz Album Id".equals(text.substring(0, separator)))
+			putFirst(fields, FieldKey.MUSICBRAINZ_RELEASEID, text.substring(separator + 1));
+	}
+
+	/**
+	 * Decode the first value of an ID3v2 text frame.
+	 * @param frame the frame data, positioned at the text encoding byte
+	 * @return the first value in the frame
+	 */
+	private static String id3Text(ByteBuffer frame) {
+		String text = id3Text(frame, false);
+		int separator = text.indexOf('\0');
+		return separator >= 0 ? text.substring(0, separator) : text;
+	}
+
+	/**
+	 * Decode an ID3v2 text frame.
+	 * @param frame the frame data, positioned at the text encoding byte
+	 * @param keepSeparators whether null separators should be kept
+	 * @return the text in the frame
+	 */
+	private static String id3Text(ByteBuffer frame, boolean keepSeparators) {
+		int encoding = frame.get();
+		Charset charset;
+		switch (encoding) {
+			case 1:
+				charset = UTF_16;
+				break;
+
+			case 2:
+				charset = UTF_16BE;
+				break;
+
+			case 3:
+				charset = UTF_8;
+				break;
+
+			default:
+				charset = ISO_8859_1;
+				break;
+		}
+		if (encoding == 1 && keepSeparators) {
+			/* every value in a UTF-16 frame got its own BOM, decode them one by one */
+			StringBuilder sb = new StringBuilder();
+			byte[] data = new byte[frame.remaining()];
+			frame.get(data);
+			int start = 0;
+			for (int a = 0; a + 1 < data.length; a += 2) {
+				if (data[a] == 0 && data[a + 1] == 0) {
+					sb.append(new String(data, start, a - start, charset)).append('\0');
+					start = a + 2;
+				}
+			}
+			return sb.append(new String(data, start, data.length - start, charset)).toString();
+		}
+		return charset.decode(frame).toString();
+	}
+
+	/**
+	 * Read an ID3v1 tag.
+	 * @param tag the tag, 128 bytes
+	 * @param fields map to put tag fields in
+	 */
+	private static void readId3v1(ByteBuffer tag, Map<FieldKey, String> fields) {
+		putFirst(fields, FieldKey.TITLE, id3v1Text(tag, 3, 30));
+		putFirst(fields, FieldKey.ARTIST, id3v1Text(tag, 33, 30));
+		putFirst(fields, FieldKey.ALBUM, id3v1Text(tag, 63, 30));
+		/* ID3v1.1 stores the track number in the last byte of the comment if the byte before it is 0 */
+		if (tag.get(125) == 0 && tag.get(126) != 0)
+			putFirst(fields, FieldKey.TRACK, Integer.toString(tag.get(126) & 0xFF));
+	}
+
+	/**
+	 * Read a fixed length, null padded text from an ID3v1 tag.
+	 * @param tag the tag
+	 * @param offset offset of the text
+	 * @param length maximum length of the text
+	 * @return the text
+	 */
+	private static String id3v1Text(ByteBuffer tag, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && tag.get(end) != 0)
+			++end;
+		byte[] data = new byte[end - offset];
+		for (int a = 0; a < data.length; ++a)
+			data[a] = tag.get(offset + a);
+		return new String(data, ISO_8859_1);
+	}
+
+	/**
+	 * Find the first MPEG frame after the tag and create an audio header from it.
+	 * @param channel the file
+	 * @param audioStart where the audio data starts
+	 * @param audioEnd where the audio data ends
+	 * @return the audio header, or null if no MPEG frame was found
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static AudioHeader readMpegHeader(FileChannel channel, long audioStart, long audioEnd) throws IOException {
+		ByteBuffer data = read(channel, audioStart, (int) Math.min(MAX_SYNC_SEARCH, audioEnd - audioStart));
+		if (data == null)
+			return null;
+		for (int offset = 0; offset + 4 <= data.limit(); ++offset) {
+			if ((data.get(offset) & 0xFF) != 0xFF || (data.get(offset + 1) & 0xE0) != 0xE0)
+				continue;
+			int header = data.getInt(offset);
+			int versionBits = (header >> 19) & 0x3;
+			int layerBits = (header >> 17) & 0x3;
+			int bitrateIndex = (header >> 12) & 0xF;
+			int sampleRateIndex = (header >> 10) & 0x3;
+			if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3)
+				continue;
+			boolean mpeg1 = versionBits == 3;
+			int layer = 4 - layerBits;
+			int sampleRate = SAMPLE_RATES[sampleRateIndex] >> (mpeg1 ? 0 : versionBits == 2 ? 1 : 2);
+			int bitrate = BITRATES[mpeg1 ? 0 : 1][layer - 1][bitrateIndex];
+			int channelMode = (header >> 6) & 0x3;
+			int samplesPerFrame = layer == 1 ? 384 : layer == 2 || mpeg1 ? 1152 : 576;
+			String version = mpeg1 ? "MPEG-1" : versionBits == 2 ? "MPEG-2" : "MPEG-2.5";
+			long audioBytes = audioEnd - audioStart - offset;
+			/* look for VBR header, Xing/Info is found after the side information and VBRI at a fixed offset */
+			int sideInfo = mpeg1 ? (channelMode == 3 ? 17 : 32) : (channelMode == 3 ? 9 : 17);
+			long frames = vbrFrames(data, offset + 4 + sideInfo, "Xing", 8);
+			if (frames < 0)
+				frames = vbrFrames(data, offset + 4 + sideInfo, "Info", 8);
+			if (frames < 0)
+				frames = vbrFrames(data, offset + 36, "VBRI", 14);
+			double seconds;
+			boolean variable = frames >= 0;
+			if (variable) {
+				seconds = (double) frames * samplesPerFrame / sampleRate;
+				if (seconds > 0.0)
+					bitrate = (int) (audioBytes * 8 / seconds / 1000);
+			} else {
+				seconds = audioBytes * 8.0 / (bitrate * 1000.0);
+			}
+			return new FastAudioHeader("mp3", version + " Layer " + layer, sampleRate, CHANNEL_MODES[channelMode], bitrate, variable, (int) seconds);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the frame count from a Xing/Info or VBRI header.
+	 * @param data data containing the first frame
+	 * @param offset where the header would start
+	 * @param id header id
+	 * @param framesOffset offset of the frame count in the header
+	 * @return the frame count, or -1 if there is no such header or it doesn't contain the frame count
+	 */
+	private static long vbrFrames(ByteBuffer data, int offset, String id, int framesOffset) {
+		if (offset + framesOffset + 4 > data.limit())
+			return -1;
+		for (int a = 0; a < 4; ++a) {
+			if (data.get(offset + a) != id.charAt(a))
+				return -1;
+		}
+		/* Xing/Info headers got a flag telling whether the frame count is present */
+		if (!"VBRI".equals(id) && (data.getInt(offset + 4) & 0x1) == 0)
+			return -1;
+		return data.getInt(offset + framesOffset) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Read metadata blocks from a FLAC file.
+	 * @param channel the file
+	 * @param fields map to put tag fields in
+	 * @return the audio header, or null if the file got no stream info
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static AudioHeader readFlac(FileChannel channel, Map<FieldKey, String> fields) throws IOException {
+		AudioHeader audioHeader = null;
+		long position = 4;
+		boolean last = false;
+		while (!last) {
+			ByteBuffer blockHeader = read(channel, position, 4);
+			if (blockHeader == null)
+				return null;
+			int type = blockHeader.get(0) & 0x7F;
+			last = (blockHeader.get(0) & 0x80) != 0;
+			int length = blockHeader.getInt(0) & 0xFFFFFF;
+			position += 4;
+			if (type == 0) {
+				ByteBuffer info = read(channel, position, 18);
+				if (info == null)
+					return null;
+				/* 20 bits sample rate, 3 bits channels - 1, 5 bits bits per sample - 1, 36 bits total samples */
+				long packed = info.getLong(10);
+				int sampleRate = (int) (packed >>> 44);
+				int channels = (int) ((packed >>> 41) & 0x7) + 1;
+				int bitsPerSample = (int) ((packed >>> 36) & 0x1F) + 1;
+				long samples = packed & 0xFFFFFFFFFL;
+				int seconds = sampleRate > 0 ? (int) (samples / sampleRate) : 0;
+				int bitrate = seconds > 0 ? (int) ((channel.size() - position) * 8 / seconds / 1000) : 0;
+				String format = "FLAC " + bitsPerSample + " bits";
+				audioHeader = new FastAudioHeader(format, format, sampleRate, Integer.toString(channels), bitrate, true, seconds);
+			} else if (type == 4 && length <= MAX_BLOCK_SIZE) {
+				ByteBuffer comments = read(channel, position, length);
+				if (comments != null)
+					readVorbisComments(comments, fields);
+			}
+			position += length;
+		}
+		return audioHeader;
+	}
+
+	/**
+	 * Read Vorbis comments.
+	 * @param block the Vorbis comment block
+	 * @param fields map to put tag fields in
+	 */
+	private static void readVorbisComments(ByteBuffer block, Map<FieldKey, String> fields) {
+		block.order(ByteOrder.LITTLE_ENDIAN);
+		int vendorLength = block.getInt(0);
+		if (vendorLength < 0 || vendorLength + 8 > block.limit())
+			return;
+		int position = 4 + vendorLength;
+		int count = block.getInt(position);
+		position += 4;
+		for (int a = 0; a < count && position + 4 <= block.limit(); ++a) {
+			int length = block.getInt(position);
+			position += 4;
+			if (length < 0 || position + length > block.limit())
+				return;
+			byte[] data = new byte[length];
+			block.position(position);
+			block.get(data);
+			position += length;
+			String comment = new String(data, UTF_8);
+			int separator = comment.indexOf('=');
+			if (separator <= 0)
+				continue;
+			String name = comment.substring(0, separator).toUpperCase();
+			String value = comment.substring(separator + 1);
+			if ("ALBUM".equals(name))
+				putFirst(fields, FieldKey.ALBUM, value);
+			else if ("ALBUMARTIST".equals(name))
+				putFirst(fields, FieldKey.ALBUM_ARTIST, value);
+			else if ("ARTIST".equals(name))
+				putFirst(fields, FieldKey.ARTIST, value);
+			else if ("TITLE".equals(name))
+				putFirst(fields, FieldKey.TITLE, value);
+			else if ("TRACKNUMBER".equals(name))
+				putFirst(fields, FieldKey.TRACK, value);
+			else if ("MUSICBRAINZ_ALBUMID".equals(name))
+				putFirst(fields, FieldKey.MUSICBRAINZ_RELEASEID, value);
+		}
+	}
+
+	/**
+	 * Put a field value in the map unless the field already got a value.
+	 * Values are stored as they are in the tag, like jaudiotagger returns them, Metafile.getFirst() normalizes them for both.
+	 * @param fields map of fields
+	 * @param key the field
+	 * @param value the value
+	 */
+	private static void putFirst(Map<FieldKey, String> fields, FieldKey key, String value) {
+		if (fields.containsKey(key) || value == null)
+			return;
+		fields.put(key, value);
+	}
+
+	/**
+	 * Read a synchsafe integer, 7 bits in each byte.
+	 * @param buffer buffer to read from
+	 * @param offset offset of the integer
+	 * @return the integer
+	 */
+	private static int syncsafe(ByteBuffer buffer, int offset) {
+		int value = 0;
+		for (int a = offset; a < offset + 4; ++a)
+			value = (value << 7) | (buffer.get(a) & 0x7F);
+		return value;
+	}
+
+	/**
+	 * Read bytes from a file.
+	 * @param channel the file
+	 * @param position where to start reading
+	 * @param length amount of bytes to read
+	 * @return the bytes read, or null if the file doesn't contain that many bytes at that position
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		if (position < 0 || length < 0 || position + length > channel.size())
+			return null;
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				return null;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Audio header created by the fast reader.
+	 */
+	private static final class FastAudioHeader implements AudioHeader {
+
+		/**
+		 * Encoding type.
+		 */
+		private String encodingType;
+		/**
+		 * Format.
+		 */
+		private String format;
+		/**
+		 * Sample rate in Hz.
+		 */
+		private int sampleRate;
+		/**
+		 * Channels.
+		 */
+		private String channels;
+		/**
+		 * Bitrate in kbps.
+		 */
+		private int bitrate;
+		/**
+		 * Whether the bitrate is variable.
+		 */
+		private boolean variable;
+		/**
+		 * Track length in seconds.
+		 */
+		private int trackLength;
+
+		/**
+		 * Full constructor.
+		 * @param encodingType encoding type
+		 * @param format format
+		 * @param sampleRate sample rate in Hz
+		 * @param channels channels
+		 * @param bitrate bitrate in kbps
+		 * @param variable whether the bitrate is variable
+		 * @param trackLength track length in seconds
+		 */
+		private FastAudioHeader(String encodingType, String format, int sampleRate, String channels, int bitrate, boolean variable, int trackLength) {
+			this.encodingType = encodingType;
+			this.format = format;
+			this.sampleRate = sampleRate;
+			this.channels = channels;
+			this.bitrate = bitrate;
+			this.variable = variable;
+			this.trackLength = trackLength;
+		}
+
+		@Override
+		public String getEncodingType() {
+			return encodingType;
+		}
+
+		@Override
+		public String getBitRate() {
+			/* jaudiotagger only marks variable bitrate with "~" for MP3 files */
+			return (variable && "mp3".equals(encodingType) ? "~" : "") + bitrate;
+		}
+
+		@Override
+		public long getBitRateAsNumber() {
+			return bitrate;
+		}
+
+		@Override
+		public String getSampleRate() {
+			return Integer.toString(sampleRate);
+		}
+
+		@Override
+		public int getSampleRateAsNumber() {
+			return sampleRate;
+		}
+
+		@Override
+		public String getFormat() {
+			return format;
+		}
+
+		@Override
+		public String getChannels() {
+			return channels;
+		}
+
+		@Override
+		public boolean isVariableBitRate() {
+			return variable;
+		}
+
+		@Override
+		public int getTrackLength() {
+			return trackLength;
+		}
+	}
+}
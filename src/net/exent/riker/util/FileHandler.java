@@ -26,13 +26,18 @@ package net.exent.riker.util;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import net.exent.riker.Riker;
+import java.util.Map;
+import net.exent.riker.RikerEngine;
 import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metrics.Gauge;
+import net.exent.riker.metrics.Metrics;
 import org.jaudiotagger.audio.AudioFileIO;
 
 /**
- * Class for reading/writing files.
+ * Class for reading/writing the files of an engine, on a thread of its own.
+ * Directories are loaded depth first, and the engine is told when a directory and everything beneath it is loaded.
  */
 public final class FileHandler implements Runnable {
 
@@ -41,67 +46,106 @@ public final class FileHandler implements Runnable {
 	 */
 	private static final Logger LOG = new Logger(FileHandler.class);
 	/**
-	 * The only instance of this class.
+	 * The engine the files are loaded for.
 	 */
-	private static FileHandler handler = new FileHandler();
+	private RikerEngine engine;
 	/**
 	 * A list of directories/files to load.
 	 */
-	private static List<String> loadQueue = Collections.synchronizedList(new ArrayList<String>());
+	private List<Load> loadQueue = Collections.synchronizedList(new ArrayList<Load>());
 	/**
-	 * A map of files to save and the metadata it should be saved with.
+	 * A list of files to save.
 	 */
-	private static List<Metafile> saveQueue = Collections.synchronizedList(new ArrayList<Metafile>());
+	private List<Save> saveQueue = Collections.synchronizedList(new ArrayList<Save>());
+	/**
+	 * Amount of entries not yet loaded in each directory being loaded, keyed by path.
+	 * Only used by the thread loading files.
+	 */
+	private Map<String, Integer> pendingEntries = new HashMap<String, Integer>();
+	/**
+	 * Load requests waiting for a directory/file given to load() to be loaded, keyed by path.
+	 * Only used by the thread loading files.
+	 */
+	private Map<String, LoadRequest> loadRoots = new HashMap<String, LoadRequest>();
 	/**
 	 * Whether the thread is active.
 	 */
-	private static boolean active;
+	private boolean active;
 
 	/**
-	 * Private constructor as we only want one instance of FileHandler.
+	 * Default constructor.
+	 * The sizes of the queues are reported as gauges, named by the engine.
+	 * @param engine the engine the files are loaded for
 	 */
-	private FileHandler() {
+	public FileHandler(RikerEngine engine) {
+		this.engine = engine;
+		Metrics.gauge(engine.metricName("loadQueue"), new Gauge() {
+			@Override
+			public long getValue() {
+				return loadQueue.size();
+			}
+		});
+		Metrics.gauge(engine.metricName("saveQueue"), new Gauge() {
+			@Override
+			public long getValue() {
+				return saveQueue.size();
+			}
+		});
 	}
 
 	/**
-	 * Add a directory/file to the load queue.
-	 * @param path the directory/file to add to the load queue
+	 * Add directories/files to the load queue.
+	 * @param paths the directories/files to add to the load queue
+	 * @return completed with the files read from the directories/files when they're loaded, files that couldn't be read are left out
 	 */
-	public static void load(String path) {
-		LOG.info("Loading files from path: ", path);
-		loadQueue.add(path);
-		handler.wake();
+	public Completion<List<Metafile>> load(List<String> paths) {
+		LoadRequest request = new LoadRequest(paths.size());
+		for (String path : paths) {
+			LOG.info("Loading files from path: ", path);
+			loadQueue.add(new Load(path, request, true));
+		}
+		if (paths.isEmpty())
+			request.completion.complete(request.files);
+		wake();
+		return request.completion;
 	}
 
 	/**
-	 * Add a file to the queue of files to be saved.
-	 * @param file the file to be saved
+	 * Add files to the queue of files to be saved.
+	 * @param files the files to be saved
+	 * @return completed with the files that were saved when all the files are saved or failed to save
 	 */
-	public static void save(Metafile file) {
-		LOG.info("Adding file to save queue: ", file);
-		saveQueue.add(file);
-		handler.wake();
+	public Completion<List<Metafile>> save(List<Metafile> files) {
+		SaveRequest request = new SaveRequest(files.size());
+		for (Metafile file : files) {
+			LOG.info("Adding file to save queue: ", file);
+			saveQueue.add(new Save(file, request));
+		}
+		if (files.isEmpty())
+			request.completion.complete(request.saved);
+		wake();
+		return request.completion;
 	}
 
 	/**
 	 * Start the thread.
 	 */
-	public static synchronized void start() {
+	public synchronized void start() {
 		if (!active) {
 			LOG.info("Starting thread");
 			active = true;
-			new Thread(handler).start();
+			new Thread(this, engine.metricName("FileHandler")).start();
 		}
 	}
 
 	/**
 	 * Stop the thread.
 	 */
-	public static synchronized void stop() {
+	public synchronized void stop() {
 		if (active) {
 			LOG.info("Stopping thread");
 			active = false;
-			handler.wake();
+			notify();
 		}
 	}
 
@@ -110,58 +154,122 @@ public final class FileHandler implements Runnable {
 	 */
 	@Override
 	public void run() {
-		while (active) {
+		while (active()) {
 			boolean filesLoaded = false;
-			while (active && loadQueue.size() > 0) {
-				String path = loadQueue.remove(0);
-				File file = new File(path);
+			while (active() && loadQueue.size() > 0) {
+				Load load = loadQueue.remove(0);
+				File file = new File(load.path);
+				if (load.root)
+					loadRoots.put(file.getAbsolutePath(), load.request);
 				if (file.isDirectory()) {
-					/* add all files/directories in this directory to the loadQueue */
-					for (File f : file.listFiles())
-						loadQueue.add(f.getAbsolutePath());
+					/* add all files/directories in this directory first in the loadQueue, so directories are completed as early as possible */
+					File[] entries = file.listFiles();
+					List<Load> loads = new ArrayList<Load>();
+					if (entries != null) {
+						for (File f : entries)
+							loads.add(new Load(f.getAbsolutePath(), load.request, false));
+					}
+					if (loads.isEmpty()) {
+						loaded(file);
+					} else {
+						pendingEntries.put(file.getAbsolutePath(), loads.size());
+						loadQueue.addAll(0, loads);
+					}
 				} else if (file.isFile()) {
 					/* try to read the file as an Metafile */
 					try {
 						LOG.info("Reading file: ", file.getAbsolutePath());
-						Riker.fileLoaded(new Metafile(AudioFileIO.read(file)));
+						long start = System.nanoTime();
+						Metafile metafile = FastTagReader.read(file);
+						if (metafile == null)
+							metafile = new Metafile(AudioFileIO.read(file));
+						Metrics.FILE_READ.recordSince(start);
+						Metrics.FILES_LOADED.increment();
+						engine.fileLoaded(metafile);
+						load.request.files.add(metafile);
 						filesLoaded = true;
 					} catch (Exception e) {
-						LOG.notice(e, "Unable to read file: ", path);
+						LOG.notice(e, "Unable to read file: ", load.path);
 						/* TODO: Riker.fileLoadFailed(file, e) */
 					}
+					loaded(file);
 				} else {
-					LOG.notice("Unable to read file/directory: ", path);
+					LOG.notice("Unable to read file/directory: ", load.path);
+					loaded(file);
 				}
 			}
 			if (filesLoaded)
-				Riker.allFilesLoaded();
+				engine.allFilesLoaded();
 			boolean filesSaved = false;
-			while (active && saveQueue.size() > 0) {
-				Metafile metafile = saveQueue.remove(0);
+			while (active() && saveQueue.size() > 0) {
+				Save save = saveQueue.remove(0);
+				Metafile metafile = save.file;
 				try {
 					LOG.info("Saving file: ", metafile.filename());
+					long start = System.nanoTime();
 					metafile.commit();
-					/* TODO: Riker.fileSaved(audioFile); */
+					Metrics.COMMIT.recordSince(start);
+					engine.fileSaved(metafile);
+					save.request.saved.add(metafile);
 					filesSaved = true;
 				} catch (Exception e) {
 					LOG.warning(e, "Could not save file: ", metafile.filename());
 					/* TODO: Riker.fileSaveFailed(audioFile, e); */
 				}
+				if (--save.request.remaining <= 0)
+					save.request.completion.complete(save.request.saved);
 			}
 			/* TODO: Riker.filesSaved(); */
 			// if (filesSaved)
 		
-			if (active && loadQueue.size() <= 0 && saveQueue.size() <= 0)
+			if (active() && loadQueue.size() <= 0 && saveQueue.size() <= 0)
 				sleep();
 		}
 	}
 
+	/**
+	 * Mark a file or directory as loaded, and tell the engine about directories where everything is loaded.
+	 * @param entry the file or directory
+	 */
+	private void loaded(File entry) {
+		if (entry.isDirectory())
+			engine.directoryLoaded(entry.getAbsolutePath());
+		LoadRequest request = loadRoots.remove(entry.getAbsolutePath());
+		if (request != null && --request.remaining <= 0)
+			request.completion.complete(request.files);
+		File parent = entry.getParentFile();
+		if (parent == null)
+			return;
+		String parentPath = parent.getAbsolutePath();
+		Integer pending = pendingEntries.get(parentPath);
+		if (pending == null) {
+			/* entry was added with load(), not found in a directory */
+			return;
+		}
+		if (pending > 1) {
+			pendingEntries.put(parentPath, pending - 1);
+		} else {
+			pendingEntries.remove(parentPath);
+			loaded(parent);
+		}
+	}
+
+	/**
+	 * Get whether the thread is active.
+	 * @return true if the thread is active, false if it's stopped
+	 */
+	private synchronized boolean active() {
+		return active;
+	}
+
 	/**
 	 * Make thread go to sleep.
 	 */
 	private synchronized void sleep() {
 		try {
-			wait();
+			/* files may have been queued or the thread stopped since the queues were checked */
+			if (active && loadQueue.isEmpty() && saveQueue.isEmpty())
+				wait();
 		} catch (InterruptedException e) {
 			/* this never really happens */
 			LOG.warning(e, "Could not put thread to sleep");
@@ -174,4 +282,116 @@ public final class FileHandler implements Runnable {
 	private synchronized void wake() {
 		notify();
 	}
+
+	/**
+	 * A directory/file in the load queue.
+	 */
+	private static final class Load {
+
+		/**
+		 * Path of the directory/file.
+		 */
+		private String path;
+		/**
+		 * The load request the directory/file is loaded for.
+		 */
+		private LoadRequest request;
+		/**
+		 * Whether the directory/file was given to load(), not found in a directory.
+		 */
+		private boolean root;
+
+		/**
+		 * Default constructor.
+		 * @param path path of the directory/file
+		 * @param request the load request the directory/file is loaded for
+		 * @param root whether the directory/file was given to load()
+		 */
+		private Load(String path, LoadRequest request, boolean root) {
+			this.path = path;
+			this.request = request;
+			this.root = root;
+		}
+	}
+
+	/**
+	 * Directories/files given to one call of load(), and the files read from them so far.
+	 * Only used by the thread loading files once created.
+	 */
+	private static final class LoadRequest {
+
+		/**
+		 * Completed when all the directories/files are loaded.
+		 */
+		private Completion<List<Metafile>> completion = new Completion<List<Metafile>>();
+		/**
+		 * Files read so far.
+		 */
+		private List<Metafile> files = new ArrayList<Metafile>();
+		/**
+		 * Amount of directories/files given to load() not yet loaded.
+		 */
+		private int remaining;
+
+		/**
+		 * Default constructor.
+		 * @param remaining amount of directories/files given to load()
+		 */
+		private LoadRequest(int remaining) {
+			this.remaining = remaining;
+		}
+	}
+
+	/**
+	 * A file in the save queue.
+	 */
+	private static final class Save {
+
+		/**
+		 * The file.
+		 */
+		private Metafile file;
+		/**
+		 * The save request the file is saved for.
+		 */
+		private SaveRequest request;
+
+		/**
+		 * Default constructor.
+		 * @param file the file
+		 * @param request the save request the file is saved for
+		 */
+		private Save(Metafile file, SaveRequest request) {
+			this.file = file;
+			this.request = request;
+		}
+	}
+
+	/**
+	 * Files given to one call of save(), and the files saved so far.
+	 * Only used by the thread saving files once created.
+	 */
+	private static final class SaveRequest {
+
+		/**
+		 * Completed when all the files are saved or failed to save.
+		 */
+		private Completion<List<Metafile>> completion = new Completion<List<Metafile>>();
+		/**
+		 * Files saved so far.
+		 */
+		private List<Metafile> saved = new ArrayList<Metafile>();
+		/**
+		 * Amount of files not yet saved.
+		 */
+		private int remaining;
+
+		/**
+		 * Default constructor.
+		 * @param remaining amount of files given to save()
+		 */
+		private SaveRequest(int remaining) {
+			this.remaining = remaining;
+		}
+	}
 }
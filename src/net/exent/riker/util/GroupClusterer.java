@@ -0,0 +1,394 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import net.exent.riker.metadata.Group;
+import net.exent.riker.metadata.GroupRegistry;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metrics.Metrics;
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * Clusters groups holding parts of the same album before they're matched.
+ * Files are grouped by release MBID, album tag or directory, so an album with inconsistent album tags, or with its discs in subdirectories
+ * like "CD1" and "CD2", ends up as several small groups that are each searched for.
+ * Groups in the same format with all files in the same directory, or in disc subdirectories of the same directory, are blocked together.
+ * Within a block only groups sharing a trigram of their album tag are compared, as are groups without an album tag.
+ * Groups are merged when their album tags are similar, their release MBIDs don't differ, no track number is used twice in a directory
+ * and the total duration fits on the discs.
+ * Clustering can be disabled, the engine disables it when the property "riker.cluster" is false.
+ */
+public class GroupClusterer {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(GroupClusterer.class);
+	/**
+	 * How similar album tags must be for groups to be merged.
+	 */
+	private static final double TAG_SIMILARITY = 0.7;
+	/**
+	 * Longest duration of a disc in seconds, a cluster can't be longer than this for each directory it got files in.
+	 */
+	private static final int MAX_DISC_SECONDS = 100 * 60;
+	/**
+	 * Trigrams found in the album tags of more groups than this in a block aren't used for finding groups to compare.
+	 */
+	private static final int MAX_TRIGRAM_GROUPS = 50;
+	/**
+	 * Names of disc subdirectories, like "CD1", "Disc 2" or "disk_3".
+	 */
+	private static final Pattern DISC_DIRECTORY = Pattern.compile("(?i)(cd|dis[ck]|dvd)[ _.-]*\\d+.*");
+	/**
+	 * The registry the clustered groups are merged in.
+	 */
+	private GroupRegistry groups;
+	/**
+	 * Whether groups are clustered.
+	 */
+	private boolean enabled;
+
+	/**
+	 * Default constructor.
+	 * @param groups the registry the clustered groups are merged in
+	 * @param enabled whether groups are clustered, when false cluster() returns the groups as they are
+	 */
+	public GroupClusterer(GroupRegistry groups, boolean enabled) {
+		this.groups = groups;
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Get the directory a group got disc subdirectories in.
+	 * @param group the group
+	 * @return the directory, or null if clustering is disabled or the files aren't all in disc subdirectories of one directory
+	 */
+	public String discParent(Group group) {
+		if (!enabled)
+			return null;
+		String parent = null;
+		for (Metafile file : group.files()) {
+			File directory = file.getFile().getParentFile();
+			if (directory == null || directory.getParentFile() == null || !DISC_DIRECTORY.matcher(directory.getName()).matches())
+				return null;
+			String path = directory.getParentFile().getAbsolutePath();
+			if (parent == null)
+				parent = path;
+			else if (!parent.equals(path))
+				return null;
+		}
+		return parent;
+	}
+
+	/**
+	 * Merge the groups holding parts of the same album.
+	 * @param unclustered the groups to cluster
+	 * @return the groups left after merging
+	 */
+	public List<Group> cluster(List<Group> unclustered) {
+		if (!enabled || unclustered.size() < 2)
+			return unclustered;
+		/* block groups by format and album directory */
+		Map<String, List<Cluster>> blocks = new LinkedHashMap<String, List<Cluster>>();
+		List<Group> clustered = new ArrayList<Group>();
+		for (Group group : unclustered) {
+			Cluster cluster = new Cluster(group);
+			if (cluster.block == null) {
+				clustered.add(group);
+				continue;
+			}
+			List<Cluster> block = blocks.get(cluster.block);
+			if (block == null) {
+				block = new ArrayList<Cluster>();
+				blocks.put(cluster.block, block);
+			}
+			block.add(cluster);
+		}
+		for (List<Cluster> block : blocks.values()) {
+			if (block.size() == 1)
+				clustered.add(block.get(0).groups.get(0));
+			else
+				clustered.addAll(clusterBlock(block));
+		}
+		return clustered;
+	}
+
+	/**
+	 * Merge the groups in a block holding parts of the same album.
+	 * @param block the groups with files in the same album directory and format
+	 * @return the groups left after merging
+	 */
+	private List<Group> clusterBlock(List<Cluster> block) {
+		/* find pairs of groups worth comparing, groups without album tag are compared with all groups */
+		Map<String, List<Integer>> trigrams = new HashMap<String, List<Integer>>();
+		List<Integer> untagged = new ArrayList<Integer>();
+		for (int index = 0; index < block.size(); ++index) {
+			String album = block.get(index).album;
+			if (album == null) {
+				untagged.add(index);
+				continue;
+			}
+			for (String trigram : trigrams(album)) {
+				List<Integer> indices = trigrams.get(trigram);
+				if (indices == null) {
+					indices = new ArrayList<Integer>();
+					trigrams.put(trigram, indices);
+				}
+				indices.add(index);
+			}
+		}
+		Set<Long> seen = new HashSet<Long>();
+		final List<long[]> pairs = new ArrayList<long[]>();
+		final List<Double> similarities = new ArrayList<Double>();
+		for (List<Integer> indices : trigrams.values()) {
+			if (indices.size() > MAX_TRIGRAM_GROUPS)
+				continue;
+			for (int a = 0; a < indices.size(); ++a) {
+				for (int b = a + 1; b < indices.size(); ++b)
+					addPair(block, indices.get(a), indices.get(b), seen, pairs, similarities);
+			}
+		}
+		for (int index : untagged) {
+			for (int other = 0; other < block.size(); ++other) {
+				if (other != index)
+					addPair(block, Math.min(index, other), Math.max(index, other), seen, pairs, similarities);
+			}
+		}
+		/* merge the most similar groups first */
+		List<Integer> order = new ArrayList<Integer>();
+		for (int index = 0; index < pairs.size(); ++index)
+			order.add(index);
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer pair1, Integer pair2) {
+				return similarities.get(pair2).compareTo(similarities.get(pair1));
+			}
+		});
+		Cluster[] clusters = block.toArray(new Cluster[block.size()]);
+		for (int index : order) {
+			Cluster cluster1 = clusters[(int) pairs.get(index)[0]];
+			Cluster cluster2 = clusters[(int) pairs.get(index)[1]];
+			if (cluster1 == cluster2 || !cluster1.compatible(cluster2))
+				continue;
+			cluster1.merge(cluster2);
+			for (int a = 0; a < clusters.length; ++a) {
+				if (clusters[a] == cluster2)
+					clusters[a] = cluster1;
+			}
+		}
+		/* move the files to the largest group of each cluster */
+		List<Group> clustered = new ArrayList<Group>();
+		Set<Cluster> done = new HashSet<Cluster>();
+		for (Cluster cluster : clusters) {
+			if (!done.add(cluster))
+				continue;
+			Group largest = cluster.groups.get(0);
+			for (Group group : cluster.groups) {
+				if (group.fileCount() > largest.fileCount())
+					largest = group;
+			}
+			for (Group group : cluster.groups) {
+				if (group == largest)
+					continue;
+				LOG.info("Merging group \"", group, "\" into \"", largest, "\", they hold parts of the same album");
+				groups.merge(largest, group);
+				Metrics.GROUPS_CLUSTERED.increment();
+			}
+			clustered.add(largest);
+		}
+		return clustered;
+	}
+
+	/**
+	 * Add a pair of groups to compare, unless it's already added or the album tags aren't similar enough.
+	 * @param block the groups in the block
+	 * @param index1 index of the first group
+	 * @param index2 index of the second group, larger than the first
+	 * @param seen the pairs already found, as both indices in a long
+	 * @param pairs the pairs to compare
+	 * @param similarities the similarity of the album tags of each pair
+	 */
+	private static void addPair(List<Cluster> block, int index1, int index2, Set<Long> seen, List<long[]> pairs, List<Double> similarities) {
+		if (!seen.add(((long) index1 << 32) | index2))
+			return;
+		String album1 = block.get(index1).album;
+		String album2 = block.get(index2).album;
+		/* groups without album tag only got the directory in common, rank them after groups with similar tags */
+		double similarity = album1 == null || album2 == null ? TAG_SIMILARITY : Levenshtein.similarity(album1, album2);
+		if (similarity < TAG_SIMILARITY)
+			return;
+		pairs.add(new long[] {index1, index2});
+		similarities.add(similarity);
+	}
+
+	/**
+	 * Get the trigrams of a text.
+	 * @param text the text
+	 * @return the lowercase trigrams, or the whole text if it's shorter than a trigram
+	 */
+	private static Set<String> trigrams(String text) {
+		String lowercase = text.toLowerCase();
+		Set<String> trigrams = new HashSet<String>();
+		if (lowercase.length() < 3)
+			trigrams.add(lowercase);
+		for (int a = 0; a + 3 <= lowercase.length(); ++a)
+			trigrams.add(lowercase.substring(a, a + 3));
+		return trigrams;
+	}
+
+	/**
+	 * Parse the track number from a tag, like "3", "03" or "3/12".
+	 * @param tag the tag
+	 * @return the track number, or -1 if the tag doesn't start with a number
+	 */
+	private static int tracknumber(String tag) {
+		if (tag == null)
+			return -1;
+		int number = 0;
+		int digits = 0;
+		for (int a = 0; a < tag.length() && Character.isDigit(tag.charAt(a)) && digits < 6; ++a, ++digits)
+			number = number * 10 + Character.digit(tag.charAt(a), 10);
+		return digits > 0 ? number : -1;
+	}
+
+	/**
+	 * Groups believed to hold parts of the same album.
+	 */
+	private static final class Cluster {
+
+		/**
+		 * The groups.
+		 */
+		private List<Group> groups = new ArrayList<Group>();
+		/**
+		 * Format and album directory of the files, null if the files are in different album directories.
+		 */
+		private String block;
+		/**
+		 * The most common album tag, null if no file got an album tag.
+		 */
+		private String album;
+		/**
+		 * The release MBID of the files, null if no file got one.
+		 */
+		private String mbid;
+		/**
+		 * Track numbers used, with the directory they're used in.
+		 */
+		private Set<String> tracks = new HashSet<String>();
+		/**
+		 * Directories with files.
+		 */
+		private Set<String> directories = new HashSet<String>();
+		/**
+		 * Total duration of the files in seconds.
+		 */
+		private long seconds;
+
+		/**
+		 * Default constructor, describes a single group.
+		 * @param group the group
+		 */
+		private Cluster(Group group) {
+			groups.add(group);
+			Map<String, Integer> albums = new HashMap<String, Integer>();
+			int bestCount = 0;
+			for (Metafile file : group.files()) {
+				File directory = file.getFile().getParentFile();
+				if (directory == null) {
+					block = null;
+					return;
+				}
+				String path = directory.getAbsolutePath();
+				File albumDirectory = DISC_DIRECTORY.matcher(directory.getName()).matches() && directory.getParentFile() != null ? directory.getParentFile() : directory;
+				String fileBlock = file.getAudioHeader().getFormat() + "\t" + file.getAudioHeader().getSampleRate() + "\t" + file.getAudioHeader().getChannels() + "\t" + albumDirectory.getAbsolutePath();
+				int tracknumber = tracknumber(file.getFirst(FieldKey.TRACK));
+				/* groups spanning several albums or using a track number twice aren't clustered */
+				if ((block != null && !block.equals(fileBlock)) || (tracknumber > 0 && !tracks.add(path + "\t" + tracknumber))) {
+					block = null;
+					return;
+				}
+				block = fileBlock;
+				directories.add(path);
+				seconds += Math.max(0, file.getAudioHeader().getTrackLength());
+				if (mbid == null)
+					mbid = file.getFirst(FieldKey.MUSICBRAINZ_RELEASEID);
+				String fileAlbum = file.getFirst(FieldKey.ALBUM);
+				if (fileAlbum != null) {
+					Integer count = albums.get(fileAlbum);
+					count = count == null ? 1 : count + 1;
+					albums.put(fileAlbum, count);
+					if (count > bestCount) {
+						album = fileAlbum;
+						bestCount = count;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Check whether another cluster can be merged with this one.
+		 * @param other the other cluster
+		 * @return true if the clusters don't got different release MBIDs, use different track numbers and fit on their discs
+		 */
+		private boolean compatible(Cluster other) {
+			if (mbid != null && other.mbid != null && !mbid.equals(other.mbid))
+				return false;
+			for (String track : other.tracks) {
+				if (tracks.contains(track))
+					return false;
+			}
+			Set<String> allDirectories = new HashSet<String>(directories);
+			allDirectories.addAll(other.directories);
+			return seconds + other.seconds <= (long) MAX_DISC_SECONDS * allDirectories.size();
+		}
+
+		/**
+		 * Merge another cluster into this one.
+		 * @param other the other cluster
+		 */
+		private void merge(Cluster other) {
+			groups.addAll(other.groups);
+			tracks.addAll(other.tracks);
+			directories.addAll(other.directories);
+			seconds += other.seconds;
+			if (mbid == null)
+				mbid = other.mbid;
+			if (album == null)
+				album = other.album;
+		}
+	}
+}
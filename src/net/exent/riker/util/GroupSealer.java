@@ -0,0 +1,147 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.exent.riker.metadata.Group;
+import net.exent.riker.metadata.GroupRegistry;
+import net.exent.riker.metadata.Metafile;
+
+/**
+ * Seals groups while files are loaded, so they can be matched before all files are loaded.
+ * A group is sealed when every directory with its files is completely loaded, groups in disc subdirectories are held back
+ * until the directory with the disc subdirectories is loaded, so the discs can be clustered.
+ */
+public class GroupSealer {
+
+	/**
+	 * The registry the groups are sealed in.
+	 */
+	private GroupRegistry groups;
+	/**
+	 * Finds the directory groups got disc subdirectories in.
+	 */
+	private GroupClusterer clusterer;
+	/**
+	 * Directories not completely loaded with files of each group.
+	 */
+	private Map<Group, Set<String>> openGroups = new HashMap<Group, Set<String>>();
+	/**
+	 * Groups with files in each directory not completely loaded.
+	 */
+	private Map<String, Set<Group>> openDirectories = new HashMap<String, Set<Group>>();
+	/**
+	 * Sealed groups in disc subdirectories keyed by the directory with the disc subdirectories.
+	 */
+	private Map<String, List<Group>> discGroups = new HashMap<String, List<Group>>();
+
+	/**
+	 * Default constructor.
+	 * @param groups the registry the groups are sealed in
+	 * @param clusterer the clusterer finding the directory groups got disc subdirectories in
+	 */
+	public GroupSealer(GroupRegistry groups, GroupClusterer clusterer) {
+		this.groups = groups;
+		this.clusterer = clusterer;
+	}
+
+	/**
+	 * Record that a file was added to a group, the group can't be sealed before the directory with the file is completely loaded.
+	 * @param group the group
+	 * @param file the file
+	 */
+	public synchronized void fileAdded(Group group, Metafile file) {
+		String directory = file.getFile().getParentFile().getAbsolutePath();
+		Set<String> directories = openGroups.get(group);
+		if (directories == null) {
+			directories = new HashSet<String>();
+			openGroups.put(group, directories);
+		}
+		directories.add(directory);
+		Set<Group> directoryGroups = openDirectories.get(directory);
+		if (directoryGroups == null) {
+			directoryGroups = new HashSet<Group>();
+			openDirectories.put(directory, directoryGroups);
+		}
+		directoryGroups.add(group);
+	}
+
+	/**
+	 * Seal the groups without files in other directories that are being loaded.
+	 * @param directory path of the directory that is completely loaded
+	 * @return the sealed groups that can be matched
+	 */
+	public synchronized List<Group> directoryLoaded(String directory) {
+		List<Group> sealed = new ArrayList<Group>();
+		Set<Group> directoryGroups = openDirectories.remove(directory);
+		if (directoryGroups != null) {
+			for (Group group : directoryGroups) {
+				Set<String> directories = openGroups.get(group);
+				directories.remove(directory);
+				if (directories.isEmpty()) {
+					openGroups.remove(group);
+					groups.seal(group);
+					String discParent = clusterer.discParent(group);
+					if (discParent == null) {
+						sealed.add(group);
+					} else {
+						/* wait for the other discs */
+						List<Group> discs = discGroups.get(discParent);
+						if (discs == null) {
+							discs = new ArrayList<Group>();
+							discGroups.put(discParent, discs);
+						}
+						discs.add(group);
+					}
+				}
+			}
+		}
+		/* disc subdirectories are loaded before the directory they're in */
+		List<Group> discs = discGroups.remove(directory);
+		if (discs != null)
+			sealed.addAll(discs);
+		return sealed;
+	}
+
+	/**
+	 * Seal the groups that are left when all files are loaded, files given to load() aren't in a directory being loaded.
+	 * @return the sealed groups that can be matched
+	 */
+	public synchronized List<Group> allFilesLoaded() {
+		List<Group> sealed = new ArrayList<Group>(openGroups.keySet());
+		for (Group group : sealed)
+			groups.seal(group);
+		for (List<Group> discs : discGroups.values())
+			sealed.addAll(discs);
+		openGroups.clear();
+		openDirectories.clear();
+		discGroups.clear();
+		return sealed;
+	}
+}
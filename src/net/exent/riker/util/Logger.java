@@ -23,33 +23,52 @@
  */
 package net.exent.riker.util;
 
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Formatter;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
 
 /**
  * A wrapper and convenience class for logging.
- * This class simplifies logging by checking if log level is enabled for you.
- * It also optimize logging by concatenating text using a StringBuilder.
+ * Log calls are cheap: if the level is enabled the data is put in a lock-free ring buffer and one writer thread concatenates and writes it.
+ * Data other than strings, boxed primitives and enums is turned into a string when it's logged, as the object may change before it's written.
+ * Calls at a disabled level return immediately, but the varargs array is still created by the caller,
+ * so guard logging in hot code with isDebugEnabled() and friends.
  * The downside is that when logging exceptions you'll have to specify the exception before the text.
+ * The log level is set with the system property "riker.log.level" (TRACE, DEBUG, INFO, NOTICE, WARNING or ERROR, default NOTICE)
+ * and what to do when the ring buffer is full with "riker.log.overflow" (BLOCK, DROP or DROP_UNIMPORTANT, default BLOCK).
  */
 public class Logger {
 
 	/**
-	 * A reference to the Logger library.
+	 * Lowest level that is logged.
 	 */
-	private java.util.logging.Logger logger;
+	private static final Level THRESHOLD = LoggerLevel.parse(System.getProperty("riker.log.level"), LoggerLevel.NOTICE);
+	/**
+	 * Value of lowest level that is logged.
+	 */
+	private static final int THRESHOLD_VALUE = THRESHOLD.intValue();
+	/**
+	 * The ring buffer and writer thread shared by all loggers.
+	 */
+	private static final AsyncWriter WRITER = new AsyncWriter(4096, OverflowPolicy.parse(System.getProperty("riker.log.overflow")));
+	/**
+	 * Name of the class we're logging for.
+	 */
+	private String name;
 
 	static {
-		Handler consoleHandler = new ConsoleHandler();
-		consoleHandler.setFormatter(new LoggerFormatter());
-		consoleHandler.setLevel(LoggerLevel.NOTICE);
+		/* send messages from libraries using java.util.logging through our writer as well */
+		Handler handler = new AsyncHandler();
+		handler.setLevel(THRESHOLD);
 		for (Handler h : java.util.logging.Logger.getLogger("").getHandlers())
 			java.util.logging.Logger.getLogger("").removeHandler(h);
-		java.util.logging.Logger.getLogger("").addHandler(consoleHandler);
-		java.util.logging.Logger.getLogger("").setLevel(Level.ALL);
+		java.util.logging.Logger.getLogger("").addHandler(handler);
+		java.util.logging.Logger.getLogger("").setLevel(THRESHOLD);
 	}
 
 	/**
@@ -57,7 +76,47 @@ public class Logger {
 	 * @param clazz The class we're logging for.
 	 */
 	public Logger(Class clazz) {
-		logger = java.util.logging.Logger.getLogger(clazz.getName());
+		name = clazz.getName();
+	}
+
+	/**
+	 * Check whether trace level is enabled.
+	 * @return true if messages at trace level are logged
+	 */
+	public boolean isTraceEnabled() {
+		return THRESHOLD_VALUE <= LoggerLevel.TRACE_VALUE;
+	}
+
+	/**
+	 * Check whether debug level is enabled.
+	 * @return true if messages at debug level are logged
+	 */
+	public boolean isDebugEnabled() {
+		return THRESHOLD_VALUE <= LoggerLevel.DEBUG_VALUE;
+	}
+
+	/**
+	 * Check whether info level is enabled.
+	 * @return true if messages at info level are logged
+	 */
+	public boolean isInfoEnabled() {
+		return THRESHOLD_VALUE <= LoggerLevel.INFO_VALUE;
+	}
+
+	/**
+	 * Check whether notice level is enabled.
+	 * @return true if messages at notice level are logged
+	 */
+	public boolean isNoticeEnabled() {
+		return THRESHOLD_VALUE <= LoggerLevel.NOTICE_VALUE;
+	}
+
+	/**
+	 * Check whether warning level is enabled.
+	 * @return true if messages at warning level are logged
+	 */
+	public boolean isWarningEnabled() {
+		return THRESHOLD_VALUE <= LoggerLevel.WARNING_VALUE;
 	}
 
 	/**
@@ -65,7 +124,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void trace(Object... data) {
-		log(LoggerLevel.TRACE, null, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.TRACE_VALUE)
+			log(LoggerLevel.TRACE, null, data);
 	}
 
 	/**
@@ -74,7 +134,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void trace(Throwable t, Object... data) {
-		log(LoggerLevel.TRACE, t, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.TRACE_VALUE)
+			log(LoggerLevel.TRACE, t, data);
 	}
 
 	/**
@@ -82,7 +143,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void debug(Object... data) {
-		log(LoggerLevel.DEBUG, null, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.DEBUG_VALUE)
+			log(LoggerLevel.DEBUG, null, data);
 	}
 
 	/**
@@ -91,7 +153,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void debug(Throwable t, Object... data) {
-		log(LoggerLevel.DEBUG, t, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.DEBUG_VALUE)
+			log(LoggerLevel.DEBUG, t, data);
 	}
 
 	/**
@@ -99,7 +162,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void info(Object... data) {
-		log(LoggerLevel.INFO, null, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.INFO_VALUE)
+			log(LoggerLevel.INFO, null, data);
 	}
 
 	/**
@@ -108,7 +172,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void info(Throwable t, Object... data) {
-		log(LoggerLevel.INFO, t, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.INFO_VALUE)
+			log(LoggerLevel.INFO, t, data);
 	}
 
 	/**
@@ -116,7 +181,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void notice(Object... data) {
-		log(LoggerLevel.NOTICE, null, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.NOTICE_VALUE)
+			log(LoggerLevel.NOTICE, null, data);
 	}
 
 	/**
@@ -125,7 +191,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void notice(Throwable t, Object... data) {
-		log(LoggerLevel.NOTICE, t, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.NOTICE_VALUE)
+			log(LoggerLevel.NOTICE, t, data);
 	}
 
 	/**
@@ -133,7 +200,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void warning(Object... data) {
-		log(LoggerLevel.WARNING, null, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.WARNING_VALUE)
+			log(LoggerLevel.WARNING, null, data);
 	}
 
 	/**
@@ -142,7 +210,8 @@ public class Logger {
 	 * @param data data to be logged.
 	 */
 	public void warning(Throwable t, Object... data) {
-		log(LoggerLevel.WARNING, t, data);
+		if (THRESHOLD_VALUE <= LoggerLevel.WARNING_VALUE)
+			log(LoggerLevel.WARNING, t, data);
 	}
 
 	/**
@@ -163,27 +232,68 @@ public class Logger {
 	}
 
 	/**
-	 * Helper method, calls logging library.
+	 * Get the amount of messages dropped because the ring buffer was full.
+	 * @return the amount of dropped messages
+	 */
+	public static long dropped() {
+		return WRITER.dropped.get();
+	}
+
+	/**
+	 * Helper method, hands the message to the writer thread.
 	 * @param level The level to log at.
 	 * @param t Throwable to be logged.
 	 * @param data data to be logged.
 	 */
 	private void log(Level level, Throwable t, Object... data) {
-		if (!logger.isLoggable(level))
-			return;
-		logger.log(level, unwrap(data), t);
+		for (int index = 0; data != null && index < data.length; ++index) {
+			if (!immutable(data[index]))
+				data[index] = String.valueOf(data[index]);
+		}
+		WRITER.offer(level, name, Thread.currentThread().getId(), System.currentTimeMillis(), t, data);
 	}
 
 	/**
-	 * Helper method, concatenates an array of objects efficiently.
-	 * @param data Array to be concatenated as a String.
-	 * @return A concatenated String containing the data from the supplied array.
+	 * Check whether logged data can be turned into a string by the writer thread, because it can't change after being logged.
+	 * @param value the data
+	 * @return true if the data is null, a string, a boxed primitive or an enum
 	 */
-	private String unwrap(Object... data) {
-		StringBuilder sb = new StringBuilder(256);
-		for (Object d : data)
-			sb.append(d);
-		return sb.toString();
+	private static boolean immutable(Object value) {
+		return value == null || value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Double
+				|| value instanceof Boolean || value instanceof Character || value instanceof Float || value instanceof Short
+				|| value instanceof Byte || value instanceof Enum;
+	}
+
+	/**
+	 * What to do when the ring buffer is full.
+	 */
+	private enum OverflowPolicy {
+
+		/**
+		 * Drop the message.
+		 */
+		DROP,
+		/**
+		 * Wait until there's room for the message.
+		 */
+		BLOCK,
+		/**
+		 * Wait until there's room for warnings and errors, drop anything less important.
+		 */
+		DROP_UNIMPORTANT;
+
+		/**
+		 * Get policy with given name.
+		 * @param name name of policy, may be null
+		 * @return policy with given name, or BLOCK if there is no such policy
+		 */
+		private static OverflowPolicy parse(String name) {
+			for (OverflowPolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name))
+					return policy;
+			}
+			return BLOCK;
+		}
 	}
 
 	/**
@@ -207,6 +317,26 @@ public class Logger {
 		 * Trace log level.
 		 */
 		public static final LoggerLevel TRACE = new LoggerLevel("TRACE", 550);
+		/**
+		 * Value of warning log level.
+		 */
+		private static final int WARNING_VALUE = WARNING.intValue();
+		/**
+		 * Value of notice log level.
+		 */
+		private static final int NOTICE_VALUE = NOTICE.intValue();
+		/**
+		 * Value of info log level.
+		 */
+		private static final int INFO_VALUE = INFO.intValue();
+		/**
+		 * Value of debug log level.
+		 */
+		private static final int DEBUG_VALUE = DEBUG.intValue();
+		/**
+		 * Value of trace log level.
+		 */
+		private static final int TRACE_VALUE = TRACE.intValue();
 
 		/**
 		 * Private constructor to prevent instantiation.
@@ -216,42 +346,366 @@ public class Logger {
 		private LoggerLevel(String name, int value) {
 			super(name, value);
 		}
+
+		/**
+		 * Get level with given name.
+		 * @param name name of level, may be null
+		 * @param defaultLevel level returned if there is no level with given name
+		 * @return level with given name
+		 */
+		private static Level parse(String name, Level defaultLevel) {
+			Level[] levels = {TRACE, DEBUG, INFO, NOTICE, WARNING, ERROR};
+			for (Level level : levels) {
+				if (level.getName().equalsIgnoreCase(name))
+					return level;
+			}
+			return defaultLevel;
+		}
 	}
 
 	/**
-	 * A Formatter for our logging.
+	 * Handler for messages logged through java.util.logging by libraries.
 	 */
-	private static class LoggerFormatter extends Formatter {
+	private static class AsyncHandler extends Handler {
 
 		/**
-		 * String format when logging a message without a throwable.
+		 * Formatter used to format the message of log records.
 		 */
-		private static final String WITHOUT_THROWABLE = "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS.%1$tL [%2$-7.7s] [Thread-%3$-3.3s] [%4$-50.50s] %5$s%n";
+		private SimpleFormatter formatter = new SimpleFormatter();
+
+		@Override
+		public void publish(LogRecord record) {
+			if (!isLoggable(record))
+				return;
+			WRITER.offer(record.getLevel(), record.getLoggerName(), record.getThreadID(), record.getMillis(), record.getThrown(), new Object[] {formatter.formatMessage(record)});
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * A bounded lock-free ring buffer with many producers and one consumer, the writer thread.
+	 * Each slot got a sequence number telling whether the slot is free for the producer claiming that position or ready for the consumer.
+	 * The writer formats messages and writes them to stderr in batches.
+	 */
+	private static final class AsyncWriter implements Runnable {
+
 		/**
-		 * String format when logging a message with a throwable.
+		 * Largest amount of characters written in one batch.
 		 */
-		private static final String WITH_THROWABLE = WITHOUT_THROWABLE + "%6$s";
+		private static final int BATCH_SIZE = 16384;
 		/**
 		 * The newline character for this system.
 		 */
 		private static final String NEWLINE = System.getProperty("line.separator");
+		/**
+		 * What to do when the buffer is full.
+		 */
+		private OverflowPolicy policy;
+		/**
+		 * Capacity - 1, capacity is a power of 2.
+		 */
+		private int mask;
+		/**
+		 * The slots in the buffer.
+		 */
+		private Entry[] entries;
+		/**
+		 * Sequence number of each slot.
+		 */
+		private AtomicLongArray sequences;
+		/**
+		 * Next position a producer will claim.
+		 */
+		private AtomicLong tail = new AtomicLong();
+		/**
+		 * Next position the writer will read, only used by the writer thread.
+		 */
+		private long head;
+		/**
+		 * Amount of messages dropped because the buffer was full.
+		 */
+		private AtomicLong dropped = new AtomicLong();
+		/**
+		 * Amount of dropped messages the writer has reported.
+		 */
+		private long droppedReported;
+		/**
+		 * The writer thread.
+		 */
+		private Thread thread;
+		/**
+		 * Whether the writer thread is about to park.
+		 */
+		private volatile boolean idle;
+		/**
+		 * Buffer for formatted messages, only used by the writer thread.
+		 */
+		private StringBuilder output = new StringBuilder(BATCH_SIZE * 2);
+		/**
+		 * Calendar used for formatting timestamps, only used by the writer thread.
+		 */
+		private Calendar calendar = Calendar.getInstance();
+
+		/**
+		 * Create buffer and start writer thread.
+		 * @param capacity capacity of the buffer, rounded up to a power of 2
+		 * @param policy what to do when the buffer is full
+		 */
+		private AsyncWriter(int capacity, OverflowPolicy policy) {
+			this.policy = policy;
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			mask = size - 1;
+			entries = new Entry[size];
+			sequences = new AtomicLongArray(size);
+			for (int a = 0; a < size; ++a) {
+				entries[a] = new Entry();
+				sequences.set(a, a);
+			}
+			thread = new Thread(this, "Logger");
+			thread.setDaemon(true);
+			thread.start();
+			/* write what's left in the buffer when the application exits */
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		}
 
 		/**
-		 * Format a LogRecord.
-		 * @param record The LogRecord to format.
-		 * @return The formatted LogRecord.
+		 * Put a message in the buffer.
+		 * @param level level of message
+		 * @param logger name of logger
+		 * @param threadId id of the thread logging the message
+		 * @param millis when the message was logged
+		 * @param t throwable to be logged
+		 * @param data data to be logged
+		 */
+		private void offer(Level level, String logger, long threadId, long millis, Throwable t, Object[] data) {
+			long position;
+			while (true) {
+				position = claim();
+				if (position >= 0)
+					break;
+				boolean block = policy == OverflowPolicy.BLOCK || (policy == OverflowPolicy.DROP_UNIMPORTANT && level.intValue() >= LoggerLevel.WARNING_VALUE);
+				if (!block || Thread.currentThread() == thread) {
+					dropped.incrementAndGet();
+					return;
+				}
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(100000L);
+			}
+			int slot = (int) position & mask;
+			Entry entry = entries[slot];
+			entry.level = level;
+			entry.logger = logger;
+			entry.threadId = threadId;
+			entry.millis = millis;
+			entry.throwable = t;
+			entry.data = data;
+			/* publish the entry to the writer */
+			sequences.lazySet(slot, position + 1);
+			if (idle)
+				LockSupport.unpark(thread);
+		}
+
+		/**
+		 * Claim a position in the buffer.
+		 * @return the claimed position, or -1 if the buffer is full
+		 */
+		private long claim() {
+			long position = tail.get();
+			while (true) {
+				long difference = sequences.get((int) position & mask) - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1))
+						return position;
+				} else if (difference < 0) {
+					return -1;
+				}
+				position = tail.get();
+			}
+		}
+
+		/**
+		 * Write messages until the application exits.
 		 */
 		@Override
-		public String format(LogRecord record) {
-			if (record.getThrown() != null) {
-				StringBuilder sb = new StringBuilder(1024);
-				sb.append(record.getThrown()).append(NEWLINE);
-				for (StackTraceElement ste : record.getThrown().getStackTrace())
-					sb.append("        at ").append(ste).append(NEWLINE);
-				return String.format(WITH_THROWABLE, System.currentTimeMillis(), record.getLevel().getName(), record.getThreadID(), record.getLoggerName(), record.getMessage(), sb);
-			} else {
-				return String.format(WITHOUT_THROWABLE, System.currentTimeMillis(), record.getLevel().getName(), record.getThreadID(), record.getLoggerName(), record.getMessage());
+		public void run() {
+			while (true) {
+				if (!drain()) {
+					idle = true;
+					/* check again, a producer may have published right before we became idle */
+					if (!ready())
+						LockSupport.parkNanos(10000000L);
+					idle = false;
+				}
+			}
+		}
+
+		/**
+		 * Write all messages in the buffer.
+		 * @return true if any messages were written
+		 */
+		private synchronized boolean drain() {
+			boolean written = false;
+			while (poll()) {
+				written = true;
+				if (output.length() >= BATCH_SIZE)
+					flush();
+			}
+			long droppedNow = dropped.get();
+			if (droppedNow != droppedReported) {
+				output.append("[").append(droppedNow - droppedReported).append(" log messages dropped, log buffer was full]").append(NEWLINE);
+				droppedReported = droppedNow;
+			}
+			flush();
+			return written;
+		}
+
+		/**
+		 * Check whether the next message in the buffer is ready to be written.
+		 * @return true if the next message is ready
+		 */
+		private boolean ready() {
+			return sequences.get((int) head & mask) == head + 1;
+		}
+
+		/**
+		 * Format the next message in the buffer, if any.
+		 * @return true if a message was formatted
+		 */
+		private boolean poll() {
+			if (!ready())
+				return false;
+			int slot = (int) head & mask;
+			Entry entry = entries[slot];
+			format(entry);
+			entry.clear();
+			/* free the slot for the producer that will claim it one lap later */
+			sequences.lazySet(slot, head + mask + 1);
+			++head;
+			return true;
+		}
+
+		/**
+		 * Format a message, replaces String.format() which is slow.
+		 * Format: yyyy-MM-dd HH:mm:ss.SSS [LEVEL  ] [Thread-ID ] [logger name, padded to 50 chars] message
+		 * @param entry the message
+		 */
+		private void format(Entry entry) {
+			calendar.setTimeInMillis(entry.millis);
+			output.append(calendar.get(Calendar.YEAR)).append('-');
+			pad(calendar.get(Calendar.MONTH) + 1, 2).append('-');
+			pad(calendar.get(Calendar.DAY_OF_MONTH), 2).append(' ');
+			pad(calendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+			pad(calendar.get(Calendar.MINUTE), 2).append(':');
+			pad(calendar.get(Calendar.SECOND), 2).append('.');
+			pad(calendar.get(Calendar.MILLISECOND), 3).append(" [");
+			column(entry.level.getName(), 7).append("] [Thread-");
+			column(Long.toString(entry.threadId), 3).append("] [");
+			column(entry.logger, 50).append("] ");
+			if (entry.data != null) {
+				for (Object d : entry.data)
+					output.append(d);
+			}
+			output.append(NEWLINE);
+			if (entry.throwable != null) {
+				output.append(entry.throwable).append(NEWLINE);
+				for (StackTraceElement ste : entry.throwable.getStackTrace())
+					output.append("        at ").append(ste).append(NEWLINE);
 			}
 		}
+
+		/**
+		 * Append a number padded with leading zeros.
+		 * @param value the number
+		 * @param width minimum amount of digits, up to 3
+		 * @return the output buffer
+		 */
+		private StringBuilder pad(int value, int width) {
+			if (width >= 3 && value < 100)
+				output.append('0');
+			if (width >= 2 && value < 10)
+				output.append('0');
+			return output.append(value);
+		}
+
+		/**
+		 * Append a text padded with spaces or truncated to the given width.
+		 * @param text the text
+		 * @param width width of column
+		 * @return the output buffer
+		 */
+		private StringBuilder column(String text, int width) {
+			if (text == null)
+				text = "";
+			if (text.length() >= width)
+				return output.append(text, 0, width);
+			output.append(text);
+			for (int a = text.length(); a < width; ++a)
+				output.append(' ');
+			return output;
+		}
+
+		/**
+		 * Write formatted messages to stderr.
+		 */
+		private void flush() {
+			if (output.length() <= 0)
+				return;
+			System.err.print(output);
+			System.err.flush();
+			output.setLength(0);
+		}
+	}
+
+	/**
+	 * A slot in the ring buffer.
+	 */
+	private static final class Entry {
+
+		/**
+		 * Level of message.
+		 */
+		private Level level;
+		/**
+		 * Name of logger.
+		 */
+		private String logger;
+		/**
+		 * Id of thread that logged the message.
+		 */
+		private long threadId;
+		/**
+		 * When the message was logged.
+		 */
+		private long millis;
+		/**
+		 * Throwable to be logged.
+		 */
+		private Throwable throwable;
+		/**
+		 * Data to be logged.
+		 */
+		private Object[] data;
+
+		/**
+		 * Clear references so logged objects can be garbage collected.
+		 */
+		private void clear() {
+			level = null;
+			logger = null;
+			throwable = null;
+			data = null;
+		}
 	}
 }
@@ -24,19 +24,28 @@
 package net.exent.riker.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import net.exent.riker.Riker;
+import net.exent.riker.RikerEngine;
+import net.exent.riker.fingerprint.FingerprintIndex;
 import net.exent.riker.metadata.Album;
 import net.exent.riker.metadata.Group;
 import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.MetafileSet;
 import net.exent.riker.metadata.Track;
+import net.exent.riker.metrics.Metrics;
 import org.jaudiotagger.tag.FieldKey;
 
 /**
  * Class for matching metadata from a group of files with metadata from MusicBrainz.
+ * Albums are loaded through the album cache of the engine, which loads the best albums found by each search in the background
+ * when MusicBrainz got requests to spare, so they're usually cached by the time a matcher wants them.
  */
 public class Matcher implements Runnable {
 
@@ -45,9 +54,9 @@ public class Matcher implements Runnable {
 	 */
 	private static final Logger LOG = new Logger(Matcher.class);
 	/**
-	 * Cache of all loaded albums.
+	 * The engine the matcher belongs to.
 	 */
-	private static Map<String, Album> albumCache = new HashMap<String, Album>();
+	private RikerEngine engine;
 	/**
 	 * The group to compare with data from MusicBrainz.
 	 */
@@ -57,43 +66,77 @@ public class Matcher implements Runnable {
 	 */
 	private List<String> albumMbids = new ArrayList<String>();
 	/**
-	 * Comparisons between a track and metafiles in each album.
+	 * Comparisons between the tracks and metafiles of each album, albums without kept comparisons are left out.
 	 */
-	private Map<Album, Map<Track, Map<Metafile, Double>>> comparison = new HashMap<Album, Map<Track, Map<Metafile, Double>>>();
+	private Map<Album, ScoreMatrix> comparison = new LinkedHashMap<Album, ScoreMatrix>();
 	/**
 	 * Queue of files to do a track search on MusicBrainz.
 	 */
-	private List<Metafile> queue;
+	private MetafileSet queue;
 	/**
 	 * Whether the thread is active.
 	 */
 	private boolean active;
+	/**
+	 * Model used by this matcher for scoring how well files match tracks.
+	 */
+	private ScoringModel model;
+	/**
+	 * Batch for scoring files with tracks, reused for every comparison.
+	 */
+	private ScoreBatch scores = new ScoreBatch();
+	/**
+	 * Upper bounds for how well the files can score with an album, set when searching.
+	 */
+	private ScoreBounds bounds;
+	/**
+	 * MBIDs of albums that have been compared with the files or skipped because they couldn't beat the best album.
+	 */
+	private Set<String> evaluated = new HashSet<String>();
+	/**
+	 * Score of the best album compared with the files so far.
+	 */
+	private double bestAlbumScore;
+	/**
+	 * The album the files were matched with, null if no album matched.
+	 */
+	private Album matchedAlbum;
+	/**
+	 * Tracks files with the same audio as an earlier matched file were matched with, keyed by file.
+	 */
+	private Map<Metafile, Track> audioMatches = new HashMap<Metafile, Track>();
 
 	/**
 	 * Default constructor.
+	 * The matcher uses the scoring model the engine got when the matcher is created.
+	 * @param engine the engine the matcher belongs to
 	 * @param group the group we wish to compare against data from MusicBrainz
 	 */
-	public Matcher(Group group) {
+	public Matcher(RikerEngine engine, Group group) {
+		this.engine = engine;
 		this.group = group;
+		model = engine.scoringModel();
 	}
 
 	/**
 	 * Constructor with specified MBID for album to compare files with.
+	 * @param engine the engine the matcher belongs to
 	 * @param group the group we wish to compare against data from MusicBrainz
 	 * @param albumMbid MBID of album to compare files with
 	 */
-	public Matcher(Group group, String albumMbid) {
-		this.group = group;
+	public Matcher(RikerEngine engine, Group group, String albumMbid) {
+		this(engine, group);
 		albumMbids.add(albumMbid);
 	}
 
 	/**
 	 * Constructor with specified MBIDs for albums to compare files with.
+	 * @param engine the engine the matcher belongs to
 	 * @param group the group we wish to compare against data from MusicBrainz
 	 * @param albumMbids MBIDs of albums to compare files with
 	 */
-	public Matcher(Group group, List<String> albumMbids) {
-		this.group = group;
+	public Matcher(RikerEngine engine, Group group, List<String> albumMbids) {
+		this(engine, group);
 		this.albumMbids.addAll(albumMbids);
 	}
 
@@ -113,6 +156,14 @@ public class Matcher implements Runnable {
 		return group;
 	}
 
+	/**
+	 * Get the album the files were matched with.
+	 * @return the album, or null if the matcher isn't done or no album matched
+	 */
+	public Album album() {
+		return matchedAlbum;
+	}
+
 	/**
 	 * Compare the files with data from MusicBrainz.
 	 */
@@ -120,36 +171,49 @@ public class Matcher implements Runnable {
 	public void run() {
 		if (albumMbids.size() <= 0) {
 			/* no album MBIDs supplied, add all files to queue */
-			queue = new ArrayList<Metafile>(group.files());
+			queue = new MetafileSet();
+			queue.addAll(group.files());
+			bounds = new ScoreBounds(model, group.files());
+			/* try the releases other groups with files from the same album resolved to, they may leave nothing to search for */
+			List<String> sharedMbids = engine.releases().releases(group);
+			for (String sharedMbid : sharedMbids) {
+				Album album = engine.albums().load(sharedMbid);
+				if (album != null)
+					evaluateAlbum(album);
+			}
+			if (!sharedMbids.isEmpty() && queue.isEmpty())
+				Metrics.RELEASES_SHARED.increment();
+			/* search releases for the whole group first, files that don't match the release are searched for one by one */
+			if (!queue.isEmpty() && releaseSearch())
+				evaluateCandidates(releaseCandidates(engine.albums().client().searchRelease(group)));
 			/* search tracks on musicbrainz */
 			while (!queue.isEmpty()) {
-				Metafile file = queue.remove(0);
+				Metafile file = queue.poll();
 				/* if we got album mbid, look that up first */
 				String albumMbid = file.getFirst(FieldKey.MUSICBRAINZ_RELEASEID);
 				Album album = null;
-				if (albumMbid != null)
-					album = loadAlbum(albumMbid);
+				if (albumMbid != null) {
+					/* no need to look up an album we've already evaluated */
+					if (evaluated.contains(albumMbid))
+						continue;
+					album = engine.albums().load(albumMbid);
+				}
 				if (album != null) {
-					compareAllMetafilesWithAlbum(album);
+					evaluateAlbum(album);
 				} else {
 					/* if not, search track */
-					List<Album> albums = MusicBrainz.searchTrack(file);
-					/* load best album */
-					double bestScore = 0.0;
-					Album bestAlbum = null;
-					for (Album tmpAlbum : albums) {
-						double score = compareMetafileWithTrack(file, tmpAlbum.tracks().get(0));
-						if (score > bestScore) {
-							bestScore = score;
-							bestAlbum = tmpAlbum;
-						}
-					}
-					if (bestAlbum != null) {
-						album = loadAlbum(bestAlbum.mbid());
-						/* compare all files with the album we loaded and remove good matches from queue */
+					List<Candidate> candidates = candidates(file, engine.albums().client().searchTrack(file));
+					if (!candidates.isEmpty()) {
+						evaluateCandidates(candidates);
+					} else {
+						/* search didn't find anything, tags and filename are probably useless. see if we know the audio */
+						String fingerprintMbid = engine.fingerprints().releaseMbid(file);
+						if (fingerprintMbid != null)
+							album = engine.albums().load(fingerprintMbid);
 						if (album != null) {
-							LOG.info("Comparing all metafiles with loaded album: ", album);
-							compareAllMetafilesWithAlbum(album);
+							matchAudio(file, album);
+							if (!evaluated.contains(album.mbid()))
+								evaluateAlbum(album);
 						}
 					}
 				}
@@ -157,215 +221,294 @@ public class Matcher implements Runnable {
 		} else {
 			/* only match files with given albums */
 			for (String albumMbid : albumMbids) {
-				Album album = loadAlbum(albumMbid);
+				Album album = engine.albums().load(albumMbid);
 				if (album != null)
 					compareAllMetafilesWithAlbum(album);
 			}
 		}
 		/* update metafiles with best matched track */
-		Album bestAlbum = null;
+		matchedAlbum = assignBestAlbum();
+		active = false;
+		/* tell the engine that we're done matching these files */
+		engine.matcherFinished(this);
+	}
+
+	/**
+	 * Find the album with the best score and match its tracks with the files that compared best.
+	 * This method got default access modifier (package modifier) so it can be benchmarked.
+	 * @return the best album, or null if no album compared well enough with the files
+	 */
+	Album assignBestAlbum() {
+		long start = System.nanoTime();
+		ScoreMatrix bestMatrix = null;
 		double bestAlbumScore = 0.0;
-		Map<Album, Double> albumScores = new HashMap<Album, Double>();
-		for (Map.Entry<Album, Map<Track, Map<Metafile, Double>>> albumEntry : comparison.entrySet()) {
-			double albumScore = 0.0;
-			Map<Track, Set<Metafile>> trackAndMetafileTried = new HashMap<Track, Set<Metafile>>();
-			Map<Metafile, Double> metafileScores = new HashMap<Metafile, Double>();
-			for (Map.Entry<Track, Map<Metafile, Double>> trackEntry : albumEntry.getValue().entrySet()) {
-				double bestMetafileScore = 0.0;
-				for (Map.Entry<Metafile, Double> metafileEntry : trackEntry.getValue().entrySet()) {
-					Double metafileScore = metafileScores.get(metafileEntry.getKey());
-					if (metafileScore == null || metafileScore > bestMetafileScore) {
-						bestMetafileScore = metafileEntry.getValue();
-						metafileScores.put(metafileEntry.getKey(), bestMetafileScore);
-					}
-				}
-				albumScore += bestMetafileScore;
-			}
-			albumScore *= (double) metafileScores.size() / (double) albumEntry.getValue().size();
-			LOG.notice("Album score for \"", albumEntry.getKey(), "\": ", albumScore, " (", metafileScores.size(), " of ", albumEntry.getValue().size(), " tracks matched)");
+		for (ScoreMatrix matrix : comparison.values()) {
+			double albumScore = matrix.albumScore();
+			if (LOG.isNoticeEnabled())
+				LOG.notice("Album score for \"", matrix.album(), "\": ", albumScore, " (", matrix.matchedTracks(), " tracks matched)");
 			if (albumScore > bestAlbumScore) {
-				bestAlbum = albumEntry.getKey();
+				bestMatrix = matrix;
 				bestAlbumScore = albumScore;
 			}
 		}
-		if (bestAlbum != null) {
-			for (Map.Entry<Track, Map<Metafile, Double>> trackEntry : comparison.get(bestAlbum).entrySet()) {
-				Metafile bestMetafile = null;
-				double bestMetafileScore = 0.0;
-				for (Map.Entry<Metafile, Double> metafileEntry : trackEntry.getValue().entrySet()) {
-					if (metafileEntry.getValue() > bestMetafileScore) {
-						bestMetafile = metafileEntry.getKey();
-						bestMetafileScore = metafileEntry.getValue();
-					}
-				}
-				bestMetafile.track(trackEntry.getKey(), bestMetafileScore);
+		Album bestAlbum = null;
+		Set<Metafile> assigned = new LinkedHashSet<Metafile>();
+		Set<String> assignedTracks = new HashSet<String>();
+		if (bestMatrix != null) {
+			bestAlbum = bestMatrix.album();
+			for (int track = 0; track < bestAlbum.tracks().size(); ++track) {
+				int bestFile = bestMatrix.bestFile(track);
+				if (bestFile < 0)
+					continue;
+				Metafile bestMetafile = bestMatrix.file(bestFile);
+				bestMetafile.track(bestMatrix.track(track), bestMatrix.score(bestFile, track));
+				assigned.add(bestMetafile);
+				assignedTracks.add(bestMatrix.track(track).mbid());
 			}
 		}
-		active = false;
-		/* tell Riker that we're done matching these files */
-		Riker.matcherFinished(this);
+		/* files with the same audio as a file matched earlier get the same track, their tags are too poor to match it themselves */
+		for (Map.Entry<Metafile, Track> entry : audioMatches.entrySet()) {
+			Metafile file = entry.getKey();
+			Track track = entry.getValue();
+			if (bestAlbum == null)
+				bestAlbum = track.album();
+			if (assigned.contains(file) || assignedTracks.contains(track.mbid()) || !bestAlbum.mbid().equals(track.album().mbid()))
+				continue;
+			LOG.info("File \"", file, "\" got the same audio as a file matched with \"", track, "\"");
+			file.track(track, engine.fingerprints().cluster(file).matchScore());
+			assigned.add(file);
+			assignedTracks.add(track.mbid());
+		}
+		Metrics.ASSIGN.recordSince(start);
+		/* files that aren't fingerprinted yet are fingerprinted in the background */
+		for (Metafile file : assigned)
+			engine.fingerprints().matched(file, file.track(), file.matchScore());
+		return bestAlbum;
 	}
 
 	/**
-	 * Start the matching.
+	 * Match the files in the group with the same audio as the given file with the track the audio was matched with earlier.
+	 * The files are removed from the queue, there's no need to search for the same audio more than once.
+	 * @param file the file
+	 * @param album the release the audio comes from
 	 */
-	public synchronized void start() {
-		if (!active) {
-			active = true;
-			new Thread(this).start();
+	private void matchAudio(Metafile file, Album album) {
+		FingerprintIndex.Cluster cluster = engine.fingerprints().cluster(file);
+		if (cluster == null || cluster.trackMbid() == null)
+			return;
+		for (Track track : album.tracks()) {
+			if (!track.mbid().equals(cluster.trackMbid()))
+				continue;
+			for (Metafile other : cluster.files()) {
+				if (!group.containsFile(other))
+					continue;
+				audioMatches.put(other, track);
+				queue.remove(other);
+			}
+			return;
 		}
 	}
 
-	private void calculateBestGroupAlbums() {
-		Map<Map<Track, Metafile>, Double> bestGroupAlbums = new HashMap<Map<Track, Metafile>, Double>();
-		for (Map.Entry<Album, Map<Track, Map<Metafile, Double>>> albumEntry : comparison.entrySet()) {
-			Map<Track, Map<Metafile, Double>> albumComparisonCopy = new HashMap<Track, Map<Metafile, Double>>();
-			for (Map.Entry<Track, Map<Metafile, Double>> trackEntry : albumEntry.getValue().entrySet()) {
-				Map<Metafile, Double> trackComparisonCopy = new HashMap<Metafile, Double>();
-				trackComparisonCopy.putAll(trackEntry.getValue());
-				albumComparisonCopy.put(trackEntry.getKey(), trackComparisonCopy);
+	/**
+	 * Find the albums from a track search worth evaluating, ordered by how well they at best can score.
+	 * Albums are ordered by their upper bound, albums with the same bound are ordered by how well the found track matched the file.
+	 * @param file the file that was searched for
+	 * @param albums the albums found by the search, each with the track that was found
+	 * @return albums where the found track scored anything at all with the file
+	 */
+	private List<Candidate> candidates(Metafile file, List<Album> albums) {
+		List<Track> tracks = new ArrayList<Track>();
+		for (Album album : albums)
+			tracks.add(album.tracks().get(0));
+		long start = System.nanoTime();
+		model.score(Collections.singletonList(file), tracks, scores);
+		Metrics.COMPARE.recordSince(start);
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (int index = 0; index < albums.size(); ++index) {
+			if (scores.score(0, index) > 0.0)
+				candidates.add(new Candidate(albums.get(index), bounds.candidateBound(albums.get(index)), scores.score(0, index)));
+		}
+		Collections.sort(candidates);
+		prefetch(candidates);
+		return candidates;
+	}
+
+	/**
+	 * Check whether we should search for releases matching the whole group.
+	 * Groups with a single file are better off with a track search, and files with an album MBID are looked up directly.
+	 * @return true if we should search for releases, false if not
+	 */
+	private boolean releaseSearch() {
+		List<Metafile> files = group.files();
+		if (files.size() < 2)
+			return false;
+		for (Metafile file : files) {
+			if (file.getFirst(FieldKey.MUSICBRAINZ_RELEASEID) != null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the albums from a release search worth evaluating, ordered by how well they at best can score.
+	 * Albums with the same bound keep the order MusicBrainz ranked them in.
+	 * @param albums the albums found by the search, without tracks
+	 * @return the albums that can score anything at all
+	 */
+	private List<Candidate> releaseCandidates(List<Album> albums) {
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (int index = 0; index < albums.size(); ++index) {
+			double bound = bounds.candidateBound(albums.get(index));
+			if (bound > 0.0)
+				candidates.add(new Candidate(albums.get(index), bound, albums.size() - index));
+		}
+		Collections.sort(candidates);
+		prefetch(candidates);
+		return candidates;
+	}
+
+	/**
+	 * Prefetch the best candidates that may be loaded, while we're busy comparing the files with the first one.
+	 * @param candidates the candidates, ordered by their upper bound
+	 */
+	private void prefetch(List<Candidate> candidates) {
+		int queued = 0;
+		for (Candidate candidate : candidates) {
+			if (queued >= engine.albums().prefetchCount() || candidate.bound <= bestAlbumScore)
+				return;
+			if (evaluated.contains(candidate.album.mbid()))
+				continue;
+			engine.albums().prefetch(candidate.album.mbid());
+			++queued;
+		}
+	}
+
+	/**
+	 * Load and evaluate the first candidate that hasn't been evaluated and can beat the best album so far.
+	 * Only one album is loaded for each search, the candidates are ordered so the rest can't score better than the first one.
+	 * @param candidates the candidates, ordered by their upper bound
+	 */
+	private void evaluateCandidates(List<Candidate> candidates) {
+		for (Candidate candidate : candidates) {
+			if (evaluated.contains(candidate.album.mbid()))
+				continue;
+			if (candidate.bound <= bestAlbumScore) {
+				/* the remaining candidates got an even lower bound */
+				if (LOG.isInfoEnabled())
+					LOG.info("Skipping album \"", candidate.album, "\", can at best score ", candidate.bound, " (best so far: ", bestAlbumScore, ")");
+				evaluated.add(candidate.album.mbid());
+				Metrics.ALBUMS_PRUNED.increment();
+				return;
 			}
-			List<Map<Track, Metafile>> result = new ArrayList<Map<Track, Metafile>>();
-			result.add(new HashMap<Track, Metafile>());
-			getTrackAndMetafileCombinations(albumComparisonCopy, result);
-			Map<Track, Metafile> bestResult = null;
-			double bestResultScore = 0.0;
-			for (Map<Track, Metafile> r : result) {
-				double score = 0.0;
-				for (Map.Entry<Track, Metafile> resultEntry : r.entrySet())
-					score += albumEntry.getValue().get(resultEntry.getKey()).get(resultEntry.getValue());
-				score *= (double) r.size() / (double) albumEntry.getKey().tracks().size();
-				if (score > bestResultScore) {
-					bestResultScore = score;
-					bestResult = r;
-				}
+			Album album = engine.albums().load(candidate.album.mbid());
+			if (album != null) {
+				evaluateAlbum(album);
+				return;
 			}
-			if (bestResult != null)
-				bestGroupAlbums.put(bestResult, bestResultScore);
 		}
 	}
 
 	/**
-	 * Get the possible Track and Metafile combinations from the given copy of comparisons of a given album.
-	 * @param albumComparisonCopy copy of comparisons for an album
-	 * @param result a list of possible combinations
+	 * Compare all metafiles with a loaded album, unless the album can't score better than the best album so far.
+	 * @param album the album
 	 */
-	private void getTrackAndMetafileCombinations(Map<Track, Map<Metafile, Double>> albumComparisonCopy, List<Map<Track, Metafile>> result) {
-		boolean recursed = false;
-		for (Map.Entry<Track, Map<Metafile, Double>> trackEntry : albumComparisonCopy.entrySet()) {
-			if (result.get(result.size() - 1).containsKey(trackEntry.getKey()))
-				continue;
-			for (Map.Entry<Metafile, Double> metafileEntry : trackEntry.getValue().entrySet()) {
-				if (result.get(result.size() - 1).containsValue(metafileEntry.getKey()))
-					continue;
-				/* add track & metafile to map and recurse */
-				result.get(result.size() - 1).put(trackEntry.getKey(), metafileEntry.getKey());
-				getTrackAndMetafileCombinations(albumComparisonCopy, result);
-				result.get(result.size() - 1).remove(trackEntry.getKey());
-				recursed = true;
+	private void evaluateAlbum(Album album) {
+		evaluated.add(album.mbid());
+		if (bounds != null) {
+			double bound = bounds.albumBound(album);
+			if (bound <= bestAlbumScore) {
+				if (LOG.isInfoEnabled())
+					LOG.info("Not comparing metafiles with album \"", album, "\", can at best score ", bound, " (best so far: ", bestAlbumScore, ")");
+				Metrics.COMPARISONS_PRUNED.increment();
+				return;
 			}
 		}
-		if (!recursed) {
-			/* all possible combinations used, add map to result list */
-			Map<Track, Metafile> r = new HashMap<Track, Metafile>();
-			r.putAll(result.get(result.size() - 1));
-			result.add(r);
+		LOG.info("Comparing all metafiles with loaded album: ", album);
+		compareAllMetafilesWithAlbum(album);
+		ScoreMatrix matrix = comparison.get(album);
+		if (matrix != null)
+			bestAlbumScore = Math.max(bestAlbumScore, matrix.albumScore());
+	}
+
+	/**
+	 * Start the matching.
+	 */
+	public synchronized void start() {
+		if (!active) {
+			active = true;
+			new Thread(this).start();
 		}
 	}
 
 	/**
 	 * Compare all metafiles with given album.
+	 * This method got default access modifier (package modifier) so it can be benchmarked.
 	 * @param album the album to compare the metafiles with
 	 */
-	private void compareAllMetafilesWithAlbum(Album album) {
-		for (Metafile file : group.files()) {
-			for (Track track : album.tracks()) {
-				double score = compareMetafileWithTrack(file, track);
-				/* if score is bad, don't waste memory or cpu by keeping the comparison */
-				if (score < 0.2)
-					continue;
+	void compareAllMetafilesWithAlbum(Album album) {
+		List<Metafile> files = group.files();
+		List<Track> tracks = album.tracks();
+		long start = System.nanoTime();
+		model.score(files, tracks, album.durationIndex(), scores);
+		Metrics.COMPARE.recordSince(start);
+		ScoreMatrix matrix = new ScoreMatrix(album, files, scores, model.keepThreshold());
+		for (int fileIndex = 0; fileIndex < files.size(); ++fileIndex) {
+			Metafile file = files.get(fileIndex);
+			for (int trackIndex = 0; trackIndex < tracks.size(); ++trackIndex) {
+				if (LOG.isDebugEnabled())
+					LOG.debug("Comparing ", file, " with \"", tracks.get(trackIndex), "\", values: ", file.stringValues(), " | score: ", scores.score(fileIndex, trackIndex), " (", scores.explain(fileIndex, trackIndex), ")");
 				/* if score is good enough, remove metafile from queue */
-				if (queue != null && score > 0.75) {
-					LOG.info("Removing ", file, " from queue, match score: ", score);
+				if (queue != null && matrix.kept(fileIndex, trackIndex) && matrix.score(fileIndex, trackIndex) > model.queueThreshold()) {
+					if (LOG.isInfoEnabled())
+						LOG.info("Removing ", file, " from queue, match score: ", matrix.score(fileIndex, trackIndex));
 					queue.remove(file);
 				}
-				/* save comparison */
-				Map<Track, Map<Metafile, Double>> albumComparison = comparison.get(album);
-				if (albumComparison == null) {
-					albumComparison = new HashMap<Track, Map<Metafile, Double>>();
-					comparison.put(album, albumComparison);
-				}
-				Map<Metafile, Double> trackComparison = albumComparison.get(track);
-				if (trackComparison == null) {
-					trackComparison = new HashMap<Metafile, Double>();
-					albumComparison.put(track, trackComparison);
-				}
-				trackComparison.put(file, score);
 			}
 		}
+		/* if no score is good enough, don't waste memory or cpu by keeping the comparisons */
+		if (matrix.isEmpty())
+			comparison.remove(album);
+		else
+			comparison.put(album, matrix);
 	}
 
 	/**
-	 * Compare a metafile with a track.
-	 * @param file the Metafile to compare
-	 * @param track the Track to compare
-	 * @return a value between 0.0 and 1.0 where 0.0 is complete mismatch and 1.0 is perfect match
-	 */
-	private double compareMetafileWithTrack(Metafile file, Track track) {
-		List<String> values = file.stringValues();
-		if (values.size() <= 0)
-			return 0.0;
-		/* calculate Levenshtein similarity of all file metadata with track metadata */
-		double[][] scores = new double[4][values.size()];
-		int index = 0;
-		for (String value : values) {
-			scores[0][index] = Levenshtein.similarity(value, track.album().title());
-			scores[1][index] = Levenshtein.similarity(value, track.artist().name());
-			scores[2][index] = Levenshtein.similarity(value, track.title());
-			scores[3][index] = value.equals("" + track.tracknumber()) ? 1.0 : 0.0;
-			++index;
-		}
-		/* calculate the best possible score from metadata */
-		double bestScore = 0.0;
-		for (int albumIndex = 0; albumIndex < values.size(); ++albumIndex) {
-			for (int artistIndex = 0; artistIndex < values.size(); ++artistIndex) {
-				if (artistIndex == albumIndex)
-					continue;
-				for (int titleIndex = 0; titleIndex < values.size(); ++titleIndex) {
-					if (titleIndex == artistIndex || titleIndex == albumIndex)
-						continue;
-					for (int tracknumIndex = 0; tracknumIndex < values.size(); ++tracknumIndex) {
-						if (tracknumIndex == titleIndex || tracknumIndex == artistIndex || tracknumIndex == albumIndex)
-							continue;
-						double score = scores[0][albumIndex] + scores[1][artistIndex] + scores[2][titleIndex] + scores[3][tracknumIndex];
-						if (score > bestScore)
-							bestScore = score;
-					}
-				}
-			}
+	 * An album found by a search, with the most it can score and how well it matched the search.
+	 */
+	private static final class Candidate implements Comparable<Candidate> {
+
+		/**
+		 * The album, only containing the track that was found, if any.
+		 */
+		private Album album;
+		/**
+		 * The most the album can score.
+		 */
+		private double bound;
+		/**
+		 * How well the found track scored with the file that was searched for, or the rank of a release in a release search.
+		 */
+		private double score;
+
+		/**
+		 * Default constructor.
+		 * @param album the album
+		 * @param bound the most the album can score
+		 * @param score how well the found track scored, or the rank of the release
+		 */
+		private Candidate(Album album, double bound, double score) {
+			this.album = album;
+			this.bound = bound;
+			this.score = score;
 		}
-		/* add score from duration */
-		int durationDiff = Math.abs(file.getAudioHeader().getTrackLength() - track.duration());
-		if (durationDiff < 15000)
-			bestScore += 1.0 - (double) durationDiff / 15000.0;
-		LOG.notice("Comparing with \"", track, "\", values: ", values, " | score: ", bestScore / 5.0);
-		return bestScore / 5.0;
-	}
 
-	/**
-	 * Load album from cache if we already loaded it or from MusicBrainz if not.
-	 * @param mbid the MBID of the album to load
-	 * @return album for given MBID
-	 */
-	private static synchronized Album loadAlbum(String mbid) {
-		Album album = albumCache.get(mbid);
-		if (album == null) {
-			album = MusicBrainz.loadAlbum(mbid);
-			/* add album to cache */
-			if (album != null)
-				albumCache.put(album.mbid(), album);
+		@Override
+		public int compareTo(Candidate other) {
+			if (bound != other.bound)
+				return bound > other.bound ? -1 : 1;
+			if (score != other.score)
+				return score > other.score ? -1 : 1;
+			return 0;
 		}
-		LOG.notice("Loaded album: ", album);
-		return album;
 	}
 }
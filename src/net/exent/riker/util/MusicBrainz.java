@@ -23,9 +23,11 @@
  */
 package net.exent.riker.util;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -33,6 +35,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
@@ -40,12 +47,30 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import net.exent.riker.metadata.Album;
 import net.exent.riker.metadata.Artist;
+import net.exent.riker.metadata.Group;
 import net.exent.riker.metadata.Metafile;
 import net.exent.riker.metadata.Track;
+import net.exent.riker.metrics.Gauge;
+import net.exent.riker.metrics.LatencyHistogram;
+import net.exent.riker.metrics.Metrics;
 import org.jaudiotagger.tag.FieldKey;
 
 /**
  * Class for searching MusicBrainz.
+ * The web service used can be changed with the system property "riker.musicbrainz.url" (default "http://musicbrainz.org/ws/1").
+ * Album lookups and searches each got their own adaptive rate limit, starting at "riker.musicbrainz.rate" requests per second
+ * (default 0.5, so both together stay within the one request per second MusicBrainz allows, raise it for local mirrors).
+ * When no rate is given the older "riker.musicbrainz.interval" is used, the milliseconds between any two requests to the service (default 1000, 0 for no limit),
+ * it's shared by both endpoints so each gets half the rate it allows.
+ * The rate is lowered when the service says it's busy or takes longer than "riker.musicbrainz.latency" milliseconds (default 5000) to answer,
+ * and raised again for each quick answer. The current rates are reported as the gauges "releaseRate" and "searchRate" in requests per minute.
+ * Connections are kept alive and reused, and responses may be compressed with gzip or deflate.
+ * Requests time out after "riker.musicbrainz.timeout" milliseconds (default 30000, connecting after 10000),
+ * and requests answered with 503 or 429 are retried up to "riker.musicbrainz.retries" times (default 4). No requests are sent to the endpoint for
+ * "riker.musicbrainz.backoff" milliseconds (default 1000) doubled for each retry, with random jitter, or as long as the service asks for.
+ * When "riker.catalogue" is set, lookups and searches are answered from a local {@link Catalogue} and the web service isn't used at all.
+ * Each instance is a client with its own rate limits, several engines may share one client to stay within the limits together.
+ * The service, rate, latency and catalogue are read from the properties given to fromProperties(), timeouts and retries from the system properties.
  */
 public final class MusicBrainz {
 	/**
@@ -53,15 +78,91 @@ public final class MusicBrainz {
 	 */
 	private static final Logger LOG = new Logger(MusicBrainz.class);
 	/**
-	 * The last time we sent a request to MusicBrainz.
-	 * We may only send a request once per second.
+	 * Rate used when "riker.musicbrainz.interval" is 0, high enough to never be the bottleneck.
 	 */
-	private static long lastRequestTime;
+	private static final double UNLIMITED_RATE = 1000.0;
+	/**
+	 * Milliseconds to wait for a connection to the web service.
+	 */
+	private static final int CONNECT_TIMEOUT = Integer.getInteger("riker.musicbrainz.connecttimeout", 10000);
+	/**
+	 * Milliseconds to wait for data from the web service.
+	 */
+	private static final int READ_TIMEOUT = Integer.getInteger("riker.musicbrainz.timeout", 30000);
+	/**
+	 * Maximum amount of retries when the web service is busy.
+	 */
+	private static final int MAX_RETRIES = Integer.getInteger("riker.musicbrainz.retries", 4);
+	/**
+	 * Milliseconds to wait before the first retry, doubled for each retry.
+	 */
+	private static final long BACKOFF = Long.getLong("riker.musicbrainz.backoff", 1000L);
+	/**
+	 * HTTP status for too many requests, HttpURLConnection got no constant for it.
+	 */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	/**
+	 * User agent sent with requests, MusicBrainz asks clients to identify themselves.
+	 */
+	private static final String USER_AGENT = "Riker (http://exent.net/riker)";
+	/**
+	 * Base URL of the web service.
+	 */
+	private String serviceUrl;
+	/**
+	 * Random jitter for the backoff, so matchers waiting for the service don't all retry at the same time.
+	 */
+	private Random jitter = new Random();
+	/**
+	 * Rate limit for album lookups.
+	 */
+	private RateLimiter releaseLimiter;
+	/**
+	 * Rate limit for track and release searches.
+	 */
+	private RateLimiter searchLimiter;
+	/**
+	 * Local catalogue answering lookups and searches instead of the web service, null when the web service is used.
+	 */
+	private Catalogue catalogue;
+
+	/**
+	 * Full constructor.
+	 * The rates of the client are reported as gauges, replacing the gauges of clients created earlier.
+	 * @param serviceUrl base URL of the web service
+	 * @param maxRate maximum requests per second for each endpoint
+	 * @param latencyTarget answers slower than this many milliseconds lower the rate
+	 * @param catalogue local catalogue answering lookups and searches instead of the web service, null to use the web service
+	 */
+	public MusicBrainz(String serviceUrl, double maxRate, long latencyTarget, Catalogue catalogue) {
+		this.serviceUrl = serviceUrl;
+		this.catalogue = catalogue;
+		releaseLimiter = new RateLimiter("release lookup", maxRate, latencyTarget);
+		searchLimiter = new RateLimiter("search", maxRate, latencyTarget);
+		Metrics.gauge("releaseRate", new Gauge() {
+			@Override
+			public long getValue() {
+				return Math.round(releaseLimiter.rate() * 60.0);
+			}
+		});
+		Metrics.gauge("searchRate", new Gauge() {
+			@Override
+			public long getValue() {
+				return Math.round(searchLimiter.rate() * 60.0);
+			}
+		});
+	}
 
 	/**
-	 * Private constructor to prevent instantiation.
+	 * Create a client from properties, properties not set get their default value.
+	 * @param properties the properties, typically System.getProperties()
+	 * @param dataDirectory directory a catalogue dump is imported to
+	 * @return the client
 	 */
-	private MusicBrainz() {
+	public static MusicBrainz fromProperties(Properties properties, File dataDirectory) {
+		String serviceUrl = properties.getProperty("riker.musicbrainz.url", "http://musicbrainz.org/ws/1");
+		long latencyTarget = Long.parseLong(properties.getProperty("riker.musicbrainz.latency", "5000"));
+		return new MusicBrainz(serviceUrl, maxRate(properties), latencyTarget, Catalogue.fromProperties(properties, dataDirectory));
 	}
 
 	/**
@@ -69,89 +170,56 @@ public final class MusicBrainz {
 	 * @param mbid the MBID of the album.
 	 * @return the album if found.
 	 */
-	public static synchronized Album loadAlbum(String mbid) {
-		LOG.info("Loading album with MBID \"", mbid, "\"");
-		Artist artist = null;
-		List<Track> tracks = new ArrayList<Track>();
-		try {
-			delay();
-			URL url = new URL("http://musicbrainz.org/ws/1/release/" + mbid + "?type=xml&inc=tracks+artist+release-events+labels+artist-rels+url-rels");
-			LOG.info("Connecting to MusicBrainz: ", url);
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.connect();
-
-			/* fast xml parsing with stax, very fragile */
-			XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(new BufferedInputStream(connection.getInputStream()));
-			int depth = 0;
-			String lastElement = null;
-			Map<String, String> values = new HashMap<String, String>();
-			while (xml.hasNext()) {
-				switch (xml.next()) {
-					case XMLStreamConstants.START_ELEMENT:
-						++depth;
-						lastElement = xml.getLocalName();
-						if (depth == 2 && "release".equals(lastElement)) {
-							/* album id & type */
-							values.put("album_mbid", xml.getAttributeValue(null, "id"));
-							values.put("album_type", xml.getAttributeValue(null, "type"));
-						} else if (depth == 3 && "artist".equals(lastElement)) {
-							/* artist id */
-							values.put("artist_mbid", xml.getAttributeValue(null, "id"));
-						} else if (depth == 4 && "event".equals(lastElement)) {
-							String date = xml.getAttributeValue(null, "date");
-							if (date != null && (values.get("album_released") == null || date.compareTo(values.get("album_released")) < 0)) {
-								values.put("album_released", date);
-							}
-						} else if (depth == 4 && "track".equals(lastElement)) {
-							/* track id */
-							values.put("track_mbid", xml.getAttributeValue(null, "id"));
-						}
-						break;
-
-					case XMLStreamConstants.CHARACTERS:
-						if (depth == 3 && "title".equals(lastElement)) {
-							/* album title */
-							values.put("album_title", xml.getText());
-						} else if (depth == 4 && "name".equals(lastElement)) {
-							/* artist name */
-							values.put("artist_name", xml.getText());
-						} else if (depth == 4 && "sort-name".equals(lastElement)) {
-							/* artist sortname */
-							values.put("artist_sortname", xml.getText());
-						} else if (depth == 5 && "duration".equals(lastElement)) {
-							/* track duration */
-							values.put("track_duration", xml.getText());
-						} else if (depth == 5 && "title".equals(lastElement)) {
-							/* track title */
-							values.put("track_title", xml.getText());
-						}
-						break;
-
-					case XMLStreamConstants.END_ELEMENT:
-						if (depth == 3 && "artist".equals(xml.getLocalName())) {
-							artist = new Artist(values.get("artist_name"), values.get("artist_sortname"), values.get("artist_mbid"));
-						} else if (depth == 4 && "track".equals(xml.getLocalName())) {
-							int trackduration = 0;
-							try {
-								trackduration = Integer.parseInt(values.get("track_duration"));
-							} catch (NumberFormatException e) {
-								LOG.debug(e, "Could not get track duration from XML, probably not known, so setting it to 0");
-							}
-							Track tr = new Track(artist, values.get("track_title"), values.get("track_mbid"), tracks.size() + 1, trackduration);
-							tracks.add(tr);
-						} else if (depth == 2 && "release".equals(xml.getLocalName())) {
-							Album album = new Album(artist, values.get("album_title"), values.get("album_released"), values.get("album_type"), values.get("album_mbid"), tracks);
-							LOG.info("Album loaded: ", album);
-							return album;
-						}
-						--depth;
-						break;
+	public Album loadAlbum(String mbid) {
+		return loadAlbum(mbid, null);
+	}
 
-					default:
-						break;
-				}
+	/**
+	 * Load an album we'll probably need soon, only using requests to MusicBrainz nobody else is waiting for.
+	 * This may take a while if MusicBrainz is busy, it should be called from a thread that's not doing anything else.
+	 * Once the album is promoted the request takes its turn like any other, someone is waiting for the album.
+	 * @param mbid the MBID of the album
+	 * @param promoted set when someone is waiting for the album
+	 * @return the album if found
+	 */
+	public Album prefetchAlbum(String mbid, AtomicBoolean promoted) {
+		return loadAlbum(mbid, promoted);
+	}
+
+	/**
+	 * Wait until an album can be loaded without delaying other requests to MusicBrainz.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitSpareRequest() throws InterruptedException {
+		releaseLimiter.awaitSpare();
+	}
+
+	/**
+	 * Load an album from MusicBrainz with the given MBID.
+	 * @param mbid the MBID of the album
+	 * @param promoted null if the album is needed now, otherwise it's loaded before it's needed and waits for requests nobody else wants until this is set
+	 * @return the album if found
+	 */
+	private Album loadAlbum(String mbid, AtomicBoolean promoted) {
+		LOG.info(promoted != null ? "Prefetching album with MBID \"" : "Loading album with MBID \"", mbid, "\"");
+		if (catalogue != null) {
+			long start = System.nanoTime();
+			Album album = catalogue.loadAlbum(mbid);
+			Metrics.ALBUM_LOAD.recordSince(start);
+			if (album != null) {
+				LOG.info("Album loaded: ", album);
+				return album;
+			}
+			LOG.notice("Album with MBID \"", mbid, "\" not found in catalogue");
+			return null;
+		}
+		try {
+			URL url = new URL(serviceUrl + "/release/" + mbid + "?type=xml&inc=tracks+artist+release-events+labels+artist-rels+url-rels");
+			Album album = readAlbum(request(url, releaseLimiter, Metrics.ALBUM_LOAD, promoted));
+			if (album != null) {
+				LOG.info("Album loaded: ", album);
+				return album;
 			}
-			xml.close();
 		} catch (FactoryConfigurationError e) {
 			LOG.warning(e);
 		} catch (IOException e) {
@@ -169,7 +237,7 @@ public final class MusicBrainz {
 	 * @param metafile the file we'll create a search query from
 	 * @return a list of albums containing matching tracks
 	 */
-	public static synchronized List<Album> searchTrack(Metafile metafile) {
+	public List<Album> searchTrack(Metafile metafile) {
 		LOG.info("Searching MusicBrainz for track matching file: ", metafile);
 		/* create search query */
 		int lastSlash = metafile.filename().lastIndexOf(File.separatorChar);
@@ -184,11 +252,11 @@ public final class MusicBrainz {
 		} else {
 			query.append("tnum:").append(tracknum).append(' ');
 		}
-		/* duration */
+		/* duration, jaudiotagger gives it in seconds and qdur is quantized to units of two seconds */
 		int duration = metafile.getAudioHeader().getTrackLength();
 		if (duration > 0) {
-			int lower = Math.max(0, duration / 1000 - 10);
-			int upper = duration / 1000 + 10;
+			int lower = Math.max(0, duration - 10) / 2;
+			int upper = (duration + 10) / 2;
 			query.append("qdur:[").append(lower).append(" TO ").append(upper).append("] ");
 		}
 		/* artist */
@@ -212,79 +280,16 @@ public final class MusicBrainz {
 
 		/* fetch result */
 		List<Album> trackAlbums = new ArrayList<Album>();
+		if (catalogue != null) {
+			long start = System.nanoTime();
+			trackAlbums = catalogue.searchTrack(query.toString());
+			Metrics.TRACK_SEARCH.recordSince(start);
+			LOG.info("Returning list of matching albums: ", trackAlbums);
+			return trackAlbums;
+		}
 		try {
-			delay();
-			URL url = new URL("http://musicbrainz.org/ws/1/track/?type=xml&limit=25&query=" + URLEncoder.encode(query.toString(), "UTF-8"));
-			LOG.info("Connecting to MusicBrainz: ", url);
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.connect();
-
-			/* fast xml parsing with stax, very fragile */
-			XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(new BufferedInputStream(connection.getInputStream()));
-			int depth = 0;
-			String lastElement = null;
-			Map<String, String> values = new HashMap<String, String>();
-			while (xml.hasNext()) {
-				switch (xml.next()) {
-					case XMLStreamConstants.START_ELEMENT:
-						++depth;
-						lastElement = xml.getLocalName();
-						if (depth == 3 && "track".equals(lastElement)) {
-							/* track id */
-							values.put("track_mbid", xml.getAttributeValue(null, "id"));
-						} else if (depth == 4 && "artist".equals(lastElement)) {
-							/* artist id */
-							values.put("artist_mbid", xml.getAttributeValue(null, "id"));
-						} else if (depth == 5 && "release".equals(lastElement)) {
-							/* album id & type */
-							values.put("album_mbid", xml.getAttributeValue(null, "id"));
-							values.put("album_type", xml.getAttributeValue(null, "type"));
-						} else if (depth == 6 && "track-list".equals(lastElement)) {
-							/* track offset */
-							values.put("track_offset", xml.getAttributeValue(null, "offset"));
-						}
-						break;
-
-					case XMLStreamConstants.CHARACTERS:
-						if (depth == 4 && "title".equals(lastElement)) {
-							/* track title */
-							values.put("track_title", xml.getText());
-						} else if (depth == 4 && "duration".equals(lastElement)) {
-							/* track duration */
-							values.put("track_duration", xml.getText());
-						} else if (depth == 5 && "name".equals(lastElement)) {
-							/* artist name */
-							values.put("artist_name", xml.getText());
-						} else if (depth == 6 && "title".equals(lastElement)) {
-							/* album title */
-							values.put("album_title", xml.getText());
-						}
-						break;
-
-					case XMLStreamConstants.END_ELEMENT:
-						if (depth == 3 && "track".equals(xml.getLocalName())) {
-							try {
-								int tracknumber = Integer.parseInt(values.get("track_offset")) + 1;
-								int trackduration = Integer.parseInt(values.get("track_duration"));
-								Artist ar = new Artist(values.get("artist_name"), values.get("artist_mbid"));
-								Track tr = new Track(ar, values.get("track_title"), values.get("track_mbid"), tracknumber, trackduration);
-								List<Track> tracks = new ArrayList<Track>();
-								tracks.add(tr);
-								Album al = new Album(values.get("album_title"), values.get("album_type"), values.get("album_mbid"), tracks);
-								trackAlbums.add(al);
-							} catch (NumberFormatException e) {
-								LOG.warning(e);
-							}
-							values.clear();
-						}
-						--depth;
-						break;
-
-					default:
-						break;
-				}
-			}
-			xml.close();
+			URL url = new URL(serviceUrl + "/track/?type=xml&limit=25&query=" + URLEncoder.encode(query.toString(), "UTF-8"));
+			trackAlbums = readTrackSearch(request(url, searchLimiter, Metrics.TRACK_SEARCH, null));
 		} catch (FactoryConfigurationError e) {
 			LOG.warning(e);
 		} catch (IOException e) {
@@ -296,6 +301,445 @@ public final class MusicBrainz {
 		return trackAlbums;
 	}
 
+	/**
+	 * Search MusicBrainz for releases matching all the files in the given group.
+	 * The query is built from the directory, artist and album most of the files got in common, and the amount of files in the group.
+	 * Note that the albums returned are not complete albums, they contain no tracks and only limited data!
+	 * @param group the group we'll create a search query from
+	 * @return a list of albums without tracks
+	 */
+	public List<Album> searchRelease(Group group) {
+		LOG.info("Searching MusicBrainz for release matching group: ", group);
+		List<Metafile> files = group.files();
+		/* create search query */
+		Map<String, Integer> directories = new HashMap<String, Integer>();
+		Map<String, Integer> artists = new HashMap<String, Integer>();
+		Map<String, Integer> albums = new HashMap<String, Integer>();
+		for (Metafile metafile : files) {
+			int lastSlash = metafile.filename().lastIndexOf(File.separatorChar);
+			count(directories, metafile.filename().substring(metafile.filename().lastIndexOf(File.separatorChar, lastSlash - 1) + 1, lastSlash));
+			count(artists, metafile.getFirst(FieldKey.ALBUM_ARTIST) != null ? metafile.getFirst(FieldKey.ALBUM_ARTIST) : metafile.getFirst(FieldKey.ARTIST));
+			count(albums, metafile.getFirst(FieldKey.ALBUM));
+		}
+		String lastDirectory = escape(consensus(directories));
+		String artist = escape(consensus(artists));
+		String album = escape(consensus(albums));
+
+		StringBuilder query = new StringBuilder();
+		/* artist */
+		query.append("artist:(");
+		if (artist != null)
+			query.append(artist).append(' ');
+		if (lastDirectory != null)
+			query.append(lastDirectory);
+		query.append(") ");
+		/* release */
+		query.append("release:(");
+		if (album != null)
+			query.append(album).append(' ');
+		if (lastDirectory != null)
+			query.append(lastDirectory);
+		query.append(") ");
+		/* track count */
+		query.append("tracks:").append(files.size());
+
+		/* fetch result */
+		List<Album> releases = new ArrayList<Album>();
+		if (catalogue != null) {
+			long start = System.nanoTime();
+			releases = catalogue.searchRelease(query.toString());
+			Metrics.RELEASE_SEARCH.recordSince(start);
+			LOG.info("Returning list of matching releases: ", releases);
+			return releases;
+		}
+		try {
+			URL url = new URL(serviceUrl + "/release/?type=xml&limit=25&query=" + URLEncoder.encode(query.toString(), "UTF-8"));
+			releases = readReleaseSearch(request(url, searchLimiter, Metrics.RELEASE_SEARCH, null));
+		} catch (FactoryConfigurationError e) {
+			LOG.warning(e);
+		} catch (IOException e) {
+			LOG.warning(e);
+		} catch (XMLStreamException e) {
+			LOG.warning(e);
+		}
+		LOG.info("Returning list of matching releases: ", releases);
+		return releases;
+	}
+
+	/**
+	 * Get the maximum rate for each endpoint from properties.
+	 * The interval is between any two requests, so the rate it allows is split between release lookups and searches.
+	 * @param properties the properties
+	 * @return maximum requests per second for each endpoint
+	 */
+	private static double maxRate(Properties properties) {
+		String rate = properties.getProperty("riker.musicbrainz.rate");
+		if (rate != null)
+			return Double.parseDouble(rate);
+		long interval = Long.parseLong(properties.getProperty("riker.musicbrainz.interval", "1000"));
+		return interval > 0 ? 1000.0 / interval / 2.0 : UNLIMITED_RATE;
+	}
+
+	/**
+	 * Send a request to the web service and read the whole response, retrying with backoff while the service is busy.
+	 * The response is read to the end and the stream closed, so the connection can be reused for the next request.
+	 * Each attempt waits for its turn with the rate limiter of the endpoint, and tells it how the service answered.
+	 * @param url the URL to request
+	 * @param limiter rate limiter of the endpoint
+	 * @param latency histogram for the time from sending a request until the response is read
+	 * @param promoted null for requests needed now, otherwise the request only uses turns of the rate limiter nobody else is waiting for until this is set
+	 * @return stream with the decompressed response
+	 * @throws IOException if the request fails, times out or the service is still busy after the last retry
+	 */
+	private InputStream request(URL url, RateLimiter limiter, LatencyHistogram latency, AtomicBoolean promoted) throws IOException {
+		for (int attempt = 0; true; ++attempt) {
+			try {
+				if (promoted != null)
+					limiter.acquireSpare(promoted);
+				else
+					limiter.acquire();
+			} catch (InterruptedException e) {
+				/* keep the interrupt, callers only see the IOException */
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting to send request to MusicBrainz");
+			}
+			LOG.info("Connecting to MusicBrainz: ", url);
+			long sent = System.nanoTime();
+			try {
+				HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+				connection.setConnectTimeout(CONNECT_TIMEOUT);
+				connection.setReadTimeout(READ_TIMEOUT);
+				connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+				connection.setRequestProperty("User-Agent", USER_AGENT);
+				int status = connection.getResponseCode();
+				if (status == HttpURLConnection.HTTP_OK) {
+					byte[] response = readFully(decode(connection.getInputStream(), connection.getContentEncoding()));
+					limiter.answered(sent);
+					return new ByteArrayInputStream(response);
+				}
+				/* the error response must be read as well, or the connection is closed instead of reused */
+				InputStream error = connection.getErrorStream();
+				if (error != null)
+					readFully(error);
+				if (status != HttpURLConnection.HTTP_UNAVAILABLE && status != HTTP_TOO_MANY_REQUESTS) {
+					limiter.answered(sent);
+					throw new IOException("MusicBrainz responded with " + status + " " + connection.getResponseMessage() + " to " + url);
+				}
+				/* the service is busy, slow down and wait before the next request to this endpoint */
+				long wait = backoff(attempt, connection.getHeaderField("Retry-After"));
+				limiter.busy(sent, wait);
+				if (attempt >= MAX_RETRIES)
+					throw new IOException("MusicBrainz still busy after " + attempt + " retries: " + url);
+				LOG.notice("MusicBrainz responded with ", status, ", retrying in ", wait, "ms");
+				Metrics.REQUEST_RETRIES.increment();
+			} finally {
+				latency.recordSince(sent);
+			}
+		}
+	}
+
+	/**
+	 * Calculate how long to wait before retrying a request.
+	 * The wait doubles for each attempt, with up to the same amount of random jitter added.
+	 * @param attempt the attempt that failed, 0 for the first attempt
+	 * @param retryAfter value of the Retry-After header in seconds, may be null
+	 * @return milliseconds to wait, never less than the service asked for
+	 */
+	private long backoff(int attempt, String retryAfter) {
+		long wait = BACKOFF << Math.min(attempt, 16);
+		wait += (long) (jitter.nextDouble() * wait);
+		if (retryAfter != null) {
+			try {
+				wait = Math.max(wait, Long.parseLong(retryAfter.trim()) * 1000L);
+			} catch (NumberFormatException e) {
+				/* Retry-After may also be a date, we'll just use our own backoff then */
+				LOG.info("Unable to parse Retry-After header: ", retryAfter);
+			}
+		}
+		return wait;
+	}
+
+	/**
+	 * Wrap a response stream in a decompressing stream if the response is compressed.
+	 * @param input the response stream
+	 * @param encoding the Content-Encoding of the response, may be null
+	 * @return stream with the decompressed response
+	 * @throws IOException if the gzip header can't be read
+	 */
+	private static InputStream decode(InputStream input, String encoding) throws IOException {
+		if ("gzip".equalsIgnoreCase(encoding))
+			return new GZIPInputStream(input);
+		if ("deflate".equalsIgnoreCase(encoding))
+			return new InflaterInputStream(input);
+		return input;
+	}
+
+	/**
+	 * Read a stream to the end and close it.
+	 * @param input the stream
+	 * @return the bytes read
+	 * @throws IOException if the stream can't be read
+	 */
+	private static byte[] readFully(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = input.read(buffer)) >= 0)
+				output.write(buffer, 0, count);
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Parse a release document from the MusicBrainz web service.
+	 * This method got default access modifier (package modifier) so it can be benchmarked against recorded responses.
+	 * @param input stream with the XML document, should be buffered
+	 * @return the album, or null if the document doesn't contain a release
+	 * @throws XMLStreamException if the document can't be parsed
+	 */
+	static Album readAlbum(InputStream input) throws XMLStreamException {
+		Artist artist = null;
+		List<Track> tracks = new ArrayList<Track>();
+		/* fast xml parsing with stax, very fragile */
+		XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(input);
+		int depth = 0;
+		String lastElement = null;
+		Map<String, String> values = new HashMap<String, String>();
+		while (xml.hasNext()) {
+			switch (xml.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					++depth;
+					lastElement = xml.getLocalName();
+					if (depth == 2 && "release".equals(lastElement)) {
+						/* album id & type */
+						values.put("album_mbid", xml.getAttributeValue(null, "id"));
+						values.put("album_type", xml.getAttributeValue(null, "type"));
+					} else if (depth == 3 && "artist".equals(lastElement)) {
+						/* artist id */
+						values.put("artist_mbid", xml.getAttributeValue(null, "id"));
+					} else if (depth == 4 && "event".equals(lastElement)) {
+						String date = xml.getAttributeValue(null, "date");
+						if (date != null && (values.get("album_released") == null || date.compareTo(values.get("album_released")) < 0)) {
+							values.put("album_released", date);
+						}
+					} else if (depth == 4 && "track".equals(lastElement)) {
+						/* track id */
+						values.put("track_mbid", xml.getAttributeValue(null, "id"));
+					}
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+					if (depth == 3 && "title".equals(lastElement)) {
+						/* album title */
+						values.put("album_title", xml.getText());
+					} else if (depth == 4 && "name".equals(lastElement)) {
+						/* artist name */
+						values.put("artist_name", xml.getText());
+					} else if (depth == 4 && "sort-name".equals(lastElement)) {
+						/* artist sortname */
+						values.put("artist_sortname", xml.getText());
+					} else if (depth == 5 && "duration".equals(lastElement)) {
+						/* track duration */
+						values.put("track_duration", xml.getText());
+					} else if (depth == 5 && "title".equals(lastElement)) {
+						/* track title */
+						values.put("track_title", xml.getText());
+					}
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == 3 && "artist".equals(xml.getLocalName())) {
+						artist = new Artist(values.get("artist_name"), values.get("artist_sortname"), values.get("artist_mbid"));
+					} else if (depth == 4 && "track".equals(xml.getLocalName())) {
+						int trackduration = 0;
+						try {
+							trackduration = Integer.parseInt(values.get("track_duration"));
+						} catch (NumberFormatException e) {
+							LOG.debug(e, "Could not get track duration from XML, probably not known, so setting it to 0");
+						}
+						Track tr = new Track(artist, values.get("track_title"), values.get("track_mbid"), tracks.size() + 1, trackduration);
+						tracks.add(tr);
+					} else if (depth == 2 && "release".equals(xml.getLocalName())) {
+						xml.close();
+						return new Album(artist, values.get("album_title"), values.get("album_released"), values.get("album_type"), values.get("album_mbid"), tracks);
+					}
+					--depth;
+					break;
+
+				default:
+					break;
+			}
+		}
+		xml.close();
+		return null;
+	}
+
+	/**
+	 * Parse a track search document from the MusicBrainz web service.
+	 * This method got default access modifier (package modifier) so it can be benchmarked against recorded responses.
+	 * @param input stream with the XML document, should be buffered
+	 * @return a list of albums containing one track each
+	 * @throws XMLStreamException if the document can't be parsed
+	 */
+	static List<Album> readTrackSearch(InputStream input) throws XMLStreamException {
+		List<Album> trackAlbums = new ArrayList<Album>();
+		/* fast xml parsing with stax, very fragile */
+		XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(input);
+		int depth = 0;
+		String lastElement = null;
+		Map<String, String> values = new HashMap<String, String>();
+		while (xml.hasNext()) {
+			switch (xml.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					++depth;
+					lastElement = xml.getLocalName();
+					if (depth == 3 && "track".equals(lastElement)) {
+						/* track id */
+						values.put("track_mbid", xml.getAttributeValue(null, "id"));
+					} else if (depth == 4 && "artist".equals(lastElement)) {
+						/* artist id */
+						values.put("artist_mbid", xml.getAttributeValue(null, "id"));
+					} else if (depth == 5 && "release".equals(lastElement)) {
+						/* album id & type */
+						values.put("album_mbid", xml.getAttributeValue(null, "id"));
+						values.put("album_type", xml.getAttributeValue(null, "type"));
+					} else if (depth == 6 && "track-list".equals(lastElement)) {
+						/* track offset */
+						values.put("track_offset", xml.getAttributeValue(null, "offset"));
+					}
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+					if (depth == 4 && "title".equals(lastElement)) {
+						/* track title */
+						values.put("track_title", xml.getText());
+					} else if (depth == 4 && "duration".equals(lastElement)) {
+						/* track duration */
+						values.put("track_duration", xml.getText());
+					} else if (depth == 5 && "name".equals(lastElement)) {
+						/* artist name */
+						values.put("artist_name", xml.getText());
+					} else if (depth == 6 && "title".equals(lastElement)) {
+						/* album title */
+						values.put("album_title", xml.getText());
+					}
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == 3 && "track".equals(xml.getLocalName())) {
+						try {
+							int tracknumber = Integer.parseInt(values.get("track_offset")) + 1;
+							int trackduration = Integer.parseInt(values.get("track_duration"));
+							Artist ar = new Artist(values.get("artist_name"), values.get("artist_mbid"));
+							Track tr = new Track(ar, values.get("track_title"), values.get("track_mbid"), tracknumber, trackduration);
+							List<Track> tracks = new ArrayList<Track>();
+							tracks.add(tr);
+							Album al = new Album(values.get("album_title"), values.get("album_type"), values.get("album_mbid"), tracks);
+							trackAlbums.add(al);
+						} catch (NumberFormatException e) {
+							LOG.warning(e);
+						}
+						values.clear();
+					}
+					--depth;
+					break;
+
+				default:
+					break;
+			}
+		}
+		xml.close();
+		return trackAlbums;
+	}
+
+	/**
+	 * Parse a release search document from the MusicBrainz web service.
+	 * This method got default access modifier (package modifier) so it can be benchmarked against recorded responses.
+	 * @param input stream with the XML document, should be buffered
+	 * @return a list of albums without tracks
+	 * @throws XMLStreamException if the document can't be parsed
+	 */
+	static List<Album> readReleaseSearch(InputStream input) throws XMLStreamException {
+		List<Album> releases = new ArrayList<Album>();
+		/* fast xml parsing with stax, very fragile */
+		XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(input);
+		int depth = 0;
+		String lastElement = null;
+		Map<String, String> values = new HashMap<String, String>();
+		while (xml.hasNext()) {
+			switch (xml.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					++depth;
+					lastElement = xml.getLocalName();
+					if (depth == 3 && "release".equals(lastElement)) {
+						/* album id & type */
+						values.put("album_mbid", xml.getAttributeValue(null, "id"));
+						values.put("album_type", xml.getAttributeValue(null, "type"));
+					} else if (depth == 4 && "artist".equals(lastElement)) {
+						/* artist id */
+						values.put("artist_mbid", xml.getAttributeValue(null, "id"));
+					}
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+					if (depth == 4 && "title".equals(lastElement)) {
+						/* album title */
+						values.put("album_title", xml.getText());
+					} else if (depth == 5 && "name".equals(lastElement)) {
+						/* artist name */
+						values.put("artist_name", xml.getText());
+					}
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == 3 && "release".equals(xml.getLocalName())) {
+						Artist ar = new Artist(values.get("artist_name"), values.get("artist_mbid"));
+						releases.add(new Album(ar, values.get("album_title"), null, values.get("album_type"), values.get("album_mbid"), new ArrayList<Track>()));
+						values.clear();
+					}
+					--depth;
+					break;
+
+				default:
+					break;
+			}
+		}
+		xml.close();
+		return releases;
+	}
+
+	/**
+	 * Count a value.
+	 * @param counts the counts of each value
+	 * @param value the value to count, ignored if null or empty
+	 */
+	private static void count(Map<String, Integer> counts, String value) {
+		if (value == null || "".equals(value.trim()))
+			return;
+		Integer count = counts.get(value);
+		counts.put(value, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Find the most common value.
+	 * @param counts the counts of each value
+	 * @return the most common value, or null if there are no values
+	 */
+	private static String consensus(Map<String, Integer> counts) {
+		String best = null;
+		int bestCount = 0;
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() > bestCount) {
+				best = entry.getKey();
+				bestCount = entry.getValue();
+			}
+		}
+		return best;
+	}
+
 	/**
 	 * Escape special characters that mess up Lucene query.
 	 * @param text the text to be escaped
@@ -350,20 +794,4 @@ public final class MusicBrainz {
 		}
 		return sb.toString().trim();
 	}
-
-	/**
-	 * May only send a request to MusicBrainz every second, delay a bit if we recently sent a request.
-	 */
-	private static synchronized void delay() {
-		long delayTime = lastRequestTime - System.currentTimeMillis() + 1000;
-		if (delayTime > 0) {
-			try {
-				Thread.sleep(delayTime);
-			} catch (InterruptedException e) {
-				/* this never really happens */
-				LOG.warning(e, "Unable to delay query to MusicBrains");
-			}
-		}
-		lastRequestTime = System.currentTimeMillis();
-	}
 }
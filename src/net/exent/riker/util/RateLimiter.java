@@ -0,0 +1,198 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adaptive limit for the rate of requests to an endpoint of a web service, using additive increase and multiplicative decrease.
+ * Every request that is answered quickly raises the rate a step, up to the maximum rate.
+ * The rate is halved when the service says it's busy, and when it takes longer than the latency target to answer.
+ * A busy service may also ask us to wait before the next request, then no requests are sent until that time has passed.
+ * The limiter is thread safe, threads waiting for their turn don't block each other while sleeping.
+ * Requests that may as well not be sent, like speculative prefetches, only use turns nobody else is waiting for,
+ * until they're promoted because someone needs the answer, then they take their turn like any other request.
+ */
+final class RateLimiter {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(RateLimiter.class);
+	/**
+	 * The rate is never lowered below this many requests per second.
+	 */
+	private static final double MIN_RATE = 0.05;
+	/**
+	 * The rate is raised by this part of the maximum rate for each request answered quickly.
+	 */
+	private static final double INCREASE = 0.05;
+	/**
+	 * The rate is multiplied with this when the service pushes back.
+	 */
+	private static final double DECREASE = 0.5;
+	/**
+	 * Name of the endpoint, for logging.
+	 */
+	private String name;
+	/**
+	 * Maximum requests per second.
+	 */
+	private double maxRate;
+	/**
+	 * Answers slower than this many milliseconds lower the rate.
+	 */
+	private long latencyTarget;
+	/**
+	 * Current requests per second.
+	 */
+	private double rate;
+	/**
+	 * When the next request may be sent, from System.nanoTime().
+	 */
+	private long nextRequest = System.nanoTime();
+	/**
+	 * When the rate was last lowered, from System.nanoTime().
+	 * The rate is lowered at most once per request interval, requests sent before the rate was lowered shouldn't lower it again.
+	 */
+	private long lastDecrease = System.nanoTime();
+
+	/**
+	 * Default constructor, the rate starts at the maximum rate.
+	 * @param name name of the endpoint, for logging
+	 * @param maxRate maximum requests per second
+	 * @param latencyTarget answers slower than this many milliseconds lower the rate
+	 */
+	RateLimiter(String name, double maxRate, long latencyTarget) {
+		this.name = name;
+		this.maxRate = Math.max(MIN_RATE, maxRate);
+		this.latencyTarget = latencyTarget;
+		rate = this.maxRate;
+	}
+
+	/**
+	 * Get the current rate.
+	 * @return requests per second
+	 */
+	synchronized double rate() {
+		return rate;
+	}
+
+	/**
+	 * Wait until it's our turn to send a request.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long turn = Math.max(now, nextRequest);
+			nextRequest = turn + (long) (1000000000.0 / rate);
+			wait = turn - now;
+		}
+		if (wait > 0)
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+	}
+
+	/**
+	 * Wait until a request can be sent without delaying anyone waiting for their turn, or until the request is promoted.
+	 * Unlike acquire() this never reserves a turn ahead of time, it only takes turns nobody else wanted.
+	 * The promotion is checked at least once every turn, a promoted request waits for its turn like acquire().
+	 * @param promoted set when someone is waiting for the answer to the request
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void acquireSpare(AtomicBoolean promoted) throws InterruptedException {
+		while (true) {
+			if (promoted.get()) {
+				acquire();
+				return;
+			}
+			long wait;
+			synchronized (this) {
+				long now = System.nanoTime();
+				wait = nextRequest - now;
+				if (wait <= 0) {
+					nextRequest = now + (long) (1000000000.0 / rate);
+					return;
+				}
+				wait = Math.min(wait, (long) (1000000000.0 / rate));
+			}
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+
+	/**
+	 * Wait until nobody is waiting for their turn, without taking a turn.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void awaitSpare() throws InterruptedException {
+		while (true) {
+			long wait;
+			synchronized (this) {
+				wait = nextRequest - System.nanoTime();
+			}
+			if (wait <= 0)
+				return;
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+
+	/**
+	 * Tell the limiter that a request was answered.
+	 * The rate is raised a step if the answer came quickly, and lowered if it didn't.
+	 * @param sent when the request was sent, from System.nanoTime()
+	 */
+	synchronized void answered(long sent) {
+		long latency = (System.nanoTime() - sent) / 1000000;
+		if (latency > latencyTarget) {
+			LOG.notice("MusicBrainz ", name, " answered in ", latency, "ms");
+			decrease(sent);
+		} else {
+			rate = Math.min(maxRate, rate + maxRate * INCREASE);
+		}
+	}
+
+	/**
+	 * Tell the limiter that the service was too busy to answer a request.
+	 * The rate is lowered, and no requests are sent before the given time has passed.
+	 * @param sent when the request was sent, from System.nanoTime()
+	 * @param wait milliseconds to wait before the next request
+	 */
+	synchronized void busy(long sent, long wait) {
+		decrease(sent);
+		nextRequest = Math.max(nextRequest, System.nanoTime() + wait * 1000000);
+	}
+
+	/**
+	 * Lower the rate, unless it was already lowered after the request was sent.
+	 * @param sent when the request was sent, from System.nanoTime()
+	 */
+	private void decrease(long sent) {
+		if (sent - lastDecrease < 0)
+			return;
+		rate = Math.max(MIN_RATE, rate * DECREASE);
+		lastDecrease = System.nanoTime();
+		LOG.notice("Lowered rate of MusicBrainz ", name, " to ", rate, " requests per second");
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.Locale;
+
+/**
+ * Scores from comparing a batch of files with a batch of tracks, along with how much each feature contributed to each score.
+ * All values are kept in primitive arrays that are reused for the next batch, so scoring doesn't allocate memory once the arrays are large enough.
+ * A batch is not thread safe, each thread should use its own batch. ScoringModel may split a large batch in tiles scored on several threads,
+ * each with its own scratch buffers, but the batch is complete when score() returns.
+ */
+public class ScoreBatch {
+
+	/**
+	 * Amount of files in the batch.
+	 */
+	private int files;
+	/**
+	 * Amount of tracks in the batch.
+	 */
+	private int tracks;
+	/**
+	 * Score of each file and track, indexed by file * tracks + track.
+	 */
+	private double[] scores = new double[0];
+	/**
+	 * Contribution of each feature to each score, indexed by [feature][file * tracks + track].
+	 */
+	private double[][] contributions = new double[ScoringModel.FEATURES][0];
+	/**
+	 * Whether each file and track is close enough in duration to be compared, indexed by file * tracks + track.
+	 */
+	private boolean[] compared = new boolean[0];
+	/**
+	 * Duration of each file in milliseconds.
+	 */
+	private int[] fileDurations = new int[0];
+	/**
+	 * Duration of each track in milliseconds.
+	 */
+	private int[] trackDurations = new int[0];
+	/**
+	 * Track number of each track.
+	 */
+	private int[] trackNumbers = new int[0];
+	/**
+	 * Scratch buffers for scoring the files one at a time when the batch is scored on a single thread.
+	 */
+	private Scratch scratch = new Scratch();
+
+	/**
+	 * Get the amount of files in the batch.
+	 * @return the amount of files
+	 */
+	public int files() {
+		return files;
+	}
+
+	/**
+	 * Get the amount of tracks in the batch.
+	 * @return the amount of tracks
+	 */
+	public int tracks() {
+		return tracks;
+	}
+
+	/**
+	 * Get the score of a file and a track.
+	 * @param file index of the file
+	 * @param track index of the track
+	 * @return a value between 0.0 and 1.0 where 0.0 is complete mismatch and 1.0 is perfect match
+	 */
+	public double score(int file, int track) {
+		return scores[file * tracks + track];
+	}
+
+	/**
+	 * Get how much a feature contributed to the score of a file and a track.
+	 * The contributions of all features add up to the score.
+	 * @param file index of the file
+	 * @param track index of the track
+	 * @param feature the feature, one of the feature constants in ScoringModel
+	 * @return the contribution of the feature
+	 */
+	public double contribution(int file, int track, int feature) {
+		return contributions[feature][file * tracks + track];
+	}
+
+	/**
+	 * Describe the contributions to the score of a file and a track, for logging.
+	 * @param file index of the file
+	 * @param track index of the track
+	 * @return the contributions, like "album=0.200 artist=0.180 ..."
+	 */
+	public String explain(int file, int track) {
+		StringBuilder sb = new StringBuilder();
+		for (int feature = 0; feature < ScoringModel.FEATURES; ++feature) {
+			if (feature > 0)
+				sb.append(' ');
+			sb.append(ScoringModel.featureName(feature)).append('=').append(String.format(Locale.US, "%.3f", contribution(file, track, feature)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Prepare the batch for scoring, growing the arrays if they're too small.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @param fileCount amount of files
+	 * @param trackCount amount of tracks
+	 */
+	void reset(int fileCount, int trackCount) {
+		files = fileCount;
+		tracks = trackCount;
+		int size = fileCount * trackCount;
+		if (scores.length < size) {
+			scores = new double[size];
+			for (int feature = 0; feature < contributions.length; ++feature)
+				contributions[feature] = new double[size];
+			compared = new boolean[size];
+		}
+		if (fileDurations.length < fileCount)
+			fileDurations = new int[fileCount];
+		if (trackDurations.length < trackCount) {
+			trackDurations = new int[trackCount];
+			trackNumbers = new int[trackCount];
+		}
+	}
+
+	/**
+	 * Get the scores.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @return the scores
+	 */
+	double[] scores() {
+		return scores;
+	}
+
+	/**
+	 * Get the contributions of a feature.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @param feature the feature
+	 * @return the contributions of the feature
+	 */
+	double[] contributions(int feature) {
+		return contributions[feature];
+	}
+
+	/**
+	 * Get whether each file and track is compared.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @return whether each file and track is compared
+	 */
+	boolean[] compared() {
+		return compared;
+	}
+
+	/**
+	 * Get the file durations.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @return the file durations
+	 */
+	int[] fileDurations() {
+		return fileDurations;
+	}
+
+	/**
+	 * Get the track durations.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @return the track durations
+	 */
+	int[] trackDurations() {
+		return trackDurations;
+	}
+
+	/**
+	 * Get the track numbers.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @return the track numbers
+	 */
+	int[] trackNumbers() {
+		return trackNumbers;
+	}
+
+	/**
+	 * Get the scratch buffers for scoring on the thread using the batch.
+	 * This method got default access modifier (package modifier) as only ScoringModel should call it.
+	 * @return the scratch buffers
+	 */
+	Scratch scratch() {
+		return scratch;
+	}
+
+	/**
+	 * Buffers for scoring one file at a time, each thread scoring files needs its own.
+	 * This class got default access modifier (package modifier) as only ScoringModel should use it.
+	 */
+	static final class Scratch {
+
+		/**
+		 * Similarity of each value of the current file with album title, artist name, title and track number of the current track.
+		 */
+		private double[][] similarities = new double[ScoringModel.TRACKNUMBER + 1][0];
+		/**
+		 * Each value of the current file as a number, -1 for values that aren't numbers.
+		 */
+		private int[] valueNumbers = new int[0];
+		/**
+		 * Indices of the values that are most similar to album title, artist name, title and track number.
+		 */
+		private int[][] candidates = new int[ScoringModel.TRACKNUMBER + 1][ScoringModel.TRACKNUMBER + 1];
+
+		/**
+		 * Make sure the arrays for the values of a file are large enough.
+		 * @param values amount of values
+		 */
+		void reserveValues(int values) {
+			if (valueNumbers.length < values) {
+				valueNumbers = new int[values];
+				for (int feature = 0; feature < similarities.length; ++feature)
+					similarities[feature] = new double[values];
+			}
+		}
+
+		/**
+		 * Get the similarities of the values of the current file for a feature.
+		 * @param feature the feature, album, artist, title or track number
+		 * @return the similarities
+		 */
+		double[] similarities(int feature) {
+			return similarities[feature];
+		}
+
+		/**
+		 * Get the indices of the values most similar to a feature.
+		 * @param feature the feature, album, artist, title or track number
+		 * @return the indices of the most similar values
+		 */
+		int[] candidates(int feature) {
+			return candidates[feature];
+		}
+
+		/**
+		 * Get the values of the current file as numbers.
+		 * @return the values as numbers
+		 */
+		int[] valueNumbers() {
+			return valueNumbers;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.Arrays;
+import java.util.List;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.Track;
+
+/**
+ * Cheap upper bounds for how well a group of files can score with an album, used for skipping albums that can't beat the best album so far.
+ * An album never scores more than the amount of files that can be kept times the best score of any file and track,
+ * and a file never scores more with a track than its best possible similarity with each feature.
+ * Similarity is bounded by the characters two strings got in common: every character of the longest string that isn't found in the other string
+ * costs at least one edit, so the Levenshtein similarity can't be higher than the shared characters divided by the length of the longest string.
+ * Counting shared characters is a single pass over sorted characters, much cheaper than the Levenshtein distance.
+ */
+final class ScoreBounds {
+
+	/**
+	 * The model the bounds are calculated for.
+	 */
+	private ScoringModel model;
+	/**
+	 * Values of each file, lowercased and with the characters sorted.
+	 */
+	private char[][][] values;
+	/**
+	 * Length of each value of each file before lowercasing.
+	 */
+	private int[][] lengths;
+	/**
+	 * Values of each file as numbers, -1 for values that aren't numbers.
+	 */
+	private int[][] numbers;
+	/**
+	 * Duration of each file in milliseconds.
+	 */
+	private int[] durations;
+
+	/**
+	 * Default constructor, prepares the values of the files.
+	 * @param model the model the bounds are calculated for
+	 * @param files the files
+	 */
+	ScoreBounds(ScoringModel model, List<Metafile> files) {
+		this.model = model;
+		int fileCount = files.size();
+		values = new char[fileCount][][];
+		lengths = new int[fileCount][];
+		numbers = new int[fileCount][];
+		durations = new int[fileCount];
+		for (int file = 0; file < fileCount; ++file) {
+			Metafile metafile = files.get(file);
+			List<String> fileValues = metafile.stringValues();
+			int valueCount = fileValues.size();
+			values[file] = new char[valueCount][];
+			lengths[file] = new int[valueCount];
+			numbers[file] = new int[valueCount];
+			for (int value = 0; value < valueCount; ++value) {
+				String text = fileValues.get(value);
+				values[file][value] = sorted(text);
+				lengths[file][value] = text.length();
+				numbers[file][value] = ScoringModel.number(text);
+			}
+			durations[file] = valueCount > 0 ? metafile.getAudioHeader().getTrackLength() * 1000 : -1;
+		}
+	}
+
+	/**
+	 * Upper bound of the score for an album only known from a search, where just the album title and the artist of the album or one track are known.
+	 * Title, track number and duration of the tracks are unknown and assumed to match perfectly.
+	 * @param album the album found by the search
+	 * @return the most the album can score
+	 */
+	double candidateBound(Album album) {
+		char[] albumTitle = sorted(album.title());
+		int albumLength = album.title() == null ? 0 : album.title().length();
+		Track track = album.tracks().isEmpty() ? null : album.tracks().get(0);
+		String artist = null;
+		if (track != null && track.artist() != null)
+			artist = track.artist().name();
+		else if (album.artist() != null)
+			artist = album.artist().name();
+		char[] artistName = sorted(artist);
+		int artistLength = artist == null ? 0 : artist.length();
+		int kept = 0;
+		double best = 0.0;
+		for (int file = 0; file < values.length; ++file) {
+			int valueCount = values[file].length;
+			double score = 0.0;
+			if (valueCount >= 4)
+				score += model.normalizedWeight(ScoringModel.ALBUM) * similarity(file, albumTitle, albumLength) + model.normalizedWeight(ScoringModel.ARTIST) * similarity(file, artistName, artistLength) + model.normalizedWeight(ScoringModel.TITLE) + model.normalizedWeight(ScoringModel.TRACKNUMBER);
+			if (valueCount > 0)
+				score += model.normalizedWeight(ScoringModel.DURATION);
+			if (score >= model.keepThreshold()) {
+				++kept;
+				best = Math.max(best, score);
+			}
+		}
+		return kept * best;
+	}
+
+	/**
+	 * Upper bound of the score for a loaded album, where title, artist, track number and duration of every track is known.
+	 * @param album the album
+	 * @return the most the album can score
+	 */
+	double albumBound(Album album) {
+		List<Track> tracks = album.tracks();
+		int trackCount = tracks.size();
+		char[] albumTitle = sorted(album.title());
+		int albumLength = album.title() == null ? 0 : album.title().length();
+		char[][] titles = new char[trackCount][];
+		int[] titleLengths = new int[trackCount];
+		char[][] artists = new char[trackCount][];
+		int[] artistLengths = new int[trackCount];
+		for (int track = 0; track < trackCount; ++track) {
+			Track tmpTrack = tracks.get(track);
+			String artist = tmpTrack.artist() == null ? null : tmpTrack.artist().name();
+			titles[track] = sorted(tmpTrack.title());
+			titleLengths[track] = tmpTrack.title() == null ? 0 : tmpTrack.title().length();
+			/* most albums got the same artist on every track */
+			if (track > 0 && artist != null && tracks.get(track - 1).artist() != null && artist.equals(tracks.get(track - 1).artist().name())) {
+				artists[track] = artists[track - 1];
+				artistLengths[track] = artistLengths[track - 1];
+			} else {
+				artists[track] = sorted(artist);
+				artistLengths[track] = artist == null ? 0 : artist.length();
+			}
+		}
+		double albumWeight = model.normalizedWeight(ScoringModel.ALBUM);
+		double artistWeight = model.normalizedWeight(ScoringModel.ARTIST);
+		double titleWeight = model.normalizedWeight(ScoringModel.TITLE);
+		double numberWeight = model.normalizedWeight(ScoringModel.TRACKNUMBER);
+		double durationWeight = model.normalizedWeight(ScoringModel.DURATION);
+		double inverseTolerance = 1.0 / model.durationTolerance();
+		int window = model.durationWindow();
+		int kept = 0;
+		double best = 0.0;
+		for (int file = 0; file < values.length; ++file) {
+			int valueCount = values[file].length;
+			double fileBest = 0.0;
+			if (valueCount > 0) {
+				double albumScore = valueCount >= 4 ? albumWeight * similarity(file, albumTitle, albumLength) : 0.0;
+				for (int track = 0; track < trackCount; ++track) {
+					int trackDuration = tracks.get(track).duration();
+					/* files and tracks outside the duration window score 0.0 */
+					if (window > 0 && durations[file] > 0 && trackDuration > 0 && Math.abs(durations[file] - trackDuration) > window)
+						continue;
+					double score = albumScore + durationWeight * Math.max(0.0, 1.0 - Math.abs(durations[file] - trackDuration) * inverseTolerance);
+					if (valueCount >= 4) {
+						/* skip the string comparisons if the track can't beat the best track anyway */
+						if (score + artistWeight + titleWeight + numberWeight <= fileBest)
+							continue;
+						score += artistWeight * similarity(file, artists[track], artistLengths[track]) + titleWeight * similarity(file, titles[track], titleLengths[track]);
+						if (isNumber(file, tracks.get(track).tracknumber()))
+							score += numberWeight;
+					}
+					fileBest = Math.max(fileBest, score);
+				}
+			}
+			if (fileBest >= model.keepThreshold()) {
+				++kept;
+				best = Math.max(best, fileBest);
+			}
+		}
+		return kept * best;
+	}
+
+	/**
+	 * Upper bound of the similarity between any value of a file and a string.
+	 * @param file index of the file
+	 * @param string the string, lowercased and with the characters sorted
+	 * @param length length of the string before lowercasing
+	 * @return the most similar any value of the file can be to the string
+	 */
+	private double similarity(int file, char[] string, int length) {
+		if (length == 0)
+			return 0.0;
+		double best = 0.0;
+		for (int value = 0; value < values[file].length; ++value) {
+			char[] text = values[file][value];
+			int maxLength = Math.max(lengths[file][value], length);
+			if (maxLength == 0 || lengths[file][value] == 0)
+				continue;
+			/* similarity is 1.0 minus the distance divided by the length of the longest string, and the distance is at least the characters not shared */
+			double similarity = 1.0 - (double) (Math.max(text.length, string.length) - shared(text, string)) / (double) maxLength;
+			if (similarity > best) {
+				best = similarity;
+				if (best >= 1.0)
+					break;
+			}
+		}
+		return Math.min(best, 1.0);
+	}
+
+	/**
+	 * Check whether any value of a file is the given number.
+	 * @param file index of the file
+	 * @param number the number
+	 * @return true if any value of the file is the number, false if not
+	 */
+	private boolean isNumber(int file, int number) {
+		for (int value : numbers[file]) {
+			if (value == number)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Count the characters two strings got in common, each character only counted once.
+	 * @param string1 the first string, characters sorted
+	 * @param string2 the second string, characters sorted
+	 * @return amount of characters in common
+	 */
+	private static int shared(char[] string1, char[] string2) {
+		int shared = 0;
+		int a = 0;
+		int b = 0;
+		while (a < string1.length && b < string2.length) {
+			if (string1[a] == string2[b]) {
+				++shared;
+				++a;
+				++b;
+			} else if (string1[a] < string2[b]) {
+				++a;
+			} else {
+				++b;
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Lowercase a string the same way Levenshtein does and sort its characters.
+	 * @param string the string, may be null
+	 * @return the sorted characters, empty if the string is null
+	 */
+	private static char[] sorted(String string) {
+		if (string == null)
+			return new char[0];
+		char[] chars = string.toLowerCase().toCharArray();
+		Arrays.sort(chars);
+		return chars;
+	}
+}
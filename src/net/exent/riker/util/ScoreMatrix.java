@@ -0,0 +1,199 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.BitSet;
+import java.util.List;
+import net.exent.riker.metadata.Album;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.Track;
+
+/**
+ * Scores from comparing the files of a group with the tracks of an album.
+ * The scores are kept in one dense array indexed by file * tracks + track, copied from a ScoreBatch,
+ * and the comparisons that scored too low to be kept are left out by a bit set instead of being removed.
+ */
+final class ScoreMatrix {
+
+	/**
+	 * The album.
+	 */
+	private Album album;
+	/**
+	 * The files compared with the album.
+	 */
+	private List<Metafile> files;
+	/**
+	 * The tracks of the album.
+	 */
+	private List<Track> tracks;
+	/**
+	 * Score of each file and track, indexed by file * tracks + track.
+	 */
+	private double[] scores;
+	/**
+	 * Comparisons that scored well enough to be kept, indexed like the scores.
+	 */
+	private BitSet kept = new BitSet();
+
+	/**
+	 * Default constructor, copies the scores from a batch.
+	 * @param album the album
+	 * @param files the files compared with the album
+	 * @param batch the scores of the files and the tracks of the album
+	 * @param keepThreshold score a comparison must reach to be kept
+	 */
+	ScoreMatrix(Album album, List<Metafile> files, ScoreBatch batch, double keepThreshold) {
+		this.album = album;
+		this.files = files;
+		this.tracks = album.tracks();
+		int size = batch.files() * batch.tracks();
+		scores = new double[size];
+		System.arraycopy(batch.scores(), 0, scores, 0, size);
+		for (int cell = 0; cell < size; ++cell) {
+			if (scores[cell] >= keepThreshold)
+				kept.set(cell);
+		}
+	}
+
+	/**
+	 * Get the album.
+	 * @return the album
+	 */
+	Album album() {
+		return album;
+	}
+
+	/**
+	 * Get the file with the given index.
+	 * @param file index of the file
+	 * @return the file
+	 */
+	Metafile file(int file) {
+		return files.get(file);
+	}
+
+	/**
+	 * Get the track with the given index.
+	 * @param track index of the track
+	 * @return the track
+	 */
+	Track track(int track) {
+		return tracks.get(track);
+	}
+
+	/**
+	 * Get whether no comparison was kept.
+	 * @return true if no comparison scored well enough to be kept
+	 */
+	boolean isEmpty() {
+		return kept.isEmpty();
+	}
+
+	/**
+	 * Get the score of a file and a track.
+	 * @param file index of the file
+	 * @param track index of the track
+	 * @return the score, whether it was kept or not
+	 */
+	double score(int file, int track) {
+		return scores[file * tracks.size() + track];
+	}
+
+	/**
+	 * Get whether the comparison of a file and a track was kept.
+	 * @param file index of the file
+	 * @param track index of the track
+	 * @return true if the comparison scored well enough to be kept
+	 */
+	boolean kept(int file, int track) {
+		return kept.get(file * tracks.size() + track);
+	}
+
+	/**
+	 * Get the amount of tracks with at least one kept comparison.
+	 * @return the amount of tracks matched
+	 */
+	int matchedTracks() {
+		int matched = 0;
+		for (int track = 0; track < tracks.size(); ++track) {
+			if (bestFile(track) >= 0)
+				++matched;
+		}
+		return matched;
+	}
+
+	/**
+	 * Find the file that compared best with a track.
+	 * @param track index of the track
+	 * @return index of the file with the best kept comparison, or -1 if no comparison with the track was kept
+	 */
+	int bestFile(int track) {
+		int bestFile = -1;
+		double bestScore = 0.0;
+		for (int file = 0; file < files.size(); ++file) {
+			if (kept(file, track) && (bestFile < 0 || score(file, track) > bestScore)) {
+				bestFile = file;
+				bestScore = score(file, track);
+			}
+		}
+		return bestFile;
+	}
+
+	/**
+	 * Calculate the score of the album.
+	 * The score is the sum of the best comparison of each track, scaled by the amount of files compared per track.
+	 * Tracks and files are visited in the order of the album and the group.
+	 * @return the score of the album
+	 */
+	double albumScore() {
+		double albumScore = 0.0;
+		int trackCount = tracks.size();
+		double[] fileScores = new double[files.size()];
+		BitSet compared = new BitSet(files.size());
+		int matchedTracks = 0;
+		for (int track = 0; track < trackCount; ++track) {
+			double bestFileScore = 0.0;
+			boolean matched = false;
+			for (int file = 0; file < files.size(); ++file) {
+				int cell = file * trackCount + track;
+				if (!kept.get(cell))
+					continue;
+				if (!compared.get(file) || fileScores[file] > bestFileScore) {
+					bestFileScore = scores[cell];
+					fileScores[file] = bestFileScore;
+					compared.set(file);
+				}
+				matched = true;
+			}
+			if (matched) {
+				albumScore += bestFileScore;
+				++matchedTracks;
+			}
+		}
+		if (matchedTracks == 0)
+			return 0.0;
+		return albumScore * (double) compared.cardinality() / (double) matchedTracks;
+	}
+}
@@ -0,0 +1,621 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import net.exent.riker.metadata.DurationIndex;
+import net.exent.riker.metadata.Metafile;
+import net.exent.riker.metadata.Track;
+import net.exent.riker.metrics.Metrics;
+
+/**
+ * Model for scoring how well files match tracks.
+ * The score is a weighted average of five features: how similar the values of the file are to album title, artist name, title and track number,
+ * where each value only can be used for one of them, and how close the duration of the file is to the duration of the track.
+ * The model is configured with system properties, or any other properties given to fromProperties():
+ * "riker.score.album", "riker.score.artist", "riker.score.title", "riker.score.tracknumber" and "riker.score.duration" are the weights (default 1.0),
+ * "riker.score.durationTolerance" is the duration difference in milliseconds where the duration stops adding to the score (default 15000),
+ * "riker.score.window" is the duration difference in milliseconds where a file and track are no longer compared at all and score 0.0 (default 30000, 0 compares everything),
+ * "riker.score.keep" is the score a comparison must reach to be kept (default 0.35, a perfect duration alone adds 0.2 with the default weights) and
+ * "riker.score.queue" is the score that makes a file good enough to not be searched for (default 0.75).
+ * Files and tracks are scored in batches, the features of the whole batch are combined in tight loops over primitive arrays the JIT can vectorize.
+ * Files are only compared with tracks within the window of their duration, found in the duration index of the album, and with tracks of unknown duration.
+ * Batches of at least "riker.score.parallel" comparisons (default 2048) are split in tiles of files and tracks, scored by the calling thread
+ * together with up to "riker.score.threads" threads (default one for each processor) shared by all models.
+ * Every comparison is scored the same way whichever thread scores it, so the result doesn't depend on the amount of threads.
+ */
+public class ScoringModel {
+
+	/**
+	 * Similarity with the album title.
+	 */
+	public static final int ALBUM = 0;
+	/**
+	 * Similarity with the artist name.
+	 */
+	public static final int ARTIST = 1;
+	/**
+	 * Similarity with the track title.
+	 */
+	public static final int TITLE = 2;
+	/**
+	 * Whether a value is the track number.
+	 */
+	public static final int TRACKNUMBER = 3;
+	/**
+	 * Closeness of durations.
+	 */
+	public static final int DURATION = 4;
+	/**
+	 * Amount of features.
+	 */
+	public static final int FEATURES = 5;
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOG = new Logger(ScoringModel.class);
+	/**
+	 * Names of the features, also used in property names.
+	 */
+	private static final String[] FEATURE_NAMES = {"album", "artist", "title", "tracknumber", "duration"};
+	/**
+	 * Prefix of property names.
+	 */
+	private static final String PREFIX = "riker.score.";
+	/**
+	 * Amount of threads scoring a batch, including the thread asking for the batch to be scored.
+	 */
+	private static final int THREADS = Integer.getInteger("riker.score.threads", Runtime.getRuntime().availableProcessors());
+	/**
+	 * Batches with fewer comparisons than this are scored on the calling thread only.
+	 */
+	private static final int PARALLEL_THRESHOLD = Integer.getInteger("riker.score.parallel", 2048);
+	/**
+	 * Amount of files in a tile.
+	 */
+	private static final int TILE_FILES = 16;
+	/**
+	 * Amount of tracks in a tile.
+	 */
+	private static final int TILE_TRACKS = 32;
+	/**
+	 * Scratch buffers for each thread scoring tiles.
+	 */
+	private static ThreadLocal<ScoreBatch.Scratch> scratches = new ThreadLocal<ScoreBatch.Scratch>() {
+		@Override
+		protected ScoreBatch.Scratch initialValue() {
+			return new ScoreBatch.Scratch();
+		}
+	};
+	/**
+	 * Threads helping with scoring tiles, created when first needed.
+	 */
+	private static ExecutorService pool;
+	/**
+	 * Feature weights.
+	 */
+	private double[] weights;
+	/**
+	 * Feature weights divided by the sum of the weights, so scores range from 0.0 to 1.0.
+	 */
+	private double[] normalizedWeights = new double[FEATURES];
+	/**
+	 * Duration difference in milliseconds where the duration stops adding to the score.
+	 */
+	private int durationTolerance;
+	/**
+	 * Duration difference in milliseconds where files and tracks are no longer compared, 0 to compare everything.
+	 */
+	private int durationWindow;
+	/**
+	 * Score a comparison must reach to be kept.
+	 */
+	private double keepThreshold;
+	/**
+	 * Score that makes a file good enough to not be searched for.
+	 */
+	private double queueThreshold;
+
+	/**
+	 * Full constructor.
+	 * @param weights weight of each feature, indexed by the feature constants
+	 * @param durationTolerance duration difference in milliseconds where the duration stops adding to the score
+	 * @param durationWindow duration difference in milliseconds where files and tracks are no longer compared, 0 to compare everything
+	 * @param keepThreshold score a comparison must reach to be kept
+	 * @param queueThreshold score that makes a file good enough to not be searched for
+	 */
+	public ScoringModel(double[] weights, int durationTolerance, int durationWindow, double keepThreshold, double queueThreshold) {
+		if (weights.length != FEATURES)
+			throw new IllegalArgumentException("Expected " + FEATURES + " weights, got " + weights.length);
+		double sum = 0.0;
+		for (double weight : weights) {
+			if (weight < 0.0)
+				throw new IllegalArgumentException("Weights can't be negative: " + Arrays.toString(weights));
+			sum += weight;
+		}
+		if (sum <= 0.0)
+			throw new IllegalArgumentException("At least one weight must be positive: " + Arrays.toString(weights));
+		if (durationTolerance <= 0)
+			throw new IllegalArgumentException("Duration tolerance must be positive: " + durationTolerance);
+		if (durationWindow < 0)
+			throw new IllegalArgumentException("Duration window can't be negative: " + durationWindow);
+		this.weights = weights.clone();
+		for (int feature = 0; feature < FEATURES; ++feature)
+			normalizedWeights[feature] = weights[feature] / sum;
+		this.durationTolerance = durationTolerance;
+		this.durationWindow = durationWindow;
+		this.keepThreshold = keepThreshold;
+		this.queueThreshold = queueThreshold;
+		if (keepThreshold <= normalizedWeights[DURATION])
+			LOG.warning("Keep threshold ", keepThreshold, " is reached by the duration alone, files are kept for tracks without any matching metadata");
+	}
+
+	/**
+	 * Create a model from properties, properties not set get their default value.
+	 * @param properties the properties, typically System.getProperties()
+	 * @return the model
+	 */
+	public static ScoringModel fromProperties(Properties properties) {
+		double[] weights = new double[FEATURES];
+		for (int feature = 0; feature < FEATURES; ++feature)
+			weights[feature] = property(properties, FEATURE_NAMES[feature], 1.0);
+		int durationTolerance = (int) property(properties, "durationTolerance", 15000.0);
+		int durationWindow = (int) property(properties, "window", 30000.0);
+		return new ScoringModel(weights, durationTolerance, durationWindow, property(properties, "keep", 0.35), property(properties, "queue", 0.75));
+	}
+
+	/**
+	 * Get the name of a feature.
+	 * @param feature the feature
+	 * @return the name of the feature
+	 */
+	public static String featureName(int feature) {
+		return FEATURE_NAMES[feature];
+	}
+
+	/**
+	 * Get the weight of a feature.
+	 * @param feature the feature
+	 * @return the weight of the feature
+	 */
+	public double weight(int feature) {
+		return weights[feature];
+	}
+
+	/**
+	 * Get the weight of a feature divided by the sum of the weights, this is the most the feature can add to a score.
+	 * @param feature the feature
+	 * @return the normalized weight of the feature
+	 */
+	public double normalizedWeight(int feature) {
+		return normalizedWeights[feature];
+	}
+
+	/**
+	 * Get the duration difference where the duration stops adding to the score.
+	 * @return the duration tolerance in milliseconds
+	 */
+	public int durationTolerance() {
+		return durationTolerance;
+	}
+
+	/**
+	 * Get the duration difference where files and tracks are no longer compared.
+	 * @return the duration window in milliseconds, 0 if everything is compared
+	 */
+	public int durationWindow() {
+		return durationWindow;
+	}
+
+	/**
+	 * Get the score a comparison must reach to be kept.
+	 * @return the score a comparison must reach to be kept
+	 */
+	public double keepThreshold() {
+		return keepThreshold;
+	}
+
+	/**
+	 * Get the score that makes a file good enough to not be searched for.
+	 * @return the score that makes a file good enough to not be searched for
+	 */
+	public double queueThreshold() {
+		return queueThreshold;
+	}
+
+	/**
+	 * Score a single file and track.
+	 * @param file the file
+	 * @param track the track
+	 * @param batch batch to score in, holds the contributions of the features afterwards
+	 * @return a value between 0.0 and 1.0 where 0.0 is complete mismatch and 1.0 is perfect match
+	 */
+	public double score(Metafile file, Track track, ScoreBatch batch) {
+		score(Collections.singletonList(file), Collections.singletonList(track), batch);
+		return batch.score(0, 0);
+	}
+
+	/**
+	 * Score every file with every track.
+	 * Files without any values and files and tracks outside the duration window get a score of 0.0.
+	 * @param files the files
+	 * @param tracks the tracks
+	 * @param batch batch to score in, holds the scores and the contributions of the features afterwards
+	 */
+	public void score(List<Metafile> files, List<Track> tracks, ScoreBatch batch) {
+		score(files, tracks, null, batch);
+	}
+
+	/**
+	 * Score every file with every track, using the duration index of the tracks to find the tracks within the duration window of each file.
+	 * Files without any values and files and tracks outside the duration window get a score of 0.0.
+	 * @param files the files
+	 * @param tracks the tracks
+	 * @param durationIndex the tracks sorted by duration, null to check the duration of every track
+	 * @param batch batch to score in, holds the scores and the contributions of the features afterwards
+	 */
+	public void score(List<Metafile> files, List<Track> tracks, DurationIndex durationIndex, ScoreBatch batch) {
+		int fileCount = files.size();
+		int trackCount = tracks.size();
+		batch.reset(fileCount, trackCount);
+		int[] fileDurations = batch.fileDurations();
+		int[] trackDurations = batch.trackDurations();
+		int[] trackNumbers = batch.trackNumbers();
+		for (int track = 0; track < trackCount; ++track) {
+			trackDurations[track] = tracks.get(track).duration();
+			trackNumbers[track] = tracks.get(track).tracknumber();
+		}
+		for (int file = 0; file < fileCount; ++file) {
+			Metafile metafile = files.get(file);
+			/* jaudiotagger gives the length in seconds, tracks got it in milliseconds. files without values are marked with -1 */
+			fileDurations[file] = metafile.stringValues().size() > 0 ? metafile.getAudioHeader().getTrackLength() * 1000 : -1;
+		}
+		int comparisons = select(batch, durationIndex);
+		if (comparisons < fileCount * trackCount)
+			Metrics.COMPARISONS_SKIPPED.add(fileCount * trackCount - comparisons);
+		/* metadata features, one file and track at a time */
+		if (THREADS > 1 && comparisons >= PARALLEL_THRESHOLD)
+			scoreTiles(files, tracks, batch);
+		else
+			scoreMetadata(files, tracks, batch, batch.scratch(), 0, fileCount, 0, trackCount);
+		/* duration feature, a row of tracks for each file */
+		double[] duration = batch.contributions(DURATION);
+		boolean[] compared = batch.compared();
+		double inverseTolerance = 1.0 / durationTolerance;
+		for (int file = 0; file < fileCount; ++file) {
+			int fileDuration = fileDurations[file];
+			int offset = file * trackCount;
+			if (fileDuration < 0) {
+				Arrays.fill(duration, offset, offset + trackCount, 0.0);
+				continue;
+			}
+			for (int track = 0; track < trackCount; ++track)
+				duration[offset + track] = compared[offset + track] ? Math.max(0.0, 1.0 - Math.abs(fileDuration - trackDurations[track]) * inverseTolerance) : 0.0;
+		}
+		/* weight the features and add them up */
+		int size = fileCount * trackCount;
+		double[] scores = batch.scores();
+		Arrays.fill(scores, 0, size, 0.0);
+		for (int feature = 0; feature < FEATURES; ++feature) {
+			double weight = normalizedWeights[feature];
+			double[] contributions = batch.contributions(feature);
+			for (int index = 0; index < size; ++index) {
+				contributions[index] *= weight;
+				scores[index] += contributions[index];
+			}
+		}
+	}
+
+	/**
+	 * Score the metadata features of a range of files and tracks.
+	 * @param files the files in the batch
+	 * @param tracks the tracks in the batch
+	 * @param batch the batch
+	 * @param scratch scratch buffers of the thread
+	 * @param fileFrom index of the first file
+	 * @param fileTo index after the last file
+	 * @param trackFrom index of the first track
+	 * @param trackTo index after the last track
+	 */
+	private void scoreMetadata(List<Metafile> files, List<Track> tracks, ScoreBatch batch, ScoreBatch.Scratch scratch, int fileFrom, int fileTo, int trackFrom, int trackTo) {
+		int trackCount = tracks.size();
+		int[] trackNumbers = batch.trackNumbers();
+		boolean[] compared = batch.compared();
+		for (int file = fileFrom; file < fileTo; ++file) {
+			List<String> values = files.get(file).stringValues();
+			int valueCount = values.size();
+			scratch.reserveValues(valueCount);
+			int[] valueNumbers = scratch.valueNumbers();
+			for (int value = 0; value < valueCount; ++value)
+				valueNumbers[value] = number(values.get(value));
+			for (int track = trackFrom; track < trackTo; ++track) {
+				int index = file * trackCount + track;
+				if (compared[index]) {
+					scoreMetadata(values, tracks.get(track), trackNumbers[track], batch, scratch, index);
+				} else {
+					batch.contributions(ALBUM)[index] = 0.0;
+					batch.contributions(ARTIST)[index] = 0.0;
+					batch.contributions(TITLE)[index] = 0.0;
+					batch.contributions(TRACKNUMBER)[index] = 0.0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark the files and tracks close enough in duration to be compared.
+	 * Files without any values are compared with nothing, files and tracks of unknown duration are compared with everything.
+	 * @param batch the batch, with the durations of the files and tracks set
+	 * @param durationIndex the tracks sorted by duration, null to check the duration of every track
+	 * @return the amount of files and tracks to compare
+	 */
+	private int select(ScoreBatch batch, DurationIndex durationIndex) {
+		int fileCount = batch.files();
+		int trackCount = batch.tracks();
+		int[] fileDurations = batch.fileDurations();
+		int[] trackDurations = batch.trackDurations();
+		boolean[] compared = batch.compared();
+		int comparisons = 0;
+		for (int file = 0; file < fileCount; ++file) {
+			int fileDuration = fileDurations[file];
+			int offset = file * trackCount;
+			if (fileDuration < 0 || durationWindow <= 0) {
+				Arrays.fill(compared, offset, offset + trackCount, fileDuration >= 0);
+				comparisons += fileDuration >= 0 ? trackCount : 0;
+			} else if (durationIndex != null) {
+				Arrays.fill(compared, offset, offset + trackCount, false);
+				comparisons += durationIndex.mark(fileDuration, durationWindow, compared, offset);
+			} else {
+				for (int track = 0; track < trackCount; ++track) {
+					int trackDuration = trackDurations[track];
+					compared[offset + track] = fileDuration == 0 || trackDuration <= 0 || Math.abs(fileDuration - trackDuration) <= durationWindow;
+					if (compared[offset + track])
+						++comparisons;
+				}
+			}
+		}
+		return comparisons;
+	}
+
+	/**
+	 * Score the metadata features of a large batch in tiles, on the calling thread and threads from the pool.
+	 * Each tile is scored by one thread and writes its own part of the batch, the calling thread waits until all tiles are scored.
+	 * Tiles not taken by the pool threads are scored by the calling thread, so it never waits for threads busy with other batches.
+	 * @param files the files in the batch
+	 * @param tracks the tracks in the batch
+	 * @param batch the batch
+	 */
+	private void scoreTiles(final List<Metafile> files, final List<Track> tracks, final ScoreBatch batch) {
+		final int fileCount = files.size();
+		final int trackCount = tracks.size();
+		final int trackTiles = (trackCount + TILE_TRACKS - 1) / TILE_TRACKS;
+		final int tileCount = (fileCount + TILE_FILES - 1) / TILE_FILES * trackTiles;
+		final AtomicInteger nextTile = new AtomicInteger();
+		final CountDownLatch scored = new CountDownLatch(tileCount);
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				ScoreBatch.Scratch scratch = scratches.get();
+				int tile;
+				while ((tile = nextTile.getAndIncrement()) < tileCount) {
+					try {
+						int fileFrom = tile / trackTiles * TILE_FILES;
+						int trackFrom = tile % trackTiles * TILE_TRACKS;
+						scoreMetadata(files, tracks, batch, scratch, fileFrom, Math.min(fileFrom + TILE_FILES, fileCount), trackFrom, Math.min(trackFrom + TILE_TRACKS, trackCount));
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						scored.countDown();
+					}
+				}
+			}
+		};
+		ExecutorService helpers = pool();
+		for (int helper = Math.min(THREADS, tileCount) - 1; helper > 0; --helper)
+			helpers.execute(worker);
+		worker.run();
+		boolean interrupted = false;
+		while (scored.getCount() > 0) {
+			try {
+				scored.await();
+			} catch (InterruptedException e) {
+				/* the tiles must be scored before the batch can be used, finish waiting and keep the interrupt */
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	/**
+	 * Get the threads helping with scoring tiles, creating them if they're not created.
+	 * @return the thread pool
+	 */
+	private static synchronized ExecutorService pool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(THREADS - 1, new ThreadFactory() {
+				/**
+				 * Amount of threads created.
+				 */
+				private int created;
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Scorer-" + ++created);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Find the best way to use the values of a file as album title, artist name, title and track number, and store the similarities of the values used.
+	 * Every value can only be used once, so it takes at least four values to score anything.
+	 * Only the four values most similar to each feature need to be tried: the other three features can use at most three of them,
+	 * so the best combination never needs a value that is less similar than all four.
+	 * @param values the values of the file
+	 * @param track the track
+	 * @param tracknumber the track number of the track
+	 * @param batch the batch
+	 * @param scratch scratch buffers of the thread, holds the values of the file as numbers
+	 * @param index index of the file and track in the batch
+	 */
+	private void scoreMetadata(List<String> values, Track track, int tracknumber, ScoreBatch batch, ScoreBatch.Scratch scratch, int index) {
+		int valueCount = values.size();
+		double[] album = scratch.similarities(ALBUM);
+		double[] artist = scratch.similarities(ARTIST);
+		double[] title = scratch.similarities(TITLE);
+		double[] number = scratch.similarities(TRACKNUMBER);
+		if (valueCount < 4) {
+			batch.contributions(ALBUM)[index] = 0.0;
+			batch.contributions(ARTIST)[index] = 0.0;
+			batch.contributions(TITLE)[index] = 0.0;
+			batch.contributions(TRACKNUMBER)[index] = 0.0;
+			return;
+		}
+		String albumTitle = track.album() == null ? null : track.album().title();
+		String artistName = track.artist() == null ? null : track.artist().name();
+		int[] valueNumbers = scratch.valueNumbers();
+		for (int value = 0; value < valueCount; ++value) {
+			String text = values.get(value);
+			album[value] = Levenshtein.similarity(text, albumTitle);
+			artist[value] = Levenshtein.similarity(text, artistName);
+			title[value] = Levenshtein.similarity(text, track.title());
+			number[value] = valueNumbers[value] == tracknumber ? 1.0 : 0.0;
+		}
+		int[] albumCandidates = candidates(album, valueCount, scratch.candidates(ALBUM));
+		int[] artistCandidates = candidates(artist, valueCount, scratch.candidates(ARTIST));
+		int[] titleCandidates = candidates(title, valueCount, scratch.candidates(TITLE));
+		int[] numberCandidates = candidates(number, valueCount, scratch.candidates(TRACKNUMBER));
+		double bestScore = -1.0;
+		int bestAlbum = 0;
+		int bestArtist = 0;
+		int bestTitle = 0;
+		int bestNumber = 0;
+		for (int albumIndex : albumCandidates) {
+			for (int artistIndex : artistCandidates) {
+				if (artistIndex == albumIndex)
+					continue;
+				for (int titleIndex : titleCandidates) {
+					if (titleIndex == artistIndex || titleIndex == albumIndex)
+						continue;
+					for (int numberIndex : numberCandidates) {
+						if (numberIndex == titleIndex || numberIndex == artistIndex || numberIndex == albumIndex)
+							continue;
+						double score = weights[ALBUM] * album[albumIndex] + weights[ARTIST] * artist[artistIndex] + weights[TITLE] * title[titleIndex] + weights[TRACKNUMBER] * number[numberIndex];
+						if (score > bestScore) {
+							bestScore = score;
+							bestAlbum = albumIndex;
+							bestArtist = artistIndex;
+							bestTitle = titleIndex;
+							bestNumber = numberIndex;
+						}
+					}
+				}
+			}
+		}
+		batch.contributions(ALBUM)[index] = album[bestAlbum];
+		batch.contributions(ARTIST)[index] = artist[bestArtist];
+		batch.contributions(TITLE)[index] = title[bestTitle];
+		batch.contributions(TRACKNUMBER)[index] = number[bestNumber];
+	}
+
+	/**
+	 * Find the indices of the four most similar values.
+	 * @param similarities similarity of each value
+	 * @param valueCount amount of values, at least four
+	 * @param candidates array to store the indices in, most similar first
+	 * @return the candidates array
+	 */
+	private static int[] candidates(double[] similarities, int valueCount, int[] candidates) {
+		int found = 0;
+		for (int value = 0; value < valueCount; ++value) {
+			double similarity = similarities[value];
+			int position = found;
+			while (position > 0 && similarities[candidates[position - 1]] < similarity)
+				--position;
+			if (position >= candidates.length)
+				continue;
+			int last = Math.min(found, candidates.length - 1);
+			System.arraycopy(candidates, position, candidates, position + 1, last - position);
+			candidates[position] = value;
+			if (found < candidates.length)
+				++found;
+		}
+		return candidates;
+	}
+
+	/**
+	 * Parse a value as a positive number without creating any objects.
+	 * This method got default access modifier (package modifier) so ScoreBounds parse numbers the same way.
+	 * @param value the value
+	 * @return the number, or -1 if the value isn't a number
+	 */
+	static int number(String value) {
+		int length = value.length();
+		if (length == 0 || length > 9)
+			return -1;
+		int number = 0;
+		for (int a = 0; a < length; ++a) {
+			char c = value.charAt(a);
+			if (c < '0' || c > '9')
+				return -1;
+			number = number * 10 + c - '0';
+		}
+		return number;
+	}
+
+	/**
+	 * Read a number from properties.
+	 * @param properties the properties
+	 * @param name name of the property, without prefix
+	 * @param defaultValue value used if the property isn't set or isn't a number
+	 * @return the value of the property
+	 */
+	private static double property(Properties properties, String name, double defaultValue) {
+		String value = properties.getProperty(PREFIX + name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			LOG.warning("Property ", PREFIX + name, " is not a number: ", value);
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ *  The MIT License
+ * 
+ *  Copyright 2010 Vidar Wahlberg <canidae@exent.net>.
+ * 
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ * 
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ * 
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package net.exent.riker.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Splits the metadata and filename of a file in the string values the file is compared with tracks by.
+ * Directory names are split once and shared by all files in the directory.
+ * A value is left out if the same value in lowercase is already in the list, otherwise it's left out if it's similar to a value already in the list.
+ * A file gets at most "riker.values.max" values (default 16) of the properties given to fromProperties(), tags first,
+ * then the directory name and last the filename, as every value adds to the combinations ScoringModel tries for each track.
+ */
+public final class Tokenizer {
+
+	/**
+	 * Values at least this similar to a value already in the list are left out.
+	 */
+	private static final double SIMILAR = 0.8;
+	/**
+	 * Tokenizer with the default max amount of values, used for files not loaded by an engine.
+	 */
+	public static final Tokenizer DEFAULT = new Tokenizer(16);
+	/**
+	 * Max amount of directories kept in the directory cache.
+	 */
+	private static final int DIRECTORY_CACHE_SIZE = 256;
+	/**
+	 * Tokens of the most recently used directory names, keyed by directory path.
+	 */
+	private static Map<String, String[]> directoryCache = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+		/**
+		 * Serial version UID.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Remove the least recently used directory when the cache is full.
+		 * @param eldest the least recently used directory
+		 * @return true if the cache is full
+		 */
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+			return size() > DIRECTORY_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Max amount of values for a file.
+	 */
+	private int maxValues;
+
+	/**
+	 * Default constructor.
+	 * @param maxValues max amount of values for a file
+	 */
+	public Tokenizer(int maxValues) {
+		this.maxValues = maxValues;
+	}
+
+	/**
+	 * Create a tokenizer configured by the property "riker.values.max".
+	 * @param properties the properties, typically System.getProperties()
+	 * @return the tokenizer
+	 */
+	public static Tokenizer fromProperties(Properties properties) {
+		return new Tokenizer(Integer.parseInt(properties.getProperty("riker.values.max", "16")));
+	}
+
+	/**
+	 * Create the string values of a file.
+	 * @param tags the interesting tag values of the file, in order of importance
+	 * @param filename path of the file
+	 * @return the string values of the file
+	 */
+	public List<String> stringValues(List<String> tags, String filename) {
+		List<String> values = new ArrayList<String>(maxValues);
+		Set<String> normalized = new HashSet<String>();
+		for (String tag : tags) {
+			if (values.size() >= maxValues)
+				return values;
+			values.add(tag);
+			normalized.add(tag.toLowerCase());
+		}
+		int lastSlash = filename.lastIndexOf(File.separatorChar);
+		for (String token : directoryTokens(filename, lastSlash))
+			add(values, normalized, token);
+		String basename = filename.substring(lastSlash + 1, filename.lastIndexOf('.')).replace('_', ' ');
+		for (String token : split(basename, '-', '.'))
+			add(values, normalized, token);
+		return values;
+	}
+
+	/**
+	 * Get the tokens of the directory name of a file, from the cache if the directory was split before.
+	 * @param filename path of the file
+	 * @param lastSlash index of the last separator in the path
+	 * @return the tokens of the directory name
+	 */
+	private static String[] directoryTokens(String filename, int lastSlash) {
+		String path = filename.substring(0, lastSlash);
+		synchronized (directoryCache) {
+			String[] tokens = directoryCache.get(path);
+			if (tokens != null)
+				return tokens;
+		}
+		String directory = filename.substring(filename.lastIndexOf(File.separatorChar, lastSlash - 1) + 1, lastSlash).replace('_', ' ');
+		List<String> tokenList = split(directory, '-', '-');
+		String[] tokens = tokenList.toArray(new String[tokenList.size()]);
+		synchronized (directoryCache) {
+			directoryCache.put(path, tokens);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Split a text on two separators, trimming the tokens.
+	 * Empty tokens and tokens appearing earlier in the text are left out.
+	 * @param text the text
+	 * @param separator1 the first separator
+	 * @param separator2 the second separator
+	 * @return the tokens
+	 */
+	private static List<String> split(String text, char separator1, char separator2) {
+		List<String> tokens = new ArrayList<String>();
+		int start = 0;
+		for (int index = 0; index <= text.length(); ++index) {
+			if (index < text.length()) {
+				char c = text.charAt(index);
+				if (c != separator1 && c != separator2)
+					continue;
+			}
+			String token = text.substring(start, index).trim();
+			if (token.length() > 0 && !tokens.contains(token))
+				tokens.add(token);
+			start = index + 1;
+		}
+		return tokens;
+	}
+
+	/**
+	 * Add a token to the values unless the list is full or a similar value already is in the list.
+	 * @param values the values
+	 * @param normalized the values in lowercase
+	 * @param token the token
+	 */
+	private void add(List<String> values, Set<String> normalized, String token) {
+		if (values.size() >= maxValues || !normalized.add(token.toLowerCase()))
+			return;
+		int length = token.length();
+		for (String value : values) {
+			/* the distance is at least the difference in length, skip the full comparison when that alone makes the strings too different */
+			int maxLength = Math.max(length, value.length());
+			if (1.0 - (double) Math.abs(length - value.length()) / (double) maxLength < SIMILAR)
+				continue;
+			if (Levenshtein.similarity(token, value) >= SIMILAR)
+				return;
+		}
+		values.add(token);
+	}
+}